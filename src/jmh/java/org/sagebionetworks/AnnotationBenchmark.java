@@ -0,0 +1,98 @@
+package org.sagebionetworks;
+
+import static org.sagebionetworks.EvaluationUtils.JOB_LAST_UPDATED_TIME_STAMP;
+import static org.sagebionetworks.EvaluationUtils.PROGRESS;
+import static org.sagebionetworks.EvaluationUtils.STATUS_DESCRIPTION;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sagebionetworks.evaluation.model.SubmissionStatus;
+import org.sagebionetworks.repo.model.annotation.Annotations;
+import org.sagebionetworks.repo.model.annotation.DoubleAnnotation;
+import org.sagebionetworks.repo.model.annotation.LongAnnotation;
+import org.sagebionetworks.repo.model.annotation.StringAnnotation;
+
+/*
+ * Setting annotations on a submission status, as done for each running submission
+ * on each pass of the main loop.  The status carries annotationCount annotations
+ * of each type (string, long, double), as written by the agent and by the workflow.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=3, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(1)
+@State(Scope.Thread)
+public class AnnotationBenchmark {
+
+	@Param({"10", "50", "200"})
+	public int annotationCount;
+
+	private SubmissionStatus template;
+	private SubmissionStatusModifications statusMods;
+
+	@Setup
+	public void setUp() {
+		template = new SubmissionStatus();
+		for (int i=0; i<annotationCount; i++) {
+			EvaluationUtils.setAnnotation(template, "workflow.string."+i, "value "+i, i%2==0);
+			EvaluationUtils.setAnnotation(template, "workflow.long."+i, (long)i, i%2==0);
+			EvaluationUtils.setAnnotation(template, "workflow.double."+i, i/3D, i%2==0);
+		}
+		EvaluationUtils.setAnnotation(template, PROGRESS, 42D, false);
+		EvaluationUtils.setAnnotation(template, JOB_LAST_UPDATED_TIME_STAMP, 0L, false);
+
+		// a typical update from the monitor stage
+		statusMods = new SubmissionStatusModifications();
+		EvaluationUtils.setAnnotation(statusMods, PROGRESS, 43D, false);
+		EvaluationUtils.setAnnotation(statusMods, JOB_LAST_UPDATED_TIME_STAMP, System.currentTimeMillis(), false);
+		EvaluationUtils.setAnnotation(statusMods, STATUS_DESCRIPTION, "EVALUATION_IN_PROGRESS", false);
+		EvaluationUtils.setAnnotation(statusMods, "workflow.string.0", "changed", false);
+		EvaluationUtils.removeAnnotation(statusMods, "workflow.long.1");
+	}
+
+	/*
+	 * A status with the template's annotations, whose lists may be replaced without
+	 * affecting the template
+	 */
+	private SubmissionStatus copy() {
+		Annotations annotations = new Annotations();
+		annotations.setStringAnnos(new ArrayList<StringAnnotation>(template.getAnnotations().getStringAnnos()));
+		annotations.setLongAnnos(new ArrayList<LongAnnotation>(template.getAnnotations().getLongAnnos()));
+		annotations.setDoubleAnnos(new ArrayList<DoubleAnnotation>(template.getAnnotations().getDoubleAnnos()));
+		SubmissionStatus status = new SubmissionStatus();
+		status.setAnnotations(annotations);
+		return status;
+	}
+
+	/*
+	 * Three annotations set one at a time, each re-indexing the status
+	 */
+	@Benchmark
+	public SubmissionStatus setAnnotation() {
+		SubmissionStatus status = copy();
+		EvaluationUtils.setAnnotation(status, PROGRESS, 43D, false);
+		EvaluationUtils.setAnnotation(status, JOB_LAST_UPDATED_TIME_STAMP, System.currentTimeMillis(), false);
+		EvaluationUtils.setAnnotation(status, STATUS_DESCRIPTION, "EVALUATION_IN_PROGRESS", false);
+		return status;
+	}
+
+	@Benchmark
+	public SubmissionStatus applyModifications() {
+		SubmissionStatus status = copy();
+		EvaluationUtils.applyModifications(status, statusMods);
+		return status;
+	}
+}
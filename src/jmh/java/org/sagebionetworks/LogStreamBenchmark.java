@@ -0,0 +1,61 @@
+package org.sagebionetworks;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.dockerjava.api.model.Frame;
+import com.github.dockerjava.api.model.StreamType;
+
+/*
+ * LoggingResultsCallback.onNext(), which every frame of every workflow's log passes
+ * through.  Each invocation pumps a stream of FRAMES frames.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations=3, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(1)
+@State(Scope.Thread)
+public class LogStreamBenchmark {
+	private static final int FRAMES = 10000;
+	private static final String LINE = "2018-06-01T12:34:56.123456789Z INFO:toil.worker:Job 'file:///work/step.cwl' completed successfully, no errors were found\n";
+
+	// bytes per frame:  a single log line, or a buffer full of them
+	@Param({"128", "8192"})
+	public int frameSize;
+
+	@Param({"256"})
+	public int maxTail;
+
+	private Frame frame;
+	private LoggingResultsCallback callback;
+
+	@Setup
+	public void setUp() {
+		StringBuilder sb = new StringBuilder();
+		while (sb.length()<frameSize) sb.append(LINE);
+		frame = new Frame(StreamType.STDOUT, sb.substring(0, frameSize).getBytes(Charset.forName("UTF-8")));
+		callback = new LoggingResultsCallback(new NullOutputStream(), maxTail);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(FRAMES)
+	public String onNext() {
+		for (int i=0; i<FRAMES; i++) callback.onNext(frame);
+		return callback.getTail();
+	}
+}
@@ -0,0 +1,58 @@
+package org.sagebionetworks;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Rendering the notification messages from their (cached) templates
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=3, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(1)
+@State(Scope.Thread)
+public class MessageTemplateBenchmark {
+	private String logs;
+
+	@Setup
+	public void setUp() {
+		// a log tail of the length the agent includes in a failure message
+		StringBuilder sb = new StringBuilder();
+		while (sb.length()<Constants.MAX_LOG_ANNOTATION_CHARS) sb.append("INFO:toil.worker:Job 'file:///work/step.cwl' failed\n");
+		logs = sb.substring(0, Constants.MAX_LOG_ANNOTATION_CHARS);
+	}
+
+	@Benchmark
+	public String submissionStarted() throws IOException {
+		return MessageUtils.createSubmissionStartedMessage("Team Awesome", "9876543", "syn1234567");
+	}
+
+	@Benchmark
+	public String workflowFailed() throws IOException {
+		return MessageUtils.createWorkflowFailedMessage("Team Awesome", "9876543", "Exit code 1", logs, "syn1234567");
+	}
+
+	@Benchmark
+	public String workflowComplete() throws IOException {
+		return MessageUtils.createWorkflowCompleteMessage("Team Awesome", "9876543", "syn1234567");
+	}
+
+	@Benchmark
+	public String pipelineFailureDigest() throws IOException {
+		return MessageUtils.createPipelineFailureDigestMessage(5, 15L, 
+				Arrays.asList("9876541", "9876542", "9876543", "9876544", "9876545"), "Connection refused");
+	}
+}
@@ -0,0 +1,35 @@
+package org.sagebionetworks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Utils.getProgressPercentFromString(), applied to the output of each workflow's
+ * progress command on each pass of the main loop
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations=3, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(1)
+@State(Scope.Thread)
+public class ProgressParsingBenchmark {
+
+	@Param({"STDOUT: 42.5\n", "STDERR: no such file\n", "73"})
+	public String output;
+
+	@Benchmark
+	public Double getProgressPercentFromString() {
+		return Utils.getProgressPercentFromString(output, 10);
+	}
+}
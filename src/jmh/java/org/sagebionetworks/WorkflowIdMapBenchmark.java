@@ -0,0 +1,80 @@
+package org.sagebionetworks;
+
+import static org.sagebionetworks.EvaluationUtils.WORKFLOW_JOB_ID;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sagebionetworks.evaluation.model.Submission;
+import org.sagebionetworks.evaluation.model.SubmissionBundle;
+import org.sagebionetworks.evaluation.model.SubmissionStatus;
+
+/*
+ * Matching running submissions to workflow jobs, as done on each pass of the main loop
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=3, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(1)
+@State(Scope.Thread)
+public class WorkflowIdMapBenchmark {
+
+	@Param({"100", "10000"})
+	public int submissionCount;
+
+	private List<SubmissionBundle> bundles;
+	private List<WorkflowJob> jobs;
+
+	@Setup
+	public void setUp() {
+		bundles = new ArrayList<SubmissionBundle>();
+		jobs = new ArrayList<WorkflowJob>();
+		for (int i=0; i<submissionCount; i++) {
+			String submissionId = String.valueOf(9000000+i);
+			String workflowId = Utils.createContainerName();
+
+			Submission submission = new Submission();
+			submission.setId(submissionId);
+			SubmissionStatus status = new SubmissionStatus();
+			status.setId(submissionId);
+			// the agent's annotations, then the workflow's
+			EvaluationUtils.setAnnotation(status, EvaluationUtils.JOB_STARTED_TIME_STAMP, 0L, true);
+			EvaluationUtils.setAnnotation(status, EvaluationUtils.STATUS_DESCRIPTION, "EVALUATION_IN_PROGRESS", false);
+			for (int j=0; j<10; j++) EvaluationUtils.setAnnotation(status, "workflow.string."+j, "value "+j, false);
+			EvaluationUtils.setAnnotation(status, WORKFLOW_JOB_ID, workflowId, true);
+			SubmissionBundle bundle = new SubmissionBundle();
+			bundle.setSubmission(submission);
+			bundle.setSubmissionStatus(status);
+			bundles.add(bundle);
+
+			WorkflowJobImpl job = new WorkflowJobImpl();
+			job.setSubmissionId(submissionId);
+			job.setContainerName(workflowId);
+			jobs.add(job);
+		}
+	}
+
+	@Benchmark
+	public Map<String, SubmissionBundle> workflowIdsForSubmissions() {
+		return WorkflowHook.workflowIdsForSubmissions(bundles);
+	}
+
+	@Benchmark
+	public Map<String, WorkflowJob> workflowIdsForJobs() {
+		return WorkflowHook.workflowIdsForJobs(jobs);
+	}
+}
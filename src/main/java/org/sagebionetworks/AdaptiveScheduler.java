@@ -0,0 +1,81 @@
+package org.sagebionetworks;
+
+import static org.sagebionetworks.Clock.getClock;
+
+/*
+ * Decides how long the agent waits between passes of its main loop.
+ *
+ * - When submissions are waiting to start and a slot is free, e.g. because a workflow
+ *   has just finished, the next pass starts at once.
+ * - When a workflow is nearly done, the agent waits the shortest interval.
+ * - When workflows are running, or submissions are waiting for a slot, it waits the
+ *   usual interval:  nothing can start until a slot is freed, and the workflow which
+ *   frees it will wake the agent.
+ * - When nothing is running or waiting, the interval doubles with each idle pass, up
+ *   to the longest interval.
+ *
+ * However long the wait, wakeUp() ends it, e.g. when a workflow's container exits.
+ */
+public class AdaptiveScheduler {
+	// progress, in percent, at which a workflow is considered nearly done
+	public static final double NEAR_COMPLETION_PERCENT = 90D;
+
+	private long minIntervalMillis;
+	private long intervalMillis;
+	private long maxIntervalMillis;
+	private long idleIntervalMillis;
+
+	private final Object wakeUpLock = new Object();
+	private boolean wakeUpRequested = false;
+
+	public AdaptiveScheduler(long minIntervalMillis, long intervalMillis, long maxIntervalMillis) {
+		if (minIntervalMillis>intervalMillis || intervalMillis>maxIntervalMillis)
+			throw new IllegalArgumentException("Expected min<=interval<=max but found "+minIntervalMillis+", "+intervalMillis+", "+maxIntervalMillis);
+		this.minIntervalMillis=minIntervalMillis;
+		this.intervalMillis=intervalMillis;
+		this.maxIntervalMillis=maxIntervalMillis;
+		this.idleIntervalMillis=intervalMillis;
+	}
+
+	/*
+	 * Return how long to wait after a pass in which the given were found:
+	 *
+	 * waitingSubmissions - received submissions not started for lack of capacity
+	 * freeSlots - workflows which could be started at the end of the pass
+	 * runningJobs - workflows still running at the end of the pass
+	 * finishedJobs - workflows which finished during the pass
+	 * nearCompletion - whether any running workflow is nearly done
+	 */
+	public synchronized long getNextInterval(int waitingSubmissions, int freeSlots, int runningJobs, int finishedJobs, boolean nearCompletion) {
+		if (waitingSubmissions>0 || runningJobs>0 || finishedJobs>0) idleIntervalMillis = intervalMillis;
+		if (waitingSubmissions>0 && freeSlots>0) return 0L;
+		if (nearCompletion) return minIntervalMillis;
+		if (waitingSubmissions>0 || runningJobs>0 || finishedJobs>0) return intervalMillis;
+		long result = idleIntervalMillis;
+		idleIntervalMillis = Math.min(maxIntervalMillis, 2*idleIntervalMillis);
+		return result;
+	}
+
+	/*
+	 * Wait the given time or until wakeUp() is called, whichever is first.  A wake up
+	 * requested since the last wait ends the wait at once.
+	 */
+	public void await(long millis) throws InterruptedException {
+		Clock clock = getClock();
+		synchronized (wakeUpLock) {
+			long deadline = clock.currentTimeMillis()+millis;
+			while (!wakeUpRequested && millis>0) {
+				clock.await(wakeUpLock, millis);
+				millis = deadline-clock.currentTimeMillis();
+			}
+			wakeUpRequested = false;
+		}
+	}
+
+	public void wakeUp() {
+		synchronized (wakeUpLock) {
+			wakeUpRequested = true;
+			getClock().signal(wakeUpLock);
+		}
+	}
+}
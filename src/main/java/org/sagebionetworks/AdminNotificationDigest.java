@@ -0,0 +1,137 @@
+package org.sagebionetworks;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Groups the notifications sent to the workflow administrator, so that a failure
+ * which recurs, e.g. on every pass of the main loop or for every submission in a
+ * queue, doesn't flood the administrator's inbox.
+ *
+ * Notifications are grouped by subject and by a 'fingerprint' of the failure.  The
+ * first notification in a group is sent right away.  Those which follow within the
+ * window are only counted, and when the window closes one message summarizing them
+ * is sent in their place.
+ */
+public class AdminNotificationDigest {
+	private static Logger log = LoggerFactory.getLogger(AdminNotificationDigest.class);
+
+	// the number of stack frames, per exception in a chain, making up a fingerprint
+	private static final int FINGERPRINT_FRAMES = 5;
+	private static final int MAX_SUBMISSION_IDS_LISTED = 50;
+	private static final String SUMMARY_SUBJECT_SUFFIX = " (summary)";
+
+	/*
+	 * What actually sends a notification to the administrator
+	 */
+	public interface AdminMessageSender {
+		void send(String subject, String body);
+	}
+
+	private static class Group {
+		private String subject;
+		private String firstMessage;
+		private long windowStart;
+		private int repeats = 0;
+		private Set<String> submissionIds = new LinkedHashSet<String>();
+
+		Group(String subject, String firstMessage, long windowStart) {
+			this.subject=subject;
+			this.firstMessage=firstMessage;
+			this.windowStart=windowStart;
+		}
+	}
+
+	private AdminMessageSender sender;
+	private long windowMillis;
+	private Map<String,Group> groups = new LinkedHashMap<String,Group>();
+
+	/*
+	 * A window of zero means every notification is sent as it comes
+	 */
+	public AdminNotificationDigest(AdminMessageSender sender, long windowMillis) {
+		this.sender=sender;
+		this.windowMillis=windowMillis;
+	}
+
+	/*
+	 * A fingerprint for a failure which is the same each time the same code fails in
+	 * the same way: the exception types and the top of their stacks, not the messages,
+	 * which often include IDs
+	 */
+	public static String fingerprint(Throwable t) {
+		StringBuilder sb = new StringBuilder();
+		for (Throwable cause=t; cause!=null; cause=(cause.getCause()==cause?null:cause.getCause())) {
+			sb.append(cause.getClass().getName());
+			StackTraceElement[] frames = cause.getStackTrace();
+			for (int i=0; i<frames.length && i<FINGERPRINT_FRAMES; i++) {
+				sb.append("|").append(frames[i].getClassName()).append(".").append(frames[i].getMethodName());
+			}
+			sb.append("\n");
+		}
+		return Integer.toHexString(sb.toString().hashCode());
+	}
+
+	/*
+	 * Send the given notification or, if one like it was sent recently, count it
+	 * toward the next summary.  submissionId may be null.
+	 */
+	public void notify(String subject, String fingerprint, String submissionId, String body, long now) {
+		if (windowMillis<=0) {
+			sender.send(subject, body);
+			return;
+		}
+		String key = subject+"\n"+fingerprint;
+		Group expired = null;
+		synchronized (this) {
+			Group group = groups.get(key);
+			if (group!=null && now-group.windowStart<windowMillis) {
+				group.repeats++;
+				if (submissionId!=null && group.submissionIds.size()<MAX_SUBMISSION_IDS_LISTED) group.submissionIds.add(submissionId);
+				return;
+			}
+			expired = group;
+			groups.put(key, new Group(subject, body, now));
+		}
+		// summarize the group whose window has closed before starting the next
+		if (expired!=null && expired.repeats>0) sendSummary(expired, now);
+		sender.send(subject, body);
+	}
+
+	/*
+	 * Send a summary for each group whose window has closed (or, if 'all', for every
+	 * group) and forget those groups
+	 */
+	public void flush(long now, boolean all) {
+		List<Group> closed = new ArrayList<Group>();
+		synchronized (this) {
+			for (Iterator<Group> iterator = groups.values().iterator(); iterator.hasNext();) {
+				Group group = iterator.next();
+				if (all || now-group.windowStart>=windowMillis) {
+					iterator.remove();
+					if (group.repeats>0) closed.add(group);
+				}
+			}
+		}
+		for (Group group : closed) sendSummary(group, now);
+	}
+
+	private void sendSummary(Group group, long now) {
+		try {
+			String body = MessageUtils.createPipelineFailureDigestMessage(group.repeats,
+					Math.max(1L, (now-group.windowStart)/60000L), group.submissionIds, group.firstMessage);
+			sender.send(group.subject+SUMMARY_SUBJECT_SUFFIX, body);
+		} catch (IOException e) {
+			log.error("Unable to summarize "+group.repeats+" repeated notification(s) '"+group.subject+"'", e);
+		}
+	}
+}
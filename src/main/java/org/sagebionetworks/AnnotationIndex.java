@@ -0,0 +1,173 @@
+package org.sagebionetworks;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.sagebionetworks.evaluation.model.SubmissionStatus;
+import org.sagebionetworks.repo.model.annotation.AnnotationBase;
+import org.sagebionetworks.repo.model.annotation.Annotations;
+import org.sagebionetworks.repo.model.annotation.DoubleAnnotation;
+import org.sagebionetworks.repo.model.annotation.LongAnnotation;
+import org.sagebionetworks.repo.model.annotation.StringAnnotation;
+
+/*
+ * A keyed view of a submission status's annotations, so that reading or setting
+ * one annotation doesn't mean scanning the lists in which Synapse holds them.
+ *
+ * The index is built once from the status.  Changing the value of an existing
+ * annotation updates it in place; adding or removing an annotation marks its list
+ * as dirty, and dirty lists are rebuilt only when writeTo() is called.
+ */
+public class AnnotationIndex {
+	public static final int MAX_STRING_VALUE_LENGTH = 499;
+
+	private Map<String,StringAnnotation> strings = new LinkedHashMap<String,StringAnnotation>();
+	private Map<String,LongAnnotation> longs = new LinkedHashMap<String,LongAnnotation>();
+	private Map<String,DoubleAnnotation> doubles = new LinkedHashMap<String,DoubleAnnotation>();
+	private Set<Class<? extends AnnotationBase>> dirty = new HashSet<Class<? extends AnnotationBase>>();
+
+	public AnnotationIndex(SubmissionStatus status) {
+		Annotations annotations = status.getAnnotations();
+		if (annotations==null) return;
+		index(annotations.getStringAnnos(), strings);
+		index(annotations.getLongAnnos(), longs);
+		index(annotations.getDoubleAnnos(), doubles);
+	}
+
+	private static <T extends AnnotationBase> void index(List<T> list, Map<String,T> map) {
+		if (list==null) return;
+		// as with a linear scan, the first annotation having a key is the one which counts
+		for (T annotation : list) {
+			if (!map.containsKey(annotation.getKey())) map.put(annotation.getKey(), annotation);
+		}
+	}
+
+	public String getString(String key) {
+		StringAnnotation annotation = strings.get(key);
+		return annotation==null ? null : annotation.getValue();
+	}
+
+	public Long getLong(String key) {
+		LongAnnotation annotation = longs.get(key);
+		return annotation==null ? null : annotation.getValue();
+	}
+
+	public Double getDouble(String key) {
+		DoubleAnnotation annotation = doubles.get(key);
+		return annotation==null ? null : annotation.getValue();
+	}
+
+	public void setString(String key, String value, boolean isPrivate) {
+		if (value!=null && value.length()>MAX_STRING_VALUE_LENGTH) value = value.substring(0, MAX_STRING_VALUE_LENGTH);
+		StringAnnotation annotation = strings.get(key);
+		if (annotation==null) {
+			annotation = new StringAnnotation();
+			annotation.setKey(key);
+			strings.put(key, annotation);
+			dirty.add(StringAnnotation.class);
+		}
+		annotation.setIsPrivate(isPrivate);
+		annotation.setValue(value);
+	}
+
+	public void setLong(String key, long value, boolean isPrivate) {
+		LongAnnotation annotation = longs.get(key);
+		if (annotation==null) {
+			annotation = new LongAnnotation();
+			annotation.setKey(key);
+			longs.put(key, annotation);
+			dirty.add(LongAnnotation.class);
+		}
+		annotation.setIsPrivate(isPrivate);
+		annotation.setValue(value);
+	}
+
+	public void setDouble(String key, double value, boolean isPrivate) {
+		DoubleAnnotation annotation = doubles.get(key);
+		if (annotation==null) {
+			annotation = new DoubleAnnotation();
+			annotation.setKey(key);
+			doubles.put(key, annotation);
+			dirty.add(DoubleAnnotation.class);
+		}
+		annotation.setIsPrivate(isPrivate);
+		annotation.setValue(value);
+	}
+
+	/*
+	 * Set the annotation, whatever its type, with the given one's key, value and visibility
+	 */
+	public void set(AnnotationBase annotation) {
+		if (annotation instanceof StringAnnotation)
+			setString(annotation.getKey(), ((StringAnnotation) annotation).getValue(), annotation.getIsPrivate());
+		if (annotation instanceof LongAnnotation)
+			setLong(annotation.getKey(), ((LongAnnotation) annotation).getValue(), annotation.getIsPrivate());
+		if (annotation instanceof DoubleAnnotation)
+			setDouble(annotation.getKey(), ((DoubleAnnotation) annotation).getValue(), annotation.getIsPrivate());
+	}
+
+	/*
+	 * true iff an annotation, of any type, has the given key
+	 */
+	public boolean contains(String key) {
+		return strings.containsKey(key) || longs.containsKey(key) || doubles.containsKey(key);
+	}
+
+	/*
+	 * true iff setting the given annotation would change nothing
+	 */
+	public boolean isSet(AnnotationBase annotation) {
+		AnnotationBase existing = null;
+		Object value = null;
+		Object existingValue = null;
+		if (annotation instanceof StringAnnotation) {
+			existing = strings.get(annotation.getKey());
+			value = ((StringAnnotation) annotation).getValue();
+			if (value!=null && ((String)value).length()>MAX_STRING_VALUE_LENGTH) value = ((String)value).substring(0, MAX_STRING_VALUE_LENGTH);
+			if (existing!=null) existingValue = ((StringAnnotation) existing).getValue();
+		} else if (annotation instanceof LongAnnotation) {
+			existing = longs.get(annotation.getKey());
+			value = ((LongAnnotation) annotation).getValue();
+			if (existing!=null) existingValue = ((LongAnnotation) existing).getValue();
+		} else if (annotation instanceof DoubleAnnotation) {
+			existing = doubles.get(annotation.getKey());
+			value = ((DoubleAnnotation) annotation).getValue();
+			if (existing!=null) existingValue = ((DoubleAnnotation) existing).getValue();
+		}
+		if (existing==null) return false;
+		if (value==null ? existingValue!=null : !value.equals(existingValue)) return false;
+		return annotation.getIsPrivate()==null ? existing.getIsPrivate()==null : annotation.getIsPrivate().equals(existing.getIsPrivate());
+	}
+
+	/*
+	 * Remove the annotation having the given key, whatever its type
+	 */
+	public void remove(String key) {
+		if (strings.remove(key)!=null) dirty.add(StringAnnotation.class);
+		if (longs.remove(key)!=null) dirty.add(LongAnnotation.class);
+		if (doubles.remove(key)!=null) dirty.add(DoubleAnnotation.class);
+	}
+
+	/*
+	 * Write any annotations added or removed back to the given status's annotation lists
+	 */
+	public void writeTo(SubmissionStatus status) {
+		if (dirty.isEmpty()) return;
+		Annotations annotations = status.getAnnotations();
+		if (annotations==null) {
+			annotations=new Annotations();
+			status.setAnnotations(annotations);
+		}
+		if (dirty.contains(StringAnnotation.class))
+			annotations.setStringAnnos(new ArrayList<StringAnnotation>(strings.values()));
+		if (dirty.contains(LongAnnotation.class))
+			annotations.setLongAnnos(new ArrayList<LongAnnotation>(longs.values()));
+		if (dirty.contains(DoubleAnnotation.class))
+			annotations.setDoubleAnnos(new ArrayList<DoubleAnnotation>(doubles.values()));
+		dirty.clear();
+	}
+}
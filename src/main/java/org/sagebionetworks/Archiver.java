@@ -1,19 +1,29 @@
 package org.sagebionetworks;
+import static org.sagebionetworks.Constants.AGENT_SHARED_DIR_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.DEFAULT_PROVISIONING_CACHE_MAX_ENTRIES;
+import static org.sagebionetworks.Constants.PROVISIONING_CACHE_MAX_ENTRIES_PROPERTY_NAME;
+import static org.sagebionetworks.Utils.getIntProperty;
 import static org.sagebionetworks.Utils.getProperty;
 import static org.sagebionetworks.Utils.getSynIdProperty;
 import static org.sagebionetworks.Utils.getTempDir;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileFilter;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.file.FileSystems;
-import java.nio.file.Files;
+import java.io.RandomAccessFile;
 import java.nio.file.Path;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 import org.apache.commons.lang.StringUtils;
 import org.fuin.utils4j.Utils4J;
@@ -34,23 +44,46 @@ import org.slf4j.LoggerFactory;
 public class Archiver {
 	private SynapseClient synapse;
 	private WES wes;
+	private WorkflowLogStore workflowLogStore = null; // lazily initialized
+	private EntityProvisioningCache provisioningCache = null; // lazily initialized
 
 	private static Logger log = LoggerFactory.getLogger(Archiver.class);
 
 	public static final int MAX_FILE_NAME_LENGTH = 100;
+	private static final int ZIP_BUFFER_SIZE = 64*1024;
+	private static final String WORKFLOW_LOG_STORE_DIR_NAME = ".workflow_logs";
+	private static final String LOG_CHUNK_SUFFIX_FORMAT = "_part%04d";
+	private static final String PROVISIONING_CACHE_FILE_NAME = ".provisioning_cache.properties";
 
 	public Archiver(SynapseClient synapse, WES wes) {
 		this.synapse=synapse;
 		this.wes=wes;
 	}
 
+	public Archiver(SynapseClient synapse, WES wes, EntityProvisioningCache provisioningCache) {
+		this.synapse=synapse;
+		this.wes=wes;
+		this.provisioningCache=provisioningCache;
+	}
+
+	private synchronized EntityProvisioningCache getProvisioningCache() {
+		if (provisioningCache==null) {
+			provisioningCache = new EntityProvisioningCache(
+					new File(System.getProperty(AGENT_SHARED_DIR_PROPERTY_NAME), PROVISIONING_CACHE_FILE_NAME),
+					getIntProperty(PROVISIONING_CACHE_MAX_ENTRIES_PROPERTY_NAME, DEFAULT_PROVISIONING_CACHE_MAX_ENTRIES));
+		}
+		return provisioningCache;
+	}
+
 	/*
 	 * return false if already shared, true if newly shared
 	 */
 	public boolean shareEntity(String entityId, Map<String,Set<ACCESS_TYPE>> principalAndPermissions) throws SynapseException {
+		if (getProvisioningCache().isShared(entityId)) return false;
 		try {
 			// have we already shared the folder?
 			synapse.getACL(entityId);
+			getProvisioningCache().setShared(entityId);
 			return false;
 		} catch (SynapseNotFoundException e) {
 			AccessControlList acl = new AccessControlList();
@@ -70,6 +103,7 @@ public class Archiver {
 				ra.setAccessType(principalAndPermissions.get(principalId));
 			}
 			synapse.createACL(acl);
+			getProvisioningCache().setShared(entityId);
 			return true;
 		}
 	}
@@ -87,7 +121,22 @@ public class Archiver {
 	public String uploadToSynapse(
 			final File file, 
 			String parentId) throws Throwable {
+		return uploadToSynapse(file, parentId, null);
+	}
+
+	/*
+	 * As above, but if 'expectedMd5' is not null, check that the uploaded content has the given MD5
+	 */
+	public String uploadToSynapse(
+			final File file, 
+			String parentId,
+			String expectedMd5) throws Throwable {
 		S3FileHandle uploadResult = synapse.multipartUpload(file, null, true, false);
+		if (expectedMd5!=null && uploadResult.getContentMd5()!=null && 
+				!expectedMd5.equalsIgnoreCase(uploadResult.getContentMd5())) {
+			throw new IllegalStateException("Uploaded "+file.getName()+" with MD5 "+expectedMd5+
+					" but Synapse reports "+uploadResult.getContentMd5());
+		}
 
 		FileEntity fileEntity = new FileEntity();
 		String fileName = file.getName();
@@ -134,6 +183,59 @@ public class Archiver {
 		return zipFile;
 	}
 
+	/*
+	 * Write the given file, from the given offset, into a zip archive as a single entry,
+	 * computing the archive's MD5 as it's written.  This avoids writing the content to
+	 * a file of its own just so it can be zipped.
+	 * @return the MD5 of the zip file, in hex
+	 */
+	public static String zipFileRange(File source, long offset, String entryName, File zipFile) throws IOException {
+		MessageDigest md5;
+		try {
+			md5 = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+		try (RandomAccessFile raf = new RandomAccessFile(source, "r");
+				ZipOutputStream zos = new ZipOutputStream(new DigestOutputStream(
+						new BufferedOutputStream(new FileOutputStream(zipFile), ZIP_BUFFER_SIZE), md5))) {
+			zos.putNextEntry(new ZipEntry(entryName));
+			raf.seek(offset);
+			byte[] buffer = new byte[ZIP_BUFFER_SIZE];
+			int n;
+			while ((n=raf.read(buffer))>0) zos.write(buffer, 0, n);
+			zos.closeEntry();
+		}
+		StringBuilder sb = new StringBuilder();
+		for (byte b : md5.digest()) sb.append(String.format("%02x", b));
+		return sb.toString();
+	}
+
+	/*
+	 * Zip the given file, from the given offset, and upload to the given Synapse folder
+	 * using the given Synapse file name (prefix), as archiveLogsToSynapse() does.
+	 * 
+	 * @return the ID of the created entity
+	 */
+	public String archiveLogRangeToSynapse(
+			File logFile,
+			long offset,
+			String zipFilePrefix, 
+			Folder submissionFolder) throws Throwable {
+		zipFilePrefix = Utils.trunc(zipFilePrefix, MAX_FILE_NAME_LENGTH-4);
+		File zipFile=new File(getTempDir(), zipFilePrefix.replaceAll("[^a-zA-Z0-9-]", "_")+".zip");
+		try {
+			long logLength = logFile.length();
+			String md5 = zipFileRange(logFile, offset, zipFilePrefix+".txt", zipFile);
+			String fileEntityId = uploadToSynapse(zipFile, submissionFolder.getId(), md5);
+			Metrics.LOG_BYTES_UPLOADED.add(Math.max(0L, logLength-offset));
+			log.info("Archived "+logFile.getAbsolutePath()+" from byte "+offset+" to "+fileEntityId);
+			return fileEntityId;
+		} finally {
+			zipFile.delete();
+		}
+	}
+
 	/**
 	 * Zip a file or directory and upload to a given Synapse folder using a given 
 	 * Synapse file name (prefix). If a file has already been uploaded under the
@@ -166,35 +268,87 @@ public class Archiver {
 	}
 
 
+	/*
+	 * Return the folder with the given name and parent, creating it if it doesn't exist.
+	 * Folders already found or created are remembered, so in the usual case no request
+	 * is made to Synapse.  The returned Folder has just its ID, name and parent ID set.
+	 */
 	public Folder getOrCreateFolder(String name, String parentId) throws SynapseException {
+		return getOrCreateFolder(name, parentId, false);
+	}
+
+	/*
+	 * As above, but if 'checkCached' is true a remembered folder is first checked to
+	 * still exist, and is provisioned again if it doesn't.
+	 */
+	public Folder getOrCreateFolder(String name, String parentId, boolean checkCached) throws SynapseException {
 		if (StringUtils.isEmpty(name)) throw new IllegalArgumentException("name is required.");
 		if (StringUtils.isEmpty(parentId)) throw new IllegalArgumentException("parentId is required.");
+		String folderId = getProvisioningCache().getFolderId(parentId, name);
+		if (folderId!=null && checkCached && !exists(folderId)) {
+			log.warn("Folder "+folderId+" no longer exists.  Will recreate it.");
+			getProvisioningCache().invalidate(folderId);
+			folderId = null;
+		}
+		if (folderId==null) {
+			folderId = lookupChild(name, parentId);
+		}
+		if (folderId==null) {
+			Folder folder = new Folder();
+			folder.setParentId(parentId);
+			folder.setName(name);
+			try {
+				folderId = synapse.createEntity(folder).getId();
+			} catch (SynapseServerException cue) {
+				// We will arrive here if the folder was created since we looked for it, though the exception may also 
+				// be due to another problem.  We try to query for the folder.  If the exception was due to another 
+				// problem, we will likely throw another exception and terminate.
+				folderId = lookupChild(name, parentId);
+				if (folderId==null) throw new IllegalStateException("Can neither create nor find folder named "+name+" with parent "+parentId, cue);	
+			}
+		}
+		getProvisioningCache().putFolderId(parentId, name, folderId);
 		Folder folder = new Folder();
+		folder.setId(folderId);
 		folder.setParentId(parentId);
 		folder.setName(name);
-		try {
-			folder = synapse.createEntity(folder);
-		} catch (SynapseServerException cue) {
-			// We will arrive here if the folder already exists, though the exception may also be due to another problem.
-			// We try to query for the folder.  If the exception was due to another problem, we will likely throw another
-			// exception and terminate.
-			folder = getFolder(name, parentId);
-			if (folder==null) throw new IllegalStateException("Can neither create nor find folder named "+name+" with parent "+parentId, cue);	
-		}	    	
 		return folder;
 	}
 
-	private Folder getFolder(String name, String parentId) throws SynapseException {
-		if (StringUtils.isEmpty(name)) throw new IllegalArgumentException("name is required.");
-		if (StringUtils.isEmpty(parentId)) throw new IllegalArgumentException("parentId is required.");
+	private boolean exists(String entityId) throws SynapseException {
 		try {
-			String folderId = synapse.lookupChild(parentId, name);
-			return synapse.getEntity(folderId, Folder.class);
+			synapse.getEntity(entityId, Folder.class);
+			return true;
+		} catch (SynapseNotFoundException e) {
+			return false;
+		}
+	}
+
+	private boolean hasACL(String entityId) throws SynapseException {
+		try {
+			synapse.getACL(entityId);
+			return true;
+		} catch (SynapseNotFoundException e) {
+			return false;
+		}
+	}
+
+	private String lookupChild(String name, String parentId) throws SynapseException {
+		try {
+			return synapse.lookupChild(parentId, name);
 		} catch (SynapseNotFoundException e) {
 			return null;
 		}
 	}
 
+	/*
+	 * Forget what we know about the given folder, e.g. because Synapse says it no longer exists
+	 */
+	public void invalidateFolder(Folder folder) {
+		getProvisioningCache().invalidate(folder.getId());
+		getProvisioningCache().invalidate(folder.getParentId());
+	}
+
 	private static Set<ACCESS_TYPE> READ_WRITE;
 	static {
 		READ_WRITE = new HashSet<ACCESS_TYPE>();
@@ -211,6 +365,14 @@ public class Archiver {
 	}
 
 	public Folder getOrCreateSubmitterFolder(String submittingUserOrTeamId, boolean shareImmediately) throws SynapseException {
+		return getOrCreateSubmitterFolder(submittingUserOrTeamId, shareImmediately, false);
+	}
+
+	/*
+	 * As above, but if 'checkCached' is true a folder remembered as shared is first checked
+	 * to still be shared (which also shows it still exists), and is provisioned again if not.
+	 */
+	public Folder getOrCreateSubmitterFolder(String submittingUserOrTeamId, boolean shareImmediately, boolean checkCached) throws SynapseException {
 		String parentId = getSynIdProperty("WORKFLOW_OUTPUT_ROOT_ENTITY_ID");
 
 		Map<String,Set<ACCESS_TYPE>> principalsAndPermissions = new HashMap<String,Set<ACCESS_TYPE>>();
@@ -229,55 +391,113 @@ public class Archiver {
 
 		
 		Folder submitterFolder = getOrCreateFolder(folderName, parentId);
+		if (checkCached && getProvisioningCache().isShared(submitterFolder.getId()) && !hasACL(submitterFolder.getId())) {
+			log.warn("Folder "+submitterFolder.getId()+" no longer exists or is no longer shared.  Will provision it again.");
+			getProvisioningCache().invalidate(submitterFolder.getId());
+			submitterFolder = getOrCreateFolder(folderName, parentId);
+		}
 		shareEntity(submitterFolder.getId(), principalsAndPermissions);
 
 		return submitterFolder;
 	}
 
 	public Folder getOrCreateSubmissionUploadFolder(String submissionId, String submittingUserOrTeamId, boolean sharedWithSubmitter) throws SynapseException {
-		Folder submitterFolder = getOrCreateSubmitterFolder(submittingUserOrTeamId, sharedWithSubmitter);
+		return getOrCreateSubmissionUploadFolder(submissionId, submittingUserOrTeamId, sharedWithSubmitter, false);
+	}
+
+	/*
+	 * As above, but if 'checkCached' is true, remembered folders are checked against Synapse
+	 * first, e.g. before their IDs are handed to a new workflow, which can't recreate them.
+	 */
+	public Folder getOrCreateSubmissionUploadFolder(String submissionId, String submittingUserOrTeamId, boolean sharedWithSubmitter, boolean checkCached) throws SynapseException {
+		Folder submitterFolder = getOrCreateSubmitterFolder(submittingUserOrTeamId, sharedWithSubmitter, checkCached);
 
 		String name = submissionId;
 		// Entity names may only contain: letters, numbers, spaces, underscores, hypens, periods, plus signs, and parentheses
 		// This is slightly more restrictive, replacing all but letters, numbers, hyphens and periods
 		String normalizedName = name.replaceAll("[^a-zA-Z0-9.-]", "_");
 
-		Folder submissionFolder = getOrCreateFolder(normalizedName, submitterFolder.getId());
+		Folder submissionFolder = getOrCreateFolder(normalizedName, submitterFolder.getId(), checkCached);
 		return submissionFolder;
 	}
 
+	private synchronized WorkflowLogStore getWorkflowLogStore() {
+		if (workflowLogStore==null) {
+			workflowLogStore = new WorkflowLogStore(
+					new File(System.getProperty(AGENT_SHARED_DIR_PROPERTY_NAME), WORKFLOW_LOG_STORE_DIR_NAME));
+		}
+		return workflowLogStore;
+	}
+
 	/*
-	 * returns the submission folder ID
+	 * Capture the workflow's new output and upload it.  While the workflow is running just 
+	 * the output since the last upload is sent, as a numbered 'part'.  When the workflow
+	 * is finished ('isFinal' is true) the entire log is uploaded.
+	 * 
+	 * returns the submission folder, or null if nothing was uploaded, and the tail of the log
 	 */
 	public SubmissionFolderAndLogTail uploadLogs(WorkflowJob workflowJob, 
 			String submissionId,
 			String submittingUserOrTeamId,
 			String nameSuffix, // e.g., "_logs"
-			Integer maxTailLengthInCharacters) throws Throwable {
+			Integer maxTailLengthInCharacters,
+			boolean isFinal) throws Throwable {
 		String filePrefix = submissionId+nameSuffix;
 		filePrefix  = filePrefix.replaceAll("[^a-zA-Z0-9-]", "_");
-		// get the logs from the container
-		Path logFile = FileSystems.getDefault().getPath(getTempDir().getAbsolutePath(), filePrefix+".txt");
-		String logTail=wes.getWorkflowLog(workflowJob, logFile, maxTailLengthInCharacters);
-		assert Files.exists(logFile);
-
+		// get the new output from the container
+		WorkflowLogStore.WorkflowLog workflowLog = getWorkflowLogStore().getWorkflowLog(filePrefix);
+		String lastTimestamp = wes.appendWorkflowLog(workflowJob, workflowLog.getLogFile().toPath(), workflowLog.getLastTimestamp());
+		workflowLog.setLastTimestamp(lastTimestamp);
+		workflowLog.save();
+		String logTail = maxTailLengthInCharacters==null ? null : workflowLog.getTail(maxTailLengthInCharacters);
+
+		long newBytes = workflowLog.size()-workflowLog.getUploadedBytes();
 		// if no output, just return
-		if (Files.size(logFile)==0) {
-			log.info("logFile "+logFile+" has no content.  Nothing to upload.");
-			return new SubmissionFolderAndLogTail(null,null);
+		if (isFinal ? workflowLog.size()==0 : newBytes==0) {
+			log.info("logFile "+workflowLog.getLogFile()+" has no new content.  Nothing to upload.");
+			if (isFinal) workflowLog.delete();
+			return new SubmissionFolderAndLogTail(null,logTail);
 		}
 
-		log.info("Found "+Files.size(logFile)+" bytes to log.");
-
-		
-		String shareImmediatelyString = getProperty("SHARE_RESULTS_IMMEDIATELY", false);
-		boolean shareImmediately = StringUtils.isEmpty(shareImmediatelyString) ? true : new Boolean(shareImmediatelyString);
+		boolean shareImmediately = Configuration.current().isShareResultsImmediately();
 		Folder submissionFolder =  getOrCreateSubmissionUploadFolder(submissionId, submittingUserOrTeamId, shareImmediately);
 
-		archiveLogsToSynapse(logFile, filePrefix, submissionFolder);
-
-		logFile.toFile().delete();
+		if (isFinal) {
+			log.info("Found "+workflowLog.size()+" bytes to log.");
+			submissionFolder = archiveLogRange(workflowLog.getLogFile(), 0L, filePrefix, submissionFolder,
+					submissionId, submittingUserOrTeamId, shareImmediately);
+			workflowLog.delete();
+		} else {
+			log.info("Found "+newBytes+" new bytes to log.");
+			int chunkNumber = workflowLog.getChunkCount()+1;
+			String chunkPrefix = filePrefix+String.format(LOG_CHUNK_SUFFIX_FORMAT, chunkNumber);
+			long logSize = workflowLog.size();
+			submissionFolder = archiveLogRange(workflowLog.getLogFile(), workflowLog.getUploadedBytes(), chunkPrefix, submissionFolder,
+					submissionId, submittingUserOrTeamId, shareImmediately);
+			workflowLog.setUploadedBytes(logSize);
+			workflowLog.setChunkCount(chunkNumber);
+			workflowLog.save();
+		}
 
 		return new SubmissionFolderAndLogTail(submissionFolder,logTail);
 	}
+
+	/*
+	 * Upload the log range to the submission folder.  If the (cached) folder turns out
+	 * to have been deleted, provision it again and retry.
+	 * @return the folder to which the log was uploaded
+	 */
+	private Folder archiveLogRange(File logFile, long offset, String zipFilePrefix, Folder submissionFolder,
+			String submissionId, String submittingUserOrTeamId, boolean shareImmediately) throws Throwable {
+		try {
+			archiveLogRangeToSynapse(logFile, offset, zipFilePrefix, submissionFolder);
+			return submissionFolder;
+		} catch (SynapseNotFoundException e) {
+			log.warn("Folder "+submissionFolder.getId()+" no longer exists.  Will recreate it.");
+			invalidateFolder(submissionFolder);
+			submissionFolder = getOrCreateSubmissionUploadFolder(submissionId, submittingUserOrTeamId, shareImmediately);
+			archiveLogRangeToSynapse(logFile, offset, zipFilePrefix, submissionFolder);
+			return submissionFolder;
+		}
+	}
 }
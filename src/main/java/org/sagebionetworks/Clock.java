@@ -0,0 +1,49 @@
+package org.sagebionetworks;
+
+/*
+ * The time by which the agent schedules, throttles and times out its work, and the
+ * means by which it waits.  This is the system clock unless replaced, e.g. by a
+ * simulation which runs the agent in virtual time so that a challenge round lasting
+ * days can be played in seconds.
+ *
+ * Durations measured for metrics use System.nanoTime() directly, since they measure
+ * the agent's own work rather than the passage of scheduled time.
+ */
+public class Clock {
+	private static volatile Clock clock = new Clock();
+
+	public static Clock getClock() {
+		return clock;
+	}
+
+	/*
+	 * Replace the clock used throughout the agent
+	 */
+	public static void setClock(Clock clock) {
+		Clock.clock = clock;
+	}
+
+	public long currentTimeMillis() {
+		return System.currentTimeMillis();
+	}
+
+	public void sleep(long millis) throws InterruptedException {
+		if (millis>0) Thread.sleep(millis);
+	}
+
+	/*
+	 * Wait on the given monitor, which the caller holds, until notified or until the given
+	 * time has passed.  As with Object.wait() it may return early, so the caller should
+	 * check what it's waiting for.
+	 */
+	public void await(Object monitor, long millis) throws InterruptedException {
+		if (millis>0) monitor.wait(millis);
+	}
+
+	/*
+	 * Wake the threads waiting on the given monitor, which the caller holds
+	 */
+	public void signal(Object monitor) {
+		monitor.notifyAll();
+	}
+}
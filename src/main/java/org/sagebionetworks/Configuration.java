@@ -0,0 +1,285 @@
+package org.sagebionetworks;
+
+import static org.sagebionetworks.Constants.ACCEPT_NEW_SUBMISSIONS_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.CONFIGURATION_FILE_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.DEFAULT_MAX_CONCURRENT_WORKFLOWS;
+import static org.sagebionetworks.Constants.DEFAULT_PROGRESS_UPDATE_DELTA;
+import static org.sagebionetworks.Constants.DEFAULT_STATUS_HEARTBEAT_SECONDS;
+import static org.sagebionetworks.Constants.EVALUATION_TEMPLATES_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.EXECUTION_STAGE_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.MAX_CONCURRENT_WORKFLOWS_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.MESSAGE_TEMPLATE_DIR_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.NOTIFICATION_PRINCIPAL_ID;
+import static org.sagebionetworks.Constants.PROGRESS_UPDATE_DELTA_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.SHARE_RESULTS_IMMEDIATELY_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.STATUS_HEARTBEAT_SECONDS_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.SUBMITTER_NOTIFICATION_MASK_DEFAULT;
+import static org.sagebionetworks.Constants.SUBMITTER_NOTIFICATION_MASK_PARAM_NAME;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.lang.StringUtils;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * The settings read on every pass of the agent, parsed and checked once rather than
+ * looked up (and, e.g., JSON parsed) each time they are used.
+ *
+ * A Configuration is immutable.  The current one is replaced as a whole, either by
+ * reload() or, when the file named by CONFIGURATION_FILE changes, by reloadIfChanged().
+ * Settings are taken, as by Utils.getProperty(), from system properties, then
+ * environment variables, then CONFIGURATION_FILE, then global.properties.  So it's
+ * the settings in CONFIGURATION_FILE which can be changed while the agent runs.
+ */
+public class Configuration {
+	private static Logger log = LoggerFactory.getLogger(Configuration.class);
+
+	private static final AtomicReference<Configuration> CURRENT = new AtomicReference<Configuration>();
+
+	// the last version of the file found to be invalid, so it's reported just once
+	private static volatile String rejectedFileVersion = null;
+
+	private File configurationFile;
+	private String configurationFileVersion;
+	private Properties fileProperties;
+
+	private Map<String,String> evaluationTemplates;
+	private List<String> evaluationIds;
+	private int submitterNotificationMask;
+	private EvaluationUtils.EXECUTION_STAGE executionStage;
+	private boolean acceptNewSubmissions;
+	private int maxConcurrentWorkflows;
+	private String notificationPrincipalId;
+	private boolean shareResultsImmediately;
+	private long statusHeartbeatMillis;
+	private double progressUpdateDelta;
+	private String messageTemplateDir;
+
+	private Configuration() {}
+
+	/*
+	 * The current configuration, loaded on first use
+	 */
+	public static Configuration current() {
+		Configuration configuration = CURRENT.get();
+		if (configuration!=null) return configuration;
+		CURRENT.compareAndSet(null, load());
+		return CURRENT.get();
+	}
+
+	/*
+	 * Forget the current configuration, so that it's loaded on next use
+	 */
+	static void clear() {
+		CURRENT.set(null);
+	}
+
+	/*
+	 * Load and check the configuration, replacing the current one.  Throws an exception
+	 * if a setting is invalid, leaving the current configuration in place.
+	 */
+	public static Configuration reload() {
+		Configuration configuration = load();
+		CURRENT.set(configuration);
+		return configuration;
+	}
+
+	/*
+	 * Reload the configuration if CONFIGURATION_FILE has changed.  If the new settings are
+	 * invalid, they are reported and the current ones are kept.  Returns true iff the
+	 * configuration was replaced.
+	 */
+	public static boolean reloadIfChanged() {
+		Configuration configuration = current();
+		File file = getConfigurationFile();
+		String version = getFileVersion(file);
+		if (equals(file, configuration.configurationFile) && equals(version, configuration.configurationFileVersion)) return false;
+		if (version!=null && version.equals(rejectedFileVersion)) return false;
+		try {
+			reload();
+		} catch (RuntimeException e) {
+			rejectedFileVersion = version;
+			log.error("Invalid settings in "+file+".  Continuing with the current settings.", e);
+			return false;
+		}
+		log.info("Reloaded configuration from "+file);
+		return true;
+	}
+
+	private static boolean equals(Object a, Object b) {
+		return a==null ? b==null : a.equals(b);
+	}
+
+	private static File getConfigurationFile() {
+		String path = Utils.getProperty(CONFIGURATION_FILE_PROPERTY_NAME, false, null);
+		return StringUtils.isEmpty(path) ? null : new File(path);
+	}
+
+	// identifies a version of the file, or null if there is no file
+	private static String getFileVersion(File file) {
+		if (file==null || !file.isFile()) return null;
+		return file.lastModified()+":"+file.length();
+	}
+
+	private static Configuration load() {
+		Configuration result = new Configuration();
+		result.configurationFile = getConfigurationFile();
+		result.configurationFileVersion = getFileVersion(result.configurationFile);
+		Properties fileProperties = readFileProperties(result.configurationFile);
+		result.fileProperties = fileProperties;
+
+		String evaluationTemplatesString = get(EVALUATION_TEMPLATES_PROPERTY_NAME, fileProperties);
+		if (evaluationTemplatesString!=null) {
+			result.evaluationTemplates = Collections.unmodifiableMap(parseEvaluationTemplates(evaluationTemplatesString));
+			result.evaluationIds = Collections.unmodifiableList(new ArrayList<String>(result.evaluationTemplates.keySet()));
+		}
+		result.submitterNotificationMask = getInt(SUBMITTER_NOTIFICATION_MASK_PARAM_NAME, SUBMITTER_NOTIFICATION_MASK_DEFAULT, fileProperties);
+		String executionStageString = get(EXECUTION_STAGE_PROPERTY_NAME, fileProperties);
+		result.executionStage = executionStageString==null ? EvaluationUtils.EXECUTION_STAGE.ALL : EvaluationUtils.EXECUTION_STAGE.valueOf(executionStageString.trim());
+		result.acceptNewSubmissions = getBoolean(ACCEPT_NEW_SUBMISSIONS_PROPERTY_NAME, true, fileProperties);
+		result.maxConcurrentWorkflows = getInt(MAX_CONCURRENT_WORKFLOWS_PROPERTY_NAME, DEFAULT_MAX_CONCURRENT_WORKFLOWS, fileProperties);
+		result.notificationPrincipalId = get(NOTIFICATION_PRINCIPAL_ID, fileProperties);
+		result.shareResultsImmediately = getBoolean(SHARE_RESULTS_IMMEDIATELY_PROPERTY_NAME, true, fileProperties);
+		result.statusHeartbeatMillis = 1000L*getInt(STATUS_HEARTBEAT_SECONDS_PROPERTY_NAME, DEFAULT_STATUS_HEARTBEAT_SECONDS, fileProperties);
+		result.progressUpdateDelta = getDouble(PROGRESS_UPDATE_DELTA_PROPERTY_NAME, DEFAULT_PROGRESS_UPDATE_DELTA, fileProperties);
+		result.messageTemplateDir = get(MESSAGE_TEMPLATE_DIR_PROPERTY_NAME, fileProperties);
+		return result;
+	}
+
+	private static Properties readFileProperties(File file) {
+		if (getFileVersion(file)==null) return new Properties();
+		try {
+			return Utils.readPropertiesFile(new FileInputStream(file));
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/*
+	 * The settings in CONFIGURATION_FILE (empty if there is none), not to be modified:  those
+	 * of the current configuration or, if no valid configuration has been loaded, those read
+	 * from the file without checking the settings parsed here.  This lets settings which
+	 * aren't reloaded, e.g. credentials, be looked up even if the reloadable ones are invalid.
+	 */
+	static Properties currentFileProperties() {
+		Configuration configuration = CURRENT.get();
+		if (configuration!=null) return configuration.fileProperties;
+		return readFileProperties(getConfigurationFile());
+	}
+
+	private static String get(String key, Properties fileProperties) {
+		return Utils.getProperty(key, false, fileProperties);
+	}
+
+	private static int getInt(String key, int defaultValue, Properties fileProperties) {
+		String s = get(key, fileProperties);
+		if (StringUtils.isEmpty(s)) return defaultValue;
+		try {
+			return Integer.parseInt(s.trim());
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(key+" must be an integer but is "+s);
+		}
+	}
+
+	private static double getDouble(String key, double defaultValue, Properties fileProperties) {
+		String s = get(key, fileProperties);
+		if (StringUtils.isEmpty(s)) return defaultValue;
+		try {
+			return Double.parseDouble(s.trim());
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(key+" must be a number but is "+s);
+		}
+	}
+
+	private static boolean getBoolean(String key, boolean defaultValue, Properties fileProperties) {
+		String s = get(key, fileProperties);
+		if (StringUtils.isEmpty(s)) return defaultValue;
+		if (s.trim().equalsIgnoreCase("true")) return true;
+		if (s.trim().equalsIgnoreCase("false")) return false;
+		throw new IllegalArgumentException(key+" must be 'true' or 'false' but is "+s);
+	}
+
+	private static Map<String,String> parseEvaluationTemplates(String json) {
+		Map<String,String> result = new LinkedHashMap<String,String>();
+		try {
+			JSONObject templateMap = new JSONObject(json);
+			for (Iterator<String> evaluationIdIterator=templateMap.keys(); evaluationIdIterator.hasNext();) {
+				String evaluationId = evaluationIdIterator.next();
+				String templateId = templateMap.getString(evaluationId);
+				Utils.validateSynapseId(templateId);
+				result.put(evaluationId, templateId);
+			}
+		} catch (JSONException e) {
+			throw new IllegalArgumentException(EVALUATION_TEMPLATES_PROPERTY_NAME+" is not valid: "+json, e);
+		}
+		return result;
+	}
+
+	/*
+	 * map from evaluation ID to the ID of the entity holding its workflow template
+	 */
+	public Map<String,String> getEvaluationTemplates() {
+		if (evaluationTemplates==null) throw new RuntimeException("Cannot find value for "+EVALUATION_TEMPLATES_PROPERTY_NAME);
+		return evaluationTemplates;
+	}
+
+	public List<String> getEvaluationIds() {
+		getEvaluationTemplates();
+		return evaluationIds;
+	}
+
+	public boolean isNotificationEnabled(int mask) {
+		return (submitterNotificationMask & mask)!=0;
+	}
+
+	public EvaluationUtils.EXECUTION_STAGE getExecutionStage() {
+		return executionStage;
+	}
+
+	public boolean isAcceptNewSubmissions() {
+		return acceptNewSubmissions;
+	}
+
+	public int getMaxConcurrentWorkflows() {
+		return maxConcurrentWorkflows;
+	}
+
+	/*
+	 * null if not set
+	 */
+	public String getNotificationPrincipalId() {
+		return notificationPrincipalId;
+	}
+
+	public boolean isShareResultsImmediately() {
+		return shareResultsImmediately;
+	}
+
+	public long getStatusHeartbeatMillis() {
+		return statusHeartbeatMillis;
+	}
+
+	public double getProgressUpdateDelta() {
+		return progressUpdateDelta;
+	}
+
+	/*
+	 * null if not set
+	 */
+	public String getMessageTemplateDir() {
+		return messageTemplateDir;
+	}
+}
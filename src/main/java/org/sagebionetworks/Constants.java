@@ -78,7 +78,7 @@ public class Constants {
 			SynapseUnauthorizedException.class
 			); 
 	
-	public static final Integer[] NO_RETRY_STATUSES = new Integer[] {409};
+	public static final Integer[] NO_RETRY_STATUSES = new Integer[] {409, 412};
 	
 	public static int DEFAULT_NUM_RETRY_ATTEMPTS = 8; // 63 sec
 	
@@ -102,5 +102,84 @@ public class Constants {
 
 	public static final String ACCEPT_NEW_SUBMISSIONS_PROPERTY_NAME = "ACCEPT_NEW_SUBMISSIONS";
 	
+	// the number of worker threads in each stage of the submission processing pipeline
+	public static final String DISCOVERY_STAGE_THREADS_PROPERTY_NAME = "DISCOVERY_STAGE_THREADS";
+	public static final int DEFAULT_DISCOVERY_STAGE_THREADS = 4;
+	public static final String LAUNCH_STAGE_THREADS_PROPERTY_NAME = "LAUNCH_STAGE_THREADS";
+	public static final int DEFAULT_LAUNCH_STAGE_THREADS = 4;
+	public static final String MONITOR_STAGE_THREADS_PROPERTY_NAME = "MONITOR_STAGE_THREADS";
+	public static final int DEFAULT_MONITOR_STAGE_THREADS = 8;
+	public static final String ARCHIVE_STAGE_THREADS_PROPERTY_NAME = "ARCHIVE_STAGE_THREADS";
+	public static final int DEFAULT_ARCHIVE_STAGE_THREADS = 2;
+	
+	// the number of tasks which may wait for a stage's threads before the stage pushes back on its producer
+	public static final String PIPELINE_STAGE_QUEUE_CAPACITY_PROPERTY_NAME = "PIPELINE_STAGE_QUEUE_CAPACITY";
+	public static final int DEFAULT_PIPELINE_STAGE_QUEUE_CAPACITY = 100;
+	
+	// how long to wait for a container's logs, or for a command run in a container, before giving up
+	public static final String DOCKER_LOGS_TIMEOUT_SECONDS_PROPERTY_NAME = "DOCKER_LOGS_TIMEOUT_SECONDS";
+	public static final int DEFAULT_DOCKER_LOGS_TIMEOUT_SECONDS = 3600;
+	public static final String DOCKER_EXEC_TIMEOUT_SECONDS_PROPERTY_NAME = "DOCKER_EXEC_TIMEOUT_SECONDS";
+	public static final int DEFAULT_DOCKER_EXEC_TIMEOUT_SECONDS = 120;
+	
+	// the maximum number of images pulled at once
+	public static final String IMAGE_PULL_CONCURRENCY_PROPERTY_NAME = "IMAGE_PULL_CONCURRENCY";
+	public static final int DEFAULT_IMAGE_PULL_CONCURRENCY = 2;
+	// how long after pulling an image by tag before pulling it again, in case the tag has moved
+	public static final String IMAGE_REFRESH_SECONDS_PROPERTY_NAME = "IMAGE_REFRESH_SECONDS";
+	public static final int DEFAULT_IMAGE_REFRESH_SECONDS = 600;
+	
+	// the maximum number of folders (and, separately, of shared entities) the agent remembers having provisioned
+	public static final String PROVISIONING_CACHE_MAX_ENTRIES_PROPERTY_NAME = "PROVISIONING_CACHE_MAX_ENTRIES";
+	public static final int DEFAULT_PROVISIONING_CACHE_MAX_ENTRIES = 10000;
+	
+	// the number of workflow templates kept unpacked in the template cache
+	public static final String TEMPLATE_CACHE_MAX_EXTRACTIONS_PROPERTY_NAME = "TEMPLATE_CACHE_MAX_EXTRACTIONS";
+	public static final int DEFAULT_TEMPLATE_CACHE_MAX_EXTRACTIONS = 20;
+	
+	// how many submissions to request per page when querying an evaluation queue (at most 100), and how many pages to request at once
+	public static final String SUBMISSION_PAGE_SIZE_PROPERTY_NAME = "SUBMISSION_PAGE_SIZE";
+	public static final int DEFAULT_SUBMISSION_PAGE_SIZE = 100;
+	public static final String SUBMISSION_PAGE_FETCH_CONCURRENCY_PROPERTY_NAME = "SUBMISSION_PAGE_FETCH_CONCURRENCY";
+	public static final int DEFAULT_SUBMISSION_PAGE_FETCH_CONCURRENCY = 4;
+	
+	// how often to update a running submission's 'last updated' time stamp when nothing else has changed
+	public static final String STATUS_HEARTBEAT_SECONDS_PROPERTY_NAME = "STATUS_HEARTBEAT_SECONDS";
+	public static final int DEFAULT_STATUS_HEARTBEAT_SECONDS = 300;
+	// how far (in percentage points) a workflow's progress must move before it's written to the submission
+	public static final String PROGRESS_UPDATE_DELTA_PROPERTY_NAME = "PROGRESS_UPDATE_DELTA";
+	public static final double DEFAULT_PROGRESS_UPDATE_DELTA = 1D;
+	
+	// a folder of notification templates which, if present, take precedence over the built in ones
+	public static final String MESSAGE_TEMPLATE_DIR_PROPERTY_NAME = "MESSAGE_TEMPLATE_DIR";
+	
+	// the most notifications the agent sends per minute; others wait in the outbox
+	public static final String MAX_MESSAGES_PER_MINUTE_PROPERTY_NAME = "MAX_MESSAGES_PER_MINUTE";
+	public static final int DEFAULT_MAX_MESSAGES_PER_MINUTE = 60;
+	
+	// repeats of a failure notified to the administrator within this period are sent as one summary
+	public static final String ADMIN_NOTIFICATION_DIGEST_SECONDS_PROPERTY_NAME = "ADMIN_NOTIFICATION_DIGEST_SECONDS";
+	public static final int DEFAULT_ADMIN_NOTIFICATION_DIGEST_SECONDS = 900;
+	
+	// a properties file whose settings are picked up while the agent runs
+	public static final String CONFIGURATION_FILE_PROPERTY_NAME = "CONFIGURATION_FILE";
+	
+	public static final String EVALUATION_TEMPLATES_PROPERTY_NAME = "EVALUATION_TEMPLATES";
+	public static final String SHARE_RESULTS_IMMEDIATELY_PROPERTY_NAME = "SHARE_RESULTS_IMMEDIATELY";
+	
+	// the longest the agent waits between passes when it has nothing to do
+	public static final String MAX_IDLE_POLL_SECONDS_PROPERTY_NAME = "MAX_IDLE_POLL_SECONDS";
+	public static final int DEFAULT_MAX_IDLE_POLL_SECONDS = 300;
+	
+	// the port on which to serve metrics for Prometheus; if omitted, metrics are not served
+	public static final String METRICS_PORT_PROPERTY_NAME = "METRICS_PORT";
+
+	// the most Synapse requests in flight at once; the agent lowers its limit below this while Synapse is throttling or slow
+	public static final String SYNAPSE_MAX_CONCURRENT_REQUESTS_PROPERTY_NAME = "SYNAPSE_MAX_CONCURRENT_REQUESTS";
+	public static final int DEFAULT_SYNAPSE_MAX_CONCURRENT_REQUESTS = 16;
+
+	// a file to which to record the agent's calls to Synapse and Docker, for replay; if omitted, nothing is recorded
+	public static final String RECORDING_FILE_PROPERTY_NAME = "RECORDING_FILE";
+
 
 }
@@ -0,0 +1,239 @@
+package org.sagebionetworks;
+
+import static org.sagebionetworks.Clock.getClock;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.dockerjava.api.async.ResultCallback;
+import com.github.dockerjava.api.model.Container;
+import com.github.dockerjava.api.model.Event;
+
+/*
+ * Keeps an in-memory table of the workflow containers and their states, kept current
+ * by subscribing to the Docker engine's event stream.  This spares us from listing 
+ * and inspecting every container on every pass of the main loop, and lets us react 
+ * to a workflow's completion as soon as it happens.
+ * 
+ * The table is seeded by listing the containers when the subscription starts.  The
+ * subscription asks Docker to replay events from just before that, so that nothing
+ * which happens while we are listing is missed.
+ * 
+ * If the event stream is interrupted the table is stale (and callers should fall
+ * back to querying Docker directly) until refresh() succeeds in resubscribing.
+ */
+public class ContainerEventMonitor implements ResultCallback<Event> {
+	private static Logger log = LoggerFactory.getLogger(ContainerEventMonitor.class);
+
+	private static final String[] CONTAINER_EVENTS = {"start", "die", "oom", "kill", "destroy"};
+	// how long to wait for a requested subscription to start before trying again
+	private static final long RESUBSCRIBE_DELAY_MILLIS = 60*1000L;
+	// in case an event is lost, we periodically rebuild the table from scratch
+	private static final long RESYNC_PERIOD_MILLIS = 10*60*1000L;
+	// as returned in Container.getStatus(), e.g. "Exited (137) 5 minutes ago"
+	private static final Pattern EXITED_STATUS_PATTERN = Pattern.compile("^Exited \\((-?\\d+)\\).*");
+	private static final String RUNNING_STATUS_PREFIX = "Up";
+
+	private DockerUtils dockerUtils;
+	private Filter containerNameFilter;
+	private Runnable completionListener;
+	private Map<String,TrackedContainer> containers = new ConcurrentHashMap<String,TrackedContainer>(); // keyed by name
+
+	private volatile boolean subscribed = false;
+	private volatile Closeable stream = null;
+	private long subscriptionRequestedAt = 0L;
+	private volatile long lastResync = 0L;
+
+	public ContainerEventMonitor(DockerUtils dockerUtils, Filter containerNameFilter) {
+		this.dockerUtils=dockerUtils;
+		this.containerNameFilter=containerNameFilter;
+	}
+
+	/*
+	 * Called whenever a tracked container stops running
+	 */
+	public void setCompletionListener(Runnable completionListener) {
+		this.completionListener = completionListener;
+	}
+
+	/*
+	 * Make sure we are subscribed to the event stream, requesting a new subscription if not.
+	 * 
+	 * @return true iff the table of containers is current
+	 */
+	public synchronized boolean refresh() {
+		long now = getClock().currentTimeMillis();
+		if (subscribed) {
+			if (now-lastResync>RESYNC_PERIOD_MILLIS) resync();
+			return true;
+		}
+		if (subscriptionRequestedAt==0L || now-subscriptionRequestedAt>RESUBSCRIBE_DELAY_MILLIS) {
+			closeStream();
+			subscriptionRequestedAt = now;
+			String since = Long.toString(now/1000L-1L);
+			try {
+				dockerUtils.subscribeToContainerEvents(this, since, CONTAINER_EVENTS);
+			} catch (RuntimeException e) {
+				log.warn("Unable to subscribe to Docker events. Will query containers directly.", e);
+			}
+		}
+		return false;
+	}
+
+	/*
+	 * @return the tracked containers, or null if the table is not current
+	 */
+	public List<TrackedContainer> getContainers() {
+		if (!refresh()) return null;
+		return new ArrayList<TrackedContainer>(containers.values());
+	}
+
+	/*
+	 * @return the tracked state of the named container, or null if the table 
+	 * is not current or the container is unknown
+	 */
+	public TrackedContainer getContainer(String containerName) {
+		if (!subscribed) return null;
+		return containers.get(containerName);
+	}
+
+	/*
+	 * Record a container we have just started, without waiting for the event to arrive
+	 */
+	public void containerStarted(String containerId, String containerName) {
+		containers.put(containerName, new TrackedContainer(containerId, containerName, true, null));
+	}
+
+	/*
+	 * Record a container we have just removed, without waiting for the event to arrive
+	 */
+	public void containerRemoved(String containerName) {
+		containers.remove(containerName);
+	}
+
+	/*
+	 * Rebuild the table from a listing of the containers.  Called both from refresh() and,
+	 * when a subscription starts, from Docker's callback thread, so it holds the lock.
+	 */
+	private synchronized void resync() {
+		Map<String, Container> listed = dockerUtils.listContainers(containerNameFilter);
+		containers.keySet().retainAll(listed.keySet());
+		for (String name : listed.keySet()) {
+			Container container = listed.get(name);
+			containers.put(name, new TrackedContainer(container.getId(), name, 
+					isRunning(container.getStatus()), getExitCode(container.getStatus())));
+		}
+		lastResync = getClock().currentTimeMillis();
+	}
+
+	/*
+	 * return true or false if the given container status indicates that the container 
+	 * is or is not running, or null if it is neither 'up' nor 'exited'
+	 */
+	public static Boolean isRunning(String containerStatus) {
+		if (containerStatus==null) return null;
+		if (containerStatus.startsWith(RUNNING_STATUS_PREFIX)) return true;
+		if (EXITED_STATUS_PATTERN.matcher(containerStatus).matches()) return false;
+		return null;
+	}
+
+	public static Integer getExitCode(String containerStatus) {
+		if (containerStatus==null) return null;
+		Matcher matcher = EXITED_STATUS_PATTERN.matcher(containerStatus);
+		if (!matcher.matches()) return null;
+		return Integer.parseInt(matcher.group(1));
+	}
+
+	@Override
+	public synchronized void onStart(Closeable stream) {
+		this.stream = stream;
+		// seed the table.  Events replayed from before now will be applied on top of it.
+		resync();
+		subscribed = true;
+		log.info("Subscribed to Docker container events.  Tracking "+containers.size()+" workflow container(s).");
+	}
+
+	/*
+	 * Synchronized with resync(), so that an event arriving while the containers are being
+	 * listed is applied after, rather than overwritten by, the (older) listed state
+	 */
+	@Override
+	public synchronized void onNext(Event event) {
+		if (event.getActor()==null || event.getActor().getAttributes()==null) return;
+		String name = event.getActor().getAttributes().get("name");
+		if (name==null || !containerNameFilter.match(name)) return;
+		String action = event.getAction()==null ? event.getStatus() : event.getAction();
+		if (action==null) return;
+		String containerId = event.getActor().getId()==null ? event.getId() : event.getActor().getId();
+		switch (action) {
+		case "start":
+			containers.put(name, new TrackedContainer(containerId, name, true, null));
+			break;
+		case "die":
+			String exitCodeString = event.getActor().getAttributes().get("exitCode");
+			Integer exitCode = exitCodeString==null ? null : Integer.parseInt(exitCodeString);
+			containers.put(name, new TrackedContainer(containerId, name, false, exitCode));
+			notifyCompletion();
+			break;
+		case "oom":
+		case "kill":
+			// a 'die' event will follow
+			log.info("Container "+name+" received '"+action+"'.");
+			break;
+		case "destroy":
+			containers.remove(name);
+			break;
+		default:
+			// not an event we care about
+		}
+	}
+
+	private void notifyCompletion() {
+		if (completionListener==null) return;
+		try {
+			completionListener.run();
+		} catch (RuntimeException e) {
+			log.warn("Completion listener failed.", e);
+		}
+	}
+
+	@Override
+	public synchronized void onError(Throwable throwable) {
+		log.warn("Docker event stream failed.  Will resubscribe.", throwable);
+		subscribed = false;
+		subscriptionRequestedAt = 0L;
+	}
+
+	@Override
+	public synchronized void onComplete() {
+		log.warn("Docker event stream closed.  Will resubscribe.");
+		subscribed = false;
+		subscriptionRequestedAt = 0L;
+	}
+
+	private void closeStream() {
+		Closeable s = stream;
+		stream = null;
+		subscribed = false;
+		if (s==null) return;
+		try {
+			s.close();
+		} catch (IOException e) {
+			log.warn("Failed to close Docker event stream.", e);
+		}
+	}
+
+	@Override
+	public synchronized void close() {
+		closeStream();
+	}
+}
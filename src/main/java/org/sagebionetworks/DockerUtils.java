@@ -1,26 +1,54 @@
 package org.sagebionetworks;
 
+import static org.sagebionetworks.Clock.getClock;
 import static org.sagebionetworks.Constants.DOCKER_CERT_PATH_PROPERTY_NAME;
 import static org.sagebionetworks.Constants.DOCKER_ENGINE_URL_PROPERTY_NAME;
 import static org.sagebionetworks.Constants.SYNAPSE_PASSWORD_PROPERTY;
 import static org.sagebionetworks.Constants.SYNAPSE_USERNAME_PROPERTY;
 import static org.sagebionetworks.Constants.UNIX_SOCKET_PREFIX;
+import static org.sagebionetworks.Constants.DEFAULT_DOCKER_EXEC_TIMEOUT_SECONDS;
+import static org.sagebionetworks.Constants.DEFAULT_DOCKER_LOGS_TIMEOUT_SECONDS;
+import static org.sagebionetworks.Constants.DOCKER_EXEC_TIMEOUT_SECONDS_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.DOCKER_LOGS_TIMEOUT_SECONDS_PROPERTY_NAME;
+import static org.sagebionetworks.Utils.getIntProperty;
 import static org.sagebionetworks.Utils.getProperty;
 
 import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.nio.file.Path;
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.http.Header;
@@ -33,8 +61,10 @@ import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpHead;
 import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.util.EntityUtils;
 import org.glassfish.jersey.internal.util.Base64;
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.sagebionetworks.repo.model.util.DockerNameUtil;
@@ -44,8 +74,11 @@ import org.slf4j.LoggerFactory;
 import com.github.dockerjava.api.DockerClient;
 import com.github.dockerjava.api.command.CreateContainerCmd;
 import com.github.dockerjava.api.command.CreateContainerResponse;
+import com.github.dockerjava.api.async.ResultCallback;
+import com.github.dockerjava.api.command.EventsCmd;
 import com.github.dockerjava.api.command.ExecCreateCmdResponse;
 import com.github.dockerjava.api.command.InspectContainerResponse;
+import com.github.dockerjava.api.command.LogContainerCmd;
 import com.github.dockerjava.api.command.InspectContainerResponse.ContainerState;
 import com.github.dockerjava.api.exception.DockerClientException;
 import com.github.dockerjava.api.exception.DockerException;
@@ -56,6 +89,7 @@ import com.github.dockerjava.api.model.AuthConfig;
 import com.github.dockerjava.api.model.Bind;
 import com.github.dockerjava.api.model.Container;
 import com.github.dockerjava.api.model.Device;
+import com.github.dockerjava.api.model.Event;
 import com.github.dockerjava.api.model.HostConfig;
 import com.github.dockerjava.api.model.Info;
 import com.github.dockerjava.api.model.LogConfig;
@@ -69,6 +103,13 @@ import com.github.dockerjava.core.command.PushImageResultCallback;
 
 public class DockerUtils {
 	private static final int MAX_RETRIES = 10;
+	private static final int REGISTRY_MAX_CONNECTIONS = 8;
+	private static final long DEFAULT_TOKEN_EXPIRES_IN_SECONDS = 60L;
+	// renew tokens a little before they expire
+	private static final long TOKEN_EXPIRY_MARGIN_SECONDS = 10L;
+	private static final Pattern REPOSITORY_PATH_PATTERN = Pattern.compile("^/v2/(.+)/(manifests|blobs|tags)/.*$");
+	private static final long PULL_RETRY_INITIAL_BACKOFF_MILLIS = 2000L;
+	private static final long PULL_RETRY_MAX_BACKOFF_MILLIS = 60000L;
 	private static final int MAX_CONTAINER_STOP_RETRIES = 15;
 
 	private static final String DOCKERHUB_REGISTRY_ADDRESS = "index.docker.io";
@@ -84,6 +125,7 @@ public class DockerUtils {
 	private DockerClient dockerClient;
 	// to interact with DockerHub must be logged in with DockerHub credentials
 	private DockerClient dockerHubClient;
+	private ImageManager imageManager;
 
 	public DockerClient getDockerClient() {
 		return dockerClient;
@@ -145,10 +187,31 @@ public class DockerUtils {
 
 		dockerHubClient = DockerClientBuilder.getInstance(
 				dockerhubConfigBuilder.build()).build();
+		
+		imageManager = new ImageManager(this);
+	}
+	
+	/*
+	 * For a stand-in which overrides the operations it uses, e.g. a simulated
+	 * engine for load testing.  The given clients may be null.
+	 */
+	protected DockerUtils(DockerClient dockerClient, DockerClient dockerHubClient) {
+		this.dockerClient=dockerClient;
+		this.dockerHubClient=dockerHubClient;
+		imageManager = new ImageManager(this);
+	}
+	
+	public ImageManager getImageManager() {
+		return imageManager;
 	}
 
 	public Info getInfo() {
-		return dockerClient.infoCmd().exec();
+		long start = System.nanoTime();
+		try {
+			return dockerClient.infoCmd().exec();
+		} finally {
+			Metrics.DOCKER_CALL_SECONDS.observeSince(start, "info");
+		}
 	}
 	
 	public String getVolumeMountPoint(String volumeName) {
@@ -220,7 +283,31 @@ public class DockerUtils {
 				e.getMessage().indexOf(IMAGE_TOO_BIG_MESSAGE_SEGMENT)>=0;
 	}
 
+	/*
+	 * true iff the referenced image is present in the Docker engine
+	 */
+	public boolean isImagePresent(String imageReference) {
+		long start = System.nanoTime();
+		try {
+			dockerClient.inspectImageCmd(imageReference).exec();
+			return true;
+		} catch (NotFoundException e) {
+			return false;
+		} finally {
+			Metrics.DOCKER_CALL_SECONDS.observeSince(start, "inspect_image");
+		}
+	}
+
 	public void pullImageWithRetry(String imageReference) {
+		long start = System.nanoTime();
+		try {
+			pullImageWithRetryIntern(imageReference);
+		} finally {
+			Metrics.IMAGE_PULL_SECONDS.observeSince(start);
+		}
+	}
+
+	private void pullImageWithRetryIntern(String imageReference) {
 		for (int i = 0; i < MAX_RETRIES; i++) {
 			String msg = "Unable to pull image " + imageReference + " after "
 					+ (i + 1) + " try(ies).";
@@ -254,7 +341,8 @@ public class DockerUtils {
 					throw new DockerClientException(msg, e);
 			}
 			try {
-				Thread.sleep(10000L);
+				// back off exponentially, up to a limit
+				getClock().sleep(Math.min(PULL_RETRY_MAX_BACKOFF_MILLIS, PULL_RETRY_INITIAL_BACKOFF_MILLIS<<i));
 			} catch (InterruptedException e) {
 				throw new RuntimeException(msg, e);
 			}
@@ -273,7 +361,7 @@ public class DockerUtils {
 					throws IOException {
 		if (!imageReference.toLowerCase().startsWith("sha256:")) {
 			try {
-				pullImageWithRetry(imageReference);
+				imageManager.ensureImage(imageReference);
 			} catch (DockerException e) {
 				throw new DockerPullException("Failed trying: docker pull "
 						+ imageReference, e);
@@ -315,19 +403,114 @@ public class DockerUtils {
 		if (privileged)
 			command = command.withPrivileged(privileged);
 
-		CreateContainerResponse container = command.exec();
+		long start = System.nanoTime();
+		CreateContainerResponse container;
+		try {
+			container = command.exec();
+		} finally {
+			Metrics.DOCKER_CALL_SECONDS.observeSince(start, "create_container");
+		}
 
 		return container.getId();
 	}
 
 	public void startContainer(String id) {
-		dockerClient.startContainerCmd(id).exec();
+		long start = System.nanoTime();
+		try {
+			dockerClient.startContainerCmd(id).exec();
+		} finally {
+			Metrics.DOCKER_CALL_SECONDS.observeSince(start, "start_container");
+		}
+	}
+
+	/*
+	 * Subscribe to the Docker engine's event stream.  Events are passed to the callback
+	 * asynchronously until the callback's stream is closed.
+	 * 
+	 * @param since (optional) unix timestamp (in seconds) from which to replay past events
+	 * @param eventNames the events of interest, e.g. "start", "die"
+	 */
+	public void subscribeToContainerEvents(ResultCallback<Event> callback, String since, String... eventNames) {
+		EventsCmd eventsCmd = dockerClient.eventsCmd().withEventFilter(eventNames);
+		if (since!=null) eventsCmd = eventsCmd.withSince(since);
+		eventsCmd.exec(callback);
 	}
 
 	public ContainerState getContainerState(String containerId) {
-		InspectContainerResponse inspectContainerResponse = dockerClient
-				.inspectContainerCmd(containerId).exec();
-		return inspectContainerResponse.getState();
+		long start = System.nanoTime();
+		try {
+			InspectContainerResponse inspectContainerResponse = dockerClient
+					.inspectContainerCmd(containerId).exec();
+			return inspectContainerResponse.getState();
+		} finally {
+			Metrics.DOCKER_CALL_SECONDS.observeSince(start, "inspect_container");
+		}
+	}
+
+	/*
+	 * Return a future for the result of a command whose output is collected by the given 
+	 * callback.  When the output is complete (or has failed) 'output', if not null, is 
+	 * closed and the result computed by 'result'.  Cancelling the returned future abandons
+	 * the command's output.
+	 */
+	private static <T> CompletableFuture<T> createFuture(final String operation, final LoggingResultsCallback callback, 
+			final Closeable output, final Callable<T> result) {
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+		final long start = System.nanoTime();
+		callback.getCompletion().whenComplete(new BiConsumer<Void,Throwable>() {
+			@Override
+			public void accept(Void v, Throwable t) {
+				Metrics.DOCKER_CALL_SECONDS.observeSince(start, operation);
+				try {
+					if (output!=null) output.close();
+				} catch (IOException e) {
+					if (t==null) t=e;
+				}
+				if (t!=null) {
+					future.completeExceptionally(t);
+					return;
+				}
+				try {
+					future.complete(result.call());
+				} catch (Exception e) {
+					future.completeExceptionally(e);
+				}
+			}});
+		future.whenComplete(new BiConsumer<T,Throwable>() {
+			@Override
+			public void accept(T v, Throwable t) {
+				if (future.isCancelled()) callback.cancel();
+			}});
+		return future;
+	}
+	
+	/*
+	 * Wait for the given future, cancelling it if it does not complete within the given time
+	 */
+	public static <T> T await(CompletableFuture<T> future, long timeoutSeconds, String description) throws IOException {
+		try {
+			return future.get(timeoutSeconds, TimeUnit.SECONDS);
+		} catch (TimeoutException e) {
+			future.cancel(true);
+			throw new IOException(description+" did not complete within "+timeoutSeconds+" seconds.", e);
+		} catch (InterruptedException e) {
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException(description+" was interrupted.");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) throw (IOException)cause;
+			if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+			throw new IOException(description+" failed.", cause);
+		}
+	}
+	
+	private static long getLogsTimeoutSeconds() {
+		return getIntProperty(DOCKER_LOGS_TIMEOUT_SECONDS_PROPERTY_NAME, DEFAULT_DOCKER_LOGS_TIMEOUT_SECONDS);
+	}
+
+	private static long getExecTimeoutSeconds() {
+		return getIntProperty(DOCKER_EXEC_TIMEOUT_SECONDS_PROPERTY_NAME, DEFAULT_DOCKER_EXEC_TIMEOUT_SECONDS);
 	}
 
 	/*
@@ -335,54 +518,86 @@ public class DockerUtils {
 	 * Also return the very tail of the logs, if maxTailLength is not null
 	 */
 	public String getLogs(String containerId, Path outPath, Integer maxTailLengthCharacters) throws IOException {
+		return await(getLogsAsync(containerId, outPath, maxTailLengthCharacters), 
+				getLogsTimeoutSeconds(), "Retrieving logs for "+containerId);
+	}
+
+	public CompletableFuture<String> getLogsAsync(String containerId, Path outPath, Integer maxTailLengthCharacters) throws IOException {
 		final OutputStream os = new FileOutputStream(outPath.toFile());
-		try {
-			LoggingResultsCallback resultCallback = new LoggingResultsCallback(
-					os, Thread.currentThread(), maxTailLengthCharacters);
-			dockerClient.logContainerCmd(containerId)
-			.withStdErr(true)
-			.withStdOut(true)
-			.withTimestamps(true)
-			.exec(resultCallback);
-			while (!resultCallback.isComplete()) {
-				try {
-					Thread.sleep(1000L);
-				} catch (InterruptedException e) {
-					// callback has interrupted our sleep!
-				}
-			}
-			return resultCallback.getTail();
-		} finally {
-			os.close();
+		final LoggingResultsCallback resultCallback = new LoggingResultsCallback(os, maxTailLengthCharacters);
+		resultCallback.setTimestamped(true);
+		CompletableFuture<String> result = createFuture("logs", resultCallback, os, new Callable<String>() {
+			@Override
+			public String call() {
+				return resultCallback.getTail();
+			}});
+		dockerClient.logContainerCmd(containerId)
+		.withStdErr(true)
+		.withStdOut(true)
+		.withTimestamps(true)
+		.exec(resultCallback);
+		return result;
+	}
+
+	/*
+	 * Append to the given file the container's output after the given timestamp (or all 
+	 * output, if null).  Return the timestamp of the last line appended, or the given one 
+	 * if there was no new output.
+	 */
+	public String appendLogs(String containerId, Path outPath, String afterTimestamp) throws IOException {
+		return await(appendLogsAsync(containerId, outPath, afterTimestamp), 
+				getLogsTimeoutSeconds(), "Retrieving logs for "+containerId);
+	}
+
+	public CompletableFuture<String> appendLogsAsync(String containerId, Path outPath, final String afterTimestamp) throws IOException {
+		final OutputStream os = new FileOutputStream(outPath.toFile(), true);
+		final LoggingResultsCallback resultCallback = new LoggingResultsCallback(os, null);
+		resultCallback.setTimestamped(true);
+		resultCallback.setSkipThrough(afterTimestamp);
+		CompletableFuture<String> result = createFuture("logs", resultCallback, os, new Callable<String>() {
+			@Override
+			public String call() {
+				String lastTimestamp = resultCallback.getLastTimestamp();
+				return lastTimestamp==null ? afterTimestamp : lastTimestamp;
+			}});
+		LogContainerCmd logContainerCmd = dockerClient.logContainerCmd(containerId)
+		.withStdErr(true)
+		.withStdOut(true)
+		.withTimestamps(true);
+		if (afterTimestamp!=null) {
+			// Docker's 'since' is in whole seconds, so we'll get some lines we already have
+			logContainerCmd = logContainerCmd.withSince((int)Instant.parse(afterTimestamp).getEpochSecond());
 		}
+		logContainerCmd.exec(resultCallback);
+		return result;
 	}
 
 	public String getLogsTail(String containerId, int numberOfLines)
 			throws IOException {
+		return await(getLogsTailAsync(containerId, numberOfLines), 
+				getExecTimeoutSeconds(), "Retrieving logs for "+containerId);
+	}
+
+	public CompletableFuture<String> getLogsTailAsync(String containerId, int numberOfLines) {
 		final ByteArrayOutputStream os = new ByteArrayOutputStream();
-		try {
-			LoggingResultsCallback resultCallback = new LoggingResultsCallback(
-					os, Thread.currentThread(), null);
-			dockerClient.logContainerCmd(containerId).withTimestamps(true)
-			.withStdErr(true).withStdOut(true).withTail(numberOfLines)
-			.exec(resultCallback);
-			while (!resultCallback.isComplete()) {
-				try {
-					Thread.sleep(1000L);
-				} catch (InterruptedException e) {
-					// callback has interrupted our sleep!
-				}
-			}
-		} finally {
-			os.close();
-		}
-		return os.toString();
+		LoggingResultsCallback resultCallback = new LoggingResultsCallback(os, null);
+		resultCallback.setTimestamped(true);
+		CompletableFuture<String> result = createFuture("logs_tail", resultCallback, os, new Callable<String>() {
+			@Override
+			public String call() {
+				return os.toString();
+			}});
+		dockerClient.logContainerCmd(containerId).withTimestamps(true)
+		.withStdErr(true).withStdOut(true).withTail(numberOfLines)
+		.exec(resultCallback);
+		return result;
 	}
 
 	private static final ExponentialBackoffRunner STOP_CONTAINER_BACKOFF_RUNNER = 
 			new ExponentialBackoffRunner(Collections.EMPTY_LIST, new Integer[] {}, MAX_CONTAINER_STOP_RETRIES);
 
 	public void stopContainerWithRetry(String containerId) {
+		long start = System.nanoTime();
 		try {
 			STOP_CONTAINER_BACKOFF_RUNNER.execute(new NoRefreshExecutableAdapter<Void,Void> () {
 				@Override
@@ -400,26 +615,39 @@ public class DockerUtils {
 			} else {
 				throw new RuntimeException(e);
 			}
+		} finally {
+			Metrics.DOCKER_CALL_SECONDS.observeSince(start, "stop_container");
 		}
 	}
 
 	public void removeContainer(String containerId, boolean force) {
+		long start = System.nanoTime();
 		try {
 			dockerClient.removeContainerCmd(containerId).withForce(force).exec();
 		} catch (NotFoundException e) {
 			log.warn("Tried to remove container "+containerId+" but trigger a NotFoundException.", e);
+		} finally {
+			Metrics.DOCKER_CALL_SECONDS.observeSince(start, "remove_container");
 		}
 	}
 
 	public void renameContainer(String containerId, String newName) {
-		dockerClient.renameContainerCmd(containerId).withName(newName).exec();
+		long start = System.nanoTime();
+		try {
+			dockerClient.renameContainerCmd(containerId).withName(newName).exec();
+		} finally {
+			Metrics.DOCKER_CALL_SECONDS.observeSince(start, "rename_container");
+		}
 	}
 
 	public void removeImage(String imageId, boolean force) {
+		long start = System.nanoTime();
 		try {
 			dockerClient.removeImageCmd(imageId).withForce(force).exec();
 		} catch (NotFoundException e) {
 			log.warn("Tried to remove image "+imageId+" but trigger a NotFoundException.", e);
+		} finally {
+			Metrics.DOCKER_CALL_SECONDS.observeSince(start, "remove_image");
 		}
 	}
 
@@ -470,8 +698,13 @@ public class DockerUtils {
 	 */
 	public Map<String, Container> listContainers(Filter filter) {
 		Map<String, Container> result = new HashMap<String, Container>();
-		List<Container> containers = dockerClient.listContainersCmd()
-				.withShowAll(true).exec();
+		long start = System.nanoTime();
+		List<Container> containers;
+		try {
+			containers = dockerClient.listContainersCmd().withShowAll(true).exec();
+		} finally {
+			Metrics.DOCKER_CALL_SECONDS.observeSince(start, "list_containers");
+		}
 		for (Container container : containers) {
 			for (String name : container.getNames()) {
 				// for some reason 'listContainers' prepends a leading "/" to
@@ -487,37 +720,75 @@ public class DockerUtils {
 	}
 
 	public String exec(String containerId, String[] command) throws IOException {
+		return await(execAsync(containerId, command), 
+				getExecTimeoutSeconds(), "Executing command in "+containerId);
+	}
+
+	public CompletableFuture<String> execAsync(String containerId, String[] command) {
 		ExecCreateCmdResponse eccr = dockerClient.execCreateCmd(containerId).withCmd(command)
 				.withAttachStderr(true).withAttachStdout(true).exec();
 		final ByteArrayOutputStream os = new ByteArrayOutputStream();
-		try {
-			LoggingResultsCallback resultCallback = new LoggingResultsCallback(
-					os, Thread.currentThread(), null);
-			dockerClient.execStartCmd(eccr.getId()).exec(resultCallback);
-			while (!resultCallback.isComplete()) {
-				try {
-					Thread.sleep(1000L);
-				} catch (InterruptedException e) {
-					// callback has interrupted our sleep!
-				}
-				if (os.size()>Constants.GIGABYTE_IN_BYTES) {
-					log.warn("Command response has exceeded 1GB in size.  Will not collect any more data.");
-					break;
-				}
-			}
-		} finally {
-			os.close();
-		}
-		return os.toString();
+		LoggingResultsCallback resultCallback = new LoggingResultsCallback(os, null);
+		resultCallback.setMaxOutputBytes(Constants.GIGABYTE_IN_BYTES);
+		CompletableFuture<String> result = createFuture("exec", resultCallback, os, new Callable<String>() {
+			@Override
+			public String call() {
+				return os.toString();
+			}});
+		dockerClient.execStartCmd(eccr.getId()).exec(resultCallback);
+		return result;
 	}
 
 	private static void checkHttpResponseCode(HttpResponse response, int expected) {
-		if (expected!=response.getStatusLine().getStatusCode()) 
+		if (expected!=response.getStatusLine().getStatusCode()) {
+			// release the connection back to the pool
+			EntityUtils.consumeQuietly(response.getEntity());
 			throw new RuntimeException("Expected "+expected+" but received "+
-					response.getStatusLine().getStatusCode());		
+					response.getStatusLine().getStatusCode());
+		}
 	}
 
-	private static String getBearerTokenUrl(HttpResponse response) {
+	/*
+	 * The parameters of a registry's 'Www-Authenticate: Bearer ...' challenge
+	 */
+	private static class BearerChallenge {
+		private String realm;
+		private String service;
+		private String scope;
+
+		BearerChallenge(String realm, String service, String scope) {
+			this.realm=realm;
+			this.service=service;
+			this.scope=scope;
+		}
+
+		String getTokenUrl() {
+			return realm+"?service="+service+"&scope="+scope;
+		}
+
+		String getKey() {
+			return realm+" "+service+" "+scope;
+		}
+	}
+
+	/*
+	 * A bearer token and when it expires
+	 */
+	private static class CachedToken {
+		private String token;
+		private long expiresAt;
+
+		CachedToken(String token, long expiresAt) {
+			this.token=token;
+			this.expiresAt=expiresAt;
+		}
+
+		boolean isValid() {
+			return getClock().currentTimeMillis()<expiresAt;
+		}
+	}
+
+	private static BearerChallenge getBearerChallenge(HttpResponse response) {
 		String bearerRealm = null;
 		String service = null;
 		String scope = null;
@@ -534,7 +805,7 @@ public class DockerUtils {
 		if (service==null) throw new RuntimeException("No 'service'.");
 		if (scope==null) throw new RuntimeException("No 'scope'.");
 
-		return bearerRealm+"?service="+service+"&scope="+scope;
+		return new BearerChallenge(bearerRealm, service, scope);
 	}
 
 	private static JSONObject getResponseBodyAsJson(HttpResponse response) throws UnsupportedOperationException, IOException, JSONException {
@@ -554,20 +825,86 @@ public class DockerUtils {
 		return new JSONObject(result.toString());
 	}
 
+	// registry traffic shares a pool of keep-alive connections
+	private static final PoolingHttpClientConnectionManager REGISTRY_CONNECTION_MANAGER;
+	private static final HttpClient REGISTRY_HTTP_CLIENT;
+	private static final HttpClient REGISTRY_HTTP_CLIENT_NO_REDIRECTS;
+	static {
+		REGISTRY_CONNECTION_MANAGER = new PoolingHttpClientConnectionManager();
+		REGISTRY_CONNECTION_MANAGER.setMaxTotal(REGISTRY_MAX_CONNECTIONS);
+		REGISTRY_CONNECTION_MANAGER.setDefaultMaxPerRoute(REGISTRY_MAX_CONNECTIONS);
+		REGISTRY_HTTP_CLIENT = HttpClientBuilder.create()
+				.setConnectionManager(REGISTRY_CONNECTION_MANAGER)
+				.setConnectionManagerShared(true).build();
+		REGISTRY_HTTP_CLIENT_NO_REDIRECTS = HttpClientBuilder.create()
+				.setConnectionManager(REGISTRY_CONNECTION_MANAGER)
+				.setConnectionManagerShared(true)
+				.disableRedirectHandling().build();
+	}
+
+	// replacements for the above, e.g. a stubbed registry in tests
+	private static volatile HttpClient registryHttpClient = null;
+	private static volatile HttpClient registryHttpClientNoRedirects = null;
+
 	private static HttpClient getHttpClient() {
-		return HttpClientBuilder.create().build();
+		HttpClient result = registryHttpClient;
+		return result==null ? REGISTRY_HTTP_CLIENT : result;
 	}
 
-	private static String  getAuthToken(final HttpRequestBase request) throws UnsupportedOperationException, IOException, JSONException {
-		// Step 1:  Send the unauthorized request and get the authorization request info in the response headers
-		HttpResponse response = getHttpClient().execute(request);
-		checkHttpResponseCode(response, HttpStatus.SC_UNAUTHORIZED);
-		HttpEntity entity = response.getEntity();
-		EntityUtils.consume(entity);
-		String bearerTokenUrl = getBearerTokenUrl(response);
+	private static HttpClient getHttpClientNoRedirects() {
+		HttpClient result = registryHttpClientNoRedirects;
+		return result==null ? REGISTRY_HTTP_CLIENT_NO_REDIRECTS : result;
+	}
+
+	/*
+	 * Send registry traffic through the given clients (or, if null, the pooled ones) and
+	 * forget the challenges and tokens cached so far
+	 */
+	static void setRegistryHttpClients(HttpClient httpClient, HttpClient httpClientNoRedirects) {
+		registryHttpClient = httpClient;
+		registryHttpClientNoRedirects = httpClientNoRedirects;
+		BEARER_CHALLENGES.clear();
+		BEARER_TOKENS.clear();
+	}
+
+	// challenges, keyed by registry host and repository, so we needn't ask for them each time
+	private static final ConcurrentMap<String,BearerChallenge> BEARER_CHALLENGES = new ConcurrentHashMap<String,BearerChallenge>();
+	// tokens, keyed by realm, service and scope
+	private static final ConcurrentMap<String,CachedToken> BEARER_TOKENS = new ConcurrentHashMap<String,CachedToken>();
+
+	/*
+	 * The registry host and repository name, e.g. "docker.synapse.org syn5644795/dm-trivial-model"
+	 * from https://docker.synapse.org/v2/syn5644795/dm-trivial-model/blobs/sha256:144e...
+	 */
+	private static String getRepositoryKey(HttpRequestBase request) {
+		String path = request.getURI().getPath();
+		Matcher matcher = REPOSITORY_PATH_PATTERN.matcher(path);
+		return request.getURI().getHost()+" "+(matcher.matches() ? matcher.group(1) : path);
+	}
+
+	private static void invalidateAuthToken(HttpRequestBase request) {
+		BearerChallenge challenge = BEARER_CHALLENGES.get(getRepositoryKey(request));
+		if (challenge!=null) BEARER_TOKENS.remove(challenge.getKey());
+	}
+
+	private static String getAuthToken(final HttpRequestBase request) throws UnsupportedOperationException, IOException, JSONException {
+		String repositoryKey = getRepositoryKey(request);
+		BearerChallenge challenge = BEARER_CHALLENGES.get(repositoryKey);
+		if (challenge==null) {
+			// Step 1:  Send the unauthorized request and get the authorization request info in the response headers
+			HttpResponse response = getHttpClient().execute(request);
+			checkHttpResponseCode(response, HttpStatus.SC_UNAUTHORIZED);
+			HttpEntity entity = response.getEntity();
+			EntityUtils.consume(entity);
+			challenge = getBearerChallenge(response);
+			BEARER_CHALLENGES.put(repositoryKey, challenge);
+		}
+		
+		CachedToken cachedToken = BEARER_TOKENS.get(challenge.getKey());
+		if (cachedToken!=null && cachedToken.isValid()) return cachedToken.token;
 
 		// Step 2: Get the bearer token
-		HttpGet bearerRequest = new HttpGet(bearerTokenUrl);
+		HttpGet bearerRequest = new HttpGet(challenge.getTokenUrl());
 
 		String username;
 		String password;
@@ -581,23 +918,42 @@ public class DockerUtils {
 			throw new RuntimeException("Unexpected host: "+request.getURI().getHost());
 		}
 		bearerRequest.addHeader("Authorization", "Basic "+Base64.encodeAsString(username+":"+password));
-		response = getHttpClient().execute(bearerRequest);
+		long requestTime = getClock().currentTimeMillis();
+		HttpResponse response = getHttpClient().execute(bearerRequest);
 
 		checkHttpResponseCode(response, HttpStatus.SC_OK);
 
 		JSONObject tokenJson = getResponseBodyAsJson(response);
 
-		entity = response.getEntity();
+		HttpEntity entity = response.getEntity();
 		EntityUtils.consume(entity);
 
-		return tokenJson.getString("token");
+		String token = tokenJson.getString("token");
+		// the token spec' says to assume 60 seconds if 'expires_in' is omitted
+		long expiresInSeconds = tokenJson.optLong("expires_in", DEFAULT_TOKEN_EXPIRES_IN_SECONDS);
+		long expiresAt = requestTime+1000L*Math.max(0L, expiresInSeconds-TOKEN_EXPIRY_MARGIN_SECONDS);
+		BEARER_TOKENS.put(challenge.getKey(), new CachedToken(token, expiresAt));
+		return token;
+	}
+
+	/*
+	 * Execute a request to the registry with a bearer token, getting a new token
+	 * and trying again if the one we have is rejected.
+	 */
+	private static HttpResponse executeWithAuthToken(HttpClient httpClient, HttpRequestBase request, HttpRequestBase tokenRequest) throws UnsupportedOperationException, IOException, JSONException {
+		for (int attempt=0; ; attempt++) {
+			String token = getAuthToken(tokenRequest);
+			// Step 3: repeat the original request, this time with the bearer token
+			request.setHeader("Authorization", "Bearer "+token);
+			HttpResponse response = httpClient.execute(request);
+			if (response.getStatusLine().getStatusCode()!=HttpStatus.SC_UNAUTHORIZED || attempt>0) return response;
+			EntityUtils.consumeQuietly(response.getEntity());
+			invalidateAuthToken(tokenRequest);
+		}
 	}
 
 	public JSONObject registryRequest(final HttpRequestBase request, final int expecteResponseCode) throws UnsupportedOperationException, IOException, JSONException {
-		String token = getAuthToken(request);
-		// Step 3: repeat the original request, this time with the bearer token
-		request.addHeader("Authorization", "Bearer "+token);		
-		HttpResponse response = getHttpClient().execute(request);
+		HttpResponse response = executeWithAuthToken(getHttpClient(), request, request);
 		checkHttpResponseCode(response, expecteResponseCode);
 		return getResponseBodyAsJson(response);
 	}
@@ -610,13 +966,9 @@ public class DockerUtils {
 	 */
 	public long getCompressedLayerSize(final String layerRequest) throws UnsupportedOperationException, IOException, JSONException {
 		HttpGet request = new HttpGet(layerRequest);
-		String token = getAuthToken(request);
 
-		HttpClient httpClient = HttpClientBuilder.create().disableRedirectHandling().build();
 		HttpHead head = new HttpHead(layerRequest);
-		// Step 3: repeat the original request, this time with the bearer token
-		head.addHeader("Authorization", "Bearer "+token);			
-		HttpResponse response = httpClient.execute(head);
+		HttpResponse response = executeWithAuthToken(getHttpClientNoRedirects(), head, request);
 
 		checkHttpResponseCode(response, HttpStatus.SC_TEMPORARY_REDIRECT);
 
@@ -638,4 +990,63 @@ public class DockerUtils {
 		}	
 		return result;
 	}
+
+	private static final ExecutorService LAYER_PROBE_EXECUTOR = Executors.newFixedThreadPool(REGISTRY_MAX_CONNECTIONS, new ThreadFactory() {
+		private AtomicInteger threadCount = new AtomicInteger(0);
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "layer-probe-"+threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	/*
+	 * As getCompressedLayerSize(), for many layers at once.  The layers are probed concurrently.
+	 * @return the compressed sizes, keyed by layer request
+	 */
+	public Map<String,Long> getCompressedLayerSizes(Collection<String> layerRequests) throws UnsupportedOperationException, IOException, JSONException {
+		Map<String,Future<Long>> futures = new LinkedHashMap<String,Future<Long>>();
+		for (final String layerRequest : layerRequests) {
+			futures.put(layerRequest, LAYER_PROBE_EXECUTOR.submit(new Callable<Long>() {
+				@Override
+				public Long call() throws Exception {
+					return getCompressedLayerSize(layerRequest);
+				}}));
+		}
+		Map<String,Long> result = new LinkedHashMap<String,Long>();
+		for (String layerRequest : futures.keySet()) {
+			try {
+				result.put(layerRequest, futures.get(layerRequest).get());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while probing "+layerRequest);
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof IOException) throw (IOException)cause;
+				if (cause instanceof JSONException) throw (JSONException)cause;
+				if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+				throw new RuntimeException(cause);
+			}
+		}
+		return result;
+	}
+
+	/*
+	 * The compressed size of an image in a registry, e.g. ("docker.synapse.org",
+	 * "syn5644795/dm-trivial-model", "latest").  The (schema 1) manifest doesn't give
+	 * the layers' sizes, so each distinct layer is probed, concurrently.
+	 */
+	public long getCompressedImageSize(String registryHost, String repository, String reference) throws UnsupportedOperationException, IOException, JSONException {
+		String repositoryUrl = "https://"+registryHost+"/v2/"+repository;
+		JSONObject manifest = registryRequest(new HttpGet(repositoryUrl+"/manifests/"+reference), HttpStatus.SC_OK);
+		Set<String> layerRequests = new LinkedHashSet<String>();
+		JSONArray fsLayers = manifest.getJSONArray("fsLayers");
+		for (int i=0; i<fsLayers.length(); i++) {
+			layerRequests.add(repositoryUrl+"/blobs/"+fsLayers.getJSONObject(i).getString("blobSum"));
+		}
+		long result = 0L;
+		for (Long size : getCompressedLayerSizes(layerRequests).values()) result += size;
+		return result;
+	}
 }
@@ -0,0 +1,149 @@
+package org.sagebionetworks;
+
+import static org.sagebionetworks.Utils.createTempFile;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Remembers the folders the agent has found or created in Synapse, keyed by parent
+ * and name, and which entities it has already shared, so that uploading results for
+ * a submission doesn't repeatedly try to create folders which already exist.
+ *
+ * Entries are only hints:  A caller which finds that a cached entity no longer exists
+ * (i.e., Synapse returns 404) must invalidate it and provision it again.
+ *
+ * The cache holds at most 'maxEntries' of each kind of entry, evicting the least
+ * recently used, and is written through to a file so it survives a restart.
+ */
+public class EntityProvisioningCache {
+	private static Logger log = LoggerFactory.getLogger(EntityProvisioningCache.class);
+
+	private static final String FOLDER_PREFIX = "folder.";
+	private static final String SHARED_PREFIX = "shared.";
+	private static final String KEY_SEPARATOR = "/";
+
+	private File cacheFile;
+	// (parent ID, name) -> folder ID
+	private Map<String,String> folders;
+	// IDs of entities whose ACL we have created
+	private Map<String,Boolean> shared;
+
+	public EntityProvisioningCache(File cacheFile, int maxEntries) {
+		this.cacheFile=cacheFile;
+		this.folders = createLruMap(maxEntries);
+		this.shared = createLruMap(maxEntries);
+		load();
+	}
+
+	private static <V> Map<String,V> createLruMap(final int maxEntries) {
+		return new LinkedHashMap<String,V>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String,V> eldest) {
+				return size()>maxEntries;
+			}
+		};
+	}
+
+	private static String folderKey(String parentId, String name) {
+		// Synapse IDs never contain the separator, so the key is unambiguous
+		return parentId+KEY_SEPARATOR+name;
+	}
+
+	/*
+	 * return the ID of the folder with the given parent and name, or null if not cached
+	 */
+	public synchronized String getFolderId(String parentId, String name) {
+		return folders.get(folderKey(parentId, name));
+	}
+
+	public synchronized void putFolderId(String parentId, String name, String folderId) {
+		if (folderId.equals(folders.put(folderKey(parentId, name), folderId))) return;
+		save();
+	}
+
+	public synchronized boolean isShared(String entityId) {
+		return shared.containsKey(entityId);
+	}
+
+	public synchronized void setShared(String entityId) {
+		if (shared.put(entityId, Boolean.TRUE)!=null) return;
+		save();
+	}
+
+	/*
+	 * Forget everything cached about the given entity:  its own folder entry, the
+	 * entries of any folders within it, and whether it was shared.
+	 */
+	public synchronized void invalidate(String entityId) {
+		if (entityId==null) return;
+		boolean changed = false;
+		for (Iterator<Map.Entry<String,String>> it = folders.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<String,String> entry = it.next();
+			if (entry.getValue().equals(entityId) || entry.getKey().startsWith(entityId+KEY_SEPARATOR)) {
+				it.remove();
+				changed = true;
+			}
+		}
+		if (shared.remove(entityId)!=null) changed = true;
+		if (changed) {
+			log.info("Invalidated cached entries for "+entityId);
+			save();
+		}
+	}
+
+	private void load() {
+		if (!cacheFile.exists()) return;
+		Properties properties = new Properties();
+		try (InputStream is = new FileInputStream(cacheFile)) {
+			properties.load(is);
+		} catch (IOException e) {
+			// the cache is only an optimization, so start afresh
+			log.warn("Unable to read "+cacheFile.getAbsolutePath()+".  Starting with an empty cache.", e);
+			return;
+		}
+		for (String key : properties.stringPropertyNames()) {
+			if (key.startsWith(FOLDER_PREFIX)) {
+				folders.put(key.substring(FOLDER_PREFIX.length()), properties.getProperty(key));
+			} else if (key.startsWith(SHARED_PREFIX)) {
+				shared.put(key.substring(SHARED_PREFIX.length()), Boolean.TRUE);
+			}
+		}
+	}
+
+	private void save() {
+		Properties properties = new Properties();
+		for (Map.Entry<String,String> entry : folders.entrySet()) {
+			properties.setProperty(FOLDER_PREFIX+entry.getKey(), entry.getValue());
+		}
+		for (String entityId : shared.keySet()) {
+			properties.setProperty(SHARED_PREFIX+entityId, Boolean.TRUE.toString());
+		}
+		try {
+			File dir = cacheFile.getAbsoluteFile().getParentFile();
+			dir.mkdirs();
+			File tempFile = createTempFile(".properties", dir);
+			try (OutputStream os = new FileOutputStream(tempFile)) {
+				properties.store(os, null);
+			}
+			Files.move(tempFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			// the in-memory cache is still good, we just won't have it after a restart
+			log.warn("Unable to write "+cacheFile.getAbsolutePath(), e);
+		}
+	}
+}
@@ -1,17 +1,26 @@
 package org.sagebionetworks;
 
-import static org.sagebionetworks.Constants.EXECUTION_STAGE_PROPERTY_NAME;
-import static org.sagebionetworks.Utils.getProperty;
+import static org.sagebionetworks.Constants.DEFAULT_SUBMISSION_PAGE_FETCH_CONCURRENCY;
+import static org.sagebionetworks.Constants.DEFAULT_SUBMISSION_PAGE_SIZE;
+import static org.sagebionetworks.Constants.SUBMISSION_PAGE_FETCH_CONCURRENCY_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.SUBMISSION_PAGE_SIZE_PROPERTY_NAME;
+import static org.sagebionetworks.Utils.getIntProperty;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import org.apache.commons.lang.StringUtils;
 import org.sagebionetworks.client.SynapseClient;
 import org.sagebionetworks.client.exceptions.SynapseException;
 import org.sagebionetworks.evaluation.model.SubmissionBundle;
@@ -26,7 +35,8 @@ import org.sagebionetworks.repo.model.annotation.StringAnnotation;
 import org.sagebionetworks.schema.adapter.JSONObjectAdapterException;
 
 public class EvaluationUtils {
-	private static final int PAGE_SIZE = 10;
+	// the most submissions Synapse will return in one page
+	public static final int MAX_PAGE_SIZE = 100;
 
 	// submission annotation names
 	public static final String WORKFLOW_JOB_ID = "org.sagebionetworks.SynapseWorkflowHook.workflowJobId";
@@ -54,10 +64,46 @@ public class EvaluationUtils {
 	// for public annotations, set isPrivate to false
 	public static final boolean PUBLIC_ANNOTATION_SETTING = false;
 
+	// how long an idle page fetch thread waits for more work before exiting
+	private static final long PAGE_FETCH_THREAD_KEEP_ALIVE_SECONDS = 60L;
+
 	private SynapseClient synapse;
+	private int pageSize;
+	// shared by all instances, so creating more of them doesn't create more threads
+	private static ExecutorService pageFetchExecutor = null; // lazily initialized
 
 	public EvaluationUtils(SynapseClient synapse) {
+		this(synapse, getIntProperty(SUBMISSION_PAGE_SIZE_PROPERTY_NAME, DEFAULT_SUBMISSION_PAGE_SIZE));
+	}
+
+	public EvaluationUtils(SynapseClient synapse, int pageSize) {
+		if (pageSize<1 || pageSize>MAX_PAGE_SIZE) throw new IllegalArgumentException("Page size must be between 1 and "+MAX_PAGE_SIZE);
 		this.synapse=synapse;
+		this.pageSize=pageSize;
+	}
+
+	/*
+	 * The pool's threads exit once idle, so between queries it holds no threads at all
+	 */
+	private static synchronized ExecutorService getPageFetchExecutor() {
+		if (pageFetchExecutor==null) {
+			int pageFetchConcurrency = getIntProperty(SUBMISSION_PAGE_FETCH_CONCURRENCY_PROPERTY_NAME, DEFAULT_SUBMISSION_PAGE_FETCH_CONCURRENCY);
+			if (pageFetchConcurrency<1) throw new IllegalArgumentException("Page fetch concurrency must be at least one.");
+			ThreadPoolExecutor executor = new ThreadPoolExecutor(pageFetchConcurrency, pageFetchConcurrency, 
+					PAGE_FETCH_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), 
+					new ThreadFactory() {
+				private AtomicInteger threadCount = new AtomicInteger(0);
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "submission-page-fetch-"+threadCount.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			executor.allowCoreThreadTimeOut(true);
+			pageFetchExecutor = executor;
+		}
+		return pageFetchExecutor;
 	}
 	
 	public enum EXECUTION_STAGE {
@@ -67,8 +113,7 @@ public class EvaluationUtils {
 	};
 	
 	public static SubmissionStatusEnum getInitialSubmissionState() {
-		String executionStageString = getProperty(EXECUTION_STAGE_PROPERTY_NAME, false);
-		EXECUTION_STAGE stage = StringUtils.isEmpty(executionStageString) ? EXECUTION_STAGE.ALL : EXECUTION_STAGE.valueOf(executionStageString);
+		EXECUTION_STAGE stage = Configuration.current().getExecutionStage();
 		switch (stage) {
 		case VALIDATION:
 			return SubmissionStatusEnum.RECEIVED;
@@ -80,8 +125,7 @@ public class EvaluationUtils {
 	}
 
 	public static SubmissionStatusEnum getInProgressSubmissionState() {
-		String executionStageString = getProperty(EXECUTION_STAGE_PROPERTY_NAME, false);
-		EXECUTION_STAGE stage = StringUtils.isEmpty(executionStageString) ? EXECUTION_STAGE.ALL : EXECUTION_STAGE.valueOf(executionStageString);
+		EXECUTION_STAGE stage = Configuration.current().getExecutionStage();
 		switch (stage) {
 		case VALIDATION:
 			return SubmissionStatusEnum.OPEN;
@@ -93,8 +137,7 @@ public class EvaluationUtils {
 	}
 
 	public static SubmissionStatusEnum getFinalSubmissionState() {
-		String executionStageString = getProperty(EXECUTION_STAGE_PROPERTY_NAME, false);
-		EXECUTION_STAGE stage = StringUtils.isEmpty(executionStageString) ? EXECUTION_STAGE.ALL : EXECUTION_STAGE.valueOf(executionStageString);
+		EXECUTION_STAGE stage = Configuration.current().getExecutionStage();
 		switch (stage) {
 		case VALIDATION:
 			return SubmissionStatusEnum.VALIDATED;
@@ -142,94 +185,21 @@ public class EvaluationUtils {
 	}
 
 	public static void setAnnotation(SubmissionStatus status, String key, String value, boolean isPrivate) {
-		if (value!=null && value.length()>499) value = value.substring(0, 499);
-		Annotations annotations = status.getAnnotations();
-		if (annotations==null) {
-			annotations=new Annotations();
-			status.setAnnotations(annotations);
-		}
-		List<StringAnnotation> sas = annotations.getStringAnnos();
-		if (sas==null) {
-			sas = new ArrayList<StringAnnotation>();
-			annotations.setStringAnnos(sas);
-		}
-		StringAnnotation matchingSa = null;
-		for (StringAnnotation existingSa : sas) {
-			if (existingSa.getKey().equals(key)) {
-				matchingSa = existingSa;
-				break;
-			}
-		}
-		if (matchingSa==null) {
-			StringAnnotation sa = new StringAnnotation();
-			sa.setIsPrivate(isPrivate);
-			sa.setKey(key);
-			sa.setValue(value);
-			sas.add(sa);
-		} else {
-			matchingSa.setIsPrivate(isPrivate);
-			matchingSa.setValue(value);
-		}
+		AnnotationIndex index = new AnnotationIndex(status);
+		index.setString(key, value, isPrivate);
+		index.writeTo(status);
 	}
 
 	public static void setAnnotation(SubmissionStatus status, String key, long value, boolean isPrivate) {
-		Annotations annotations = status.getAnnotations();
-		if (annotations==null) {
-			annotations=new Annotations();
-			status.setAnnotations(annotations);
-		}
-		List<LongAnnotation> las = annotations.getLongAnnos();
-		if (las==null) {
-			las = new ArrayList<LongAnnotation>();
-			annotations.setLongAnnos(las);
-		}
-		LongAnnotation matchingLa = null;
-		for (LongAnnotation existingLa : las) {
-			if (existingLa.getKey().equals(key)) {
-				matchingLa = existingLa;
-				break;
-			}
-		}
-		if (matchingLa==null) {
-			LongAnnotation la = new LongAnnotation();
-			la.setIsPrivate(isPrivate);
-			la.setKey(key);
-			la.setValue(value);
-			las.add(la);
-		} else {
-			matchingLa.setIsPrivate(isPrivate);
-			matchingLa.setValue(value);
-		}
+		AnnotationIndex index = new AnnotationIndex(status);
+		index.setLong(key, value, isPrivate);
+		index.writeTo(status);
 	}
 
 	public static void setAnnotation(SubmissionStatus status, String key, double value, boolean isPrivate) {
-		Annotations annotations = status.getAnnotations();
-		if (annotations==null) {
-			annotations=new Annotations();
-			status.setAnnotations(annotations);
-		}
-		List<DoubleAnnotation> das = annotations.getDoubleAnnos();
-		if (das==null) {
-			das = new ArrayList<DoubleAnnotation>();
-			annotations.setDoubleAnnos(das);
-		}
-		DoubleAnnotation matchingDa = null;
-		for (DoubleAnnotation existingDa : das) {
-			if (existingDa.getKey().equals(key)) {
-				matchingDa = existingDa;
-				break;
-			}
-		}
-		if (matchingDa==null) {
-			DoubleAnnotation da = new DoubleAnnotation();
-			da.setIsPrivate(isPrivate);
-			da.setKey(key);
-			da.setValue(value);
-			das.add(da);
-		} else {
-			matchingDa.setIsPrivate(isPrivate);
-			matchingDa.setValue(value);
-		}
+		AnnotationIndex index = new AnnotationIndex(status);
+		index.setDouble(key, value, isPrivate);
+		index.writeTo(status);
 	}
 
 	public static void setStatus(SubmissionStatusModifications statusMods, SubmissionStatusEnum status, WorkflowUpdateStatus containerStatus) {
@@ -276,93 +246,70 @@ public class EvaluationUtils {
 		}
 	}
 	
-	private static void removeAnnotation(SubmissionStatus status, String key) {
-		Annotations annotations = status.getAnnotations();
-		if (annotations==null) return;
-
-		List<StringAnnotation> sas = annotations.getStringAnnos();
-		if (sas!=null) {
-			for (Iterator<StringAnnotation> iterator = sas.iterator(); iterator.hasNext();) {
-				StringAnnotation existing = iterator.next();
-				if (existing.getKey().equals(key)) {
-					iterator.remove();
-				}
-			}
-		}
-
-		List<DoubleAnnotation> das = annotations.getDoubleAnnos();
-		if (das!=null) {
-			for (Iterator<DoubleAnnotation> iterator = das.iterator(); iterator.hasNext();) {
-				DoubleAnnotation existing = iterator.next();
-				if (existing.getKey().equals(key)) {
-					iterator.remove();
-				}
-			}
-		}
-
-		List<LongAnnotation> las = annotations.getLongAnnos();
-		if (las!=null) {
-			for (Iterator<LongAnnotation> iterator = las.iterator(); iterator.hasNext();) {
-				LongAnnotation existing = iterator.next();
-				if (existing.getKey().equals(key)) {
-					iterator.remove();
-				}
-			}
-		}
-	}
-	
-	private static void removeAnnotationIntern(SubmissionStatusModifications statusMods, String key) {
-		for (Iterator<AnnotationBase> it = statusMods.getAnnotationsToAdd().iterator(); it.hasNext();) {
-			if (it.next().getKey().equals(key)) it.remove();
-		}
-	}
-
 	public static void setAnnotation(SubmissionStatusModifications statusMods, String key, String value, boolean isPrivate) {
-		removeAnnotationIntern(statusMods, key); // make sure the key is not in the list
 		StringAnnotation annot = new StringAnnotation();
 		annot.setKey(key);
 		annot.setValue(value);
 		annot.setIsPrivate(isPrivate);
-		statusMods.getAnnotationsToAdd().add(annot);
-		statusMods.getAnnotationNamesToRemove().remove(key); // if a key had been scheduled to be removed, now unschedule
+		statusMods.addAnnotation(annot);
 	}
 	
 	public static void setAnnotation(SubmissionStatusModifications statusMods, String key, long value, boolean isPrivate) {
-		removeAnnotationIntern(statusMods, key); // make sure the key is not in the list
 		LongAnnotation annot = new LongAnnotation();
 		annot.setKey(key);
 		annot.setValue(value);
 		annot.setIsPrivate(isPrivate);
-		statusMods.getAnnotationsToAdd().add(annot);
-		statusMods.getAnnotationNamesToRemove().remove(key); // if a key had been scheduled to be removed, now unschedule
+		statusMods.addAnnotation(annot);
 	}
 	
 	public static void setAnnotation(SubmissionStatusModifications statusMods, String key, double value, boolean isPrivate) {
-		removeAnnotationIntern(statusMods, key); // make sure the key is not in the list
 		DoubleAnnotation annot = new DoubleAnnotation();
 		annot.setKey(key);
 		annot.setValue(value);
 		annot.setIsPrivate(isPrivate);
-		statusMods.getAnnotationsToAdd().add(annot);
-		statusMods.getAnnotationNamesToRemove().remove(key); // if a key had been scheduled to be removed, now unschedule
+		statusMods.addAnnotation(annot);
 	}
 	
 	public static void removeAnnotation(SubmissionStatusModifications statusMods, String key) {
-		statusMods.getAnnotationNamesToRemove().add(key);
-		removeAnnotationIntern(statusMods, key); // make sure the key is not in the list
+		statusMods.removeAnnotation(key);
 	}
 
-	public static void applyModifications(final SubmissionStatus submissionStatus, final SubmissionStatusModifications statusMods) {
-		for (AnnotationBase annot : statusMods.getAnnotationsToAdd()) {
-			if (annot instanceof StringAnnotation) 
-				setAnnotation(submissionStatus, annot.getKey(), ((StringAnnotation) annot).getValue(), annot.getIsPrivate());
-			if (annot instanceof LongAnnotation) 
-				setAnnotation(submissionStatus, annot.getKey(), ((LongAnnotation) annot).getValue(), annot.getIsPrivate());
-			if (annot instanceof DoubleAnnotation) 
-				setAnnotation(submissionStatus, annot.getKey(), ((DoubleAnnotation) annot).getValue(), annot.getIsPrivate());
+	/*
+	 * Drop the routine parts of an update -- the heartbeat time stamp and small changes
+	 * in progress -- unless they're due, so that a job which is just running along
+	 * doesn't cause a write on every check.
+	 * 
+	 * @return false if nothing is left worth writing
+	 */
+	public static boolean throttleRoutineUpdates(SubmissionStatus current, SubmissionStatusModifications statusMods, 
+			long now, long heartbeatMillis, double progressDelta) {
+		AnnotationBase progress = statusMods.getAnnotationToAdd(PROGRESS);
+		if (progress instanceof DoubleAnnotation) {
+			Double currentProgress = new AnnotationIndex(current).getDouble(PROGRESS);
+			if (currentProgress!=null && Math.abs(((DoubleAnnotation)progress).getValue()-currentProgress)<progressDelta) {
+				statusMods.dropAnnotation(PROGRESS);
+			}
 		}
+		Long lastUpdated = getLongAnnotation(current, JOB_LAST_UPDATED_TIME_STAMP);
+		if (lastUpdated==null || now-lastUpdated>=heartbeatMillis) return true;
+		AnnotationBase timeStamp = statusMods.getAnnotationToAdd(JOB_LAST_UPDATED_TIME_STAMP);
+		statusMods.dropAnnotation(JOB_LAST_UPDATED_TIME_STAMP);
+		if (statusMods.isNoOp(current)) return false;
+		// something else is changing, so record when
+		if (timeStamp!=null) statusMods.addAnnotation(timeStamp);
+		return true;
+	}
+
+	/*
+	 * Apply the modifications to the status, indexing its annotations just once
+	 */
+	public static void applyModifications(final SubmissionStatus submissionStatus, final SubmissionStatusModifications statusMods) {
+		AnnotationIndex index = new AnnotationIndex(submissionStatus);
+		for (AnnotationBase annot : statusMods.getAnnotationsToAdd()) index.set(annot);
+		
+		for (String key : statusMods.getAnnotationNamesToRemove()) index.remove(key);
 		
-		for (String key : statusMods.getAnnotationNamesToRemove()) removeAnnotation(submissionStatus, key);
+		index.writeTo(submissionStatus);
 		
 		if (statusMods.getStatus()!=null) submissionStatus.setStatus(statusMods.getStatus());
 		if (statusMods.getCanCancel()!=null) submissionStatus.setCanCancel(statusMods.getCanCancel());
@@ -370,21 +317,49 @@ public class EvaluationUtils {
 	}
 	
 	/**
+	 * Return all the submissions in the given evaluation queue having the given state.
+	 * The first page tells us how many there are, after which the remaining pages
+	 * are fetched concurrently.
 	 * 
 	 * @throws SynapseException
 	 * @throws IOException
 	 * @throws JSONObjectAdapterException
 	 */
-	public List<SubmissionBundle> selectSubmissions(String evaluationId, SubmissionStatusEnum state) throws SynapseException, IOException, JSONObjectAdapterException {
-		long total = Integer.MAX_VALUE;
+	public List<SubmissionBundle> selectSubmissions(final String evaluationId, final SubmissionStatusEnum state) throws SynapseException, IOException, JSONObjectAdapterException {
+		PaginatedResults<SubmissionBundle> firstPage = synapse.getAllSubmissionBundlesByStatus(evaluationId, 
+				state, 0, pageSize);
+		long total = firstPage.getTotalNumberOfResults();
+		List<Future<PaginatedResults<SubmissionBundle>>> futures = new ArrayList<Future<PaginatedResults<SubmissionBundle>>>();
+		for (long offset=pageSize; offset<total; offset+=pageSize) {
+			final long pageOffset = offset;
+			futures.add(getPageFetchExecutor().submit(new Callable<PaginatedResults<SubmissionBundle>>() {
+				@Override
+				public PaginatedResults<SubmissionBundle> call() throws Exception {
+					return synapse.getAllSubmissionBundlesByStatus(evaluationId, 
+							state, pageOffset, pageSize);
+				}}));
+		}
+		List<List<SubmissionBundle>> pages = new ArrayList<List<SubmissionBundle>>();
+		pages.add(firstPage.getResults());
+		try {
+			for (Future<PaginatedResults<SubmissionBundle>> future : futures) {
+				pages.add(future.get().getResults());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while selecting submissions from "+evaluationId, e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof SynapseException) throw (SynapseException)cause;
+			if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+			throw new RuntimeException(cause);
+		} finally {
+			for (Future<PaginatedResults<SubmissionBundle>> future : futures) future.cancel(true);
+		}
+
 		List<SubmissionBundle> result = new ArrayList<SubmissionBundle>();
 		Set<String> ids = new HashSet<String>();
-		for (int offset=0; offset<total; offset+=PAGE_SIZE) {
-			PaginatedResults<SubmissionBundle> submissionPGs = null;
-			submissionPGs = synapse.getAllSubmissionBundlesByStatus(evaluationId, 
-					state, offset, PAGE_SIZE);
-			total = (int)submissionPGs.getTotalNumberOfResults();
-			List<SubmissionBundle> page = submissionPGs.getResults();
+		for (List<SubmissionBundle> page : pages) {
 			for (int i=0; i<page.size(); i++) {
 				SubmissionBundle bundle = page.get(i);
 				result.add(bundle);
@@ -1,5 +1,6 @@
 package org.sagebionetworks;
 
+import static org.sagebionetworks.Clock.getClock;
 import static org.sagebionetworks.Constants.DEFAULT_NUM_RETRY_ATTEMPTS;
 
 import java.io.IOException;
@@ -88,7 +89,7 @@ public class ExponentialBackoffRunner {
 				if (i>=numRetryAttempts) break;
 			}
 			try {
-				Thread.sleep(backoff);
+				getClock().sleep(backoff);
 			} catch(InterruptedException e) {
 				throw lastException;
 			}
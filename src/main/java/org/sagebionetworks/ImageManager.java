@@ -0,0 +1,176 @@
+package org.sagebionetworks;
+
+import static org.sagebionetworks.Clock.getClock;
+import static org.sagebionetworks.Constants.DEFAULT_IMAGE_PULL_CONCURRENCY;
+import static org.sagebionetworks.Constants.DEFAULT_IMAGE_REFRESH_SECONDS;
+import static org.sagebionetworks.Constants.IMAGE_PULL_CONCURRENCY_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.IMAGE_REFRESH_SECONDS_PROPERTY_NAME;
+import static org.sagebionetworks.Utils.getIntProperty;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Makes sure images are present before containers are created from them, without
+ * pulling more than necessary:
+ *
+ * - An image referenced by digest is only pulled if it is not already present.  An
+ * image referenced by tag is pulled again only if it was last pulled more than
+ * IMAGE_REFRESH_SECONDS ago, since the tag may have moved.
+ * - Concurrent requests for the same image share one pull.
+ * - At most IMAGE_PULL_CONCURRENCY pulls run at once.  Waiting pulls are started in
+ * order of priority, so that a container about to start isn't kept waiting by a
+ * pull made in anticipation of one.
+ */
+public class ImageManager {
+	private static Logger log = LoggerFactory.getLogger(ImageManager.class);
+
+	public enum Priority {
+		HIGH, // a container is waiting to be created from the image
+		LOW   // the image is being fetched ahead of need
+	}
+
+	private static final String DIGEST_SEPARATOR = "@sha256:";
+
+	private DockerUtils dockerUtils;
+	private long refreshMillis;
+	private ThreadPoolExecutor pullExecutor;
+	private ConcurrentMap<String,PullTask> inFlight = new ConcurrentHashMap<String,PullTask>();
+	private ConcurrentMap<String,Long> lastPulled = new ConcurrentHashMap<String,Long>();
+	private AtomicLong sequence = new AtomicLong(0L);
+
+	public ImageManager(DockerUtils dockerUtils) {
+		this(dockerUtils,
+				getIntProperty(IMAGE_PULL_CONCURRENCY_PROPERTY_NAME, DEFAULT_IMAGE_PULL_CONCURRENCY),
+				1000L*getIntProperty(IMAGE_REFRESH_SECONDS_PROPERTY_NAME, DEFAULT_IMAGE_REFRESH_SECONDS));
+	}
+
+	public ImageManager(DockerUtils dockerUtils, int pullConcurrency, long refreshMillis) {
+		if (pullConcurrency<1) throw new IllegalArgumentException("Pull concurrency must be at least one.");
+		this.dockerUtils=dockerUtils;
+		this.refreshMillis=refreshMillis;
+		ThreadFactory threadFactory = new ThreadFactory() {
+			private AtomicInteger threadCount = new AtomicInteger(0);
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "image-pull-"+threadCount.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+		pullExecutor = new ThreadPoolExecutor(pullConcurrency, pullConcurrency, 0L, TimeUnit.MILLISECONDS,
+				new PriorityBlockingQueue<Runnable>(), threadFactory);
+	}
+
+	private class PullTask implements Runnable, Comparable<PullTask> {
+		private String imageReference;
+		private volatile Priority priority;
+		private long sequenceNumber;
+		private CompletableFuture<Void> future = new CompletableFuture<Void>();
+
+		PullTask(String imageReference, Priority priority) {
+			this.imageReference=imageReference;
+			this.priority=priority;
+			this.sequenceNumber=sequence.incrementAndGet();
+		}
+
+		@Override
+		public void run() {
+			try {
+				log.info("Pulling "+imageReference);
+				dockerUtils.pullImageWithRetry(imageReference);
+				lastPulled.put(imageReference, getClock().currentTimeMillis());
+				future.complete(null);
+			} catch (Throwable t) {
+				future.completeExceptionally(t);
+			} finally {
+				inFlight.remove(imageReference, this);
+			}
+		}
+
+		/*
+		 * If the pull is still waiting to start, move it up the queue
+		 */
+		synchronized void raisePriority(Priority newPriority) {
+			if (newPriority.compareTo(priority)>=0) return;
+			if (pullExecutor.getQueue().remove(this)) {
+				priority = newPriority;
+				pullExecutor.execute(this);
+			}
+		}
+
+		@Override
+		public int compareTo(PullTask o) {
+			int result = priority.compareTo(o.priority);
+			if (result!=0) return result;
+			return Long.compare(sequenceNumber, o.sequenceNumber);
+		}
+	}
+
+	/*
+	 * true if the image need not be pulled
+	 */
+	private boolean isCurrent(String imageReference) {
+		if (!imageReference.contains(DIGEST_SEPARATOR)) {
+			Long pulled = lastPulled.get(imageReference);
+			if (pulled==null || pulled+refreshMillis<getClock().currentTimeMillis()) return false;
+		}
+		return dockerUtils.isImagePresent(imageReference);
+	}
+
+	/*
+	 * Start pulling the image, if necessary, returning a future which completes when it's present
+	 */
+	public CompletableFuture<Void> pullAsync(String imageReference, Priority priority) {
+		if (isCurrent(imageReference)) {
+			log.info(imageReference+" is already present.  No need to pull.");
+			return CompletableFuture.completedFuture(null);
+		}
+		PullTask task = new PullTask(imageReference, priority);
+		PullTask existing = inFlight.putIfAbsent(imageReference, task);
+		if (existing!=null) {
+			log.info("Waiting for pull of "+imageReference+" already in progress.");
+			existing.raisePriority(priority);
+			return existing.future;
+		}
+		pullExecutor.execute(task);
+		return task.future;
+	}
+
+	/*
+	 * Make sure the image is present, pulling it if necessary.  For use when a container
+	 * is about to be created from the image.
+	 */
+	public void ensureImage(String imageReference) {
+		CompletableFuture<Void> future = pullAsync(imageReference, Priority.HIGH);
+		try {
+			future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while pulling "+imageReference, e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+			if (cause instanceof Error) throw (Error)cause;
+			throw new RuntimeException(cause);
+		}
+	}
+
+	/*
+	 * the number of pulls waiting to start
+	 */
+	public int getQueueDepth() {
+		return pullExecutor.getQueue().size();
+	}
+}
@@ -0,0 +1,266 @@
+package org.sagebionetworks;
+
+import static org.sagebionetworks.Constants.ACCEPT_NEW_SUBMISSIONS_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.EVALUATION_TEMPLATES_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.EXECUTION_STAGE_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.MAX_CONCURRENT_WORKFLOWS_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.NOTIFICATION_PRINCIPAL_ID;
+import static org.sagebionetworks.Constants.PROGRESS_UPDATE_DELTA_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.SHARE_RESULTS_IMMEDIATELY_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.STATUS_HEARTBEAT_SECONDS_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.SUBMITTER_NOTIFICATION_MASK_PARAM_NAME;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+import org.sagebionetworks.client.SynapseClient;
+import org.sagebionetworks.reflection.model.PaginatedResults;
+import org.sagebionetworks.schema.adapter.JSONEntity;
+import org.sagebionetworks.schema.adapter.org.json.EntityFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+/*
+ * Records the agent's calls to Synapse and the Docker engine, with their results
+ * and durations, so that a production run can be replayed offline (see
+ * InteractionReplayer in the tests).  The recording is written to the given file,
+ * compressed if the file name ends with ".gz", one JSON object per line:
+ *
+ * - first, a header with the time the recording started and the settings which
+ * shape the agent's behavior (never the credentials)
+ * - for each call: "t", the milliseconds from the start of the recording to the
+ * call, "s", "synapse" or "docker", "k", the key by which the call is matched in a
+ * replay (see key()), "d", the call's duration in milliseconds, and either its
+ * result, "r", or the class and message of the exception it threw, "x" and "m".
+ * Synapse results which are model objects are written as Synapse does, with their
+ * class in "c"; Docker results as docker-java does.  Log retrievals record the
+ * number of bytes written, "n", rather than the logs themselves.
+ * - for each Docker event received: its time, "t", "s":"event" and the event, "r".
+ *
+ * The results of logging in are not recorded.  Note that the recording does include
+ * submissions, their annotations and the submitters' profiles.
+ */
+public class InteractionRecorder implements Closeable {
+	private static Logger log = LoggerFactory.getLogger(InteractionRecorder.class);
+
+	public static final String SYNAPSE = "synapse";
+	public static final String DOCKER = "docker";
+	public static final String EVENT = "event";
+	public static final String PAGINATED_RESULTS = "PaginatedResults";
+	public static final int VERSION = 1;
+
+	// the settings the replay needs to behave as the agent did
+	public static final List<String> RECORDED_SETTINGS = Collections.unmodifiableList(Arrays.asList(
+			EVALUATION_TEMPLATES_PROPERTY_NAME, MAX_CONCURRENT_WORKFLOWS_PROPERTY_NAME, EXECUTION_STAGE_PROPERTY_NAME,
+			ACCEPT_NEW_SUBMISSIONS_PROPERTY_NAME, SHARE_RESULTS_IMMEDIATELY_PROPERTY_NAME, "WORKFLOW_OUTPUT_ROOT_ENTITY_ID",
+			NOTIFICATION_PRINCIPAL_ID, SUBMITTER_NOTIFICATION_MASK_PARAM_NAME, STATUS_HEARTBEAT_SECONDS_PROPERTY_NAME,
+			PROGRESS_UPDATE_DELTA_PROPERTY_NAME));
+	// neither the arguments nor the results of these are recorded, since they include credentials
+	private static final List<String> UNRECORDED_RESULTS = Arrays.asList("login");
+	private static final long FLUSH_PERIOD_MILLIS = 1000L;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper()
+			.configure(SerializationFeature.FAIL_ON_EMPTY_BEANS, false)
+			.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+	private Writer writer;
+	private long startMillis;
+	private long lastFlush;
+
+	public InteractionRecorder(File file) throws IOException {
+		OutputStream os = new FileOutputStream(file);
+		// flush the compressed stream with the writer, so a recording cut short is still readable
+		if (file.getName().endsWith(".gz")) os = new GZIPOutputStream(os, true);
+		writer = new BufferedWriter(new OutputStreamWriter(os, UTF8));
+		startMillis = System.currentTimeMillis();
+		lastFlush = startMillis;
+		JSONObject settings = new JSONObject();
+		for (String name : RECORDED_SETTINGS) {
+			String value = Utils.getProperty(name, false);
+			if (value!=null) settings.put(name, value);
+		}
+		JSONObject header = new JSONObject();
+		header.put("version", VERSION);
+		header.put("started", startMillis);
+		header.put("settings", settings);
+		write(header);
+		log.info("Recording calls to Synapse and Docker in "+file.getAbsolutePath());
+	}
+
+	/*
+	 * The mapper with which Docker results and events are written and read
+	 */
+	public static ObjectMapper getObjectMapper() {
+		return OBJECT_MAPPER;
+	}
+
+	/*
+	 * Calls are matched in a replay by their method and the arguments which identify what
+	 * they act on:  the first argument, if it's a string (e.g. a submission, entity or
+	 * container ID) and any numbers or enumerations (e.g. a state and a page offset).
+	 * Calls with the same key are replayed in the order recorded.
+	 */
+	public static String key(String method, Object[] args) {
+		StringBuilder sb = new StringBuilder(method);
+		if (args==null) return sb.toString();
+		for (int i=0; i<args.length; i++) {
+			if ((i==0 && args[i] instanceof String) || args[i] instanceof Number || args[i] instanceof Enum) {
+				sb.append(" ").append(args[i]);
+			}
+		}
+		return sb.toString();
+	}
+
+	private synchronized void write(JSONObject record) throws IOException {
+		writer.write(record.toString());
+		writer.write("\n");
+		long now = System.currentTimeMillis();
+		if (now-lastFlush>FLUSH_PERIOD_MILLIS) {
+			writer.flush();
+			lastFlush = now;
+		}
+	}
+
+	private JSONObject createRecord(String source, String key, long startNanos, long startMillis) {
+		JSONObject record = new JSONObject();
+		record.put("t", startMillis-this.startMillis);
+		record.put("s", source);
+		if (key!=null) record.put("k", key);
+		if (startNanos!=0L) record.put("d", (System.nanoTime()-startNanos)/1000000L);
+		return record;
+	}
+
+	private void write(JSONObject record, Throwable t) {
+		if (t!=null) {
+			record.put("x", t.getClass().getName());
+			if (t.getMessage()!=null) record.put("m", t.getMessage());
+		}
+		try {
+			write(record);
+		} catch (IOException e) {
+			// recording must not disturb the agent
+			log.warn("Failed to write to the recording.", e);
+		}
+	}
+
+	/*
+	 * Synapse results are written as Synapse writes them, with the class needed to read them back
+	 */
+	private static void putSynapseResult(JSONObject record, Object result) throws Exception {
+		if (result==null) return;
+		if (result instanceof PaginatedResults) {
+			PaginatedResults<?> paginatedResults = (PaginatedResults<?>)result;
+			JSONArray results = new JSONArray();
+			for (Object element : paginatedResults.getResults()) {
+				JSONObject entry = new JSONObject();
+				entry.put("c", element.getClass().getName());
+				entry.put("r", new JSONObject(EntityFactory.createJSONStringForEntity((JSONEntity)element)));
+				results.put(entry);
+			}
+			JSONObject value = new JSONObject();
+			value.put("total", paginatedResults.getTotalNumberOfResults());
+			value.put("results", results);
+			record.put("c", PAGINATED_RESULTS);
+			record.put("r", value);
+		} else if (result instanceof JSONEntity) {
+			record.put("c", result.getClass().getName());
+			record.put("r", new JSONObject(EntityFactory.createJSONStringForEntity((JSONEntity)result)));
+		} else if (result instanceof Enum) {
+			record.put("r", ((Enum<?>)result).name());
+		} else {
+			record.put("r", result);
+		}
+	}
+
+	/*
+	 * Wrap the given client so that its calls are recorded
+	 */
+	public SynapseClient recordSynapse(final SynapseClient synapse) {
+		InvocationHandler handler = new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if (method.getDeclaringClass()==Object.class) return method.invoke(synapse, args);
+				long startMillis = System.currentTimeMillis();
+				long startNanos = System.nanoTime();
+				Object result = null;
+				Throwable failure = null;
+				try {
+					result = method.invoke(synapse, args);
+					return result;
+				} catch (InvocationTargetException e) {
+					failure = e.getCause()==null ? e : e.getCause();
+					throw failure;
+				} finally {
+					boolean unrecorded = UNRECORDED_RESULTS.contains(method.getName());
+					JSONObject record = createRecord(SYNAPSE, unrecorded ? method.getName() : key(method.getName(), args), startNanos, startMillis);
+					if (failure==null && !unrecorded) {
+						try {
+							putSynapseResult(record, result);
+						} catch (Exception e) {
+							log.warn("Unable to record the result of "+method.getName(), e);
+						}
+					}
+					write(record, failure);
+				}
+			}};
+		return (SynapseClient)Proxy.newProxyInstance(InteractionRecorder.class.getClassLoader(),
+				new Class[] {SynapseClient.class}, handler);
+	}
+
+	/*
+	 * Record a call made to the Docker engine, started at the given times, which returned the
+	 * given result (or threw the given exception) having written the given number of bytes
+	 * of logs (or null, if it doesn't write logs)
+	 */
+	public void recordDocker(String key, long startMillis, long startNanos, Object result, Throwable failure, Long bytesWritten) {
+		JSONObject record = createRecord(DOCKER, key, startNanos, startMillis);
+		if (failure==null && result!=null) {
+			try {
+				record.put("r", new JSONTokener(OBJECT_MAPPER.writeValueAsString(result)).nextValue());
+			} catch (IOException e) {
+				log.warn("Unable to record the result of "+key, e);
+			}
+		}
+		if (bytesWritten!=null) record.put("n", bytesWritten);
+		write(record, failure);
+	}
+
+	public void recordEvent(Object event) {
+		JSONObject record = createRecord(EVENT, null, 0L, System.currentTimeMillis());
+		try {
+			record.put("r", new JSONObject(OBJECT_MAPPER.writeValueAsString(event)));
+		} catch (IOException e) {
+			log.warn("Unable to record event "+event, e);
+			return;
+		}
+		write(record, null);
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		writer.close();
+	}
+}
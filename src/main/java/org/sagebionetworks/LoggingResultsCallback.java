@@ -4,64 +4,298 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.CompletableFuture;
 
-import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.github.dockerjava.api.async.ResultCallback;
 import com.github.dockerjava.api.model.Frame;
+import com.github.dockerjava.api.model.StreamType;
 
+/*
+ * Writes the frames received from Docker to an output stream, each line as a line of
+ * the form "STDOUT: <payload>", the same as Frame.toString() for a single line frame.
+ * To keep up with chatty workflows the frames are copied byte for byte, through a
+ * buffer, and the tail of the output is kept in a fixed size ring buffer, so that no
+ * memory is allocated per frame.
+ *
+ * If the output was requested with timestamps (see setTimestamped()), the timestamp
+ * Docker puts at the start of each line is used to skip lines already captured and to
+ * tell where the output ended, but isn't written.
+ * 
+ * The future returned by getCompletion() is completed when the output ends, or
+ * completed exceptionally if it fails.  cancel() abandons the output.
+ */
 public class LoggingResultsCallback implements ResultCallback<Frame> {
-	private boolean isComplete=false;
+	private static Logger log = LoggerFactory.getLogger(LoggingResultsCallback.class);
+
+	private static final int OUTPUT_BUFFER_SIZE = 64*1024;
+	private static final byte[] LINE_SEPARATOR = "\r\n".getBytes(Charset.forName("US-ASCII"));
+	// a character is at most 4 bytes in UTF-8
+	private static final int MAX_BYTES_PER_CHARACTER = 4;
+	private static final byte[][] STREAM_TYPE_PREFIXES;
+	static {
+		STREAM_TYPE_PREFIXES = new byte[StreamType.values().length][];
+		for (StreamType streamType : StreamType.values()) {
+			STREAM_TYPE_PREFIXES[streamType.ordinal()] = (streamType+": ").getBytes(Charset.forName("US-ASCII"));
+		}
+	}
+
+	private final CompletableFuture<Void> completion = new CompletableFuture<Void>();
+	private volatile Closeable stream = null;
 	private OutputStream os;
-	private Thread parentThread;
 	private Integer maxTailLengthInCharacters;
-	private String tail;
+	private long maxOutputBytes = Long.MAX_VALUE;
+	private long outputBytes = 0L;
+	private byte[] outputBuffer = new byte[OUTPUT_BUFFER_SIZE];
+	private int outputBufferLength = 0;
+	private byte[] tailBuffer = null; // ring buffer
+	private int tailPosition = 0; // where the next byte goes
+	private boolean tailBufferFull = false;
+	private boolean timestamped = false;
+	private Instant skipThrough = null;
+	// where, in the payload of a frame, the timestamp of the last line written is
+	private byte[] lastTimestampBytes = null;
+	private int lastTimestampStart = 0;
+	private int lastTimestampEnd = 0;
 
-	public LoggingResultsCallback(OutputStream os, Thread parentThread, Integer maxTailLengthInCharacters) {
+	public LoggingResultsCallback(OutputStream os, Integer maxTailLengthInCharacters) {
 		this.os=os;
-		this.parentThread=parentThread;
 		this.maxTailLengthInCharacters=maxTailLengthInCharacters;
+		if (maxTailLengthInCharacters!=null) {
+			tailBuffer = new byte[MAX_BYTES_PER_CHARACTER*maxTailLengthInCharacters];
+		}
 	}
 
+	/*
+	 * Closes the stream from Docker.  The output stream is the caller's to close.
+	 */
 	public void close() throws IOException {
-		// no-op:  output stream will close when function ends
+		Closeable s = stream;
+		if (s!=null) s.close();
 	}
 
 	public void onStart(Closeable closeable) {
-		// no-op:  output stream is already open
+		this.stream = closeable;
+		if (completion.isDone()) {
+			// cancelled before we started
+			try {
+				close();
+			} catch (IOException e) {
+				log.warn("Failed to close stream.", e);
+			}
+		}
+	}
+
+	/*
+	 * Stop collecting output.  The completion future is cancelled.
+	 */
+	public void cancel() {
+		completion.cancel(false);
+		try {
+			close();
+		} catch (IOException e) {
+			log.warn("Failed to close stream.", e);
+		}
+	}
+
+	/*
+	 * Once this many bytes have been written, stop collecting and complete
+	 */
+	public void setMaxOutputBytes(long maxOutputBytes) {
+		this.maxOutputBytes = maxOutputBytes;
+	}
+
+	public CompletableFuture<Void> getCompletion() {
+		return completion;
+	}
+
+	/*
+	 * The frames were requested with timestamps, which are to be removed from each line
+	 */
+	public void setTimestamped(boolean timestamped) {
+		this.timestamped = timestamped;
+	}
+
+	/*
+	 * Drop lines timestamped at or before the given time, as returned by getLastTimestamp().
+	 * The frames must have been requested with timestamps.
+	 */
+	public void setSkipThrough(String timestamp) {
+		this.skipThrough = timestamp==null ? null : parseTimestamp(timestamp);
+	}
+
+	private static Instant parseTimestamp(String timestamp) {
+		try {
+			return Instant.parse(timestamp);
+		} catch (DateTimeParseException e) {
+			return null;
+		}
+	}
+
+	/*
+	 * Docker prefixes each line with its timestamp, if requested, e.g.
+	 * "2018-05-01T12:34:56.123456789Z <line>".  Returns the end of the timestamp
+	 * at the start of the given line, or -1 if there is none.
+	 */
+	private static int getTimestampEnd(byte[] payload, int start, int end) {
+		int i = start;
+		while (i<end && payload[i]!=' ') i++;
+		if (i-start<20 || payload[start+4]!='-' || payload[start+7]!='-' || payload[start+10]!='T') return -1;
+		return i;
 	}
 
 	public void onNext(Frame object) {
+		if (completion.isDone()) return;
+		byte[] payload = object.getPayload();
+		// trim white space (and control characters), as String.trim() does
+		int start = 0;
+		int end = payload.length;
+		while (start<end && (payload[start]&0xff)<=' ') start++;
+		while (end>start && (payload[end-1]&0xff)<=' ') end--;
+		byte[] prefix = STREAM_TYPE_PREFIXES[object.getStreamType().ordinal()];
 		try {
-			String content = object.toString()+"\r\n";
-			IOUtils.write(content, os);
-			if (maxTailLengthInCharacters!=null) {
-				String spliced = (tail==null)?content:(tail+content);
-				int splicedLength = spliced.length();
-				if (splicedLength<=maxTailLengthInCharacters) {
-					tail = spliced;
-				} else {
-					tail = spliced.substring(splicedLength-maxTailLengthInCharacters, splicedLength);
-				}
-			}
+			// a frame may hold several lines, e.g. from a container with a TTY
+			int lineStart = start;
+			do {
+				int lineEnd = lineStart;
+				while (lineEnd<end && payload[lineEnd]!='\n') lineEnd++;
+				int contentEnd = lineEnd;
+				if (contentEnd>lineStart && payload[contentEnd-1]=='\r') contentEnd--;
+				writeLine(prefix, payload, lineStart, contentEnd);
+				lineStart = lineEnd+1;
+			} while (lineStart<end);
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
+		if (outputBytes>maxOutputBytes) {
+			log.warn("Output has exceeded "+maxOutputBytes+" bytes in size.  Will not collect any more data.");
+			onComplete();
+			try {
+				close();
+			} catch (IOException e) {
+				log.warn("Failed to close stream.", e);
+			}
+		}
+	}
+
+	private void writeLine(byte[] prefix, byte[] payload, int start, int end) throws IOException {
+		if (timestamped) {
+			int timestampEnd = getTimestampEnd(payload, start, end);
+			if (timestampEnd>=0) {
+				if (skipThrough!=null) {
+					Instant timestamp = parseTimestamp(new String(payload, start, timestampEnd-start, Charset.forName("US-ASCII")));
+					if (timestamp!=null && !timestamp.isAfter(skipThrough)) return;
+					// lines come in order, so there's no need to check any more
+					skipThrough = null;
+				}
+				lastTimestampBytes = payload;
+				lastTimestampStart = start;
+				lastTimestampEnd = timestampEnd;
+				start = Math.min(end, timestampEnd+1);
+			}
+		}
+		write(prefix, 0, prefix.length);
+		write(payload, start, end-start);
+		write(LINE_SEPARATOR, 0, LINE_SEPARATOR.length);
+	}
+
+	private void write(byte[] bytes, int offset, int length) throws IOException {
+		outputBytes += length;
+		if (length>outputBuffer.length-outputBufferLength) {
+			flush();
+		}
+		if (length>outputBuffer.length) {
+			os.write(bytes, offset, length);
+		} else {
+			System.arraycopy(bytes, offset, outputBuffer, outputBufferLength, length);
+			outputBufferLength += length;
+		}
+		if (tailBuffer!=null) appendToTail(bytes, offset, length);
+	}
+
+	private void appendToTail(byte[] bytes, int offset, int length) {
+		if (length>=tailBuffer.length) {
+			// just the end of what's written will fit
+			System.arraycopy(bytes, offset+length-tailBuffer.length, tailBuffer, 0, tailBuffer.length);
+			tailPosition = 0;
+			tailBufferFull = true;
+			return;
+		}
+		int firstPart = Math.min(length, tailBuffer.length-tailPosition);
+		System.arraycopy(bytes, offset, tailBuffer, tailPosition, firstPart);
+		System.arraycopy(bytes, offset+firstPart, tailBuffer, 0, length-firstPart);
+		if (tailPosition+length>=tailBuffer.length) tailBufferFull = true;
+		tailPosition = (tailPosition+length)%tailBuffer.length;
+	}
+
+	private void flush() throws IOException {
+		if (outputBufferLength>0) {
+			os.write(outputBuffer, 0, outputBufferLength);
+			outputBufferLength = 0;
+		}
 	}
 
 	public void onError(Throwable throwable) {
+		if (completion.isDone()) return;
+		try {
+			flush();
+		} catch (IOException e) {
+			// we'll report the original problem, below
+		}
 		throwable.printStackTrace(new PrintStream(os));
+		completion.completeExceptionally(throwable);
 	}
 
 	public void onComplete() {
-		this.isComplete=true;
-		this.parentThread.interrupt();
+		if (completion.isDone()) return;
+		try {
+			flush();
+			completion.complete(null);
+		} catch (IOException e) {
+			completion.completeExceptionally(e);
+		}
 	}
 
 	public boolean isComplete() {
-		return this.isComplete;
+		return completion.isDone();
 	}
 
-	public String getTail() {return tail;}
+	/*
+	 * Return the last 'maxTailLengthInCharacters' characters written, or null if nothing was written 
+	 * or no tail was requested
+	 */
+	public String getTail() {
+		if (tailBuffer==null || (tailPosition==0 && !tailBufferFull)) return null;
+		byte[] bytes;
+		if (tailBufferFull) {
+			bytes = new byte[tailBuffer.length];
+			System.arraycopy(tailBuffer, tailPosition, bytes, 0, tailBuffer.length-tailPosition);
+			System.arraycopy(tailBuffer, 0, bytes, tailBuffer.length-tailPosition, tailPosition);
+		} else {
+			bytes = new byte[tailPosition];
+			System.arraycopy(tailBuffer, 0, bytes, 0, tailPosition);
+		}
+		// don't start in the middle of a multi-byte character
+		int start = 0;
+		if (tailBufferFull) {
+			while (start<bytes.length && (bytes[start]&0xc0)==0x80) start++;
+		}
+		String tail = new String(bytes, start, bytes.length-start, Charset.forName("UTF-8"));
+		return tail.length()<=maxTailLengthInCharacters ? tail : tail.substring(tail.length()-maxTailLengthInCharacters);
+	}
+
+	/*
+	 * The timestamp of the last line written, or null if none
+	 */
+	public String getLastTimestamp() {
+		if (lastTimestampBytes==null) return null;
+		String timestamp = new String(lastTimestampBytes, lastTimestampStart, lastTimestampEnd-lastTimestampStart, Charset.forName("US-ASCII"));
+		return parseTimestamp(timestamp)==null ? null : timestamp;
+	}
 
 }
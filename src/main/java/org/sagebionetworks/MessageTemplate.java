@@ -0,0 +1,73 @@
+package org.sagebionetworks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * A notification template, parsed once into the literal text between its placeholders
+ * so that it can be rendered in a single pass.
+ *
+ * A placeholder is a name made of letters, between pairs of hashes, e.g. ##team##.
+ * When rendering, each placeholder is replaced by its value, taken literally.  A
+ * placeholder with no value given is left as it is.
+ */
+public class MessageTemplate {
+	private static final String DELIMITER = "##";
+
+	// literals.get(i) precedes placeholders.get(i); the last literal follows the last placeholder
+	private List<String> literals = new ArrayList<String>();
+	private List<String> placeholders = new ArrayList<String>();
+	private int length;
+
+	public MessageTemplate(String text) {
+		int start = 0;
+		int literalStart = 0;
+		while (true) {
+			int open = text.indexOf(DELIMITER, start);
+			if (open<0) break;
+			int close = text.indexOf(DELIMITER, open+DELIMITER.length());
+			if (close<0) break;
+			String name = text.substring(open+DELIMITER.length(), close);
+			if (!isPlaceholderName(name)) {
+				// not a placeholder; the closing delimiter might open one
+				start = close;
+				continue;
+			}
+			literals.add(text.substring(literalStart, open));
+			placeholders.add(name);
+			literalStart = close+DELIMITER.length();
+			start = literalStart;
+		}
+		literals.add(text.substring(literalStart));
+		length = text.length();
+	}
+
+	private static boolean isPlaceholderName(String name) {
+		if (name.isEmpty()) return false;
+		for (int i=0; i<name.length(); i++) {
+			if (!Character.isLetter(name.charAt(i))) return false;
+		}
+		return true;
+	}
+
+	public List<String> getPlaceholders() {
+		return placeholders;
+	}
+
+	public String render(Map<String,String> values) {
+		StringBuilder sb = new StringBuilder(length+256);
+		for (int i=0; i<placeholders.size(); i++) {
+			sb.append(literals.get(i));
+			String name = placeholders.get(i);
+			String value = values.get(name);
+			if (value==null) {
+				sb.append(DELIMITER).append(name).append(DELIMITER);
+			} else {
+				sb.append(value);
+			}
+		}
+		sb.append(literals.get(literals.size()-1));
+		return sb.toString();
+	}
+}
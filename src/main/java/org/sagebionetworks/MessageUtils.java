@@ -1,10 +1,17 @@
 package org.sagebionetworks;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.regex.Matcher;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 import org.sagebionetworks.client.SynapseClient;
@@ -16,12 +23,14 @@ public class MessageUtils {
 	private static final String WORKFLOW_COMPLETE_TEMPLATE = "WorkflowCompleteTemplate.txt";
 	private static final String WORKFLOW_FAILED_TEMPLATE = "WorkflowFailedTemplate.txt";
 	private static final String PIPELINE_FAILURE_TEMPLATE = "PipelineFailureTemplate.txt";
+	private static final String PIPELINE_FAILURE_DIGEST_TEMPLATE = "PipelineFailureDigestTemplate.txt";
 	public  static final String WORKFLOW_FAILURE_SUBJECT = "Workflow Failed";
 	public  static final String SUBMISSION_PIPELINE_FAILURE_SUBJECT = "Submission Pipeline Failed";
 	public  static final String WORKFLOW_TERMINATED_SUBJECT = "Workflow Terminated";
 	public  static final String WORKFLOW_COMPLETE_SUBJECT = "Workflow Complete";
 	private static final String SUBMISSION_PROCESSING_STARTED = "SubmissionProcessingStarted.txt";
 	public  static final String SUBMISSION_PROCESSING_STARTED_SUBJECT = "Submission Processing Started";
+	private static final Charset TEMPLATE_CHARSET = Charset.forName("UTF-8");
 	
 	private SynapseClient synapse;
 	
@@ -31,109 +40,155 @@ public class MessageUtils {
 	
 	private static final String LOGS_AVAILABLE_STATEMENT = " Log files produced while your workflow is running will be periodically uploaded here: https://www.synapse.org/#!Synapse:";
 
-	public static String createSubmissionStartedMessage(String teamName, String submissionId, String logsFolderId) throws IOException {
-		InputStream is = MessageUtils.class.getClassLoader().getResourceAsStream(SUBMISSION_PROCESSING_STARTED);
-		if (is==null) throw new RuntimeException("Could not find file "+SUBMISSION_PROCESSING_STARTED);
-		try {
-			String template = new String(IOUtils.toByteArray(is));
-			template = template.replaceAll("##team##", teamName);
-			if (!StringUtils.isEmpty(submissionId)) {
-				template = template.replaceAll("##submissionId##", "(submission ID "+submissionId+")");
-			} else {
-				template = template.replaceAll("##submissionId##", "");    			
+	/*
+	 * A parsed template and where it came from
+	 */
+	private static class LoadedTemplate {
+		private MessageTemplate template;
+		private File overrideFile; // null if loaded from the classpath
+		private long lastModified;
+		private long length;
+
+		LoadedTemplate(MessageTemplate template, File overrideFile) {
+			this.template=template;
+			this.overrideFile=overrideFile;
+			if (overrideFile!=null) {
+				this.lastModified=overrideFile.lastModified();
+				this.length=overrideFile.length();
 			}
-			if (logsFolderId==null) {
-				template = template.replaceAll("##logsAvailableMessage##", "");    			
-			} else {
-				template = template.replaceAll("##logsAvailableMessage##", LOGS_AVAILABLE_STATEMENT+logsFolderId);    			
+		}
+
+		boolean isCurrent(File currentOverrideFile) {
+			if (currentOverrideFile==null) return overrideFile==null;
+			return currentOverrideFile.equals(overrideFile) && 
+					currentOverrideFile.lastModified()==lastModified && 
+					currentOverrideFile.length()==length;
+		}
+	}
+
+	private static final ConcurrentMap<String,LoadedTemplate> TEMPLATES = new ConcurrentHashMap<String,LoadedTemplate>();
+
+	/*
+	 * Return the named template, parsed.  A template of the same name in MESSAGE_TEMPLATE_DIR
+	 * takes precedence over the one on the classpath, and is reloaded when it changes.
+	 */
+	public static MessageTemplate getTemplate(String name) throws IOException {
+		File overrideFile = null;
+		String overrideDir = Configuration.current().getMessageTemplateDir();
+		if (!StringUtils.isEmpty(overrideDir)) {
+			File file = new File(overrideDir, name);
+			if (file.isFile()) overrideFile = file;
+		}
+		LoadedTemplate loaded = TEMPLATES.get(name);
+		if (loaded!=null && loaded.isCurrent(overrideFile)) return loaded.template;
+		String text;
+		if (overrideFile!=null) {
+			text = FileUtils.readFileToString(overrideFile, TEMPLATE_CHARSET);
+		} else {
+			InputStream is = MessageUtils.class.getClassLoader().getResourceAsStream(name);
+			if (is==null) throw new RuntimeException("Could not find file "+name);
+			try {
+				text = IOUtils.toString(is, TEMPLATE_CHARSET);
+			} finally {
+				is.close();
 			}
-			return template;
+		}
+		loaded = new LoadedTemplate(new MessageTemplate(text), overrideFile);
+		TEMPLATES.put(name, loaded);
+		return loaded.template;
+	}
 
-		} finally {
-			is.close();
+	public static String createSubmissionStartedMessage(String teamName, String submissionId, String logsFolderId) throws IOException {
+		Map<String,String> values = new HashMap<String,String>();
+		values.put("team", teamName);
+		if (!StringUtils.isEmpty(submissionId)) {
+			values.put("submissionId", "(submission ID "+submissionId+")");
+		} else {
+			values.put("submissionId", "");
+		}
+		if (logsFolderId==null) {
+			values.put("logsAvailableMessage", "");
+		} else {
+			values.put("logsAvailableMessage", LOGS_AVAILABLE_STATEMENT+logsFolderId);
 		}
+		return getTemplate(SUBMISSION_PROCESSING_STARTED).render(values);
 	}
 
 	public static String createWorkflowFailedMessage(String teamName, String submissionId, String errorMessage, String logs, String submissionFolderId) throws IOException {
-		InputStream is = MessageUtils.class.getClassLoader().getResourceAsStream(WORKFLOW_FAILED_TEMPLATE);
-		if (is==null) throw new RuntimeException("Could not find file "+WORKFLOW_FAILED_TEMPLATE);
-		try {
-			String template = new String(IOUtils.toByteArray(is));
-			template = template.replaceAll("##team##", teamName);
-			if (!StringUtils.isEmpty(submissionId)) {
-				template = template.replaceAll("##submissionId##", "(submission ID "+submissionId+")");
-			} else {
-				template = template.replaceAll("##submissionId##", "");    			
-			}
-			if (!StringUtils.isEmpty(errorMessage)) {
-				template = template.replaceAll("##errorMessage##", Matcher.quoteReplacement(" The message is:\n\n\t"+errorMessage+"\n\n"));
-			} else {
-				template = template.replaceAll("##errorMessage##", "");
-			}
-			if (!StringUtils.isEmpty(logs)) {
-				template = template.replaceAll("##logs##", Matcher.quoteReplacement("Logs:\n\n"+logs+"\n"));
-			} else {
-				template = template.replaceAll("##logs##", "");
-			}
-			if (!StringUtils.isEmpty(submissionFolderId)) {
-				// this is an extra check (since not sharing logs in the leaderboard is so critical)
-				template = template.replaceAll("##submissionFolderId##", " Your logs are available here: https://www.synapse.org/#!Synapse:"+submissionFolderId+".");
-			} else {
-				template = template.replaceAll("##submissionFolderId##", "");
-			}
-			return template;
-		} finally {
-			is.close();
+		Map<String,String> values = new HashMap<String,String>();
+		values.put("team", teamName);
+		if (!StringUtils.isEmpty(submissionId)) {
+			values.put("submissionId", "(submission ID "+submissionId+")");
+		} else {
+			values.put("submissionId", "");
+		}
+		if (!StringUtils.isEmpty(errorMessage)) {
+			values.put("errorMessage", " The message is:\n\n\t"+errorMessage+"\n\n");
+		} else {
+			values.put("errorMessage", "");
+		}
+		if (!StringUtils.isEmpty(logs)) {
+			values.put("logs", "Logs:\n\n"+logs+"\n");
+		} else {
+			values.put("logs", "");
 		}
+		if (!StringUtils.isEmpty(submissionFolderId)) {
+			// this is an extra check (since not sharing logs in the leaderboard is so critical)
+			values.put("submissionFolderId", " Your logs are available here: https://www.synapse.org/#!Synapse:"+submissionFolderId+".");
+		} else {
+			values.put("submissionFolderId", "");
+		}
+		return getTemplate(WORKFLOW_FAILED_TEMPLATE).render(values);
 	}
 
 	public static String createWorkflowCompleteMessage(String teamName, String submissionId, String submissionFolderId) throws IOException {
-		InputStream is = MessageUtils.class.getClassLoader().getResourceAsStream(WORKFLOW_COMPLETE_TEMPLATE);
-		if (is==null) throw new RuntimeException("Could not find file "+WORKFLOW_COMPLETE_TEMPLATE);
-		try {
-			String template = new String(IOUtils.toByteArray(is));
-			template = template.replaceAll("##team##", teamName);
-			if (!StringUtils.isEmpty(submissionId)) {
-				template = template.replaceAll("##submissionId##", "(submission ID "+submissionId+")");
-			} else {
-				template = template.replaceAll("##submissionId##", "");    			
-			}
-			if (!StringUtils.isEmpty(submissionFolderId)) {
-				// this is an extra check (since not sharing logs in the leaderboard is so critical)
-				template = template.replaceAll("##submissionFolderId##", " Your logs are available here: https://www.synapse.org/#!Synapse:"+submissionFolderId+".");
-			} else {
-				template = template.replaceAll("##submissionFolderId##", "");
-			}
-			return template;
-		} finally {
-			is.close();
+		Map<String,String> values = new HashMap<String,String>();
+		values.put("team", teamName);
+		if (!StringUtils.isEmpty(submissionId)) {
+			values.put("submissionId", "(submission ID "+submissionId+")");
+		} else {
+			values.put("submissionId", "");
+		}
+		if (!StringUtils.isEmpty(submissionFolderId)) {
+			// this is an extra check (since not sharing logs in the leaderboard is so critical)
+			values.put("submissionFolderId", " Your logs are available here: https://www.synapse.org/#!Synapse:"+submissionFolderId+".");
+		} else {
+			values.put("submissionFolderId", "");
 		}
+		return getTemplate(WORKFLOW_COMPLETE_TEMPLATE).render(values);
 	}
 
 	public static String createPipelineFailureMessage(String submissionId, String workflowDescription, String errorMessage) throws IOException {
-		InputStream is = MessageUtils.class.getClassLoader().getResourceAsStream(PIPELINE_FAILURE_TEMPLATE);
-		if (is==null) throw new RuntimeException("Could not find file "+PIPELINE_FAILURE_TEMPLATE);
-		try {
-			String template = new String(IOUtils.toByteArray(is));
-			if (!StringUtils.isEmpty(submissionId)) {
-				template = template.replaceAll("##submissionId##", submissionId);
-			} else {
-				template = template.replaceAll("##submissionId##", "");    			
-			}
-			if (!StringUtils.isEmpty(workflowDescription)) {
-				template = template.replaceAll("##workflowDescription##", " The workflow description is: "+workflowDescription+"\n");
-			} else {
-				template = template.replaceAll("##workflowDescription##", "");    			
-			}
-			if (!StringUtils.isEmpty(errorMessage)) {
-				template = template.replaceAll("##errorMessage##", Matcher.quoteReplacement(" The message is:\n\n\t"+errorMessage+"\n\n"));
-			} else {
-				template = template.replaceAll("##errorMessage##", "");
-			}
-			return template;
-		} finally {
-			is.close();
+		Map<String,String> values = new HashMap<String,String>();
+		if (!StringUtils.isEmpty(submissionId)) {
+			values.put("submissionId", submissionId);
+		} else {
+			values.put("submissionId", "");
 		}
+		if (!StringUtils.isEmpty(workflowDescription)) {
+			values.put("workflowDescription", " The workflow description is: "+workflowDescription+"\n");
+		} else {
+			values.put("workflowDescription", "");
+		}
+		if (!StringUtils.isEmpty(errorMessage)) {
+			values.put("errorMessage", " The message is:\n\n\t"+errorMessage+"\n\n");
+		} else {
+			values.put("errorMessage", "");
+		}
+		return getTemplate(PIPELINE_FAILURE_TEMPLATE).render(values);
+	}
+
+	public static String createPipelineFailureDigestMessage(int count, long windowMinutes, Collection<String> submissionIds, String firstMessage) throws IOException {
+		Map<String,String> values = new HashMap<String,String>();
+		values.put("count", ""+count);
+		values.put("minutes", ""+windowMinutes);
+		if (submissionIds!=null && !submissionIds.isEmpty()) {
+			values.put("submissionIds", "  The submission(s) affected were: "+StringUtils.join(submissionIds, ", ")+".");
+		} else {
+			values.put("submissionIds", "");
+		}
+		values.put("firstMessage", firstMessage);
+		return getTemplate(PIPELINE_FAILURE_DIGEST_TEMPLATE).render(values);
 	}
 
 	public static String getDisplayNameWithUserName(UserProfile userProfile) {
@@ -162,14 +217,11 @@ public class MessageUtils {
 	}
 
 	public void sendMessage(final String userId, final String subject, final String body) throws SynapseException {
-		final MessageToUser messageMetadata = new MessageToUser();
-		messageMetadata.setRecipients(Collections.singleton(userId));
-		messageMetadata.setSubject(subject);
 		try {
 			(new ExponentialBackoffRunner()).execute(new NoRefreshExecutableAdapter<Void,Void>() {
 				@Override
 				public Void execute(Void args) throws Throwable {
-					synapse.sendStringMessage(messageMetadata, body);
+					sendMessageOnce(userId, subject, body);
 					return null;
 				}}, null);
 		} catch (Throwable t) {
@@ -177,6 +229,16 @@ public class MessageUtils {
 		}
 	}
 
+	/*
+	 * Send a message, without retrying, for callers which do their own retries
+	 */
+	public void sendMessageOnce(String userId, String subject, String body) throws SynapseException {
+		MessageToUser messageMetadata = new MessageToUser();
+		messageMetadata.setRecipients(Collections.singleton(userId));
+		messageMetadata.setSubject(subject);
+		synapse.sendStringMessage(messageMetadata, body);
+	}
+
 	public static String getMessageForCompletionStatus(WorkflowUpdateStatus s) {
 		switch(s) {
 		case DONE:
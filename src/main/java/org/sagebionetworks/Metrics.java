@@ -0,0 +1,249 @@
+package org.sagebionetworks;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * A minimal registry of the agent's metrics, written in the Prometheus text format
+ * (see MetricsServer).
+ *
+ * There are three kinds of metric, each of which may have labels:
+ *
+ * Counter - a total which only goes up, e.g. the number of calls made
+ * Gauge - a value which is set, e.g. the number of jobs running
+ * Summary - the count and sum of observations, e.g. of call durations, in seconds
+ */
+public class Metrics {
+	private static final String PREFIX = "workflow_hook_";
+	private static final List<Metric> REGISTRY = new CopyOnWriteArrayList<Metric>();
+
+	public static final Summary LOOP_PHASE_SECONDS = summary("loop_phase_seconds",
+			"Time spent in each phase of the main loop", "phase");
+	public static final Counter SYNAPSE_CALLS = counter("synapse_calls_total",
+			"Synapse client calls, including retries", "method");
+	public static final Counter SYNAPSE_RETRIES = counter("synapse_retries_total",
+			"Synapse client calls which were retried", "method");
+	public static final Counter SYNAPSE_ERRORS = counter("synapse_errors_total",
+			"Synapse client calls which failed, after any retries", "method");
+	public static final Summary SYNAPSE_CALL_SECONDS = summary("synapse_call_seconds",
+			"Duration of each attempt of a Synapse client call", "method");
+	public static final Gauge SYNAPSE_CONCURRENCY_LIMIT = gauge("synapse_concurrency_limit",
+			"The most Synapse requests allowed in flight at once, as adapted to Synapse's responses");
+	public static final Gauge SYNAPSE_REQUESTS_IN_FLIGHT = gauge("synapse_requests_in_flight",
+			"Synapse requests in flight");
+	public static final Counter SYNAPSE_LIMIT_DECREASES = counter("synapse_limit_decreases_total",
+			"Cuts in the Synapse concurrency limit, by whether Synapse throttled a request or was slow", "reason");
+	public static final Summary SYNAPSE_LIMITER_WAIT_SECONDS = summary("synapse_limiter_wait_seconds",
+			"Time spent waiting for the Synapse concurrency limit to allow a request");
+	public static final Summary DOCKER_CALL_SECONDS = summary("docker_call_seconds",
+			"Duration of Docker engine operations", "operation");
+	public static final Summary IMAGE_PULL_SECONDS = summary("image_pull_seconds",
+			"Duration of Docker image pulls, including retries");
+	public static final Gauge JOBS = gauge("jobs",
+			"Submissions running, or received and waiting to start, in each evaluation queue", "evaluation", "state");
+	public static final Counter LOG_BYTES_UPLOADED = counter("log_bytes_uploaded_total",
+			"Bytes of workflow logs uploaded to Synapse");
+
+	public static abstract class Metric {
+		private String name;
+		private String help;
+		private String type;
+		private List<String> labelNames;
+
+		Metric(String name, String help, String type, String[] labelNames) {
+			this.name=PREFIX+name;
+			this.help=help;
+			this.type=type;
+			this.labelNames=Arrays.asList(labelNames);
+		}
+
+		List<String> key(String[] labelValues) {
+			if (labelValues.length!=labelNames.size())
+				throw new IllegalArgumentException(name+" expects labels "+labelNames+" but was given "+Arrays.asList(labelValues));
+			return Arrays.asList(labelValues);
+		}
+
+		String getName() {
+			return name;
+		}
+
+		String getHelp() {
+			return help;
+		}
+
+		String getType() {
+			return type;
+		}
+
+		String labels(List<String> labelValues) {
+			if (labelValues.isEmpty()) return "";
+			StringBuilder sb = new StringBuilder("{");
+			for (int i=0; i<labelValues.size(); i++) {
+				if (i>0) sb.append(",");
+				sb.append(labelNames.get(i)).append("=\"").append(escape(labelValues.get(i))).append("\"");
+			}
+			return sb.append("}").toString();
+		}
+
+		abstract void write(Writer writer) throws IOException;
+	}
+
+	public static class Counter extends Metric {
+		private ConcurrentMap<List<String>,AtomicLong> values = new ConcurrentHashMap<List<String>,AtomicLong>();
+
+		Counter(String name, String help, String[] labelNames) {
+			super(name, help, "counter", labelNames);
+		}
+
+		public void inc(String... labelValues) {
+			add(1L, labelValues);
+		}
+
+		public void add(long delta, String... labelValues) {
+			List<String> key = key(labelValues);
+			AtomicLong value = values.get(key);
+			if (value==null) {
+				values.putIfAbsent(key, new AtomicLong());
+				value = values.get(key);
+			}
+			value.addAndGet(delta);
+		}
+
+		public long get(String... labelValues) {
+			AtomicLong value = values.get(key(labelValues));
+			return value==null ? 0L : value.get();
+		}
+
+		@Override
+		void write(Writer writer) throws IOException {
+			for (Map.Entry<List<String>,AtomicLong> entry : values.entrySet()) {
+				writer.write(getName()+labels(entry.getKey())+" "+entry.getValue().get()+"\n");
+			}
+		}
+	}
+
+	public static class Gauge extends Metric {
+		private ConcurrentMap<List<String>,Long> values = new ConcurrentHashMap<List<String>,Long>();
+
+		Gauge(String name, String help, String[] labelNames) {
+			super(name, help, "gauge", labelNames);
+		}
+
+		public void set(long value, String... labelValues) {
+			values.put(key(labelValues), value);
+		}
+
+		public Long get(String... labelValues) {
+			return values.get(key(labelValues));
+		}
+
+		@Override
+		void write(Writer writer) throws IOException {
+			for (Map.Entry<List<String>,Long> entry : values.entrySet()) {
+				writer.write(getName()+labels(entry.getKey())+" "+entry.getValue()+"\n");
+			}
+		}
+	}
+
+	public static class Summary extends Metric {
+		// each value is {count, sum}
+		private ConcurrentMap<List<String>,double[]> values = new ConcurrentHashMap<List<String>,double[]>();
+
+		Summary(String name, String help, String[] labelNames) {
+			super(name, help, "summary", labelNames);
+		}
+
+		public void observe(double value, String... labelValues) {
+			List<String> key = key(labelValues);
+			double[] countAndSum = values.get(key);
+			if (countAndSum==null) {
+				values.putIfAbsent(key, new double[2]);
+				countAndSum = values.get(key);
+			}
+			synchronized (countAndSum) {
+				countAndSum[0]++;
+				countAndSum[1]+=value;
+			}
+		}
+
+		/*
+		 * Observe the seconds elapsed since the given System.nanoTime()
+		 */
+		public void observeSince(long startNanos, String... labelValues) {
+			observe((System.nanoTime()-startNanos)/1e9, labelValues);
+		}
+
+		public long getCount(String... labelValues) {
+			double[] countAndSum = values.get(key(labelValues));
+			if (countAndSum==null) return 0L;
+			synchronized (countAndSum) {
+				return (long)countAndSum[0];
+			}
+		}
+
+		public double getSum(String... labelValues) {
+			double[] countAndSum = values.get(key(labelValues));
+			if (countAndSum==null) return 0D;
+			synchronized (countAndSum) {
+				return countAndSum[1];
+			}
+		}
+
+		@Override
+		void write(Writer writer) throws IOException {
+			for (Map.Entry<List<String>,double[]> entry : values.entrySet()) {
+				double count;
+				double sum;
+				synchronized (entry.getValue()) {
+					count = entry.getValue()[0];
+					sum = entry.getValue()[1];
+				}
+				String labels = labels(entry.getKey());
+				writer.write(getName()+"_count"+labels+" "+(long)count+"\n");
+				writer.write(getName()+"_sum"+labels+" "+sum+"\n");
+			}
+		}
+	}
+
+	public static Counter counter(String name, String help, String... labelNames) {
+		return register(new Counter(name, help, labelNames));
+	}
+
+	public static Gauge gauge(String name, String help, String... labelNames) {
+		return register(new Gauge(name, help, labelNames));
+	}
+
+	public static Summary summary(String name, String help, String... labelNames) {
+		return register(new Summary(name, help, labelNames));
+	}
+
+	private static <T extends Metric> T register(T metric) {
+		REGISTRY.add(metric);
+		return metric;
+	}
+
+	private static String escape(String s) {
+		if (s==null) return "";
+		return s.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+	/*
+	 * Write all the metrics in the Prometheus text exposition format
+	 */
+	public static void write(Writer writer) throws IOException {
+		for (Metric metric : new ArrayList<Metric>(REGISTRY)) {
+			writer.write("# HELP "+metric.getName()+" "+metric.getHelp()+"\n");
+			writer.write("# TYPE "+metric.getName()+" "+metric.getType()+"\n");
+			metric.write(writer);
+		}
+		writer.flush();
+	}
+}
@@ -0,0 +1,75 @@
+package org.sagebionetworks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/*
+ * Serves the agent's Metrics at /metrics, for Prometheus to scrape
+ */
+public class MetricsServer {
+	private static Logger log = LoggerFactory.getLogger(MetricsServer.class);
+
+	public static final String METRICS_PATH = "/metrics";
+	private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private HttpServer server;
+	private ExecutorService executor;
+
+	public MetricsServer(int port) throws IOException {
+		server = HttpServer.create(new InetSocketAddress(port), 0);
+		server.createContext(METRICS_PATH, new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					ByteArrayOutputStream content = new ByteArrayOutputStream();
+					Writer writer = new OutputStreamWriter(content, UTF8);
+					Metrics.write(writer);
+					exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+					exchange.sendResponseHeaders(200, content.size());
+					OutputStream os = exchange.getResponseBody();
+					content.writeTo(os);
+					os.close();
+				} finally {
+					exchange.close();
+				}
+			}});
+		executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "metrics-server");
+				thread.setDaemon(true);
+				return thread;
+			}});
+		server.setExecutor(executor);
+	}
+
+	public void start() {
+		server.start();
+		log.info("Serving metrics at http://localhost:"+getPort()+METRICS_PATH);
+	}
+
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	public void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+}
@@ -0,0 +1,306 @@
+package org.sagebionetworks;
+
+import static org.sagebionetworks.Clock.getClock;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.UUID;
+
+import org.sagebionetworks.client.exceptions.UnknownSynapseServerException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Messages waiting to be sent, so that sending them doesn't hold up the monitoring
+ * of submissions.
+ *
+ * A message is first appended to a journal on disk, then delivered by a background
+ * thread which sends at most MAX_MESSAGES_PER_MINUTE.  When sending fails, the message
+ * goes to the back of the queue, to be retried with back off once the others have been
+ * sent, unless the failure is permanent (e.g. the recipient is unknown), in which case
+ * it's abandoned.  Once a message is sent a 'delivered' record is appended for it, so
+ * that messages still pending when the agent stops are sent when it restarts, and
+ * those already sent are not sent again.
+ *
+ * Journal records, one per line, fields separated by tabs:
+ *
+ * Q <id> <recipient> <subject> <body>  a message was queued (text fields Base64 encoded)
+ * D <id>                               the message was delivered (or abandoned)
+ */
+public class NotificationOutbox {
+	private static Logger log = LoggerFactory.getLogger(NotificationOutbox.class);
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String JOURNAL_FILE_NAME = "outbox.journal";
+	private static final String QUEUED = "Q";
+	private static final String DELIVERED = "D";
+	private static final String SEPARATOR = "\t";
+	private static final int MAX_ATTEMPTS = 8;
+	private static final long INITIAL_RETRY_DELAY_MILLIS = 1000L;
+	private static final long MAX_RETRY_DELAY_MILLIS = 5*60*1000L;
+	// how often an idle sender checks the queue, in case it missed a signal
+	private static final long IDLE_POLL_MILLIS = 60000L;
+
+	/*
+	 * What actually sends a message
+	 */
+	public interface MessageSender {
+		void send(String recipientId, String subject, String body) throws Exception;
+	}
+
+	private static class Message implements Comparable<Message> {
+		private String id;
+		private String recipientId;
+		private String subject;
+		private String body;
+		private int attempts = 0;
+		private long retryDelay = INITIAL_RETRY_DELAY_MILLIS;
+		// when the message may next be sent, and its place among those which may be sent at the same time
+		private long readyAt = 0L;
+		private long sequence;
+
+		Message(String id, String recipientId, String subject, String body) {
+			this.id=id;
+			this.recipientId=recipientId;
+			this.subject=subject;
+			this.body=body;
+		}
+
+		@Override
+		public int compareTo(Message that) {
+			if (this.readyAt!=that.readyAt) return this.readyAt<that.readyAt ? -1 : 1;
+			return Long.compare(this.sequence, that.sequence);
+		}
+	}
+
+	private File journalFile;
+	private MessageSender sender;
+	private long minIntervalMillis;
+	private OutputStream journal;
+	private FileOutputStream journalFileStream;
+	private int pendingCount = 0;
+	// in the order they're to be sent
+	private PriorityQueue<Message> queue = new PriorityQueue<Message>();
+	private long sequence = 0L;
+	private Thread senderThread;
+	private volatile boolean closed = false;
+
+	public NotificationOutbox(File dir, MessageSender sender, int maxMessagesPerMinute) throws IOException {
+		if (maxMessagesPerMinute<1) throw new IllegalArgumentException("Must allow at least one message per minute.");
+		dir.mkdirs();
+		if (!dir.isDirectory()) throw new RuntimeException("Unable to create "+dir.getAbsolutePath());
+		this.journalFile = new File(dir, JOURNAL_FILE_NAME);
+		this.sender=sender;
+		this.minIntervalMillis = 60000L/maxMessagesPerMinute;
+		Map<String,Message> pending = replay(journalFile);
+		compact(dir, pending);
+		journalFileStream = new FileOutputStream(journalFile, true);
+		journal = journalFileStream;
+		pendingCount = pending.size();
+		for (Message message : pending.values()) addToQueue(message);
+		if (!pending.isEmpty()) log.info("Found "+pending.size()+" undelivered message(s) in "+journalFile.getAbsolutePath());
+	}
+
+	private static String encode(String s) {
+		return Base64.getEncoder().encodeToString((s==null?"":s).getBytes(UTF8));
+	}
+
+	private static String decode(String s) {
+		return new String(Base64.getDecoder().decode(s), UTF8);
+	}
+
+	/*
+	 * Return the messages queued but not delivered, in the order they were queued
+	 */
+	private static Map<String,Message> replay(File journalFile) throws IOException {
+		Map<String,Message> pending = new LinkedHashMap<String,Message>();
+		if (!journalFile.exists()) return pending;
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), UTF8))) {
+			String line;
+			while ((line=reader.readLine())!=null) {
+				String[] fields = line.split(SEPARATOR, -1);
+				try {
+					if (fields[0].equals(QUEUED) && fields.length==5) {
+						pending.put(fields[1], new Message(fields[1], decode(fields[2]), decode(fields[3]), decode(fields[4])));
+					} else if (fields[0].equals(DELIVERED) && fields.length==2) {
+						pending.remove(fields[1]);
+					} else {
+						log.warn("Ignoring malformed record in "+journalFile.getAbsolutePath()+": "+line);
+					}
+				} catch (IllegalArgumentException e) {
+					// e.g. a record cut short by a crash while it was written
+					log.warn("Ignoring malformed record in "+journalFile.getAbsolutePath()+": "+line);
+				}
+			}
+		}
+		return pending;
+	}
+
+	/*
+	 * Rewrite the journal with just the pending messages
+	 */
+	private static void compact(File dir, Map<String,Message> pending) throws IOException {
+		File tempFile = Utils.createTempFile(".journal", dir);
+		try (OutputStream os = new FileOutputStream(tempFile)) {
+			for (Message message : pending.values()) os.write(queuedRecord(message));
+		}
+		Files.move(tempFile.toPath(), new File(dir, JOURNAL_FILE_NAME).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static byte[] queuedRecord(Message message) {
+		return (QUEUED+SEPARATOR+message.id+SEPARATOR+encode(message.recipientId)+SEPARATOR+
+				encode(message.subject)+SEPARATOR+encode(message.body)+"\n").getBytes(UTF8);
+	}
+
+	private void appendRecord(byte[] record) throws IOException {
+		journal.write(record);
+		journal.flush();
+		journalFileStream.getFD().sync();
+	}
+
+	/*
+	 * Durably queue a message for delivery
+	 */
+	public void enqueue(String recipientId, String subject, String body) throws IOException {
+		Message message = new Message(UUID.randomUUID().toString(), recipientId, subject, body);
+		message.readyAt = getClock().currentTimeMillis();
+		synchronized (this) {
+			if (closed) throw new IllegalStateException("Outbox is closed.");
+			appendRecord(queuedRecord(message));
+			pendingCount++;
+		}
+		addToQueue(message);
+	}
+
+	private void addToQueue(Message message) {
+		synchronized (queue) {
+			message.sequence = sequence++;
+			queue.add(message);
+			getClock().signal(queue);
+		}
+	}
+
+	/*
+	 * Wait for the first message which may be sent now
+	 */
+	private Message takeFromQueue() throws InterruptedException {
+		Clock clock = getClock();
+		synchronized (queue) {
+			while (true) {
+				Message first = queue.peek();
+				long now = clock.currentTimeMillis();
+				if (first!=null && first.readyAt<=now) return queue.poll();
+				clock.await(queue, first==null ? IDLE_POLL_MILLIS : first.readyAt-now);
+			}
+		}
+	}
+
+	/*
+	 * A failure which won't go away by trying again, e.g. a recipient who doesn't exist
+	 */
+	static boolean isPermanentFailure(Exception e) {
+		if (Constants.NO_RETRY_EXCEPTIONS.contains(e.getClass())) return true;
+		if (e instanceof UnknownSynapseServerException) {
+			return Arrays.asList(Constants.NO_RETRY_STATUSES).contains(((UnknownSynapseServerException)e).getStatusCode());
+		}
+		return false;
+	}
+
+	private synchronized void markDelivered(Message message) throws IOException {
+		appendRecord((DELIVERED+SEPARATOR+message.id+"\n").getBytes(UTF8));
+		pendingCount--;
+		// nothing left to deliver, so nothing in the journal is needed
+		if (pendingCount==0) journalFileStream.getChannel().truncate(0L);
+	}
+
+	/*
+	 * the number of messages queued but not yet delivered
+	 */
+	public synchronized int getPendingCount() {
+		return pendingCount;
+	}
+
+	/*
+	 * Start delivering messages in the background
+	 */
+	public synchronized void start() {
+		if (senderThread!=null) return;
+		senderThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				deliverMessages();
+			}}, "notification-outbox");
+		senderThread.setDaemon(true);
+		senderThread.start();
+	}
+
+	private void deliverMessages() {
+		long lastSent = 0L;
+		while (!closed) {
+			try {
+				Message message = takeFromQueue();
+				getClock().sleep(lastSent+minIntervalMillis-getClock().currentTimeMillis());
+				lastSent = getClock().currentTimeMillis();
+				message.attempts++;
+				try {
+					sender.send(message.recipientId, message.subject, message.body);
+					markDelivered(message);
+				} catch (InterruptedException e) {
+					throw e;
+				} catch (Exception e) {
+					if (isPermanentFailure(e) || message.attempts>=MAX_ATTEMPTS) {
+						log.error("Giving up sending message '"+message.subject+"' to "+message.recipientId+" after "+message.attempts+" attempt(s).", e);
+						markDelivered(message);
+					} else {
+						log.warn("Failed to send message '"+message.subject+"' to "+message.recipientId+".  Will retry.", e);
+						// retry after the messages already waiting, so this one doesn't hold them up
+						message.readyAt = getClock().currentTimeMillis()+message.retryDelay;
+						message.retryDelay = Math.min(MAX_RETRY_DELAY_MILLIS, 2*message.retryDelay);
+						addToQueue(message);
+					}
+				}
+			} catch (InterruptedException e) {
+				// closing
+			} catch (IOException e) {
+				log.error("Unable to write to "+journalFile.getAbsolutePath(), e);
+			}
+		}
+	}
+
+	/*
+	 * Stop delivering.  Messages not yet delivered stay in the journal, to be sent
+	 * when the outbox is next opened.
+	 */
+	public void close() throws IOException {
+		Thread thread;
+		synchronized (this) {
+			if (closed) return;
+			closed = true;
+			thread = senderThread;
+		}
+		if (thread!=null) {
+			thread.interrupt();
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		synchronized (this) {
+			journal.close();
+		}
+	}
+}
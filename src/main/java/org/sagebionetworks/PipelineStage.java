@@ -0,0 +1,135 @@
+package org.sagebionetworks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * One stage of the submission processing pipeline:  a fixed pool of worker threads
+ * fed by a bounded queue.  When the queue is full the submitting thread runs the task
+ * itself, so a slow stage slows down the stage feeding it rather than building up
+ * an unbounded backlog.
+ */
+public class PipelineStage {
+	private static Logger log = LoggerFactory.getLogger(PipelineStage.class);
+
+	private static final long SHUTDOWN_TIMEOUT_MILLIS = 5*60*1000L;
+
+	private String name;
+	private ThreadPoolExecutor executor;
+
+	public PipelineStage(final String name, int numThreads, int queueCapacity) {
+		if (numThreads<1) throw new IllegalArgumentException(name+" stage requires at least one thread.");
+		if (queueCapacity<1) throw new IllegalArgumentException(name+" stage requires a queue capacity of at least one.");
+		this.name=name;
+		ThreadFactory threadFactory = new ThreadFactory() {
+			private AtomicInteger threadCount = new AtomicInteger(0);
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, name+"-"+threadCount.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+		executor = new ThreadPoolExecutor(numThreads, numThreads, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(queueCapacity), threadFactory, 
+				new ThreadPoolExecutor.CallerRunsPolicy());
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public <T> Future<T> submit(final PipelineTask<T> task) {
+		return executor.submit(new Callable<T>() {
+			@Override
+			public T call() throws Exception {
+				try {
+					return task.run();
+				} catch (Exception | Error e) {
+					throw e;
+				} catch (Throwable t) {
+					throw new RuntimeException(t);
+				}
+			}
+		});
+	}
+
+	/*
+	 * the number of tasks waiting for a worker thread
+	 */
+	public int getQueueDepth() {
+		return executor.getQueue().size();
+	}
+
+	public int getActiveCount() {
+		return executor.getActiveCount();
+	}
+
+	/*
+	 * Stop accepting work and wait for queued tasks to finish
+	 */
+	public void shutdown() {
+		executor.shutdown();
+		try {
+			if (!executor.awaitTermination(SHUTDOWN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+				log.warn("Timed out waiting for "+name+" stage to finish its tasks.");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/*
+	 * Wait for the given task to finish, returning its result or throwing its exception.
+	 * 
+	 * An interrupt does not abandon the task (which may be half way through updating Synapse).
+	 * Rather we keep waiting and restore the interrupt status afterward, so the caller 
+	 * notices the interrupt at its next sleep.
+	 */
+	public static <T> T await(Future<T> future) throws Throwable {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return future.get();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException e) {
+					throw e.getCause()==null ? e : e.getCause();
+				}
+			}
+		} finally {
+			if (interrupted) Thread.currentThread().interrupt();
+		}
+	}
+
+	/*
+	 * Wait for all the given tasks to finish.  If any failed, the first failure is thrown,
+	 * but only after all have completed, so no task is left running unobserved.
+	 */
+	public static <T> List<T> awaitAll(List<Future<T>> futures) throws Throwable {
+		List<T> result = new ArrayList<T>();
+		Throwable firstFailure = null;
+		for (Future<T> future : futures) {
+			try {
+				result.add(await(future));
+			} catch (Throwable t) {
+				if (firstFailure==null) firstFailure = t;
+			}
+		}
+		if (firstFailure!=null) throw firstFailure;
+		return result;
+	}
+
+}
@@ -0,0 +1,8 @@
+package org.sagebionetworks;
+
+/*
+ * A unit of work to be run by a PipelineStage
+ */
+public interface PipelineTask<T> {
+	T run() throws Throwable;
+}
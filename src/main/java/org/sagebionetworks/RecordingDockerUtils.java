@@ -0,0 +1,234 @@
+package org.sagebionetworks;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import com.github.dockerjava.api.async.ResultCallback;
+import com.github.dockerjava.api.command.InspectContainerResponse.ContainerState;
+import com.github.dockerjava.api.model.Bind;
+import com.github.dockerjava.api.model.Container;
+import com.github.dockerjava.api.model.Device;
+import com.github.dockerjava.api.model.Event;
+import com.github.dockerjava.api.model.Info;
+
+/*
+ * Passes the agent's operations on the Docker engine to the given DockerUtils,
+ * recording each (and each event received) with the given recorder.
+ *
+ * Pulling images is left to the delegate's image manager and is not recorded:
+ * in a replay every image is taken to be present.
+ */
+public class RecordingDockerUtils extends DockerUtils {
+	private DockerUtils delegate;
+	private InteractionRecorder recorder;
+
+	public RecordingDockerUtils(DockerUtils delegate, InteractionRecorder recorder) {
+		super(null, null);
+		this.delegate=delegate;
+		this.recorder=recorder;
+	}
+
+	/*
+	 * Make the given call, recording it under the given key.  If the call writes
+	 * logs to the given file, the number of bytes it writes is recorded too.
+	 */
+	private <T> T record(String key, Path logFile, Callable<T> call) throws IOException {
+		long startMillis = System.currentTimeMillis();
+		long startNanos = System.nanoTime();
+		long initialLength = logFile==null ? 0L : logFile.toFile().length();
+		T result = null;
+		Throwable failure = null;
+		try {
+			result = call.call();
+			return result;
+		} catch (IOException | RuntimeException e) {
+			failure = e;
+			throw e;
+		} catch (Exception e) {
+			failure = e;
+			throw new RuntimeException(e);
+		} finally {
+			Long bytesWritten = logFile==null ? null : logFile.toFile().length()-initialLength;
+			recorder.recordDocker(key, startMillis, startNanos, result, failure, bytesWritten);
+		}
+	}
+
+	/*
+	 * For the calls which can't throw IOException
+	 */
+	private <T> T recordUnchecked(String key, Callable<T> call) {
+		try {
+			return record(key, null, call);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static String key(String method, Object... args) {
+		return InteractionRecorder.key(method, args);
+	}
+
+	@Override
+	public ImageManager getImageManager() {
+		return delegate.getImageManager();
+	}
+
+	@Override
+	public Info getInfo() {
+		return delegate.getInfo();
+	}
+
+	@Override
+	public String getVolumeMountPoint(String volumeName) {
+		return delegate.getVolumeMountPoint(volumeName);
+	}
+
+	@Override
+	public boolean isImagePresent(String imageReference) {
+		return delegate.isImagePresent(imageReference);
+	}
+
+	@Override
+	public void pullImageWithRetry(String imageReference) {
+		delegate.pullImageWithRetry(imageReference);
+	}
+
+	@Override
+	public String createContainer(final String imageReference, final String containerName, final List<Bind> binds,
+			final List<Device> devices, final List<String> cmd, final List<String> env, final String workingDir,
+			final boolean privileged) throws IOException {
+		return record(key("createContainer", imageReference), null, new Callable<String>() {
+			@Override
+			public String call() throws IOException {
+				return delegate.createContainer(imageReference, containerName, binds, devices, cmd, env, workingDir, privileged);
+			}});
+	}
+
+	@Override
+	public void startContainer(final String id) {
+		recordUnchecked(key("startContainer", id), new Callable<Void>() {
+			@Override
+			public Void call() {
+				delegate.startContainer(id);
+				return null;
+			}});
+	}
+
+	@Override
+	public void subscribeToContainerEvents(final ResultCallback<Event> callback, String since, String... eventNames) {
+		delegate.subscribeToContainerEvents(new ResultCallback<Event>() {
+			@Override
+			public void close() throws IOException {
+				callback.close();
+			}
+
+			@Override
+			public void onStart(Closeable closeable) {
+				callback.onStart(closeable);
+			}
+
+			@Override
+			public void onNext(Event event) {
+				recorder.recordEvent(event);
+				callback.onNext(event);
+			}
+
+			@Override
+			public void onError(Throwable throwable) {
+				callback.onError(throwable);
+			}
+
+			@Override
+			public void onComplete() {
+				callback.onComplete();
+			}}, since, eventNames);
+	}
+
+	@Override
+	public Map<String, Container> listContainers(final Filter filter) {
+		return recordUnchecked(key("listContainers"), new Callable<Map<String, Container>>() {
+			@Override
+			public Map<String, Container> call() {
+				return delegate.listContainers(filter);
+			}});
+	}
+
+	@Override
+	public ContainerState getContainerState(final String containerId) {
+		return recordUnchecked(key("getContainerState", containerId), new Callable<ContainerState>() {
+			@Override
+			public ContainerState call() {
+				return delegate.getContainerState(containerId);
+			}});
+	}
+
+	@Override
+	public String exec(final String containerId, final String[] command) throws IOException {
+		return record(key("exec", containerId), null, new Callable<String>() {
+			@Override
+			public String call() throws IOException {
+				return delegate.exec(containerId, command);
+			}});
+	}
+
+	@Override
+	public String getLogs(final String containerId, final Path outPath, final Integer maxTailLengthCharacters) throws IOException {
+		return record(key("getLogs", containerId), outPath, new Callable<String>() {
+			@Override
+			public String call() throws IOException {
+				return delegate.getLogs(containerId, outPath, maxTailLengthCharacters);
+			}});
+	}
+
+	@Override
+	public String appendLogs(final String containerId, final Path outPath, final String afterTimestamp) throws IOException {
+		return record(key("appendLogs", containerId), outPath, new Callable<String>() {
+			@Override
+			public String call() throws IOException {
+				return delegate.appendLogs(containerId, outPath, afterTimestamp);
+			}});
+	}
+
+	@Override
+	public String getLogsTail(final String containerId, final int numberOfLines) throws IOException {
+		return record(key("getLogsTail", containerId), null, new Callable<String>() {
+			@Override
+			public String call() throws IOException {
+				return delegate.getLogsTail(containerId, numberOfLines);
+			}});
+	}
+
+	@Override
+	public void stopContainerWithRetry(final String containerId) {
+		recordUnchecked(key("stopContainerWithRetry", containerId), new Callable<Void>() {
+			@Override
+			public Void call() {
+				delegate.stopContainerWithRetry(containerId);
+				return null;
+			}});
+	}
+
+	@Override
+	public void removeContainer(final String containerId, final boolean force) {
+		recordUnchecked(key("removeContainer", containerId), new Callable<Void>() {
+			@Override
+			public Void call() {
+				delegate.removeContainer(containerId, force);
+				return null;
+			}});
+	}
+
+	@Override
+	public void renameContainer(final String containerId, final String newName) {
+		recordUnchecked(key("renameContainer", containerId), new Callable<Void>() {
+			@Override
+			public Void call() {
+				delegate.renameContainer(containerId, newName);
+				return null;
+			}});
+	}
+}
@@ -0,0 +1,72 @@
+package org.sagebionetworks;
+
+import static org.sagebionetworks.Constants.ARCHIVE_STAGE_THREADS_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.DEFAULT_ARCHIVE_STAGE_THREADS;
+import static org.sagebionetworks.Constants.DEFAULT_DISCOVERY_STAGE_THREADS;
+import static org.sagebionetworks.Constants.DEFAULT_LAUNCH_STAGE_THREADS;
+import static org.sagebionetworks.Constants.DEFAULT_MONITOR_STAGE_THREADS;
+import static org.sagebionetworks.Constants.DEFAULT_PIPELINE_STAGE_QUEUE_CAPACITY;
+import static org.sagebionetworks.Constants.DISCOVERY_STAGE_THREADS_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.LAUNCH_STAGE_THREADS_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.MONITOR_STAGE_THREADS_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.PIPELINE_STAGE_QUEUE_CAPACITY_PROPERTY_NAME;
+import static org.sagebionetworks.Utils.getIntProperty;
+
+/*
+ * The stages through which submissions flow:
+ * 
+ * discovery - query Synapse for the submissions in each queue
+ * launch - start a workflow job for a newly received submission
+ * monitor - check on a running workflow job and update its submission
+ * archive - upload a workflow job's logs to Synapse
+ * 
+ * (Messages to submitters and administrators go through the NotificationOutbox.)
+ * 
+ * Each stage has its own threads and its own bounded queue so that, e.g., a large
+ * log upload does not hold up the monitoring of other jobs.
+ */
+public class SubmissionPipeline {
+	private PipelineStage discoveryStage;
+	private PipelineStage launchStage;
+	private PipelineStage monitorStage;
+	private PipelineStage archiveStage;
+
+	public SubmissionPipeline() {
+		int queueCapacity = getIntProperty(PIPELINE_STAGE_QUEUE_CAPACITY_PROPERTY_NAME, DEFAULT_PIPELINE_STAGE_QUEUE_CAPACITY);
+		discoveryStage = new PipelineStage("discovery", 
+				getIntProperty(DISCOVERY_STAGE_THREADS_PROPERTY_NAME, DEFAULT_DISCOVERY_STAGE_THREADS), queueCapacity);
+		launchStage = new PipelineStage("launch", 
+				getIntProperty(LAUNCH_STAGE_THREADS_PROPERTY_NAME, DEFAULT_LAUNCH_STAGE_THREADS), queueCapacity);
+		monitorStage = new PipelineStage("monitor", 
+				getIntProperty(MONITOR_STAGE_THREADS_PROPERTY_NAME, DEFAULT_MONITOR_STAGE_THREADS), queueCapacity);
+		archiveStage = new PipelineStage("archive", 
+				getIntProperty(ARCHIVE_STAGE_THREADS_PROPERTY_NAME, DEFAULT_ARCHIVE_STAGE_THREADS), queueCapacity);
+	}
+
+	public PipelineStage getDiscoveryStage() {
+		return discoveryStage;
+	}
+
+	public PipelineStage getLaunchStage() {
+		return launchStage;
+	}
+
+	public PipelineStage getMonitorStage() {
+		return monitorStage;
+	}
+
+	public PipelineStage getArchiveStage() {
+		return archiveStage;
+	}
+
+	/*
+	 * Shut down 'upstream' stages first, so that the work they hand off downstream
+	 * (e.g. log uploads) is still accepted.
+	 */
+	public void shutdown() {
+		discoveryStage.shutdown();
+		launchStage.shutdown();
+		monitorStage.shutdown();
+		archiveStage.shutdown();
+	}
+}
@@ -0,0 +1,164 @@
+package org.sagebionetworks;
+
+import static org.sagebionetworks.EvaluationUtils.applyModifications;
+
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.sagebionetworks.client.SynapseClient;
+import org.sagebionetworks.client.exceptions.SynapseConflictingUpdateException;
+import org.sagebionetworks.client.exceptions.SynapseException;
+import org.sagebionetworks.client.exceptions.UnknownSynapseServerException;
+import org.sagebionetworks.evaluation.model.BatchUploadResponse;
+import org.sagebionetworks.evaluation.model.SubmissionStatus;
+import org.sagebionetworks.evaluation.model.SubmissionStatusBatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Collects the submission status changes made while checking on the running jobs and
+ * writes them with Synapse's batch update, one sequence of batches per evaluation,
+ * rather than with a request per submission.
+ *
+ * If a batch is rejected because a status was changed since we read it, just the
+ * statuses which changed are re-read and have their modifications applied again,
+ * then the remaining statuses are sent in a new sequence of batches.  If Synapse
+ * rejects the batch token (412), the whole sequence is sent again from its first
+ * batch, re-reading the statuses already sent in case they were written.
+ *
+ * A failure to write one evaluation's statuses doesn't stop the others being written.
+ */
+public class SubmissionStatusBatcher {
+	private static Logger log = LoggerFactory.getLogger(SubmissionStatusBatcher.class);
+
+	// the most statuses Synapse accepts in one batch
+	public static final int MAX_BATCH_SIZE = 500;
+	private static final int MAX_CONFLICT_RETRIES = 3;
+	private static final int MAX_SEQUENCE_RESTARTS = 3;
+
+	private SynapseClient synapse;
+	private int maxBatchSize;
+	// evaluation ID -> submission ID -> update
+	private Map<String,Map<String,PendingUpdate>> pending = new LinkedHashMap<String,Map<String,PendingUpdate>>();
+
+	public SubmissionStatusBatcher(SynapseClient synapse) {
+		this(synapse, MAX_BATCH_SIZE);
+	}
+
+	public SubmissionStatusBatcher(SynapseClient synapse, int maxBatchSize) {
+		if (maxBatchSize<1 || maxBatchSize>MAX_BATCH_SIZE) throw new IllegalArgumentException("Batch size must be between 1 and "+MAX_BATCH_SIZE);
+		this.synapse=synapse;
+		this.maxBatchSize=maxBatchSize;
+	}
+
+	private static class PendingUpdate {
+		private SubmissionStatus status;
+		private List<SubmissionStatusModifications> modifications = new ArrayList<SubmissionStatusModifications>();
+
+		PendingUpdate(SubmissionStatus status) {
+			this.status=status;
+		}
+	}
+
+	/*
+	 * Schedule the modifications to be written to the given status at the next flush()
+	 */
+	public synchronized void add(String evaluationId, SubmissionStatus submissionStatus, SubmissionStatusModifications statusMods) {
+		Map<String,PendingUpdate> updates = pending.get(evaluationId);
+		if (updates==null) {
+			updates = new LinkedHashMap<String,PendingUpdate>();
+			pending.put(evaluationId, updates);
+		}
+		PendingUpdate update = updates.get(submissionStatus.getId());
+		if (update==null) {
+			update = new PendingUpdate(submissionStatus);
+			updates.put(submissionStatus.getId(), update);
+		}
+		update.modifications.add(statusMods);
+	}
+
+	public synchronized int size() {
+		int result = 0;
+		for (Map<String,PendingUpdate> updates : pending.values()) result += updates.size();
+		return result;
+	}
+
+	/*
+	 * Write all the scheduled modifications.  If writing any evaluation's fails, the
+	 * others are still written, then the first failure is thrown, with the rest
+	 * attached as suppressed exceptions.
+	 */
+	public synchronized void flush() throws SynapseException {
+		SynapseException failure = null;
+		try {
+			for (String evaluationId : pending.keySet()) {
+				try {
+					flush(evaluationId, new ArrayList<PendingUpdate>(pending.get(evaluationId).values()));
+				} catch (SynapseException e) {
+					log.error("Failed to update the submission statuses in evaluation "+evaluationId, e);
+					if (failure==null) failure = e; else failure.addSuppressed(e);
+				}
+			}
+		} finally {
+			pending.clear();
+		}
+		if (failure!=null) throw failure;
+	}
+
+	private static boolean isBatchTokenRejected(UnknownSynapseServerException e) {
+		return e.getStatusCode()==HttpURLConnection.HTTP_PRECON_FAILED;
+	}
+
+	/*
+	 * Re-read those of the given statuses which were changed since we read them
+	 */
+	private void refreshChanged(List<PendingUpdate> updates) throws SynapseException {
+		for (PendingUpdate update : updates) {
+			SubmissionStatus current = synapse.getSubmissionStatus(update.status.getId());
+			if (current.getEtag()!=null && current.getEtag().equals(update.status.getEtag())) continue;
+			log.warn("Failed to update submission status "+update.status.getId()+" my etag was "+update.status.getEtag()+" but Synapse has "+current.getEtag());
+			update.status = current;
+		}
+	}
+
+	private void flush(String evaluationId, List<PendingUpdate> remaining) throws SynapseException {
+		String batchToken = null;
+		// the statuses in the current sequence of batches
+		List<PendingUpdate> sequence = remaining;
+		int conflicts = 0;
+		int restarts = 0;
+		while (!remaining.isEmpty()) {
+			if (batchToken==null) sequence = remaining;
+			List<PendingUpdate> chunk = remaining.subList(0, Math.min(maxBatchSize, remaining.size()));
+			List<SubmissionStatus> statuses = new ArrayList<SubmissionStatus>();
+			for (PendingUpdate update : chunk) {
+				for (SubmissionStatusModifications statusMods : update.modifications) applyModifications(update.status, statusMods);
+				statuses.add(update.status);
+			}
+			SubmissionStatusBatch batch = new SubmissionStatusBatch();
+			batch.setStatuses(statuses);
+			batch.setIsFirstBatch(batchToken==null);
+			batch.setIsLastBatch(chunk.size()==remaining.size());
+			batch.setBatchToken(batchToken);
+			try {
+				BatchUploadResponse response = synapse.updateSubmissionStatusBatch(evaluationId, batch);
+				batchToken = response.getNextUploadToken();
+				remaining = remaining.subList(chunk.size(), remaining.size());
+			} catch (SynapseConflictingUpdateException e) {
+				if (++conflicts>MAX_CONFLICT_RETRIES) throw e;
+				refreshChanged(chunk);
+				// the batches already sent are committed; start a new sequence for the rest
+				batchToken = null;
+			} catch (UnknownSynapseServerException e) {
+				if (!isBatchTokenRejected(e) || batchToken==null || ++restarts>MAX_SEQUENCE_RESTARTS) throw e;
+				log.warn("Batch token rejected for evaluation "+evaluationId+".  Restarting the sequence of batches.");
+				refreshChanged(sequence.subList(0, sequence.size()-remaining.size()));
+				remaining = sequence;
+				batchToken = null;
+			}
+		}
+	}
+}
@@ -1,21 +1,29 @@
 package org.sagebionetworks;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
 
+import org.sagebionetworks.evaluation.model.SubmissionStatus;
 import org.sagebionetworks.evaluation.model.SubmissionStatusEnum;
 import org.sagebionetworks.repo.model.annotation.AnnotationBase;
 
+/*
+ * Changes to be made to a submission status.  Annotations are keyed by name, so that
+ * setting or removing one doesn't mean scanning those already scheduled.
+ */
 public class SubmissionStatusModifications {
 	private SubmissionStatusEnum status; // null if unchanged
-	private List<AnnotationBase> annotationsToAdd;
-	private List<String> annotationNamesToRemove;
+	private Map<String,AnnotationBase> annotationsToAdd;
+	private Set<String> annotationNamesToRemove;
 	private Boolean canCancel; // null if unchanged
 	private Boolean cancelRequested; // null if unchanged
 	
 	public SubmissionStatusModifications() {
-		annotationsToAdd = new ArrayList<AnnotationBase>();
-		annotationNamesToRemove = new ArrayList<String>();
+		annotationsToAdd = new LinkedHashMap<String,AnnotationBase>();
+		annotationNamesToRemove = new LinkedHashSet<String>();
 	}
 
 	public SubmissionStatusEnum getStatus() {
@@ -26,20 +34,73 @@ public class SubmissionStatusModifications {
 		this.status = status;
 	}
 
-	public List<AnnotationBase> getAnnotationsToAdd() {
-		return annotationsToAdd;
+	public Collection<AnnotationBase> getAnnotationsToAdd() {
+		return annotationsToAdd.values();
 	}
 
-	public void setAnnotationsToAdd(List<AnnotationBase> annotationsToAdd) {
-		this.annotationsToAdd = annotationsToAdd;
+	public void setAnnotationsToAdd(Collection<AnnotationBase> annotationsToAdd) {
+		this.annotationsToAdd = new LinkedHashMap<String,AnnotationBase>();
+		for (AnnotationBase annotation : annotationsToAdd) this.annotationsToAdd.put(annotation.getKey(), annotation);
 	}
 
-	public List<String> getAnnotationNamesToRemove() {
+	public Set<String> getAnnotationNamesToRemove() {
 		return annotationNamesToRemove;
 	}
 
-	public void setAnnotationNamesToRemove(List<String> annotationNamesToRemove) {
-		this.annotationNamesToRemove = annotationNamesToRemove;
+	public void setAnnotationNamesToRemove(Collection<String> annotationNamesToRemove) {
+		this.annotationNamesToRemove = new LinkedHashSet<String>(annotationNamesToRemove);
+	}
+
+	/*
+	 * Schedule the annotation to be set, replacing any annotation of the same name
+	 * already scheduled to be set or removed
+	 */
+	public void addAnnotation(AnnotationBase annotation) {
+		annotationsToAdd.remove(annotation.getKey());
+		annotationsToAdd.put(annotation.getKey(), annotation);
+		annotationNamesToRemove.remove(annotation.getKey());
+	}
+
+	/*
+	 * Return the annotation scheduled to be set with the given name, or null if none
+	 */
+	public AnnotationBase getAnnotationToAdd(String key) {
+		return annotationsToAdd.get(key);
+	}
+
+	/*
+	 * Forget a scheduled change to the named annotation, leaving it as it is
+	 */
+	public void dropAnnotation(String key) {
+		annotationsToAdd.remove(key);
+		annotationNamesToRemove.remove(key);
+	}
+
+	/*
+	 * true iff applying these modifications to the given status would change nothing
+	 */
+	public boolean isNoOp(SubmissionStatus current) {
+		if (status!=null && status!=current.getStatus()) return false;
+		if (canCancel!=null && !canCancel.equals(current.getCanCancel())) return false;
+		if (cancelRequested!=null && !cancelRequested.equals(current.getCancelRequested())) return false;
+		if (annotationsToAdd.isEmpty() && annotationNamesToRemove.isEmpty()) return true;
+		AnnotationIndex index = new AnnotationIndex(current);
+		for (AnnotationBase annotation : annotationsToAdd.values()) {
+			if (!index.isSet(annotation)) return false;
+		}
+		for (String key : annotationNamesToRemove) {
+			if (index.contains(key)) return false;
+		}
+		return true;
+	}
+
+	/*
+	 * Schedule the named annotation to be removed, replacing any annotation of the same
+	 * name already scheduled to be set
+	 */
+	public void removeAnnotation(String key) {
+		annotationNamesToRemove.add(key);
+		annotationsToAdd.remove(key);
 	}
 
 	public Boolean getCanCancel() {
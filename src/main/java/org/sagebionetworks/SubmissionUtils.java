@@ -1,5 +1,6 @@
 package org.sagebionetworks;
 
+import static org.sagebionetworks.Clock.getClock;
 import static org.sagebionetworks.Constants.DEFAULT_NUM_RETRY_ATTEMPTS;
 import static org.sagebionetworks.Constants.NO_RETRY_EXCEPTIONS;
 import static org.sagebionetworks.Constants.NO_RETRY_STATUSES;
@@ -9,9 +10,9 @@ import static org.sagebionetworks.EvaluationUtils.PUBLIC_ANNOTATION_SETTING;
 import static org.sagebionetworks.EvaluationUtils.applyModifications;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
 
 import org.apache.commons.lang.StringUtils;
@@ -104,15 +105,24 @@ public class SubmissionUtils {
 			final Throwable t,
 			final String messageSubject,
 			final String messageBody) throws Throwable {
+		closeSubmission(ss, statusMods, status, containerStatus, t);
+		(new MessageUtils(synapse)).sendMessage(messageRecipientId, messageSubject,  messageBody);
+	}
+
+	public void closeSubmission(
+			final SubmissionStatus ss, 
+			final SubmissionStatusModifications statusMods,
+			final SubmissionStatusEnum status,
+			final WorkflowUpdateStatus containerStatus,
+			final Throwable t) throws Throwable {
 		EvaluationUtils.setStatus(statusMods, status, containerStatus);
 		if (t==null) {
 			EvaluationUtils.removeAnnotation(statusMods, FAILURE_REASON);
 		} else {
 			EvaluationUtils.setAnnotation(statusMods, FAILURE_REASON, t.getMessage(), PUBLIC_ANNOTATION_SETTING);
 		}
-		EvaluationUtils.setAnnotation(statusMods, JOB_LAST_UPDATED_TIME_STAMP, System.currentTimeMillis(), false);
+		EvaluationUtils.setAnnotation(statusMods, JOB_LAST_UPDATED_TIME_STAMP, getClock().currentTimeMillis(), false);
 		updateSubmissionStatus(ss, statusMods);
-		(new MessageUtils(synapse)).sendMessage(messageRecipientId, messageSubject,  messageBody);
 	}
 
 	// docker.synapse.org/syn123/foo/bar@sha256:...  ->  foo/bar
@@ -151,7 +161,7 @@ public class SubmissionUtils {
 		return submission.getTeamId()==null ? submission.getUserId(): submission.getTeamId();    	
 	}
 	
-	private Map<String,String> idToNameCache = new HashMap<String,String>();
+	private Map<String,String> idToNameCache = new ConcurrentHashMap<String,String>();
 
 	public Submitter getSubmitter(Submission sub) throws SynapseException {
 		String submittingUserOrTeamId;
@@ -1,8 +1,11 @@
 package org.sagebionetworks;
 
 import static org.sagebionetworks.Constants.DEFAULT_NUM_RETRY_ATTEMPTS;
+import static org.sagebionetworks.Constants.DEFAULT_SYNAPSE_MAX_CONCURRENT_REQUESTS;
 import static org.sagebionetworks.Constants.NO_RETRY_EXCEPTIONS;
 import static org.sagebionetworks.Constants.NO_RETRY_STATUSES;
+import static org.sagebionetworks.Constants.SYNAPSE_MAX_CONCURRENT_REQUESTS_PROPERTY_NAME;
+import static org.sagebionetworks.Utils.getIntProperty;
 
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.InvocationTargetException;
@@ -20,6 +23,17 @@ public class SynapseClientFactory {
 
 	private static Logger log = LoggerFactory.getLogger(SynapseClientFactory.class);
 
+	// shared by all the proxies, since they all call the same Synapse
+	private static SynapseRequestLimiter requestLimiter = null;
+
+	private static synchronized SynapseRequestLimiter getRequestLimiter() {
+		if (requestLimiter==null) {
+			requestLimiter = new SynapseRequestLimiter(getIntProperty(
+					SYNAPSE_MAX_CONCURRENT_REQUESTS_PROPERTY_NAME, DEFAULT_SYNAPSE_MAX_CONCURRENT_REQUESTS));
+		}
+		return requestLimiter;
+	}
+
 	private static SynapseClient createSynapseClientIntern() {
 		SynapseClientImpl scIntern = new SynapseClientImpl();
 		scIntern.setAuthEndpoint("https://repo-prod.prod.sagebase.org/auth/v1");
@@ -34,27 +48,53 @@ public class SynapseClientFactory {
 	}
 	
 	public static <T extends V,V> V createRetryingProxy(final T underlying, final Class<V> implementedInterface) {
+		return createRetryingProxy(underlying, implementedInterface, getRequestLimiter());
+	}
+
+	/*
+	 * Each attempt of each call waits for the given limiter to let it through.  Backing
+	 * off between attempts doesn't hold up other requests.
+	 */
+	static <T extends V,V> V createRetryingProxy(final T underlying, final Class<V> implementedInterface,
+			final SynapseRequestLimiter limiter) {
 		final ExponentialBackoffRunner exponentialBackoffRunner = new ExponentialBackoffRunner(
 				NO_RETRY_EXCEPTIONS, NO_RETRY_STATUSES, DEFAULT_NUM_RETRY_ATTEMPTS);
 
 		InvocationHandler handler = new InvocationHandler() {
 			public Object invoke(final Object proxy, final Method method, final Object[] outerArgs)
 					throws Throwable {
-				return exponentialBackoffRunner.execute(new Executable<Object,Object[]>() {
-					public Object execute(Object[] args) throws Throwable {
-						try {
-							Object result = method.invoke(underlying, args);
-							return result;
-						} catch (IllegalAccessException  e) {
-							throw new RuntimeException(e);
-						} catch (InvocationTargetException e) {
-							if (e.getCause()==null) throw e; else throw e.getCause();
+				final String methodName = method.getName();
+				final int[] attempts = new int[] {0};
+				try {
+					return exponentialBackoffRunner.execute(new Executable<Object,Object[]>() {
+						public Object execute(Object[] args) throws Throwable {
+							if (attempts[0]++>0) Metrics.SYNAPSE_RETRIES.inc(methodName);
+							Metrics.SYNAPSE_CALLS.inc(methodName);
+							long acquired = limiter.acquire();
+							long start = System.nanoTime();
+							Throwable failure = null;
+							try {
+								Object result = method.invoke(underlying, args);
+								return result;
+							} catch (IllegalAccessException  e) {
+								failure = e;
+								throw new RuntimeException(e);
+							} catch (InvocationTargetException e) {
+								failure = e.getCause()==null ? e : e.getCause();
+								throw failure;
+							} finally {
+								Metrics.SYNAPSE_CALL_SECONDS.observeSince(start, methodName);
+								limiter.release(methodName, acquired, failure);
+							}
+						}
+						public Object[] refreshArgs(Object[] args) {
+							return args; // NO-OP
 						}
-					}
-					public Object[] refreshArgs(Object[] args) {
-						return args; // NO-OP
-					}
-				}, outerArgs);
+					}, outerArgs);
+				} catch (Throwable t) {
+					Metrics.SYNAPSE_ERRORS.inc(methodName);
+					throw t;
+				}
 			}
 		};
 
@@ -0,0 +1,146 @@
+package org.sagebionetworks;
+
+import static org.sagebionetworks.Clock.getClock;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.sagebionetworks.client.exceptions.SynapseServiceUnavailable;
+import org.sagebionetworks.client.exceptions.SynapseTooManyRequestsException;
+import org.sagebionetworks.client.exceptions.UnknownSynapseServerException;
+
+/*
+ * Limits the number of Synapse requests in flight at once, shared by all the threads
+ * making them, adapting the limit to how Synapse copes (additive increase,
+ * multiplicative decrease):
+ *
+ * - When Synapse pushes back, with a 429 (too many requests) or a 503 (unavailable), or
+ *   a call takes several times as long as is usual for its method, the limit is halved.
+ *   Requests already in flight were sent under the old limit, so their outcomes don't
+ *   cut it again.  Uploads and downloads take as long as their payload does, so their
+ *   latency isn't judged.
+ * - Each success while the limit is in use raises it by 1/limit, so that a limit's worth
+ *   of successes raises it by one, up to the maximum.
+ *
+ * Threads wait in acquire() for a request to finish when the limit is reached, rather
+ * than retrying in lockstep.
+ */
+public class SynapseRequestLimiter {
+	public static final double DECREASE_FACTOR = 0.5D;
+	// a call this many times slower than usual for its method is taken as a sign of overload
+	public static final double LATENCY_SPIKE_FACTOR = 4D;
+	// calls of a method observed before its latency is judged
+	public static final int LATENCY_WARM_UP_CALLS = 10;
+	// the weight of each call in the usual latency of its method
+	private static final double LATENCY_SMOOTHING = 0.1D;
+	// a waiting thread rechecks this often, in case it missed a signal
+	private static final long ACQUIRE_POLL_MILLIS = 1000L;
+
+	private final int maxLimit;
+	private double limit;
+	private int inFlight = 0;
+	private long lastDecreaseNanos;
+	// for each method, {calls, smoothed latency in seconds}
+	private Map<String,double[]> latencies = new HashMap<String,double[]>();
+
+	public SynapseRequestLimiter(int maxLimit) {
+		if (maxLimit<1) throw new IllegalArgumentException("Expected a limit of at least 1 but found "+maxLimit);
+		this.maxLimit=maxLimit;
+		this.limit=maxLimit;
+		this.lastDecreaseNanos=System.nanoTime();
+		updateGauges();
+	}
+
+	/*
+	 * Wait until a request may be sent.  Returns the System.nanoTime() at which it was
+	 * let through, to be passed to release().
+	 */
+	public long acquire() throws InterruptedException {
+		long start = System.nanoTime();
+		Clock clock = getClock();
+		synchronized (this) {
+			while (inFlight>=(int)limit) {
+				clock.await(this, ACQUIRE_POLL_MILLIS);
+			}
+			inFlight++;
+			updateGauges();
+		}
+		Metrics.SYNAPSE_LIMITER_WAIT_SECONDS.observeSince(start);
+		return System.nanoTime();
+	}
+
+	/*
+	 * Record the end of a request to the given method, let through at the given time,
+	 * which failed with the given exception or, if null, succeeded
+	 */
+	public synchronized void release(String method, long acquiredNanos, Throwable failure) {
+		long now = System.nanoTime();
+		boolean sentUnderCurrentLimit = acquiredNanos-lastDecreaseNanos>=0L;
+		boolean atLimit = inFlight>=limit/2;
+		inFlight--;
+		if (isThrottled(failure)) {
+			if (sentUnderCurrentLimit) decrease(now, "throttled");
+		} else if (failure==null) {
+			if (!isTransfer(method) && isLatencySpike(method, (now-acquiredNanos)/1e9)) {
+				if (sentUnderCurrentLimit) decrease(now, "latency");
+			} else if (atLimit) {
+				limit = Math.min(maxLimit, limit+1D/limit);
+			}
+		}
+		updateGauges();
+		getClock().signal(this);
+	}
+
+	public synchronized double getLimit() {
+		return limit;
+	}
+
+	public synchronized int getInFlight() {
+		return inFlight;
+	}
+
+	private void decrease(long now, String reason) {
+		limit = Math.max(1D, limit*DECREASE_FACTOR);
+		lastDecreaseNanos = now;
+		Metrics.SYNAPSE_LIMIT_DECREASES.inc(reason);
+	}
+
+	/*
+	 * Note the latency of a successful call and return whether it was a spike
+	 */
+	private boolean isLatencySpike(String method, double seconds) {
+		double[] callsAndLatency = latencies.get(method);
+		if (callsAndLatency==null) {
+			callsAndLatency = new double[] {0D, seconds};
+			latencies.put(method, callsAndLatency);
+		}
+		boolean result = callsAndLatency[0]>=LATENCY_WARM_UP_CALLS &&
+				seconds>LATENCY_SPIKE_FACTOR*callsAndLatency[1];
+		callsAndLatency[0]++;
+		callsAndLatency[1] += LATENCY_SMOOTHING*(seconds-callsAndLatency[1]);
+		return result;
+	}
+
+	/*
+	 * Whether the given method moves file content, e.g. multipartUpload or downloadFromFileEntityCurrentVersion
+	 */
+	static boolean isTransfer(String method) {
+		String lowerCaseMethod = method.toLowerCase();
+		return lowerCaseMethod.contains("upload") || lowerCaseMethod.contains("download");
+	}
+
+	static boolean isThrottled(Throwable failure) {
+		if (failure instanceof SynapseTooManyRequestsException ||
+				failure instanceof SynapseServiceUnavailable) return true;
+		if (failure instanceof UnknownSynapseServerException) {
+			int statusCode = ((UnknownSynapseServerException)failure).getStatusCode();
+			return statusCode==429 || statusCode==503;
+		}
+		return false;
+	}
+
+	private void updateGauges() {
+		Metrics.SYNAPSE_CONCURRENCY_LIMIT.set((long)limit);
+		Metrics.SYNAPSE_REQUESTS_IN_FLIGHT.set(inFlight);
+	}
+}
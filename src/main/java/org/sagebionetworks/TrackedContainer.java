@@ -0,0 +1,91 @@
+package org.sagebionetworks;
+
+/*
+ * What we know about a workflow container from the Docker event stream
+ */
+public class TrackedContainer {
+	private String id;
+	private String name;
+	private Boolean running; // null if unknown
+	private Integer exitCode; // only meaningful if 'running' is false
+
+	public TrackedContainer(String id, String name, Boolean running, Integer exitCode) {
+		super();
+		this.id = id;
+		this.name = name;
+		this.running = running;
+		this.exitCode = exitCode;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public Boolean getRunning() {
+		return running;
+	}
+
+	public Integer getExitCode() {
+		return exitCode;
+	}
+
+	/*
+	 * true iff we know whether the container is running and, if not, its exit code
+	 */
+	public boolean isStateKnown() {
+		return running!=null && (running || exitCode!=null);
+	}
+
+	@Override
+	public int hashCode() {
+		final int prime = 31;
+		int result = 1;
+		result = prime * result + ((exitCode == null) ? 0 : exitCode.hashCode());
+		result = prime * result + ((id == null) ? 0 : id.hashCode());
+		result = prime * result + ((name == null) ? 0 : name.hashCode());
+		result = prime * result + ((running == null) ? 0 : running.hashCode());
+		return result;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null)
+			return false;
+		if (getClass() != obj.getClass())
+			return false;
+		TrackedContainer other = (TrackedContainer) obj;
+		if (exitCode == null) {
+			if (other.exitCode != null)
+				return false;
+		} else if (!exitCode.equals(other.exitCode))
+			return false;
+		if (id == null) {
+			if (other.id != null)
+				return false;
+		} else if (!id.equals(other.id))
+			return false;
+		if (name == null) {
+			if (other.name != null)
+				return false;
+		} else if (!name.equals(other.name))
+			return false;
+		if (running == null) {
+			if (other.running != null)
+				return false;
+		} else if (!running.equals(other.running))
+			return false;
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return "TrackedContainer [id=" + id + ", name=" + name + ", running=" + running + ", exitCode=" + exitCode + "]";
+	}
+
+}
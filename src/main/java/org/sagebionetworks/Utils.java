@@ -1,8 +1,6 @@
 package org.sagebionetworks;
 
 import static org.sagebionetworks.Constants.COMPOSE_PROJECT_NAME_ENV_VAR;
-import static org.sagebionetworks.Constants.SUBMITTER_NOTIFICATION_MASK_DEFAULT;
-import static org.sagebionetworks.Constants.SUBMITTER_NOTIFICATION_MASK_PARAM_NAME;
 import static org.sagebionetworks.Constants.SYNAPSE_PASSWORD_PROPERTY;
 import static org.sagebionetworks.Constants.SYNAPSE_USERNAME_PROPERTY;
 
@@ -100,6 +98,14 @@ public class Utils {
 	}
 
 	public static String getProperty(String key, boolean required) {
+		return getProperty(key, required, Configuration.currentFileProperties());
+	}
+	
+	/*
+	 * Look up the given key in the system properties, the environment, then the given
+	 * properties (those in CONFIGURATION_FILE, which may be null) and finally global.properties
+	 */
+	static String getProperty(String key, boolean required, Properties fileProperties) {
 		initProperties();
 		{
 			String commandlineOption = System.getProperty(key);
@@ -109,6 +115,10 @@ public class Utils {
 			String environmentVariable = System.getenv(key);
 			if (!missing(environmentVariable)) return environmentVariable;
 		}
+		if (fileProperties!=null) {
+			String fileProperty = fileProperties.getProperty(key);
+			if (!missing(fileProperty)) return fileProperty;
+		}
 		{
 			String embeddedProperty = properties.getProperty(key);
 			if (!missing(embeddedProperty)) return embeddedProperty;
@@ -117,6 +127,12 @@ public class Utils {
 		return null;
 	}
 	
+	public static int getIntProperty(String key, int defaultValue) {
+		String s = getProperty(key, false);
+		if (StringUtils.isEmpty(s)) return defaultValue;
+		return Integer.parseInt(s.trim());
+	}
+	
 	public static void deleteFolderContent(File folder) {
 		File[] files = folder.listFiles();
 		if (files==null) return;
@@ -224,16 +240,7 @@ public class Utils {
 	}
 	
 	public static boolean notificationEnabled(int mask) {
-		String notificationEnabledString = getProperty(SUBMITTER_NOTIFICATION_MASK_PARAM_NAME, false);
-		int notificationEnabled;
-		if (StringUtils.isEmpty(notificationEnabledString)) {
-			notificationEnabled = SUBMITTER_NOTIFICATION_MASK_DEFAULT;
-		} else {
-			notificationEnabled = Integer.parseInt(notificationEnabledString);
-		}
-		int result = notificationEnabled & mask;
-		log.info("mask: "+mask+" notificationEnabled: "+notificationEnabled+" result: "+result);
-		return result !=0;
+		return Configuration.current().isNotificationEnabled(mask);
 	}
 
 }
@@ -1,12 +1,14 @@
 package org.sagebionetworks;
 
 import static org.sagebionetworks.Constants.AGENT_SHARED_DIR_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.DEFAULT_TEMPLATE_CACHE_MAX_EXTRACTIONS;
 import static org.sagebionetworks.Constants.DOCKER_CERT_PATH_HOST_PROPERTY_NAME;
 import static org.sagebionetworks.Constants.DOCKER_ENGINE_URL_PROPERTY_NAME;
 import static org.sagebionetworks.Constants.DUMP_PROGRESS_SHELL_COMMAND;
 import static org.sagebionetworks.Constants.NUMBER_OF_PROGRESS_CHARACTERS;
 import static org.sagebionetworks.Constants.RUN_WORKFLOW_CONTAINER_IN_PRIVILEGED_MODE_PROPERTY_NAME;
 import static org.sagebionetworks.Constants.SHARED_VOLUME_NAME;
+import static org.sagebionetworks.Constants.TEMPLATE_CACHE_MAX_EXTRACTIONS_PROPERTY_NAME;
 import static org.sagebionetworks.Constants.TOIL_CLI_OPTIONS_PROPERTY_NAME;
 import static org.sagebionetworks.Constants.UNIX_SOCKET_PREFIX;
 import static org.sagebionetworks.Constants.WORKFLOW_ENGINE_DOCKER_IMAGES_PROPERTY_NAME;
@@ -15,6 +17,7 @@ import static org.sagebionetworks.Utils.archiveContainerName;
 import static org.sagebionetworks.Utils.createTempFile;
 import static org.sagebionetworks.Utils.dockerComposeName;
 import static org.sagebionetworks.Utils.findRunningWorkflowJobs;
+import static org.sagebionetworks.Utils.getIntProperty;
 import static org.sagebionetworks.Utils.getProperty;
 import static org.sagebionetworks.Utils.getTempDir;
 
@@ -43,7 +46,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.github.dockerjava.api.command.InspectContainerResponse.ContainerState;
-import com.github.dockerjava.api.model.Container;
 
 /**
  * This class is a layer of abstraction to represent what would be done
@@ -57,16 +59,41 @@ public class WES {
 	private static Logger log = LoggerFactory.getLogger(WES.class);
 
 	private DockerUtils dockerUtils;
+	private ContainerEventMonitor containerEventMonitor; // may be null
+	private WorkflowTemplateCache workflowTemplateCache = null; // lazily initialized
 	
 	private static final String ZIP_SUFFIX = ".zip";
 	private static final String GA4GH_TRS_FILE_FRAGMENT = "/api/ga4gh/v2/tools";
+	private static final String TEMPLATE_CACHE_DIR_NAME = ".template_cache";
 
 	static {
 		System.setProperty("https.protocols", "TLSv1,TLSv1.1,TLSv1.2"); // needed for some https resources
 	}
 		
 	public WES(DockerUtils dockerUtils) {
+		this(dockerUtils, null);
+	}
+	
+	/*
+	 * If a ContainerEventMonitor is provided, the state of workflow containers is taken from
+	 * it when available, rather than by querying Docker
+	 */
+	public WES(DockerUtils dockerUtils, ContainerEventMonitor containerEventMonitor) {
 		this.dockerUtils=dockerUtils;
+		this.containerEventMonitor=containerEventMonitor;
+	}
+	
+	/*
+	 * The template cache lives in the shared volume, alongside the workflow folders
+	 * populated from it
+	 */
+	private synchronized WorkflowTemplateCache getWorkflowTemplateCache() {
+		if (workflowTemplateCache==null) {
+			workflowTemplateCache = new WorkflowTemplateCache(
+					new File(System.getProperty(AGENT_SHARED_DIR_PROPERTY_NAME), TEMPLATE_CACHE_DIR_NAME),
+					getIntProperty(TEMPLATE_CACHE_MAX_EXTRACTIONS_PROPERTY_NAME, DEFAULT_TEMPLATE_CACHE_MAX_EXTRACTIONS));
+		}
+		return workflowTemplateCache;
 	}
 	
 	private ContainerRelativeFile createDirInHostMountedSharedDir() {
@@ -111,16 +138,28 @@ public class WES {
 	
 	
 	public static void downloadWorkflowFromURL(URL workflowUrl, String entrypoint, File targetDir) throws IOException {
+		downloadWorkflowFromURL(workflowUrl, entrypoint, targetDir, null);
+	}
+	
+	/*
+	 * Download the workflow template to the given folder, using the given cache, if not null
+	 */
+	public static void downloadWorkflowFromURL(URL workflowUrl, String entrypoint, File targetDir, 
+			WorkflowTemplateCache cache) throws IOException {
 		String path = workflowUrl.getPath();
 		if (path.toLowerCase().endsWith(ZIP_SUFFIX)) {
-			downloadZip(workflowUrl, getTempDir(), targetDir);
+			if (cache==null) {
+				downloadZip(workflowUrl, getTempDir(), targetDir);
+			} else {
+				cache.unzipTo(workflowUrl, targetDir);
+			}
    			// root file should be relative to unzip location
    			if (!(new File(targetDir,entrypoint)).exists()) {
    				throw new IllegalStateException(entrypoint+" is not in the unzipped archive downloaded from "+workflowUrl);
    			}
 		} else if (path.contains(GA4GH_TRS_FILE_FRAGMENT)) {
 			URL filesUrl = new URL(workflowUrl.toString()+"/files");
-			String filesContent = downloadWebDocument(filesUrl);
+			String filesContent = cache==null ? downloadWebDocument(filesUrl) : cache.fetchAsString(filesUrl);
 			JSONArray files = new JSONArray(filesContent);
 			for (int i=0; i<files.length(); i++) {
 				JSONObject file = files.getJSONObject(i);
@@ -134,7 +173,7 @@ public class WES {
 					throw new RuntimeException("Unexpected file_type "+fileType);
 				}
 				URL descriptorUrl = new URL(workflowUrl.toString()+"/descriptor/"+filePath);
-				String descriptorContent = downloadWebDocument(descriptorUrl);
+				String descriptorContent = cache==null ? downloadWebDocument(descriptorUrl) : cache.fetchAsString(descriptorUrl);
 				JSONObject descriptor = new JSONObject(descriptorContent);
 				try (OutputStream os = new FileOutputStream(new File(targetDir, filePath))) {
 					IOUtils.write(descriptor.getString("content"), os, Charset.forName("utf-8"));
@@ -176,7 +215,7 @@ public class WES {
 			WorkflowParameters workflowParameters, byte[] synapseConfigFileContent) throws IOException {
 		ContainerRelativeFile workflowFolder = createDirInHostMountedSharedDir();
 
-		downloadWorkflowFromURL(workflowUrl, entrypoint, workflowFolder.getContainerPath());
+		downloadWorkflowFromURL(workflowUrl, entrypoint, workflowFolder.getContainerPath(), getWorkflowTemplateCache());
 		
 		// The folder with the workflow and param's, from the POV of the host
 		File hostWorkflowFolder = workflowFolder.getHostPath();
@@ -256,10 +295,7 @@ public class WES {
 		log.info("workingDir: "+workingDir);
 		log.info("toil cmd: "+cmd);
 		
-		String workflowEngineImage = getProperty(WORKFLOW_ENGINE_DOCKER_IMAGES_PROPERTY_NAME, false);
-		// normally would use quay.io ("quay.io/ucsc_cgl/toil")
-		// but sagebionetworks/synapseworkflowhook-toil incorporates the Synapse client as well at Toil and Docker
-		if (StringUtils.isEmpty(workflowEngineImage)) workflowEngineImage = "sagebionetworks/synapseworkflowhook-toil";
+		String workflowEngineImage = getWorkflowEngineImage();
 		
 		boolean privileged = new Boolean(getProperty(RUN_WORKFLOW_CONTAINER_IN_PRIVILEGED_MODE_PROPERTY_NAME, false));
 		
@@ -275,6 +311,7 @@ public class WES {
 					privileged);
 
 			dockerUtils.startContainer(containerId);
+			if (containerEventMonitor!=null) containerEventMonitor.containerStarted(containerId, containerName);
 		} catch (DockerPullException e) {
 			if (containerId!=null) dockerUtils.removeContainer(containerId, true);
 
@@ -283,14 +320,43 @@ public class WES {
 
 		WorkflowJobImpl workflowJob = new WorkflowJobImpl();
 		workflowJob.setContainerName(containerName);
+		workflowJob.setContainerId(containerId);
 		return workflowJob;
 	}
 
+	private static String getWorkflowEngineImage() {
+		String workflowEngineImage = getProperty(WORKFLOW_ENGINE_DOCKER_IMAGES_PROPERTY_NAME, false);
+		// normally would use quay.io ("quay.io/ucsc_cgl/toil")
+		// but sagebionetworks/synapseworkflowhook-toil incorporates the Synapse client as well at Toil and Docker
+		if (StringUtils.isEmpty(workflowEngineImage)) workflowEngineImage = "sagebionetworks/synapseworkflowhook-toil";
+		return workflowEngineImage;
+	}
+	
+	/*
+	 * Start pulling the workflow engine image in the background, so it's ready for the first workflow
+	 */
+	public void prefetchWorkflowEngineImage() {
+		ImageManager imageManager = dockerUtils.getImageManager();
+		if (imageManager==null) return;
+		imageManager.pullAsync(getWorkflowEngineImage(), ImageManager.Priority.LOW);
+	}
+	
 	/*
 	 * This is analogous to GET /workflows in WES
 	 */
 	public List<WorkflowJob> listWorkflowJobs() {
-		return findRunningWorkflowJobs(dockerUtils.listContainers(WORKFLOW_FILTER));
+		List<TrackedContainer> trackedContainers = containerEventMonitor==null ? null : containerEventMonitor.getContainers();
+		if (trackedContainers==null) {
+			return findRunningWorkflowJobs(dockerUtils.listContainers(WORKFLOW_FILTER));
+		}
+		List<WorkflowJob> result = new ArrayList<WorkflowJob>();
+		for (TrackedContainer trackedContainer : trackedContainers) {
+			WorkflowJobImpl workflowJob = new WorkflowJobImpl();
+			workflowJob.setContainerName(trackedContainer.getName());
+			workflowJob.setContainerId(trackedContainer.getId());
+			result.add(workflowJob);
+		}
+		return result;
 	}
 	
 	/*
@@ -298,13 +364,19 @@ public class WES {
 	 */
 	public WESWorkflowStatus getWorkflowStatus(WorkflowJob job) throws IOException {
 		WorkflowJobImpl j = (WorkflowJobImpl)job;
-		Container container = j.getContainer();
 		WESWorkflowStatus result = new WESWorkflowStatus();
-		ContainerState containerState = dockerUtils.getContainerState(container.getId());
-		result.setRunning(containerState.getRunning());
-		result.setExitCode(containerState.getExitCode());
-		if (containerState.getRunning()) {
-			String execOutput = dockerUtils.exec(container.getId(), DUMP_PROGRESS_SHELL_COMMAND);
+		TrackedContainer trackedContainer = containerEventMonitor==null ? null : 
+			containerEventMonitor.getContainer(j.getContainerName());
+		if (trackedContainer!=null && trackedContainer.isStateKnown()) {
+			result.setRunning(trackedContainer.getRunning());
+			if (!trackedContainer.getRunning()) result.setExitCode(trackedContainer.getExitCode());
+		} else {
+			ContainerState containerState = dockerUtils.getContainerState(j.getContainerId());
+			result.setRunning(containerState.getRunning());
+			result.setExitCode(containerState.getExitCode());
+		}
+		if (result.isRunning()) {
+			String execOutput = dockerUtils.exec(j.getContainerId(), DUMP_PROGRESS_SHELL_COMMAND);
 			result.setProgress(Utils.getProgressPercentFromString(execOutput, NUMBER_OF_PROGRESS_CHARACTERS));        		
 		}
 		return result;
@@ -317,7 +389,16 @@ public class WES {
 	 */
 	public String getWorkflowLog(WorkflowJob job, Path outPath, Integer maxTailLengthInCharacters) throws IOException {
 		WorkflowJobImpl j = (WorkflowJobImpl)job;
-		return dockerUtils.getLogs(j.getContainer().getId(), outPath, maxTailLengthInCharacters);
+		return dockerUtils.getLogs(j.getContainerId(), outPath, maxTailLengthInCharacters);
+	}
+	
+	/*
+	 * Like getWorkflowLog() but appends to the given file just the output after the given
+	 * timestamp (or all output, if null).  Returns the timestamp of the last line in the file.
+	 */
+	public String appendWorkflowLog(WorkflowJob job, Path outPath, String afterTimestamp) throws IOException {
+		WorkflowJobImpl j = (WorkflowJobImpl)job;
+		return dockerUtils.appendLogs(j.getContainerId(), outPath, afterTimestamp);
 	}
 	
 	/*
@@ -327,9 +408,9 @@ public class WES {
 	 */
 	public void stopWorkflowJob(WorkflowJob job) {
 		WorkflowJobImpl j = (WorkflowJobImpl)job;
-		ContainerState containerState = dockerUtils.getContainerState(j.getContainer().getId());
+		ContainerState containerState = dockerUtils.getContainerState(j.getContainerId());
 		if (containerState.getRunning()) {
-			dockerUtils.stopContainerWithRetry(j.getContainer().getId());			
+			dockerUtils.stopContainerWithRetry(j.getContainerId());			
 		}		
 	}
 
@@ -343,10 +424,11 @@ public class WES {
 		// now delete or archive the job
 		WorkflowJobImpl j = (WorkflowJobImpl)job;
 		if (Constants.ARCHIVE_CONTAINER) {
-			dockerUtils.renameContainer(j.getContainer().getId(), archiveContainerName(j.getContainerName()));
+			dockerUtils.renameContainer(j.getContainerId(), archiveContainerName(j.getContainerName()));
 		} else {
-			dockerUtils.removeContainer(j.getContainer().getId(), true);
+			dockerUtils.removeContainer(j.getContainerId(), true);
 		}
+		if (containerEventMonitor!=null) containerEventMonitor.containerRemoved(j.getContainerName());
 	}
 
 }
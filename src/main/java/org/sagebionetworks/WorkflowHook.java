@@ -1,10 +1,17 @@
 package org.sagebionetworks;
 
-import static org.sagebionetworks.Constants.ACCEPT_NEW_SUBMISSIONS_PROPERTY_NAME;
-import static org.sagebionetworks.Constants.DEFAULT_MAX_CONCURRENT_WORKFLOWS;
-import static org.sagebionetworks.Constants.MAX_CONCURRENT_WORKFLOWS_PROPERTY_NAME;
+import static org.sagebionetworks.Clock.getClock;
+import static org.sagebionetworks.Constants.ADMIN_NOTIFICATION_DIGEST_SECONDS_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.AGENT_SHARED_DIR_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.DEFAULT_ADMIN_NOTIFICATION_DIGEST_SECONDS;
+import static org.sagebionetworks.Constants.DEFAULT_MAX_IDLE_POLL_SECONDS;
+import static org.sagebionetworks.Constants.DEFAULT_MAX_MESSAGES_PER_MINUTE;
+import static org.sagebionetworks.Constants.EVALUATION_TEMPLATES_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.MAX_IDLE_POLL_SECONDS_PROPERTY_NAME;
 import static org.sagebionetworks.Constants.MAX_LOG_ANNOTATION_CHARS;
-import static org.sagebionetworks.Constants.NOTIFICATION_PRINCIPAL_ID;
+import static org.sagebionetworks.Constants.MAX_MESSAGES_PER_MINUTE_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.METRICS_PORT_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.RECORDING_FILE_PROPERTY_NAME;
 import static org.sagebionetworks.Constants.ROOT_TEMPLATE_ANNOTATION_NAME;
 import static org.sagebionetworks.Constants.SUBMISSION_COMPLETED;
 import static org.sagebionetworks.Constants.SUBMISSION_FAILED;
@@ -26,7 +33,6 @@ import static org.sagebionetworks.EvaluationUtils.STATUS_DESCRIPTION;
 import static org.sagebionetworks.EvaluationUtils.SUBMISSION_ARTIFACTS_FOLDER;
 import static org.sagebionetworks.EvaluationUtils.SUBMISSION_PROCESSING_STARTED_SENT;
 import static org.sagebionetworks.EvaluationUtils.WORKFLOW_JOB_ID;
-import static org.sagebionetworks.EvaluationUtils.applyModifications;
 import static org.sagebionetworks.EvaluationUtils.getFinalSubmissionState;
 import static org.sagebionetworks.EvaluationUtils.getInProgressSubmissionState;
 import static org.sagebionetworks.EvaluationUtils.getInitialSubmissionState;
@@ -39,6 +45,8 @@ import static org.sagebionetworks.MessageUtils.createPipelineFailureMessage;
 import static org.sagebionetworks.MessageUtils.createSubmissionStartedMessage;
 import static org.sagebionetworks.MessageUtils.createWorkflowCompleteMessage;
 import static org.sagebionetworks.MessageUtils.createWorkflowFailedMessage;
+import static org.sagebionetworks.Utils.WORKFLOW_FILTER;
+import static org.sagebionetworks.Utils.getIntProperty;
 import static org.sagebionetworks.Utils.getProperty;
 import static org.sagebionetworks.Utils.notificationEnabled;
 import static org.sagebionetworks.WorkflowUpdateStatus.DONE;
@@ -48,20 +56,26 @@ import static org.sagebionetworks.WorkflowUpdateStatus.STOPPED_TIME_OUT;
 import static org.sagebionetworks.WorkflowUpdateStatus.STOPPED_UPON_REQUEST;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.lang.BooleanUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.exception.ExceptionUtils;
 import org.json.JSONException;
-import org.json.JSONObject;
 import org.sagebionetworks.client.SynapseClient;
 import org.sagebionetworks.client.exceptions.SynapseConflictingUpdateException;
 import org.sagebionetworks.client.exceptions.SynapseException;
@@ -71,6 +85,8 @@ import org.sagebionetworks.evaluation.model.SubmissionStatus;
 import org.sagebionetworks.evaluation.model.SubmissionStatusEnum;
 import org.sagebionetworks.repo.model.Annotations;
 import org.sagebionetworks.repo.model.Folder;
+import org.sagebionetworks.repo.model.annotation.AnnotationBase;
+import org.sagebionetworks.repo.model.annotation.StringAnnotation;
 import org.sagebionetworks.repo.model.auth.LoginRequest;
 import org.sagebionetworks.repo.model.file.ExternalFileHandle;
 import org.sagebionetworks.repo.model.file.FileHandle;
@@ -83,16 +99,28 @@ public class WorkflowHook  {
 	private static Logger log = LoggerFactory.getLogger(WorkflowHook.class);
 
 	private static final String LOGS_SUFFIX = "_logs";
+	private static final String OUTBOX_DIR_NAME = ".outbox";
+	private static final long MIN_SLEEP_TIME_MILLIS = 1000L;
 	private static final long UPLOAD_PERIOD_MILLIS = 30*60*1000L; // 30 min in millis
 
 	private SynapseClient synapse;
 	private EvaluationUtils evaluationUtils;
 	private SubmissionUtils submissionUtils;
 	private MessageUtils messageUtils;
+	private NotificationOutbox outbox;
+	private AdminNotificationDigest adminDigest;
 	private Archiver archiver;
 	private ShutdownHook shutdownHook;
-	private long sleepTimeMillis;
 	private WES wes;
+	private ContainerEventMonitor containerEventMonitor;
+	private SubmissionPipeline pipeline;
+	private AdaptiveScheduler scheduler;
+	// what the last pass of the main loop found, to decide when to make the next
+	private int waitingSubmissions = 0;
+	private AtomicInteger runningJobs = new AtomicInteger();
+	private AtomicInteger finishedJobs = new AtomicInteger();
+	private AtomicBoolean jobNearCompletion = new AtomicBoolean();
+	private volatile boolean shutDownRequested = false;
 
 	private void login() throws SynapseException {
 		String userName = getProperty(SYNAPSE_USERNAME_PROPERTY);
@@ -105,14 +133,25 @@ public class WorkflowHook  {
 
 	public static void main( String[] args ) throws Throwable {
 		SynapseClient synapse = SynapseClientFactory.createSynapseClient();
-		EvaluationUtils evaluationUtils = new EvaluationUtils(synapse);
 		DockerUtils dockerUtils = new DockerUtils();
-		SubmissionUtils submissionUtils = new SubmissionUtils(synapse);
-		long sleepTimeMillis = 10*1000L;
-		WorkflowHook agent = new WorkflowHook(
-				synapse, evaluationUtils,
-				dockerUtils, submissionUtils, sleepTimeMillis);
-		agent.execute();
+		String recordingFile = getProperty(RECORDING_FILE_PROPERTY_NAME, false);
+		InteractionRecorder recorder = null;
+		if (!StringUtils.isEmpty(recordingFile)) {
+			recorder = new InteractionRecorder(new File(recordingFile));
+			synapse = recorder.recordSynapse(synapse);
+			dockerUtils = new RecordingDockerUtils(dockerUtils, recorder);
+		}
+		try {
+			EvaluationUtils evaluationUtils = new EvaluationUtils(synapse);
+			SubmissionUtils submissionUtils = new SubmissionUtils(synapse);
+			long sleepTimeMillis = 10*1000L;
+			WorkflowHook agent = new WorkflowHook(
+					synapse, evaluationUtils,
+					dockerUtils, submissionUtils, sleepTimeMillis);
+			agent.execute();
+		} finally {
+			if (recorder!=null) recorder.close();
+		}
 		log.info("At end of 'main'");
 	}
 
@@ -121,14 +160,46 @@ public class WorkflowHook  {
 			DockerUtils dockerUtils, 
 			SubmissionUtils submissionUtils,
 			long sleepTimeMillis) throws SynapseException {
-		this.sleepTimeMillis=sleepTimeMillis;
+		this.scheduler = new AdaptiveScheduler(Math.min(MIN_SLEEP_TIME_MILLIS, sleepTimeMillis), sleepTimeMillis, 
+				Math.max(sleepTimeMillis, 1000L*getIntProperty(MAX_IDLE_POLL_SECONDS_PROPERTY_NAME, DEFAULT_MAX_IDLE_POLL_SECONDS)));
+		// check the settings now, rather than when first used
+		Configuration.reload();
 		this.shutdownHook = new ShutdownHook(Thread.currentThread());
 		this.synapse=synapse;
 		this.evaluationUtils=evaluationUtils;
 		this.submissionUtils=submissionUtils;
 		this.messageUtils=new MessageUtils(synapse);
-		this.wes = new WES(dockerUtils);
+		this.containerEventMonitor = new ContainerEventMonitor(dockerUtils, WORKFLOW_FILTER);
+		this.containerEventMonitor.setCompletionListener(new Runnable() {
+			@Override
+			public void run() {
+				wakeUp();
+			}});
+		this.wes = new WES(dockerUtils, containerEventMonitor);
 		this.archiver = new Archiver(synapse, wes);
+		this.pipeline = new SubmissionPipeline();
+		try {
+			this.outbox = new NotificationOutbox(new File(System.getProperty(AGENT_SHARED_DIR_PROPERTY_NAME), OUTBOX_DIR_NAME),
+					new NotificationOutbox.MessageSender() {
+						@Override
+						public void send(String recipientId, String subject, String body) throws Exception {
+							messageUtils.sendMessageOnce(recipientId, subject, body);
+						}},
+					getIntProperty(MAX_MESSAGES_PER_MINUTE_PROPERTY_NAME, DEFAULT_MAX_MESSAGES_PER_MINUTE));
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		this.outbox.start();
+		this.adminDigest = new AdminNotificationDigest(new AdminNotificationDigest.AdminMessageSender() {
+			@Override
+			public void send(String subject, String body) {
+				try {
+					sendMessageAsync(getNotificationPrincipalId(), subject, body);
+				} catch (SynapseException e) {
+					log.error("Failed to send message '"+subject+"' to the workflow administrator", e);
+				}
+			}},
+			getIntProperty(ADMIN_NOTIFICATION_DIGEST_SECONDS_PROPERTY_NAME, DEFAULT_ADMIN_NOTIFICATION_DIGEST_SECONDS)*1000L);
 		login();
 
 		// precheck
@@ -138,20 +209,11 @@ public class WorkflowHook  {
 	}
 	
 	public static List<String> getEvaluationIds() throws JSONException {
-		return new ArrayList<String>(getTemplateSynapseIds().keySet());
+		return Configuration.current().getEvaluationIds();
 	}
 
 	public static Map<String,String> getTemplateSynapseIds() throws JSONException {
-		String json = getProperty("EVALUATION_TEMPLATES");
-		JSONObject templateMap = new JSONObject(json);
-		Map<String,String> result = new HashMap<String,String>();
-		for (Iterator<String> evaluationIdIterator=templateMap.keys(); evaluationIdIterator.hasNext();) {
-			String evaluationId = evaluationIdIterator.next();
-			String templateId = templateMap.getString(evaluationId);
-			Utils.validateSynapseId(templateId);
-			result.put(evaluationId, templateId);
-		}
-		return result;
+		return Configuration.current().getEvaluationTemplates();
 	}
 
 	public Map<String,WorkflowURLEntrypointAndSynapseRef> getWorkflowURLAndEntrypoint() throws Exception {
@@ -185,10 +247,34 @@ public class WorkflowHook  {
 		return result;
 	}
 	
+	// the workflow for each evaluation, and the EVALUATION_TEMPLATES setting from which it was found
+	private Map<String,String> evaluationTemplates = null;
+	private Map<String,WorkflowURLEntrypointAndSynapseRef> evaluationIdToTemplateMap = null;
+
+	/*
+	 * The workflow for each evaluation, looked up again whenever EVALUATION_TEMPLATES
+	 * is changed by a reload of the configuration.  If a changed setting can't be
+	 * resolved, it is reported and the workflows found before are used (so a newly
+	 * added evaluation is skipped) until it can be.
+	 */
+	Map<String,WorkflowURLEntrypointAndSynapseRef> getEvaluationWorkflows() throws Exception {
+		Map<String,String> templates = getTemplateSynapseIds();
+		if (templates.equals(evaluationTemplates)) return evaluationIdToTemplateMap;
+		try {
+			evaluationIdToTemplateMap = getWorkflowURLAndEntrypoint();
+		} catch (Exception e) {
+			if (evaluationIdToTemplateMap==null) throw e;
+			log.error("Unable to find the workflows for "+EVALUATION_TEMPLATES_PROPERTY_NAME+"="+templates+".  Continuing with the previous workflows.", e);
+			return evaluationIdToTemplateMap;
+		}
+		evaluationTemplates = templates;
+		return evaluationIdToTemplateMap;
+	}
+
 	private String myOwnPrincipalId = null;
 	
 	private String getNotificationPrincipalId() throws SynapseException {
-		String id = getProperty(NOTIFICATION_PRINCIPAL_ID, false);
+		String id = Configuration.current().getNotificationPrincipalId();
 		if (!StringUtils.isEmpty(id)) return id;
 		// if not set then just use my own ID
 		if (myOwnPrincipalId!=null) return myOwnPrincipalId;
@@ -197,49 +283,154 @@ public class WorkflowHook  {
 	}
 
 	public void execute() throws Throwable {
-		Map<String,WorkflowURLEntrypointAndSynapseRef> evaluationIdToTemplateMap = getWorkflowURLAndEntrypoint();
-		while (!shutdownHook.shouldShutDown()) { // this allows a system shut down to shut down the agent
-			log.info("Top level loop: checking progress or starting new job.");
-
-			login();
-			
-			String acceptNewSubmissionsString = getProperty(ACCEPT_NEW_SUBMISSIONS_PROPERTY_NAME, false);
-			if (StringUtils.isEmpty(acceptNewSubmissionsString) || Boolean.getBoolean(acceptNewSubmissionsString)) {
-				for (String evaluationId : getEvaluationIds()) {
-					WorkflowURLEntrypointAndSynapseRef workflow = evaluationIdToTemplateMap.get(evaluationId);
-					createNewWorkflowJobs(evaluationId, workflow);
+		getEvaluationWorkflows();
+		wes.prefetchWorkflowEngineImage();
+		MetricsServer metricsServer = null;
+		int metricsPort = getIntProperty(METRICS_PORT_PROPERTY_NAME, 0);
+		if (metricsPort>0) {
+			metricsServer = new MetricsServer(metricsPort);
+			metricsServer.start();
+		}
+		try {
+			while (!shutdownHook.shouldShutDown() && !shutDownRequested) { // this allows a system shut down to shut down the agent
+				log.info("Top level loop: checking progress or starting new job.");
+
+				long start = System.nanoTime();
+				login();
+				Configuration.reloadIfChanged();
+				Metrics.LOOP_PHASE_SECONDS.observeSince(start, "login");
+
+				waitingSubmissions = 0;
+				if (Configuration.current().isAcceptNewSubmissions()) {
+					start = System.nanoTime();
+					Map<String,WorkflowURLEntrypointAndSynapseRef> evaluationWorkflows = getEvaluationWorkflows();
+					Map<String,WorkflowURLEntrypointAndSynapseRef> workflows = new LinkedHashMap<String,WorkflowURLEntrypointAndSynapseRef>();
+					for (String evaluationId : getEvaluationIds()) {
+						WorkflowURLEntrypointAndSynapseRef workflow = evaluationWorkflows.get(evaluationId);
+						if (workflow!=null) workflows.put(evaluationId, workflow);
+					}
+					createNewWorkflowJobs(workflows);
+					Metrics.LOOP_PHASE_SECONDS.observeSince(start, "create_jobs");
 				}
-			}
-			updateWorkflowJobs(getEvaluationIds());
+				start = System.nanoTime();
+				updateWorkflowJobs(getEvaluationIds());
+				adminDigest.flush(getClock().currentTimeMillis(), false);
+				Metrics.LOOP_PHASE_SECONDS.observeSince(start, "update_jobs");
 
-			try {
-				Thread.sleep(sleepTimeMillis);
-			} catch (InterruptedException e) {
-				// continue
-			}
-		} // end while()
+				start = System.nanoTime();
+				try {
+					sleepUntilNextIteration();
+				} catch (InterruptedException e) {
+					// continue
+				}
+				Metrics.LOOP_PHASE_SECONDS.observeSince(start, "wait");
+			} // end while()
+		} finally {
+			containerEventMonitor.close();
+			// let queued work finish before we exit
+			pipeline.shutdown();
+			adminDigest.flush(getClock().currentTimeMillis(), true);
+			// messages not yet sent will be sent when the agent restarts
+			outbox.close();
+			if (metricsServer!=null) metricsServer.stop();
+		}
 	} // end execute()
 	
+	/*
+	 * Cut short the pause between passes of the main loop, e.g. because a workflow has finished
+	 */
+	public void wakeUp() {
+		scheduler.wakeUp();
+	}
+	
+	/*
+	 * Stop the main loop at the end of its current pass, as a shut down signal does
+	 */
+	public void shutDown() {
+		shutDownRequested = true;
+		wakeUp();
+	}
+	
+	private void sleepUntilNextIteration() throws InterruptedException {
+		int freeSlots = Math.max(0, getMaxConcurrentWorkflows()-runningJobs.get());
+		long interval = scheduler.getNextInterval(waitingSubmissions, freeSlots, runningJobs.get(), finishedJobs.get(), jobNearCompletion.get());
+		log.info("Waiting "+interval/1000L+" sec before the next pass.  Submissions waiting: "+waitingSubmissions+
+				", jobs running: "+runningJobs.get()+", jobs finished: "+finishedJobs.get());
+		scheduler.await(interval);
+	}
+	
 	private static int getMaxConcurrentWorkflows() {
-		String maxString = getProperty(MAX_CONCURRENT_WORKFLOWS_PROPERTY_NAME, false);
-		if (StringUtils.isEmpty(maxString)) return DEFAULT_MAX_CONCURRENT_WORKFLOWS;
-		return Integer.parseInt(maxString);
+		return Configuration.current().getMaxConcurrentWorkflows();
+	}
+	
+	/*
+	 * Query all the given evaluation queues for submissions in the given state,
+	 * running the queries concurrently in the discovery stage.
+	 * 
+	 * Returns a map from evaluation ID to the submissions found.
+	 */
+	private Map<String,List<SubmissionBundle>> discoverSubmissions(Collection<String> evaluationIds, 
+			final SubmissionStatusEnum state) throws Throwable {
+		Map<String,Future<List<SubmissionBundle>>> futures = new LinkedHashMap<String,Future<List<SubmissionBundle>>>();
+		for (final String evaluationId : evaluationIds) {
+			futures.put(evaluationId, pipeline.getDiscoveryStage().submit(new PipelineTask<List<SubmissionBundle>>() {
+				@Override
+				public List<SubmissionBundle> run() throws Throwable {
+					try {
+						return evaluationUtils.selectSubmissions(evaluationId, state);
+					} catch (IllegalStateException e ) {
+						log.warn("Got IllegalStateException when calling selectSubmissions().  Will retry.  Message is: "+e.getMessage());
+						return Collections.emptyList();
+					}
+				}}));
+		}
+		Map<String,List<SubmissionBundle>> result = new LinkedHashMap<String,List<SubmissionBundle>>();
+		for (String evaluationId : futures.keySet()) {
+			result.put(evaluationId, PipelineStage.await(futures.get(evaluationId)));
+		}
+		return result;
+	}
+	
+	/*
+	 * Queue a message in the outbox, so that a slow messaging service 
+	 * does not hold up the processing of submissions
+	 */
+	private void sendMessageAsync(String recipientId, String subject, String body) {
+		try {
+			outbox.enqueue(recipientId, subject, body);
+		} catch (IOException e) {
+			log.error("Failed to queue message '"+subject+"' to "+recipientId, e);
+		}
+	}
+
+	/*
+	 * Notify the workflow administrator of a failure, summarizing repeats of the same failure
+	 */
+	private void notifyAdmin(String fingerprint, String submissionId, String body) {
+		adminDigest.notify(SUBMISSION_PIPELINE_FAILURE_SUBJECT, fingerprint, submissionId, body, getClock().currentTimeMillis());
 	}
 
 	public void createNewWorkflowJobs(String evaluationId, WorkflowURLEntrypointAndSynapseRef workflow) throws Throwable {
+		createNewWorkflowJobs(Collections.singletonMap(evaluationId, workflow));
+	}
+
+	/*
+	 * Start workflow jobs for newly received submissions in the given evaluation queues,
+	 * up to the maximum number of concurrent workflows.  Jobs are launched concurrently
+	 * in the launch stage.  Returns once all launches have finished.
+	 */
+	public void createNewWorkflowJobs(Map<String,WorkflowURLEntrypointAndSynapseRef> evaluationIdToWorkflowMap) throws Throwable {
 		int currentWorkflowCount = wes.listWorkflowJobs().size();
 		int maxConcurrentWorkflows = getMaxConcurrentWorkflows();
-		List<SubmissionBundle> receivedSubmissions=null;
-		try {
-			receivedSubmissions = 
-					evaluationUtils.selectSubmissions(evaluationId, getInitialSubmissionState() );
-		} catch (IllegalStateException e ) {
-			log.warn("Got IllegalStateException when calling selectSubmissions().  Will retry.  Message is: "+e.getMessage());
-		}
-		for (SubmissionBundle sb : receivedSubmissions) {
-			String submissionId=sb.getSubmission().getId();
-			SubmissionStatus submissionStatus = sb.getSubmissionStatus();
-			try {
+		Map<String,List<SubmissionBundle>> receivedSubmissions = 
+				discoverSubmissions(evaluationIdToWorkflowMap.keySet(), getInitialSubmissionState());
+		List<Future<Void>> launches = new ArrayList<Future<Void>>();
+		for (String evaluationId : receivedSubmissions.keySet()) {
+			final WorkflowURLEntrypointAndSynapseRef workflow = evaluationIdToWorkflowMap.get(evaluationId);
+			int waitingInEvaluation = 0;
+			for (final SubmissionBundle sb : receivedSubmissions.get(evaluationId)) {
+				String submissionId=sb.getSubmission().getId();
+				SubmissionStatus submissionStatus = sb.getSubmissionStatus();
 				if (BooleanUtils.isTrue(submissionStatus.getCancelRequested())) {
 					SubmissionStatusModifications statusMods = new SubmissionStatusModifications();
 					setStatus(statusMods, SubmissionStatusEnum.INVALID, WorkflowUpdateStatus.STOPPED_UPON_REQUEST);
@@ -250,44 +441,62 @@ public class WorkflowHook  {
 					}
 					continue;
 				}
-				
+
 				if (currentWorkflowCount>=maxConcurrentWorkflows) {
+					waitingSubmissions++;
+					waitingInEvaluation++;
 					log.info("We have met or exceeded the maximum concurrent workflow count, "+maxConcurrentWorkflows+", so we will not start "+submissionId+" at this time.");
 					continue;
 				}
- 
-				SubmissionStatusModifications statusMods = new SubmissionStatusModifications();
-				initializeSubmissionAnnotations(statusMods);
-				String workflowId = null;
-
-				String submittingUserOrTeamId = SubmissionUtils.getSubmittingUserOrTeamId(sb.getSubmission());
-				Folder sharedFolder=archiver.getOrCreateSubmissionUploadFolder(submissionId, submittingUserOrTeamId, true);
-				Folder lockedFolder=archiver.getOrCreateSubmissionUploadFolder(submissionId, submittingUserOrTeamId, false);
-				WorkflowParameters workflowParameters = new WorkflowParameters(
-						sb.getSubmission().getId(), workflow.getSynapseId(), lockedFolder.getId(), sharedFolder.getId());
-				byte[] synapseConfigFileContent;
-				try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
-					Utils.writeSynapseConfigFile(baos);
-					synapseConfigFileContent = baos.toByteArray();
-				}
-				WorkflowJob newJob = wes.createWorkflowJob(workflow.getWorkflowUrl(), workflow.getEntryPoint(), workflowParameters, synapseConfigFileContent);
-				workflowId = newJob.getWorkflowId();
-				EvaluationUtils.setAnnotation(statusMods, WORKFLOW_JOB_ID, workflowId, PUBLIC_ANNOTATION_SETTING);
-
-				try {
-					submissionUtils.updateSubmissionStatus(submissionStatus, statusMods);
-				} catch (Exception e) {
-					throw new IllegalStateException("Started job "+workflowId+", but could not update submission "+submissionId, e);
-				}
+				// reserve the slot now, before the launch itself runs in the launch stage
 				currentWorkflowCount++;
-			} catch (final Throwable t) {
-				log.error("Submission failed", t);
-				String errorMessage = createPipelineFailureMessage(submissionId, null, ExceptionUtils.getStackTrace(t));
-				// send this notification to an admin, not to the submitter
-				messageUtils.sendMessage(getNotificationPrincipalId(), SUBMISSION_PIPELINE_FAILURE_SUBJECT, 
-						errorMessage);
-				throw t;
+
+				launches.add(pipeline.getLaunchStage().submit(new PipelineTask<Void>() {
+					@Override
+					public Void run() throws Throwable {
+						createNewWorkflowJob(sb, workflow);
+						return null;
+					}}));
+			}
+			Metrics.JOBS.set(waitingInEvaluation, evaluationId, "pending");
+		}
+		PipelineStage.awaitAll(launches);
+	}
+
+	private void createNewWorkflowJob(SubmissionBundle sb, WorkflowURLEntrypointAndSynapseRef workflow) throws Throwable {
+		String submissionId=sb.getSubmission().getId();
+		SubmissionStatus submissionStatus = sb.getSubmissionStatus();
+		try {
+			SubmissionStatusModifications statusMods = new SubmissionStatusModifications();
+			initializeSubmissionAnnotations(statusMods);
+			String workflowId = null;
+
+			String submittingUserOrTeamId = SubmissionUtils.getSubmittingUserOrTeamId(sb.getSubmission());
+			// the workflow is given these folders' IDs, so check that the ones we remember still exist
+			Folder sharedFolder=archiver.getOrCreateSubmissionUploadFolder(submissionId, submittingUserOrTeamId, true, true);
+			Folder lockedFolder=archiver.getOrCreateSubmissionUploadFolder(submissionId, submittingUserOrTeamId, false, true);
+			WorkflowParameters workflowParameters = new WorkflowParameters(
+					sb.getSubmission().getId(), workflow.getSynapseId(), lockedFolder.getId(), sharedFolder.getId());
+			byte[] synapseConfigFileContent;
+			try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
+				Utils.writeSynapseConfigFile(baos);
+				synapseConfigFileContent = baos.toByteArray();
+			}
+			WorkflowJob newJob = wes.createWorkflowJob(workflow.getWorkflowUrl(), workflow.getEntryPoint(), workflowParameters, synapseConfigFileContent);
+			workflowId = newJob.getWorkflowId();
+			EvaluationUtils.setAnnotation(statusMods, WORKFLOW_JOB_ID, workflowId, PUBLIC_ANNOTATION_SETTING);
+
+			try {
+				submissionUtils.updateSubmissionStatus(submissionStatus, statusMods);
+			} catch (Exception e) {
+				throw new IllegalStateException("Started job "+workflowId+", but could not update submission "+submissionId, e);
 			}
+		} catch (final Throwable t) {
+			log.error("Submission failed", t);
+			String errorMessage = createPipelineFailureMessage(submissionId, null, ExceptionUtils.getStackTrace(t));
+			// send this notification to an admin, not to the submitter
+			notifyAdmin(AdminNotificationDigest.fingerprint(t), submissionId, errorMessage);
+			throw t;
 		}
 	}
 
@@ -298,7 +507,7 @@ public class WorkflowHook  {
 		EvaluationUtils.removeAnnotation(statusMods, FAILURE_REASON);
 		EvaluationUtils.removeAnnotation(statusMods, STATUS_DESCRIPTION);
 
-		long now = System.currentTimeMillis();
+		long now = getClock().currentTimeMillis();
 		EvaluationUtils.setAnnotation(statusMods, JOB_STARTED_TIME_STAMP, now, ADMIN_ANNOTS_ARE_PRIVATE);
 		EvaluationUtils.setAnnotation(statusMods, JOB_LAST_UPDATED_TIME_STAMP, now, PUBLIC_ANNOTATION_SETTING);
 		statusMods.setStatus(getInProgressSubmissionState());    	
@@ -321,15 +530,24 @@ public class WorkflowHook  {
 		return result;
 	}
 
+	/*
+	 * Reconcile the running submissions in the given evaluation queues with the running 
+	 * workflow jobs, then check on each job concurrently in the monitor stage.  
+	 * Returns once all jobs have been checked.
+	 */
 	public void updateWorkflowJobs(List<String> evaluationIds) throws Throwable {
+		runningJobs.set(0);
+		finishedJobs.set(0);
+		jobNearCompletion.set(false);
 		// list the running jobs according to Synapse
 		List<SubmissionBundle> runningSubmissions=new ArrayList<SubmissionBundle>();
-		for (String evaluationId : evaluationIds) {
-			try {
-				runningSubmissions.addAll(evaluationUtils.
-						selectSubmissions(evaluationId, getInProgressSubmissionState()));
-			} catch (IllegalStateException e ) {
-				log.warn("Got IllegalStateException when calling selectSubmissions().  Will retry.  Message is: "+e.getMessage());
+		final Map<String,String> submissionIdToEvaluationId = new HashMap<String,String>();
+		Map<String,List<SubmissionBundle>> evaluationIdToSubmissions = discoverSubmissions(evaluationIds, getInProgressSubmissionState());
+		for (String evaluationId : evaluationIdToSubmissions.keySet()) {
+			Metrics.JOBS.set(evaluationIdToSubmissions.get(evaluationId).size(), evaluationId, "running");
+			for (SubmissionBundle bundle : evaluationIdToSubmissions.get(evaluationId)) {
+				runningSubmissions.add(bundle);
+				submissionIdToEvaluationId.put(bundle.getSubmission().getId(), evaluationId);
 			}
 		}
 		
@@ -337,7 +555,7 @@ public class WorkflowHook  {
 		List<WorkflowJob> jobs = wes.listWorkflowJobs();
 		// the two lists should be the same ...
 		Map<String, WorkflowJob> workflowIdToJobMap = workflowIdsForJobs(jobs);
-		Map<String, SubmissionBundle> workflowIdToSubmissionMap = workflowIdsForSubmissions(runningSubmissions);
+		final Map<String, SubmissionBundle> workflowIdToSubmissionMap = workflowIdsForSubmissions(runningSubmissions);
 		Set<WorkflowJob> jobsWithoutSubmissions = new HashSet<WorkflowJob>();
 		for (String workflowId : workflowIdToJobMap.keySet()) {
 			WorkflowJob jobForWorkflowId = workflowIdToJobMap.get(workflowId);
@@ -355,8 +573,8 @@ public class WorkflowHook  {
 			}
 			msg.append("\nOne way to recover is to delete the workflow job(s).");
 			final String errorMessage = createPipelineFailureMessage(null, null, msg.toString());
-			messageUtils.sendMessage(getNotificationPrincipalId(), SUBMISSION_PIPELINE_FAILURE_SUBJECT, 
-					errorMessage);
+			// this is found again on every pass, so the message itself is the fingerprint
+			notifyAdmin(msg.toString(), null, errorMessage);
 			throw new IllegalStateException(msg.toString());
 			// Note: An alternative is to kill the workflow(s) and let the WorkflowHook keep running.
 			// For now we let the submission queue administrator do this, to ensure they are aware of the issue.
@@ -366,86 +584,138 @@ public class WorkflowHook  {
 		for (String workflowId : workflowIdToSubmissionMap.keySet()) {
 			if (workflowIdToJobMap.get(workflowId)==null) submissionsWithoutJobs.add(workflowIdToSubmissionMap.get(workflowId));
 		}
-		for (SubmissionBundle submissionBundle : submissionsWithoutJobs) {
-			String messageBody = createPipelineFailureMessage(submissionBundle.getSubmission().getId(), null, "No running workflow found for submission.");
-			submissionUtils.closeSubmissionAndSendNotification(getNotificationPrincipalId(), submissionBundle.getSubmissionStatus(), new SubmissionStatusModifications(),
-					SubmissionStatusEnum.INVALID, WorkflowUpdateStatus.ERROR_ENCOUNTERED_DURING_EXECUTION, null, WORKFLOW_FAILURE_SUBJECT, messageBody);
+		List<Future<Void>> updates = new ArrayList<Future<Void>>();
+		for (final SubmissionBundle submissionBundle : submissionsWithoutJobs) {
+			final String notificationPrincipalId = getNotificationPrincipalId();
+			updates.add(pipeline.getMonitorStage().submit(new PipelineTask<Void>() {
+				@Override
+				public Void run() throws Throwable {
+					String messageBody = createPipelineFailureMessage(submissionBundle.getSubmission().getId(), null, "No running workflow found for submission.");
+					submissionUtils.closeSubmission(submissionBundle.getSubmissionStatus(), new SubmissionStatusModifications(),
+							SubmissionStatusEnum.INVALID, WorkflowUpdateStatus.ERROR_ENCOUNTERED_DURING_EXECUTION, null);
+					sendMessageAsync(notificationPrincipalId, WORKFLOW_FAILURE_SUBJECT, messageBody);
+					return null;
+				}}));
 		}
 
-		String shareImmediatelyString = getProperty("SHARE_RESULTS_IMMEDIATELY", false);
-		boolean shareImmediately = StringUtils.isEmpty(shareImmediatelyString) ? true : new Boolean(shareImmediatelyString);
+		final boolean shareImmediately = Configuration.current().isShareResultsImmediately();
+
+		// Now go through the list of running jobs, checking and updating each.
+		// The resulting status changes are written together once all jobs have been checked.
+		final SubmissionStatusBatcher statusBatcher = new SubmissionStatusBatcher(synapse);
+		for (final WorkflowJob job : jobs) {
+			updates.add(pipeline.getMonitorStage().submit(new PipelineTask<Void>() {
+				@Override
+				public Void run() throws Throwable {
+					SubmissionBundle submissionBundle = workflowIdToSubmissionMap.get(job.getWorkflowId());
+					updateWorkflowJob(job, submissionBundle, shareImmediately, statusBatcher,
+							submissionIdToEvaluationId.get(submissionBundle.getSubmission().getId()));
+					return null;
+				}}));
+		}
+		// write the changes for the jobs which were checked, even if checking others failed,
+		// without letting a failure to write hide the failure to check
+		Throwable failure = null;
+		try {
+			PipelineStage.awaitAll(updates);
+		} catch (Throwable t) {
+			failure = t;
+		}
+		try {
+			statusBatcher.flush();
+		} catch (SynapseException e) {
+			if (failure==null) failure = e; else failure.addSuppressed(e);
+		}
+		if (failure!=null) throw failure;
+	}
+
+	private void updateWorkflowJob(WorkflowJob job, SubmissionBundle submissionBundle, boolean shareImmediately,
+			SubmissionStatusBatcher statusBatcher, String evaluationId) throws Throwable {
+		final Submission submission = submissionBundle.getSubmission();
+		final SubmissionStatus submissionStatus = submissionBundle.getSubmissionStatus();
+		final SubmissionStatusModifications statusMods = new SubmissionStatusModifications();
 
-		// Now go through the list of running jobs, checking and updating each
-		for (WorkflowJob job : jobs) {
-			final SubmissionBundle submissionBundle = workflowIdToSubmissionMap.get(job.getWorkflowId());
-			final Submission submission = submissionBundle.getSubmission();
-			final SubmissionStatus submissionStatus = submissionBundle.getSubmissionStatus();
-			final SubmissionStatusModifications statusMods = new SubmissionStatusModifications();
-			
-			String sharedSubmissionFolderId = shareImmediately ? EvaluationUtils.getStringAnnotation(submissionStatus, SUBMISSION_ARTIFACTS_FOLDER) : null;
+		String sharedSubmissionFolderId = shareImmediately ? EvaluationUtils.getStringAnnotation(submissionStatus, SUBMISSION_ARTIFACTS_FOLDER) : null;
 
-			try {
-				Double progress = null;
-				WorkflowUpdateStatus containerCompletionStatus = null;
-				{
-					WESWorkflowStatus initialWorkflowStatus = wes.getWorkflowStatus(job);
-					progress = initialWorkflowStatus.getProgress();
-					containerCompletionStatus = updateJob(job, initialWorkflowStatus, submissionBundle, statusMods);
-					
-					// we will apply the statusMods to the submissionStatus at the time we update in Synapse,
-					// but we do so here just so that we have access to the submisson's history and the recent updates
-					// in a single object
-					applyModifications(submissionStatus, statusMods);
+		try {
+			Double progress = null;
+			WorkflowUpdateStatus containerCompletionStatus = null;
+			{
+				WESWorkflowStatus initialWorkflowStatus = wes.getWorkflowStatus(job);
+				progress = initialWorkflowStatus.getProgress();
+				containerCompletionStatus = updateJob(job, initialWorkflowStatus, submissionBundle, statusMods);
+				// the statusMods are applied to the submissionStatus when written to Synapse.  Until then
+				// the submissionStatus is unchanged so we can tell whether there's anything to write.
+			}
+			switch(containerCompletionStatus) {
+			case IN_PROGRESS:
+				statusMods.setStatus(getInProgressSubmissionState());
+				break;
+			case DONE:
+				statusMods.setStatus(getFinalSubmissionState());
+				EvaluationUtils.removeAnnotation(statusMods, FAILURE_REASON);
+				if (notificationEnabled(SUBMISSION_COMPLETED)) {
+					Submitter submitter = submissionUtils.getSubmitter(submission);
+					String messageBody = createWorkflowCompleteMessage(submitter.getName(), submission.getId(), sharedSubmissionFolderId);
+					sendMessageAsync(submitter.getId(), WORKFLOW_COMPLETE_SUBJECT,  messageBody);
 				}
-				switch(containerCompletionStatus) {
-				case IN_PROGRESS:
-					statusMods.setStatus(getInProgressSubmissionState());
-					break;
-				case DONE:
-					statusMods.setStatus(getFinalSubmissionState());
-					EvaluationUtils.removeAnnotation(statusMods, FAILURE_REASON);
-					if (notificationEnabled(SUBMISSION_COMPLETED)) {
-						Submitter submitter = submissionUtils.getSubmitter(submission);
-						String messageBody = createWorkflowCompleteMessage(submitter.getName(), submission.getId(), sharedSubmissionFolderId);
-						messageUtils.sendMessage(submitter.getId(), WORKFLOW_COMPLETE_SUBJECT,  messageBody);
-					}
-					break;
-				case REJECTED:
-					statusMods.setStatus(SubmissionStatusEnum.REJECTED);
-					break;
-				case ERROR_ENCOUNTERED_DURING_EXECUTION:
-				case STOPPED_UPON_REQUEST:
-				case STOPPED_TIME_OUT:
-					statusMods.setStatus(SubmissionStatusEnum.INVALID);
-					if (containerCompletionStatus==ERROR_ENCOUNTERED_DURING_EXECUTION && notificationEnabled(SUBMISSION_FAILED) || 
-						containerCompletionStatus==STOPPED_UPON_REQUEST && notificationEnabled(SUBMISSION_STOPPED_BY_USER) || 
-						containerCompletionStatus==STOPPED_TIME_OUT && notificationEnabled(SUBMISSION_TIMED_OUT)) {
-						Submitter submitter = submissionUtils.getSubmitter(submission);
-						String messageBody = createWorkflowFailedMessage(submitter.getName(), submission.getId(), 
+				break;
+			case REJECTED:
+				statusMods.setStatus(SubmissionStatusEnum.REJECTED);
+				break;
+			case ERROR_ENCOUNTERED_DURING_EXECUTION:
+			case STOPPED_UPON_REQUEST:
+			case STOPPED_TIME_OUT:
+				statusMods.setStatus(SubmissionStatusEnum.INVALID);
+				if (containerCompletionStatus==ERROR_ENCOUNTERED_DURING_EXECUTION && notificationEnabled(SUBMISSION_FAILED) || 
+				containerCompletionStatus==STOPPED_UPON_REQUEST && notificationEnabled(SUBMISSION_STOPPED_BY_USER) || 
+				containerCompletionStatus==STOPPED_TIME_OUT && notificationEnabled(SUBMISSION_TIMED_OUT)) {
+					Submitter submitter = submissionUtils.getSubmitter(submission);
+					AnnotationBase failureReason = statusMods.getAnnotationToAdd(FAILURE_REASON);
+					String messageBody = createWorkflowFailedMessage(submitter.getName(), submission.getId(), 
+							failureReason instanceof StringAnnotation ? ((StringAnnotation)failureReason).getValue() : 
 								EvaluationUtils.getStringAnnotation(submissionStatus, FAILURE_REASON), 
-								null, sharedSubmissionFolderId);
-						messageUtils.sendMessage(submitter.getId(), WORKFLOW_FAILURE_SUBJECT,  messageBody);
-					}
-					break;
-				default:
-					throw new IllegalStateException(containerCompletionStatus.toString());
+							null, sharedSubmissionFolderId);
+					sendMessageAsync(submitter.getId(), WORKFLOW_FAILURE_SUBJECT,  messageBody);
 				}
-				EvaluationUtils.setAnnotation(statusMods, JOB_LAST_UPDATED_TIME_STAMP, System.currentTimeMillis(), PUBLIC_ANNOTATION_SETTING);
-				if (progress!=null) {
-					EvaluationUtils.setAnnotation(statusMods, PROGRESS, progress, false);
+				break;
+			default:
+				throw new IllegalStateException(containerCompletionStatus.toString());
+			}
+			if (containerCompletionStatus==IN_PROGRESS) {
+				runningJobs.incrementAndGet();
+				if (progress!=null && progress>=AdaptiveScheduler.NEAR_COMPLETION_PERCENT) jobNearCompletion.set(true);
+			} else {
+				finishedJobs.incrementAndGet();
+			}
+			EvaluationUtils.setAnnotation(statusMods, JOB_LAST_UPDATED_TIME_STAMP, getClock().currentTimeMillis(), PUBLIC_ANNOTATION_SETTING);
+			if (progress!=null) {
+				EvaluationUtils.setAnnotation(statusMods, PROGRESS, progress, false);
+			}
+			if (containerCompletionStatus==IN_PROGRESS) {
+				// routine updates are batched, and skipped if there's nothing new to say
+				Configuration configuration = Configuration.current();
+				if (EvaluationUtils.throttleRoutineUpdates(submissionStatus, statusMods, getClock().currentTimeMillis(), 
+						configuration.getStatusHeartbeatMillis(), configuration.getProgressUpdateDelta())) {
+					statusBatcher.add(evaluationId, submissionStatus, statusMods);
+				} else {
+					log.info("No change to the status of submission "+submission.getId()+".  Skipping update.");
 				}
+			} else {
+				// the final status is written before the workflow job is removed, so that if the agent
+				// stops in between, it will find the job again rather than a submission without one
 				submissionUtils.updateSubmissionStatus(submissionStatus, statusMods);
-			} catch (final Throwable t) {
-				log.error("Pipeline failed", t);
-				final String submissionId = job==null?null:submission.getId();
-				final String workflowDescription = job==null?null:job.toString();
-				final String errorMessage = createPipelineFailureMessage(submissionId, workflowDescription, ExceptionUtils.getStackTrace(t));
-				// send this notification to an admin, not to the submitter
-				messageUtils.sendMessage(getNotificationPrincipalId(), SUBMISSION_PIPELINE_FAILURE_SUBJECT, 
-						errorMessage);
-
-				throw t;
+				wes.deleteWorkFlowJob(job);
 			}
+		} catch (final Throwable t) {
+			log.error("Pipeline failed", t);
+			final String submissionId = job==null?null:submission.getId();
+			final String workflowDescription = job==null?null:job.toString();
+			final String errorMessage = createPipelineFailureMessage(submissionId, workflowDescription, ExceptionUtils.getStackTrace(t));
+			// send this notification to an admin, not to the submitter
+			notifyAdmin(AdminNotificationDigest.fingerprint(t), submissionId, errorMessage);
+
+			throw t;
 		}
 	}
 
@@ -515,21 +785,28 @@ public class WorkflowHook  {
 		
 		Long lastLogUploadTimeStamp = EvaluationUtils.getLongAnnotation(submissionStatus, LAST_LOG_UPLOAD);
 		boolean timeToUploadLogs = lastLogUploadTimeStamp==null ||
-				lastLogUploadTimeStamp+UPLOAD_PERIOD_MILLIS<System.currentTimeMillis();
+				lastLogUploadTimeStamp+UPLOAD_PERIOD_MILLIS<getClock().currentTimeMillis();
 
 		SubmissionFolderAndLogTail submissionFolderAndLogTail = null;
 		String submissionFolderId = null;
 		// we upload logs periodically and when container finally finishes, unless we've exceeded the maximum log size
 		if ((true/*TODO not if log file size exceeded*/) && (timeToUploadLogs || !isRunning)) {
-			String submittingUserOrTeamId = SubmissionUtils.getSubmittingUserOrTeamId(submission);
+			final String submittingUserOrTeamId = SubmissionUtils.getSubmittingUserOrTeamId(submission);
 			Submitter submitter = submissionUtils.getSubmitter(submission);
 
-			submissionFolderAndLogTail = archiver.uploadLogs(
-					job, 
-					submission.getId(),
-					submittingUserOrTeamId, 
-					LOGS_SUFFIX,
-					MAX_LOG_ANNOTATION_CHARS);
+			final boolean isFinalUpload = !isRunning;
+			// the upload runs in the archive stage, which limits the number of concurrent uploads
+			submissionFolderAndLogTail = PipelineStage.await(pipeline.getArchiveStage().submit(new PipelineTask<SubmissionFolderAndLogTail>() {
+				@Override
+				public SubmissionFolderAndLogTail run() throws Throwable {
+					return archiver.uploadLogs(
+							job, 
+							submission.getId(),
+							submittingUserOrTeamId, 
+							LOGS_SUFFIX,
+							MAX_LOG_ANNOTATION_CHARS,
+							isFinalUpload);
+				}}));
 			Folder submissionFolder = submissionFolderAndLogTail.getSubmissionFolder();
 			submissionFolderId = submissionFolder==null?null:submissionFolder.getId();
 
@@ -540,22 +817,17 @@ public class WorkflowHook  {
 			String hasSubmissionStartedMessageBeenSentString = EvaluationUtils.getStringAnnotation(submissionStatus, SUBMISSION_PROCESSING_STARTED_SENT);
 			boolean hasSubmissionStartedMessageBeenSent = hasSubmissionStartedMessageBeenSentString!=null && new Boolean(hasSubmissionStartedMessageBeenSentString);
 			if (isRunning && !hasSubmissionStartedMessageBeenSent && notificationEnabled(SUBMISSION_STARTED)) {
-				String shareImmediatelyString = getProperty("SHARE_RESULTS_IMMEDIATELY", false);
-				boolean shareImmediately = StringUtils.isEmpty(shareImmediatelyString) ? true : new Boolean(shareImmediatelyString);
+				boolean shareImmediately = Configuration.current().isShareResultsImmediately();
 				String sharedSubmissionFolderId = shareImmediately ? submissionFolderId : null;
 				String messageBody = createSubmissionStartedMessage(submitter.getName(), submission.getId(), sharedSubmissionFolderId);
-				messageUtils.sendMessage(submittingUserOrTeamId, SUBMISSION_PROCESSING_STARTED_SUBJECT, messageBody);
+				sendMessageAsync(submittingUserOrTeamId, SUBMISSION_PROCESSING_STARTED_SUBJECT, messageBody);
 				updatedHasSubmissionStartedMessageBeenSent=true;
 			}
 		} // end uploading logs
 
-		if (!isRunning) {
-			wes.deleteWorkFlowJob(job);
-		}
-
-		EvaluationUtils.setAnnotation(statusMods, JOB_LAST_UPDATED_TIME_STAMP, System.currentTimeMillis(), PUBLIC_ANNOTATION_SETTING);
+		EvaluationUtils.setAnnotation(statusMods, JOB_LAST_UPDATED_TIME_STAMP, getClock().currentTimeMillis(), PUBLIC_ANNOTATION_SETTING);
 		if (submissionFolderId!=null) {
-			EvaluationUtils.setAnnotation(statusMods, LAST_LOG_UPLOAD, System.currentTimeMillis(), ADMIN_ANNOTS_ARE_PRIVATE);    				
+			EvaluationUtils.setAnnotation(statusMods, LAST_LOG_UPLOAD, getClock().currentTimeMillis(), ADMIN_ANNOTS_ARE_PRIVATE);    				
 			EvaluationUtils.setAnnotation(statusMods, SUBMISSION_ARTIFACTS_FOLDER, submissionFolderId, PUBLIC_ANNOTATION_SETTING);
 		}
 		if (updatedWhenLogFileSizeExceeded!=null) {
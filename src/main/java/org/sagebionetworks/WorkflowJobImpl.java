@@ -7,6 +7,7 @@ import com.github.dockerjava.api.model.Container;
 public class WorkflowJobImpl implements WorkflowJob {
 	private String submissionId;
 	private String containerName;
+	private String containerId;
 	private Container container;
 	private File submissionParameters;
 
@@ -30,6 +31,16 @@ public class WorkflowJobImpl implements WorkflowJob {
 	public void setContainerName(String containerName) {
 		this.containerName = containerName;
 	}
+	/*
+	 * The ID of the container, if known, else the ID of the attached Container, if any
+	 */
+	public String getContainerId() {
+		if (containerId==null && container!=null) return container.getId();
+		return containerId;
+	}
+	public void setContainerId(String containerId) {
+		this.containerId = containerId;
+	}
 	public Container getContainer() {
 		return container;
 	}
@@ -47,6 +58,7 @@ public class WorkflowJobImpl implements WorkflowJob {
 		final int prime = 31;
 		int result = 1;
 		result = prime * result + ((container == null) ? 0 : container.hashCode());
+		result = prime * result + ((containerId == null) ? 0 : containerId.hashCode());
 		result = prime * result + ((containerName == null) ? 0 : containerName.hashCode());
 		result = prime * result + ((submissionId == null) ? 0 : submissionId.hashCode());
 		result = prime * result + ((submissionParameters == null) ? 0 : submissionParameters.hashCode());
@@ -66,6 +78,11 @@ public class WorkflowJobImpl implements WorkflowJob {
 				return false;
 		} else if (!container.equals(other.container))
 			return false;
+		if (containerId == null) {
+			if (other.containerId != null)
+				return false;
+		} else if (!containerId.equals(other.containerId))
+			return false;
 		if (containerName == null) {
 			if (other.containerName != null)
 				return false;
@@ -85,7 +102,7 @@ public class WorkflowJobImpl implements WorkflowJob {
 	}
 	@Override
 	public String toString() {
-		return "WorkflowJobImpl [submissionId=" + submissionId + ", containerName=" + containerName + ", container="
+		return "WorkflowJobImpl [submissionId=" + submissionId + ", containerName=" + containerName + ", containerId=" + containerId + ", container="
 				+ container + ", submissionParameters=" + submissionParameters + "]";
 	}
 
@@ -0,0 +1,136 @@
+package org.sagebionetworks;
+
+import static org.sagebionetworks.Utils.createTempFile;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/*
+ * A local copy of each workflow's log, to which new output is appended as the
+ * workflow runs, along with a record of how much of it has been uploaded.
+ *
+ * Keeping the log locally means we only ask Docker for what the container has
+ * written since we last asked, and only upload what hasn't been uploaded.  The
+ * store lives on the shared volume so it survives a restart of the agent.
+ */
+public class WorkflowLogStore {
+	private static final String LOG_FILE_SUFFIX = ".txt";
+	private static final String STATE_FILE_SUFFIX = ".properties";
+	private static final String LAST_TIMESTAMP = "lastTimestamp";
+	private static final String UPLOADED_BYTES = "uploadedBytes";
+	private static final String CHUNK_COUNT = "chunkCount";
+
+	private File dir;
+
+	public WorkflowLogStore(File dir) {
+		this.dir=dir;
+		dir.mkdirs();
+		if (!dir.isDirectory()) throw new RuntimeException("Unable to create "+dir.getAbsolutePath());
+	}
+
+	/*
+	 * The local log of a workflow and the state of its capture and upload
+	 */
+	public class WorkflowLog {
+		private String name;
+		private Properties state;
+
+		private WorkflowLog(String name, Properties state) {
+			this.name=name;
+			this.state=state;
+		}
+
+		public File getLogFile() {
+			return new File(dir, name+LOG_FILE_SUFFIX);
+		}
+
+		/*
+		 * The Docker timestamp of the last line captured, or null if none
+		 */
+		public String getLastTimestamp() {
+			return state.getProperty(LAST_TIMESTAMP);
+		}
+
+		public void setLastTimestamp(String lastTimestamp) {
+			if (lastTimestamp!=null) state.setProperty(LAST_TIMESTAMP, lastTimestamp);
+		}
+
+		public long getUploadedBytes() {
+			return Long.parseLong(state.getProperty(UPLOADED_BYTES, "0"));
+		}
+
+		public void setUploadedBytes(long uploadedBytes) {
+			state.setProperty(UPLOADED_BYTES, Long.toString(uploadedBytes));
+		}
+
+		public int getChunkCount() {
+			return Integer.parseInt(state.getProperty(CHUNK_COUNT, "0"));
+		}
+
+		public void setChunkCount(int chunkCount) {
+			state.setProperty(CHUNK_COUNT, Integer.toString(chunkCount));
+		}
+
+		public long size() {
+			return getLogFile().length();
+		}
+
+		/*
+		 * Return (up to) the last 'maxLength' characters of the log
+		 */
+		public String getTail(int maxLength) throws IOException {
+			File logFile = getLogFile();
+			if (!logFile.exists()) return null;
+			try (RandomAccessFile raf = new RandomAccessFile(logFile, "r")) {
+				// a character is at most 4 bytes in UTF-8
+				long start = Math.max(0L, raf.length()-4L*maxLength);
+				byte[] bytes = new byte[(int)(raf.length()-start)];
+				raf.seek(start);
+				raf.readFully(bytes);
+				String s = new String(bytes, Charset.forName("UTF-8"));
+				return s.length()<=maxLength ? s : s.substring(s.length()-maxLength);
+			}
+		}
+
+		public void save() throws IOException {
+			File stateFile = new File(dir, name+STATE_FILE_SUFFIX);
+			File tempFile = createTempFile(STATE_FILE_SUFFIX, dir);
+			try (OutputStream os = new FileOutputStream(tempFile)) {
+				state.store(os, null);
+			}
+			Files.move(tempFile.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+
+		public void delete() {
+			getLogFile().delete();
+			new File(dir, name+STATE_FILE_SUFFIX).delete();
+		}
+	}
+
+	/*
+	 * Get the log with the given name, creating it if it doesn't exist
+	 */
+	public WorkflowLog getWorkflowLog(String name) throws IOException {
+		Properties state = new Properties();
+		File stateFile = new File(dir, name+STATE_FILE_SUFFIX);
+		File logFile = new File(dir, name+LOG_FILE_SUFFIX);
+		if (stateFile.exists() && logFile.exists()) {
+			try (InputStream is = new FileInputStream(stateFile)) {
+				state.load(is);
+			}
+		} else {
+			// start afresh
+			logFile.delete();
+		}
+		return new WorkflowLog(name, state);
+	}
+}
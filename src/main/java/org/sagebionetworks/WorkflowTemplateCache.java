@@ -0,0 +1,318 @@
+package org.sagebionetworks;
+
+import static org.sagebionetworks.Utils.createTempFile;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.Charset;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.fuin.utils4j.Utils4J;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * A local cache of workflow templates, so that each submission to an evaluation
+ * doesn't download and unpack the same template again.
+ *
+ * Each URL is revalidated on every use, but with a conditional GET (using the ETag
+ * and Last-Modified headers from the previous response) so that an unchanged
+ * template costs just a round trip.  Downloaded content is identified by its SHA-256
+ * hash and each distinct zip archive is unpacked just once, into a pristine tree
+ * from which workflow folders are populated by copying.  (The workflow and the agent
+ * write into the workflow folder, so it mustn't share files with the pristine tree,
+ * as hard links would.)
+ *
+ * Layout of the cache folder:
+ *
+ * documents/<hash of URL>/content           the last downloaded content
+ * documents/<hash of URL>/meta.properties   ETag, Last-Modified and content hash
+ * extracted/<hash of content>/              the unpacked zip archive
+ *
+ * Only the most recently used 'maxExtractions' archives are kept unpacked.  Older
+ * ones are deleted when a new archive is unpacked, unless a workflow folder is
+ * being populated from them at the time.
+ */
+public class WorkflowTemplateCache {
+	private static Logger log = LoggerFactory.getLogger(WorkflowTemplateCache.class);
+
+	private static final String DOCUMENTS_DIR = "documents";
+	private static final String EXTRACTED_DIR = "extracted";
+	private static final String CONTENT_FILE = "content";
+	private static final String META_FILE = "meta.properties";
+	private static final String ETAG = "etag";
+	private static final String LAST_MODIFIED = "lastModified";
+	private static final String CONTENT_HASH = "contentHash";
+	private static final String UNZIP_TEMP_DIR_PREFIX = "unzip";
+
+	private File documentsDir;
+	private File extractedDir;
+	// serializes concurrent fetches of the same URL or extraction of the same content
+	private ConcurrentMap<String,Object> locks = new ConcurrentHashMap<String,Object>();
+	private int maxExtractions;
+	// the unpacked archives, least recently used first, with the number of copies being made from each
+	private LinkedHashMap<String,Integer> extractions = new LinkedHashMap<String,Integer>(16, 0.75f, true);
+
+	public WorkflowTemplateCache(File cacheRoot, int maxExtractions) {
+		if (maxExtractions<1) throw new IllegalArgumentException("maxExtractions must be at least 1.");
+		this.documentsDir = new File(cacheRoot, DOCUMENTS_DIR);
+		this.extractedDir = new File(cacheRoot, EXTRACTED_DIR);
+		this.maxExtractions = maxExtractions;
+		documentsDir.mkdirs();
+		extractedDir.mkdirs();
+		if (!documentsDir.isDirectory() || !extractedDir.isDirectory())
+			throw new RuntimeException("Unable to create template cache in "+cacheRoot.getAbsolutePath());
+		// pick up what was unpacked before a restart, in order of last use
+		File[] existing = extractedDir.listFiles();
+		Arrays.sort(existing, new Comparator<File>() {
+			@Override
+			public int compare(File f1, File f2) {
+				return Long.compare(f1.lastModified(), f2.lastModified());
+			}});
+		for (File dir : existing) {
+			if (dir.isDirectory() && !dir.getName().startsWith(UNZIP_TEMP_DIR_PREFIX)) extractions.put(dir.getName(), 0);
+		}
+	}
+
+	/*
+	 * A downloaded document, as held in the cache
+	 */
+	public static class CachedDocument {
+		private File content;
+		private String contentHash;
+
+		public CachedDocument(File content, String contentHash) {
+			this.content = content;
+			this.contentHash = contentHash;
+		}
+
+		public File getContent() {
+			return content;
+		}
+
+		public String getContentHash() {
+			return contentHash;
+		}
+	}
+
+	private Object getLock(String key) {
+		Object lock = new Object();
+		Object existing = locks.putIfAbsent(key, lock);
+		return existing==null ? lock : existing;
+	}
+
+	public static String sha256Hex(byte[] bytes) {
+		return toHex(createSha256Digest().digest(bytes));
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder();
+		for (byte b : bytes) sb.append(String.format("%02x", b));
+		return sb.toString();
+	}
+
+	private static MessageDigest createSha256Digest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static String hashUrl(URL url) {
+		return sha256Hex(url.toString().getBytes(Charset.forName("UTF-8")));
+	}
+
+	/*
+	 * Return the current content of the given URL, downloading it only if it has
+	 * changed since it was last fetched.
+	 */
+	public CachedDocument fetch(final URL url) throws IOException {
+		String urlHash = hashUrl(url);
+		synchronized (getLock(urlHash)) {
+			final File dir = new File(documentsDir, urlHash);
+			dir.mkdirs();
+			final File contentFile = new File(dir, CONTENT_FILE);
+			File metaFile = new File(dir, META_FILE);
+			final Properties meta = new Properties();
+			if (metaFile.exists() && contentFile.exists()) {
+				try (InputStream is = new FileInputStream(metaFile)) {
+					meta.load(is);
+				}
+			}
+			try {
+				(new ExponentialBackoffRunner()).execute(new NoRefreshExecutableAdapter<Void,Void>() {
+					@Override
+					public Void execute(Void args) throws Throwable {
+						download(url, dir, contentFile, meta);
+						return null;
+					}}, null);
+			} catch (IOException e) {
+				throw e;
+			} catch (Throwable t) {
+				throw new RuntimeException(t);
+			}
+			File tempMetaFile = createTempFile(".properties", dir);
+			try (OutputStream os = new FileOutputStream(tempMetaFile)) {
+				meta.store(os, url.toString());
+			}
+			Files.move(tempMetaFile.toPath(), metaFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			return new CachedDocument(contentFile, meta.getProperty(CONTENT_HASH));
+		}
+	}
+
+	/*
+	 * Make a (conditional, if we have a cached copy) request for the URL. If the
+	 * content has changed, replace 'contentFile' and update 'meta'.
+	 */
+	private static void download(URL url, File dir, File contentFile, Properties meta) throws IOException {
+		URLConnection connection = url.openConnection();
+		if (connection instanceof HttpURLConnection) {
+			if (meta.getProperty(ETAG)!=null) connection.setRequestProperty("If-None-Match", meta.getProperty(ETAG));
+			if (meta.getProperty(LAST_MODIFIED)!=null) connection.setRequestProperty("If-Modified-Since", meta.getProperty(LAST_MODIFIED));
+			int status = ((HttpURLConnection)connection).getResponseCode();
+			if (status==HttpURLConnection.HTTP_NOT_MODIFIED && meta.getProperty(CONTENT_HASH)!=null) {
+				log.info("Cached copy of "+url+" is current.");
+				return;
+			}
+		}
+		File tempFile = createTempFile(".tmp", dir);
+		MessageDigest digest = createSha256Digest();
+		try (InputStream is = connection.getInputStream();
+				OutputStream os = new DigestOutputStream(new FileOutputStream(tempFile), digest)) {
+			IOUtils.copy(is, os);
+		} catch (IOException e) {
+			tempFile.delete();
+			throw e;
+		}
+		Files.move(tempFile.toPath(), contentFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		meta.clear();
+		String etag = connection.getHeaderField("ETag");
+		if (etag!=null) meta.setProperty(ETAG, etag);
+		String lastModified = connection.getHeaderField("Last-Modified");
+		if (lastModified!=null) meta.setProperty(LAST_MODIFIED, lastModified);
+		meta.setProperty(CONTENT_HASH, toHex(digest.digest()));
+	}
+
+	/*
+	 * Return the current content of the given URL as a String
+	 */
+	public String fetchAsString(URL url) throws IOException {
+		return FileUtils.readFileToString(fetch(url).getContent(), Charset.forName("UTF-8"));
+	}
+
+	/*
+	 * Populate 'targetDir' with the unzipped content of the archive at the given URL
+	 */
+	public void unzipTo(URL url, File targetDir) throws IOException {
+		String contentHash;
+		File extracted;
+		// hold the URL's lock so the downloaded content can't be replaced while we unzip it
+		synchronized (getLock(hashUrl(url))) {
+			CachedDocument zip = fetch(url);
+			contentHash = zip.getContentHash();
+			extracted = new File(extractedDir, contentHash);
+			synchronized (extractions) {
+				// an extraction in use can't be deleted, so if it's there now it'll stay for the copy below
+				if (extracted.exists()) acquireExtraction(contentHash);
+			}
+			if (!extracted.exists()) {
+				// unzip to a temporary folder and move into place, so a partial extraction is never used
+				File tempDir = Files.createTempDirectory(extractedDir.toPath(), UNZIP_TEMP_DIR_PREFIX).toFile();
+				try {
+					Utils4J.unzip(zip.getContent(), tempDir);
+					synchronized (extractions) {
+						Files.move(tempDir.toPath(), extracted.toPath(), StandardCopyOption.ATOMIC_MOVE);
+						acquireExtraction(contentHash);
+					}
+				} finally {
+					if (tempDir.exists()) FileUtils.deleteDirectory(tempDir);
+				}
+				log.info("Unzipped "+url+" to "+extracted.getAbsolutePath());
+				evictExtractions();
+			}
+		}
+		try {
+			copyTree(extracted.toPath(), targetDir.toPath());
+		} finally {
+			synchronized (extractions) {
+				extractions.put(contentHash, extractions.get(contentHash)-1);
+			}
+		}
+	}
+
+	/*
+	 * Note that a copy is being made from the given extraction, which is now the most recently used.
+	 * Must be called while synchronized on 'extractions'.
+	 */
+	private void acquireExtraction(String contentHash) {
+		Integer inUse = extractions.get(contentHash);
+		extractions.put(contentHash, inUse==null ? 1 : inUse+1);
+		// so that the order of use survives a restart
+		new File(extractedDir, contentHash).setLastModified(System.currentTimeMillis());
+	}
+
+	/*
+	 * Delete the least recently used extractions beyond 'maxExtractions', skipping those in use
+	 */
+	private void evictExtractions() throws IOException {
+		synchronized (extractions) {
+			int excess = extractions.size()-maxExtractions;
+			for (Iterator<Map.Entry<String,Integer>> it = extractions.entrySet().iterator(); excess>0 && it.hasNext();) {
+				Map.Entry<String,Integer> entry = it.next();
+				if (entry.getValue()>0) continue;
+				File dir = new File(extractedDir, entry.getKey());
+				FileUtils.deleteDirectory(dir);
+				it.remove();
+				excess--;
+				log.info("Deleted unused template extraction "+dir.getAbsolutePath());
+			}
+		}
+	}
+
+	/*
+	 * Copy the tree at 'source' under 'target'
+	 */
+	public static void copyTree(final Path source, final Path target) throws IOException {
+		Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+				Path targetDir = target.resolve(source.relativize(dir));
+				if (!Files.isDirectory(targetDir)) Files.createDirectory(targetDir);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Path targetFile = target.resolve(source.relativize(file));
+				Files.copy(file, targetFile, StandardCopyOption.COPY_ATTRIBUTES);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+}
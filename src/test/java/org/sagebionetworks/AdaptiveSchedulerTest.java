@@ -0,0 +1,46 @@
+package org.sagebionetworks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class AdaptiveSchedulerTest {
+
+	@Test
+	public void testGetNextInterval() throws Exception {
+		AdaptiveScheduler scheduler = new AdaptiveScheduler(1000L, 10000L, 60000L);
+
+		// idle:  back off, up to the maximum
+		assertEquals(10000L, scheduler.getNextInterval(0, 2, 0, 0, false));
+		assertEquals(20000L, scheduler.getNextInterval(0, 2, 0, 0, false));
+		assertEquals(40000L, scheduler.getNextInterval(0, 2, 0, 0, false));
+		assertEquals(60000L, scheduler.getNextInterval(0, 2, 0, 0, false));
+		assertEquals(60000L, scheduler.getNextInterval(0, 2, 0, 0, false));
+
+		// busy
+		assertEquals(10000L, scheduler.getNextInterval(0, 0, 2, 0, false));
+		assertEquals(1000L, scheduler.getNextInterval(0, 0, 2, 0, true));
+		// submissions waiting for a slot don't shorten the wait
+		assertEquals(10000L, scheduler.getNextInterval(3, 0, 2, 0, false));
+		// unless a workflow is nearly done
+		assertEquals(1000L, scheduler.getNextInterval(3, 0, 2, 0, true));
+		// a slot has been freed for a waiting submission
+		assertEquals(0L, scheduler.getNextInterval(3, 1, 1, 1, false));
+
+		// activity resets the back off
+		assertEquals(10000L, scheduler.getNextInterval(0, 2, 0, 0, false));
+	}
+
+	@Test
+	public void testWakeUp() throws Exception {
+		AdaptiveScheduler scheduler = new AdaptiveScheduler(1000L, 10000L, 60000L);
+		scheduler.wakeUp();
+		long start = System.currentTimeMillis();
+
+		// method under test
+		scheduler.await(60000L);
+
+		assertTrue(System.currentTimeMillis()-start<10000L);
+	}
+}
@@ -0,0 +1,79 @@
+package org.sagebionetworks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class AdminNotificationDigestTest {
+	private static final long WINDOW = 60000L;
+
+	private List<String> subjects;
+	private List<String> bodies;
+	private AdminNotificationDigest digest;
+
+	@Before
+	public void before() throws Exception {
+		subjects = new ArrayList<String>();
+		bodies = new ArrayList<String>();
+		digest = new AdminNotificationDigest(new AdminNotificationDigest.AdminMessageSender() {
+			@Override
+			public void send(String subject, String body) {
+				subjects.add(subject);
+				bodies.add(body);
+			}}, WINDOW);
+	}
+
+	private static Throwable fail(String message) {
+		return new IllegalStateException(message);
+	}
+
+	@Test
+	public void testRepeatsAreSummarized() throws Exception {
+		for (int i=0; i<100; i++) {
+			Throwable t = fail("submission "+i);
+			digest.notify("Failed", AdminNotificationDigest.fingerprint(t), ""+i, "first body", 1000L+i);
+		}
+		assertEquals(1, subjects.size());
+
+		// nothing to summarize until the window closes
+		digest.flush(1000L+WINDOW-1, false);
+		assertEquals(1, subjects.size());
+
+		// method under test
+		digest.flush(1000L+WINDOW, false);
+
+		assertEquals(2, subjects.size());
+		assertEquals("Failed (summary)", subjects.get(1));
+		assertTrue(bodies.get(1).contains("recurred 99 more time(s)"));
+		assertTrue(bodies.get(1).contains("1, 2, 3"));
+		assertTrue(bodies.get(1).contains("first body"));
+
+		// a later occurrence is sent straight away
+		digest.notify("Failed", AdminNotificationDigest.fingerprint(fail("again")), null, "later body", 1000L+WINDOW+1);
+		assertEquals(3, subjects.size());
+		assertEquals("later body", bodies.get(2));
+	}
+
+	@Test
+	public void testDistinctFailuresAreSentSeparately() throws Exception {
+		Throwable t1 = fail("foo");
+		Throwable t2 = new RuntimeException("foo");
+		assertNotEquals(AdminNotificationDigest.fingerprint(t1), AdminNotificationDigest.fingerprint(t2));
+
+		// method under test
+		digest.notify("Failed", AdminNotificationDigest.fingerprint(t1), null, "body1", 0L);
+		digest.notify("Failed", AdminNotificationDigest.fingerprint(t2), null, "body2", 0L);
+		digest.notify("Other", AdminNotificationDigest.fingerprint(t1), null, "body3", 0L);
+
+		assertEquals(3, subjects.size());
+		// no repeats, so no summaries
+		digest.flush(0L, true);
+		assertEquals(3, subjects.size());
+	}
+}
@@ -0,0 +1,155 @@
+package org.sagebionetworks;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.sagebionetworks.client.SynapseClient;
+
+/*
+ * Runs WorkflowHook.execute() in its own thread, with the given system properties,
+ * until the given condition holds or the time limit passes, and measures the time
+ * spent in each phase of the main loop and the heap used.  The properties are
+ * restored when the run is over.
+ *
+ * Used by the load and replay harnesses.
+ */
+public class AgentRunner {
+	private static final long SAMPLE_PERIOD_MILLIS = 250L;
+	public static final List<String> LOOP_PHASES = Arrays.asList("login", "create_jobs", "update_jobs", "wait");
+
+	public interface StopCondition {
+		boolean shouldStop();
+	}
+
+	/*
+	 * What was measured in a run
+	 */
+	public static class Measurements {
+		private long elapsedMillis;
+		private Map<String,Long> loopPhaseCounts = new LinkedHashMap<String,Long>();
+		private Map<String,Double> loopPhaseSeconds = new LinkedHashMap<String,Double>();
+		private long maxHeapUsedBytes;
+		private long finalHeapUsedBytes;
+
+		public long getElapsedMillis() {
+			return elapsedMillis;
+		}
+
+		public Map<String,Long> getLoopPhaseCounts() {
+			return loopPhaseCounts;
+		}
+
+		public Map<String,Double> getLoopPhaseSeconds() {
+			return loopPhaseSeconds;
+		}
+
+		public long getMaxHeapUsedBytes() {
+			return maxHeapUsedBytes;
+		}
+
+		public long getFinalHeapUsedBytes() {
+			return finalHeapUsedBytes;
+		}
+
+		public String loopPhasesToString() {
+			StringBuilder sb = new StringBuilder("Main loop:\n");
+			for (String phase : loopPhaseCounts.keySet()) {
+				long count = loopPhaseCounts.get(phase);
+				sb.append(String.format("  %-12s %6d passes %10.3f sec mean%n", phase, count,
+						count==0 ? 0D : loopPhaseSeconds.get(phase)/count));
+			}
+			return sb.toString();
+		}
+
+		public String heapToString() {
+			return String.format("Heap used: %.1f MB at most, %.1f MB after the run (after GC)%n",
+					maxHeapUsedBytes/1e6, finalHeapUsedBytes/1e6);
+		}
+	}
+
+	private Map<String,String> properties = new HashMap<String,String>();
+
+	public void setProperty(String name, String value) {
+		properties.put(name, value);
+	}
+
+	public Measurements run(final SynapseClient synapse, final DockerUtils dockerUtils, final long sleepTimeMillis,
+			long timeLimitMillis, StopCondition stopCondition) throws Throwable {
+		// Constants sets the shared folder to its default when loaded, so it must be loaded before we set it
+		Class.forName(Constants.class.getName());
+		Map<String,String> previousProperties = new HashMap<String,String>();
+		for (String key : properties.keySet()) {
+			previousProperties.put(key, System.getProperty(key));
+			System.setProperty(key, properties.get(key));
+		}
+		Configuration.reload();
+		try {
+			return run(synapse, dockerUtils, sleepTimeMillis, timeLimitMillis, stopCondition, ManagementFactory.getMemoryMXBean());
+		} finally {
+			for (String key : previousProperties.keySet()) {
+				if (previousProperties.get(key)==null) {
+					System.clearProperty(key);
+				} else {
+					System.setProperty(key, previousProperties.get(key));
+				}
+			}
+			Configuration.reload();
+		}
+	}
+
+	private Measurements run(final SynapseClient synapse, final DockerUtils dockerUtils, final long sleepTimeMillis,
+			long timeLimitMillis, StopCondition stopCondition, MemoryMXBean memory) throws Throwable {
+		Measurements measurements = new Measurements();
+		Map<String,Long> initialPhaseCounts = new HashMap<String,Long>();
+		Map<String,Double> initialPhaseSeconds = new HashMap<String,Double>();
+		for (String phase : LOOP_PHASES) {
+			initialPhaseCounts.put(phase, Metrics.LOOP_PHASE_SECONDS.getCount(phase));
+			initialPhaseSeconds.put(phase, Metrics.LOOP_PHASE_SECONDS.getSum(phase));
+		}
+
+		// the agent is created in the thread which runs it, since that's the thread a shut down interrupts
+		final WorkflowHook[] agent = new WorkflowHook[1];
+		final Throwable[] failure = new Throwable[1];
+		Thread agentThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					WorkflowHook workflowHook = new WorkflowHook(synapse, new EvaluationUtils(synapse),
+							dockerUtils, new SubmissionUtils(synapse), sleepTimeMillis);
+					synchronized (agent) {
+						agent[0] = workflowHook;
+					}
+					workflowHook.execute();
+				} catch (Throwable t) {
+					failure[0] = t;
+				}
+			}}, "agent-runner");
+
+		long start = System.currentTimeMillis();
+		agentThread.start();
+		while (agentThread.isAlive()) {
+			measurements.maxHeapUsedBytes = Math.max(measurements.maxHeapUsedBytes, memory.getHeapMemoryUsage().getUsed());
+			if (stopCondition.shouldStop() || System.currentTimeMillis()-start>timeLimitMillis) {
+				synchronized (agent) {
+					if (agent[0]!=null) agent[0].shutDown();
+				}
+			}
+			agentThread.join(SAMPLE_PERIOD_MILLIS);
+		}
+		measurements.elapsedMillis = System.currentTimeMillis()-start;
+		if (failure[0]!=null) throw failure[0];
+
+		for (String phase : LOOP_PHASES) {
+			measurements.loopPhaseCounts.put(phase, Metrics.LOOP_PHASE_SECONDS.getCount(phase)-initialPhaseCounts.get(phase));
+			measurements.loopPhaseSeconds.put(phase, Metrics.LOOP_PHASE_SECONDS.getSum(phase)-initialPhaseSeconds.get(phase));
+		}
+		System.gc();
+		measurements.finalHeapUsedBytes = memory.getHeapMemoryUsage().getUsed();
+		return measurements;
+	}
+}
@@ -0,0 +1,184 @@
+package org.sagebionetworks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+import org.sagebionetworks.client.SynapseClient;
+import org.sagebionetworks.client.exceptions.SynapseNotFoundException;
+import org.sagebionetworks.repo.model.ACCESS_TYPE;
+import org.sagebionetworks.repo.model.Folder;
+import org.sagebionetworks.repo.model.file.S3FileHandle;
+
+public class ArchiverTest {
+
+	@Test
+	public void testZipFileRange() throws Exception {
+		File source = File.createTempFile("log", ".txt");
+		File zipFile = File.createTempFile("log", ".zip");
+		try {
+			FileUtils.write(source, "already uploaded\nnew content\n", "UTF-8");
+			
+			String md5 = Archiver.zipFileRange(source, "already uploaded\n".length(), "log_part0001.txt", zipFile);
+			
+			try (ZipInputStream zis = new ZipInputStream(new FileInputStream(zipFile))) {
+				ZipEntry entry = zis.getNextEntry();
+				assertEquals("log_part0001.txt", entry.getName());
+				assertEquals("new content\n", IOUtils.toString(zis, "UTF-8"));
+			}
+			StringBuilder expectedMd5 = new StringBuilder();
+			for (byte b : MessageDigest.getInstance("MD5").digest(FileUtils.readFileToByteArray(zipFile))) {
+				expectedMd5.append(String.format("%02x", b));
+			}
+			assertEquals(expectedMd5.toString(), md5);
+		} finally {
+			source.delete();
+			zipFile.delete();
+		}
+	}
+
+	@Test(expected=IllegalStateException.class)
+	public void testUploadWithMismatchedMd5() throws Throwable {
+		File zipFile = File.createTempFile("log", ".zip");
+		try {
+			SynapseClient synapse = mock(SynapseClient.class);
+			S3FileHandle fileHandle = new S3FileHandle();
+			fileHandle.setId("101");
+			fileHandle.setContentMd5("0123456789abcdef0123456789abcdef");
+			when(synapse.multipartUpload(zipFile, null, true, false)).thenReturn(fileHandle);
+			Archiver archiver = new Archiver(synapse, null);
+			
+			archiver.uploadToSynapse(zipFile, "syn100", "fedcba9876543210fedcba9876543210");
+		} finally {
+			zipFile.delete();
+		}
+	}
+
+	@Test
+	public void testGetOrCreateFolderIsCached() throws Exception {
+		File cacheFile = File.createTempFile("provisioning", ".properties");
+		cacheFile.delete();
+		try {
+			SynapseClient synapse = mock(SynapseClient.class);
+			when(synapse.lookupChild("syn100", "folder")).thenThrow(new SynapseNotFoundException());
+			Folder created = new Folder();
+			created.setId("syn200");
+			when(synapse.createEntity(any(Folder.class))).thenReturn(created);
+			Archiver archiver = new Archiver(synapse, null, new EntityProvisioningCache(cacheFile, 10));
+			
+			assertEquals("syn200", archiver.getOrCreateFolder("folder", "syn100").getId());
+			assertEquals("syn200", archiver.getOrCreateFolder("folder", "syn100").getId());
+			verify(synapse).lookupChild("syn100", "folder");
+			verify(synapse).createEntity(any(Folder.class));
+			
+			// the cache survives a restart
+			SynapseClient synapse2 = mock(SynapseClient.class);
+			Archiver archiver2 = new Archiver(synapse2, null, new EntityProvisioningCache(cacheFile, 10));
+			assertEquals("syn200", archiver2.getOrCreateFolder("folder", "syn100").getId());
+			verifyNoMoreInteractions(synapse2);
+			
+			// once invalidated, the folder is looked up again
+			when(synapse2.lookupChild("syn100", "folder")).thenReturn("syn300");
+			archiver2.invalidateFolder(archiver2.getOrCreateFolder("folder", "syn100"));
+			assertEquals("syn300", archiver2.getOrCreateFolder("folder", "syn100").getId());
+			verify(synapse2).lookupChild("syn100", "folder");
+		} finally {
+			cacheFile.delete();
+		}
+	}
+
+	@Test
+	public void testShareEntityIsCached() throws Exception {
+		File cacheFile = File.createTempFile("provisioning", ".properties");
+		cacheFile.delete();
+		try {
+			SynapseClient synapse = mock(SynapseClient.class);
+			Archiver archiver = new Archiver(synapse, null, new EntityProvisioningCache(cacheFile, 10));
+			
+			assertFalse(archiver.shareEntity("syn200", Collections.singletonMap("111", Collections.singleton(ACCESS_TYPE.READ))));
+			assertFalse(archiver.shareEntity("syn200", Collections.singletonMap("111", Collections.singleton(ACCESS_TYPE.READ))));
+			verify(synapse, times(1)).getACL("syn200");
+		} finally {
+			cacheFile.delete();
+		}
+	}
+
+	@Test
+	public void testProvisioningCacheIsBounded() throws Exception {
+		File cacheFile = File.createTempFile("provisioning", ".properties");
+		cacheFile.delete();
+		try {
+			EntityProvisioningCache cache = new EntityProvisioningCache(cacheFile, 2);
+			cache.putFolderId("syn1", "a", "syn10");
+			cache.putFolderId("syn1", "b", "syn11");
+			cache.getFolderId("syn1", "a");
+			cache.putFolderId("syn1", "c", "syn12");
+			
+			assertEquals("syn10", cache.getFolderId("syn1", "a"));
+			assertEquals(null, cache.getFolderId("syn1", "b"));
+			assertEquals("syn12", cache.getFolderId("syn1", "c"));
+		} finally {
+			cacheFile.delete();
+		}
+	}
+
+	@Test
+	public void testCheckCachedFoldersOnLaunch() throws Exception {
+		File cacheFile = File.createTempFile("provisioning", ".properties");
+		cacheFile.delete();
+		System.setProperty("WORKFLOW_OUTPUT_ROOT_ENTITY_ID", "syn1234");
+		try {
+			EntityProvisioningCache cache = new EntityProvisioningCache(cacheFile, 10);
+			// the submitter folder has since been deleted, and recreated by someone else
+			cache.putFolderId("syn1234", "111", "syn10");
+			cache.setShared("syn10");
+			cache.putFolderId("syn10", "9999", "syn20");
+			SynapseClient synapse = mock(SynapseClient.class);
+			when(synapse.getACL("syn10")).thenThrow(new SynapseNotFoundException());
+			when(synapse.lookupChild("syn1234", "111")).thenReturn("syn11");
+			when(synapse.lookupChild("syn11", "9999")).thenThrow(new SynapseNotFoundException());
+			Folder created = new Folder();
+			created.setId("syn21");
+			when(synapse.createEntity(any(Folder.class))).thenReturn(created);
+			Archiver archiver = new Archiver(synapse, null, cache);
+			
+			// method under test
+			Folder folder = archiver.getOrCreateSubmissionUploadFolder("9999", "111", true, true);
+			
+			assertEquals("syn21", folder.getId());
+			assertEquals("syn11", folder.getParentId());
+			assertEquals("syn11", cache.getFolderId("syn1234", "111"));
+			assertTrue(cache.isShared("syn11"));
+			
+			// now the submission folder is deleted
+			when(synapse.getEntity("syn21", Folder.class)).thenThrow(new SynapseNotFoundException());
+			doReturn("syn22").when(synapse).lookupChild("syn11", "9999");
+			
+			assertEquals("syn22", archiver.getOrCreateSubmissionUploadFolder("9999", "111", true, true).getId());
+			
+			// without the check, what's remembered is used
+			assertEquals("syn22", archiver.getOrCreateSubmissionUploadFolder("9999", "111", true).getId());
+			verify(synapse, times(2)).getACL("syn11");
+		} finally {
+			System.clearProperty("WORKFLOW_OUTPUT_ROOT_ENTITY_ID");
+			cacheFile.delete();
+		}
+	}
+}
@@ -0,0 +1,110 @@
+package org.sagebionetworks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.sagebionetworks.Constants.CONFIGURATION_FILE_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.EVALUATION_TEMPLATES_PROPERTY_NAME;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ConfigurationTest {
+	private File file;
+
+	@Before
+	public void before() throws Exception {
+		file = File.createTempFile("agent", ".properties");
+		System.setProperty(CONFIGURATION_FILE_PROPERTY_NAME, file.getAbsolutePath());
+	}
+
+	@After
+	public void after() throws Exception {
+		System.clearProperty(CONFIGURATION_FILE_PROPERTY_NAME);
+		System.clearProperty(EVALUATION_TEMPLATES_PROPERTY_NAME);
+		file.delete();
+		Configuration.reload();
+	}
+
+	private void writeFile(String content) throws Exception {
+		long lastModified = file.lastModified();
+		FileUtils.write(file, content, "UTF-8");
+		// make sure the change is seen, however coarse the file system's timestamps
+		file.setLastModified(lastModified+2000L);
+	}
+
+	@Test
+	public void testReloadIfChanged() throws Exception {
+		writeFile("ACCEPT_NEW_SUBMISSIONS=true\nEVALUATION_TEMPLATES={\"101\":\"syn202\"}\n");
+		Configuration.reload();
+		assertTrue(Configuration.current().isAcceptNewSubmissions());
+		assertEquals(Arrays.asList("101"), Configuration.current().getEvaluationIds());
+		assertFalse(Configuration.reloadIfChanged());
+
+		writeFile("ACCEPT_NEW_SUBMISSIONS=false\nEVALUATION_TEMPLATES={\"101\":\"syn202\"}\n");
+
+		// method under test
+		assertTrue(Configuration.reloadIfChanged());
+
+		assertFalse(Configuration.current().isAcceptNewSubmissions());
+	}
+
+	@Test
+	public void testInvalidChangeIsRejected() throws Exception {
+		writeFile("MAX_CONCURRENT_WORKFLOWS=5\n");
+		Configuration.reload();
+		Configuration before = Configuration.current();
+
+		writeFile("MAX_CONCURRENT_WORKFLOWS=five\n");
+
+		// method under test
+		assertFalse(Configuration.reloadIfChanged());
+
+		assertTrue(before==Configuration.current());
+		assertEquals(5, Configuration.current().getMaxConcurrentWorkflows());
+	}
+
+	@Test
+	public void testSystemPropertyTakesPrecedence() throws Exception {
+		writeFile("EVALUATION_TEMPLATES={\"101\":\"syn202\"}\n");
+		System.setProperty(EVALUATION_TEMPLATES_PROPERTY_NAME, "{\"303\":\"syn404\"}");
+
+		// method under test
+		Configuration.reload();
+
+		assertEquals("syn404", Configuration.current().getEvaluationTemplates().get("303"));
+		assertEquals(1, Configuration.current().getEvaluationTemplates().size());
+	}
+
+	@Test
+	public void testFractionalProgressUpdateDelta() throws Exception {
+		writeFile("PROGRESS_UPDATE_DELTA=0.5\n");
+
+		// method under test
+		Configuration.reload();
+
+		assertEquals(0.5D, Configuration.current().getProgressUpdateDelta(), 0D);
+	}
+
+	@Test
+	public void testInvalidSettingDoesNotHideOthers() throws Exception {
+		writeFile("MAX_CONCURRENT_WORKFLOWS=five\nDOCKER_ENGINE_URL=unix:///var/run/other.sock\n");
+		Configuration.clear();
+
+		// method under test
+		assertEquals("unix:///var/run/other.sock", Utils.getProperty("DOCKER_ENGINE_URL", false));
+
+		try {
+			Configuration.current();
+			fail("exception expected");
+		} catch (IllegalArgumentException e) {
+			// as expected
+		}
+	}
+}
@@ -0,0 +1,188 @@
+package org.sagebionetworks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.Closeable;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+
+import com.github.dockerjava.api.async.ResultCallback;
+import com.github.dockerjava.api.model.Container;
+import com.github.dockerjava.api.model.Event;
+import com.github.dockerjava.api.model.EventActor;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ContainerEventMonitorTest {
+	
+	@Mock
+	private DockerUtils mockDockerUtils;
+	
+	@Mock
+	private Container mockRunningContainer;
+	
+	@Mock
+	private Container mockExitedContainer;
+	
+	@Mock
+	private Closeable mockStream;
+	
+	private ContainerEventMonitor monitor;
+	
+	private int completions;
+	
+	private static final Filter WORKFLOW_FILTER = new Filter() {
+		public boolean match(String s) {
+			return s.startsWith("workflow_job");
+		}
+	};
+	
+	@Before
+	public void setUp() throws Exception {
+		when(mockRunningContainer.getId()).thenReturn("id1");
+		when(mockRunningContainer.getStatus()).thenReturn("Up 2 hours");
+		when(mockExitedContainer.getId()).thenReturn("id2");
+		when(mockExitedContainer.getStatus()).thenReturn("Exited (1) 5 minutes ago");
+		Map<String,Container> containers = new HashMap<String,Container>();
+		containers.put("workflow_job1", mockRunningContainer);
+		containers.put("workflow_job2", mockExitedContainer);
+		when(mockDockerUtils.listContainers(WORKFLOW_FILTER)).thenReturn(containers);
+		
+		monitor = new ContainerEventMonitor(mockDockerUtils, WORKFLOW_FILTER);
+		completions = 0;
+		monitor.setCompletionListener(new Runnable() {
+			@Override
+			public void run() {
+				completions++;
+			}});
+	}
+	
+	private static Event createEvent(String action, String id, String name, String exitCode) {
+		Map<String,String> attributes = new HashMap<String,String>();
+		attributes.put("name", name);
+		if (exitCode!=null) attributes.put("exitCode", exitCode);
+		EventActor actor = new EventActor().withId(id).withAttributes(attributes);
+		return new Event(action, id, "some/image", System.currentTimeMillis()/1000L).withAction(action).withEventActor(actor);
+	}
+	
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testNotCurrentUntilSubscriptionStarts() throws Exception {
+		assertFalse(monitor.refresh());
+		assertNull(monitor.getContainers());
+		verify(mockDockerUtils).subscribeToContainerEvents(any(ResultCallback.class), anyString(), 
+				anyString(), anyString(), anyString(), anyString(), anyString());
+		
+		// we don't ask again while the request is pending
+		assertFalse(monitor.refresh());
+		verify(mockDockerUtils, times(1)).subscribeToContainerEvents(any(ResultCallback.class), anyString(), 
+				anyString(), anyString(), anyString(), anyString(), anyString());
+		
+		monitor.onStart(mockStream);
+		assertTrue(monitor.refresh());
+		assertEquals(2, monitor.getContainers().size());
+		
+		monitor.onError(new RuntimeException());
+		assertNull(monitor.getContainer("workflow_job1"));
+		assertFalse(monitor.refresh());
+	}
+
+	@Test
+	public void testSeedFromContainerList() throws Exception {
+		monitor.onStart(mockStream);
+		assertEquals(new TrackedContainer("id1", "workflow_job1", true, null), monitor.getContainer("workflow_job1"));
+		assertEquals(new TrackedContainer("id2", "workflow_job2", false, 1), monitor.getContainer("workflow_job2"));
+	}
+
+	@Test
+	public void testSubscriptionStartWaitsForRefresh() throws Exception {
+		Thread callback = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				monitor.onStart(mockStream);
+			}});
+		synchronized (monitor) {
+			// as if refresh() were in progress
+			callback.start();
+			callback.join(200L);
+			assertTrue(callback.isAlive());
+			verify(mockDockerUtils, never()).listContainers(WORKFLOW_FILTER);
+		}
+		callback.join(10000L);
+		assertEquals(2, monitor.getContainers().size());
+	}
+
+	@Test
+	public void testEventDuringListingNotOverwritten() throws Exception {
+		final Map<String,Container> containers = new HashMap<String,Container>();
+		containers.put("workflow_job1", mockRunningContainer);
+		final Thread[] eventThread = new Thread[1];
+		when(mockDockerUtils.listContainers(WORKFLOW_FILTER)).thenAnswer(new Answer<Map<String,Container>>() {
+			@Override
+			public Map<String,Container> answer(InvocationOnMock invocation) throws Throwable {
+				// the container exits after being listed as running, but before the table is rebuilt
+				eventThread[0] = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						monitor.onNext(createEvent("die", "id1", "workflow_job1", "137"));
+					}});
+				eventThread[0].start();
+				eventThread[0].join(200L);
+				return containers;
+			}});
+
+		// method under test
+		monitor.onStart(mockStream);
+
+		eventThread[0].join(10000L);
+		assertEquals(new TrackedContainer("id1", "workflow_job1", false, 137), monitor.getContainer("workflow_job1"));
+		assertEquals(1, completions);
+	}
+
+	@Test
+	public void testApplyEvents() throws Exception {
+		monitor.onStart(mockStream);
+		
+		monitor.onNext(createEvent("start", "id3", "workflow_job3", null));
+		assertEquals(new TrackedContainer("id3", "workflow_job3", true, null), monitor.getContainer("workflow_job3"));
+		assertEquals(0, completions);
+		
+		monitor.onNext(createEvent("die", "id3", "workflow_job3", "137"));
+		assertEquals(new TrackedContainer("id3", "workflow_job3", false, 137), monitor.getContainer("workflow_job3"));
+		assertEquals(1, completions);
+		
+		monitor.onNext(createEvent("destroy", "id3", "workflow_job3", null));
+		assertNull(monitor.getContainer("workflow_job3"));
+		
+		// containers other than workflow jobs are ignored
+		monitor.onNext(createEvent("start", "id4", "some_other_container", null));
+		assertNull(monitor.getContainer("some_other_container"));
+		assertEquals(2, monitor.getContainers().size());
+	}
+	
+	@Test
+	public void testParseContainerStatus() throws Exception {
+		assertTrue(ContainerEventMonitor.isRunning("Up 3 seconds"));
+		assertFalse(ContainerEventMonitor.isRunning("Exited (0) 2 days ago"));
+		assertEquals(new Integer(0), ContainerEventMonitor.getExitCode("Exited (0) 2 days ago"));
+		assertNull(ContainerEventMonitor.isRunning("Created"));
+		assertNull(ContainerEventMonitor.getExitCode("Created"));
+	}
+
+}
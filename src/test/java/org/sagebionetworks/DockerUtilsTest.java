@@ -1,23 +1,216 @@
 package org.sagebionetworks;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 
 import java.io.FileInputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import com.github.dockerjava.api.model.Bind;
 import com.github.dockerjava.api.model.Container;
 import com.github.dockerjava.api.model.Device;
 
 public class DockerUtilsTest {
+	// a stubbed registry
+	private static final String MANIFEST_URL = "https://docker.synapse.org/v2/syn5644795/dm-trivial-model/manifests/latest";
+	private static final String BLOBS_URL = "https://docker.synapse.org/v2/syn5644795/dm-trivial-model/blobs/";
+	private static final String LAYER_URL = BLOBS_URL+"sha256:144e61df";
+	private static final String REDIRECT_PREFIX = "https://s3.amazonaws.com/layers/";
+	private static final String REDIRECT_URL = REDIRECT_PREFIX+"sha256:144e61df";
+	private static final String TOKEN_URL = "https://docker.synapse.org/token";
+	private static final long START = 1000000000000L;
+
+	private DockerUtils registryDockerUtils;
+	private long now;
+	// the token the registry currently accepts, and how long those it issues last
+	private String currentToken;
+	private long expiresIn;
+	private int tokensIssued;
+	private List<String> requests;
+	private Map<String,Long> layerSizes;
+	private String manifest;
+	// layer probes in progress, the most at once, and a barrier to hold them until there are two
+	private AtomicInteger probes;
+	private int maxProbes;
+	private CountDownLatch probeBarrier;
+
+	private static HttpResponse response(int status, String body) throws Exception {
+		HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, status, "");
+		if (body!=null) response.setEntity(new StringEntity(body));
+		return response;
+	}
+
+	private HttpResponse respond(HttpUriRequest request) throws Exception {
+		String url = request.getURI().toString();
+		requests.add(request.getMethod()+" "+url);
+		if (url.startsWith(TOKEN_URL)) {
+			assertEquals("Basic dXNlcjpwYXNzd29yZA==", request.getFirstHeader("Authorization").getValue());
+			currentToken = "token"+(++tokensIssued);
+			return response(200, new JSONObject().put("token", currentToken).put("expires_in", expiresIn).toString());
+		}
+		if (url.startsWith(REDIRECT_PREFIX)) {
+			synchronized (this) {
+				maxProbes = Math.max(maxProbes, probes.incrementAndGet());
+			}
+			probeBarrier.countDown();
+			probeBarrier.await(2L, TimeUnit.SECONDS);
+			probes.decrementAndGet();
+			HttpResponse response = response(200, null);
+			response.addHeader("Content-Length", layerSizes.get(url.substring(REDIRECT_PREFIX.length())).toString());
+			return response;
+		}
+		if (request.getFirstHeader("Authorization")==null ||
+				!request.getFirstHeader("Authorization").getValue().equals("Bearer "+currentToken)) {
+			HttpResponse response = response(401, "");
+			response.addHeader("Www-Authenticate", "Bearer realm=\""+TOKEN_URL+"\",service=\"docker.synapse.org\",scope=\"repository:syn5644795/dm-trivial-model:pull\"");
+			return response;
+		}
+		if (url.startsWith(BLOBS_URL)) {
+			HttpResponse response = response(307, "");
+			response.addHeader("Location", REDIRECT_PREFIX+url.substring(BLOBS_URL.length()));
+			return response;
+		}
+		return response(200, manifest);
+	}
+
+	@Before
+	public void before() throws Exception {
+		System.setProperty(Constants.SYNAPSE_USERNAME_PROPERTY, "user");
+		System.setProperty(Constants.SYNAPSE_PASSWORD_PROPERTY, "password");
+		now = START;
+		Clock.setClock(new Clock() {
+			@Override
+			public long currentTimeMillis() {
+				return now;
+			}});
+		expiresIn = 300L;
+		tokensIssued = 0;
+		requests = Collections.synchronizedList(new ArrayList<String>());
+		layerSizes = new HashMap<String,Long>();
+		layerSizes.put("sha256:144e61df", 1234L);
+		manifest = "{\"schemaVersion\":2}";
+		probes = new AtomicInteger();
+		maxProbes = 0;
+		probeBarrier = new CountDownLatch(1);
+		HttpClient httpClient = mock(HttpClient.class);
+		when(httpClient.execute(any(HttpUriRequest.class))).thenAnswer(new Answer<HttpResponse>() {
+			@Override
+			public HttpResponse answer(InvocationOnMock invocation) throws Throwable {
+				return respond((HttpUriRequest)invocation.getArguments()[0]);
+			}});
+		DockerUtils.setRegistryHttpClients(httpClient, httpClient);
+		registryDockerUtils = new DockerUtils(null, null);
+	}
+
+	@After
+	public void after() throws Exception {
+		DockerUtils.setRegistryHttpClients(null, null);
+		Clock.setClock(new Clock());
+		System.clearProperty(Constants.SYNAPSE_USERNAME_PROPERTY);
+		System.clearProperty(Constants.SYNAPSE_PASSWORD_PROPERTY);
+	}
+
+	@Test
+	public void testTokenIsCached() throws Exception {
+		// method under test
+		assertEquals(2, registryDockerUtils.registryRequest(new HttpGet(MANIFEST_URL), 200).getInt("schemaVersion"));
+		assertEquals(2, registryDockerUtils.registryRequest(new HttpGet(MANIFEST_URL), 200).getInt("schemaVersion"));
+
+		// the challenge and the token are each requested once
+		assertEquals(4, requests.size());
+		assertEquals("GET "+MANIFEST_URL, requests.get(0));
+		assertEquals(1, tokensIssued);
+	}
+
+	@Test
+	public void testTokenRenewedBeforeExpiry() throws Exception {
+		expiresIn = 60L;
+		registryDockerUtils.registryRequest(new HttpGet(MANIFEST_URL), 200);
+		// within the token's life, less the margin
+		now = START+49000L;
+		registryDockerUtils.registryRequest(new HttpGet(MANIFEST_URL), 200);
+		assertEquals(1, tokensIssued);
+
+		// method under test:  the token still has 10 seconds to run, but that's too close to call
+		now = START+50000L;
+		registryDockerUtils.registryRequest(new HttpGet(MANIFEST_URL), 200);
+
+		assertEquals(2, tokensIssued);
+	}
+
+	@Test
+	public void testRejectedTokenReplaced() throws Exception {
+		registryDockerUtils.registryRequest(new HttpGet(MANIFEST_URL), 200);
+		// the registry revokes the token we hold
+		currentToken = "revoked";
+		requests.clear();
+
+		// method under test
+		assertEquals(2, registryDockerUtils.registryRequest(new HttpGet(MANIFEST_URL), 200).getInt("schemaVersion"));
+
+		// rejected, then a new token, then accepted
+		assertEquals(3, requests.size());
+		assertEquals(2, tokensIssued);
+		assertEquals("token2", currentToken);
+	}
+
+	@Test
+	public void testGetCompressedLayerSize() throws Exception {
+		// method under test
+		assertEquals(1234L, registryDockerUtils.getCompressedLayerSize(LAYER_URL));
+
+		assertEquals("HEAD "+REDIRECT_URL, requests.get(requests.size()-1));
+		requests.clear();
+		// a second layer of the same repository reuses the token
+		assertEquals(1234L, registryDockerUtils.getCompressedLayerSize(LAYER_URL));
+		assertEquals(2, requests.size());
+		assertEquals(1, tokensIssued);
+	}
+
+	@Test
+	public void testGetCompressedImageSize() throws Exception {
+		layerSizes.put("sha256:aaaa", 100L);
+		layerSizes.put("sha256:bbbb", 20L);
+		manifest = "{\"schemaVersion\":1,\"fsLayers\":[{\"blobSum\":\"sha256:aaaa\"},{\"blobSum\":\"sha256:bbbb\"},{\"blobSum\":\"sha256:aaaa\"}]}";
+		probeBarrier = new CountDownLatch(2);
+
+		// method under test
+		long size = registryDockerUtils.getCompressedImageSize("docker.synapse.org", "syn5644795/dm-trivial-model", "latest");
+
+		// each distinct layer counted once
+		assertEquals(120L, size);
+		// the layers were probed at the same time
+		assertEquals(2, maxProbes);
+		assertEquals(1, tokensIssued);
+	}
 
 	@Ignore
 	@Test
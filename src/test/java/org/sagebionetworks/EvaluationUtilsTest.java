@@ -1,16 +1,32 @@
 package org.sagebionetworks;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.sagebionetworks.Constants.EXECUTION_STAGE_PROPERTY_NAME;
+import static org.sagebionetworks.EvaluationUtils.JOB_LAST_UPDATED_TIME_STAMP;
+import static org.sagebionetworks.EvaluationUtils.PROGRESS;
+import static org.sagebionetworks.EvaluationUtils.throttleRoutineUpdates;
 import static org.sagebionetworks.EvaluationUtils.applyModifications;
 import static org.sagebionetworks.EvaluationUtils.removeAnnotation;
 import static org.sagebionetworks.EvaluationUtils.setAnnotation;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 
 import org.junit.Test;
+import org.sagebionetworks.client.SynapseClient;
+import org.sagebionetworks.evaluation.model.Submission;
+import org.sagebionetworks.evaluation.model.SubmissionBundle;
 import org.sagebionetworks.evaluation.model.SubmissionStatus;
 import org.sagebionetworks.evaluation.model.SubmissionStatusEnum;
+import org.sagebionetworks.reflection.model.PaginatedResults;
 import org.sagebionetworks.repo.model.annotation.Annotations;
 import org.sagebionetworks.repo.model.annotation.StringAnnotation;
 
@@ -20,6 +36,7 @@ public class EvaluationUtilsTest {
 	@Test
 	public void testGetInitialSubmissionState() throws Exception {
 		System.setProperty(EXECUTION_STAGE_PROPERTY_NAME, "");
+		Configuration.reload();
 		assertEquals(SubmissionStatusEnum.RECEIVED, EvaluationUtils.getInitialSubmissionState());
 	}
 	
@@ -77,6 +94,157 @@ public class EvaluationUtilsTest {
 		
 		assertEquals(expected, actual);
 	}
-	
 
+	@SuppressWarnings("unchecked")
+	private static PaginatedResults<SubmissionBundle> createPage(int firstId, int count, long total, SubmissionStatusEnum state) {
+		List<SubmissionBundle> bundles = new ArrayList<SubmissionBundle>();
+		for (int i=firstId; i<firstId+count; i++) {
+			SubmissionBundle bundle = new SubmissionBundle();
+			Submission submission = new Submission();
+			submission.setId(""+i);
+			bundle.setSubmission(submission);
+			SubmissionStatus status = new SubmissionStatus();
+			status.setStatus(state);
+			bundle.setSubmissionStatus(status);
+			bundles.add(bundle);
+		}
+		PaginatedResults<SubmissionBundle> page = mock(PaginatedResults.class);
+		when(page.getResults()).thenReturn(bundles);
+		when(page.getTotalNumberOfResults()).thenReturn(total);
+		return page;
+	}
+	
+	@Test
+	public void testSelectSubmissionsFetchesAllPages() throws Exception {
+		SynapseClient synapse = mock(SynapseClient.class);
+		SubmissionStatusEnum state = SubmissionStatusEnum.RECEIVED;
+		PaginatedResults<SubmissionBundle> page1 = createPage(0, 2, 5L, state);
+		when(synapse.getAllSubmissionBundlesByStatus("101", state, 0L, 2L)).thenReturn(page1);
+		PaginatedResults<SubmissionBundle> page2 = createPage(2, 2, 5L, state);
+		when(synapse.getAllSubmissionBundlesByStatus("101", state, 2L, 2L)).thenReturn(page2);
+		PaginatedResults<SubmissionBundle> page3 = createPage(4, 1, 5L, state);
+		when(synapse.getAllSubmissionBundlesByStatus("101", state, 4L, 2L)).thenReturn(page3);
+		EvaluationUtils evaluationUtils = new EvaluationUtils(synapse, 2);
+		
+		// method under test
+		List<SubmissionBundle> result = evaluationUtils.selectSubmissions("101", state);
+		
+		assertEquals(5, result.size());
+		for (int i=0; i<5; i++) assertEquals(""+i, result.get(i).getSubmission().getId());
+		verify(synapse).getAllSubmissionBundlesByStatus("101", state, 4L, 2L);
+	}
+	
+	@Test
+	public void testInstancesSharePageFetchThreads() throws Exception {
+		SynapseClient synapse = mock(SynapseClient.class);
+		SubmissionStatusEnum state = SubmissionStatusEnum.RECEIVED;
+		for (int offset=0; offset<20; offset+=2) {
+			PaginatedResults<SubmissionBundle> page = createPage(offset, 2, 20L, state);
+			when(synapse.getAllSubmissionBundlesByStatus("101", state, (long)offset, 2L)).thenReturn(page);
+		}
+		
+		for (int i=0; i<10; i++) {
+			assertEquals(20, (new EvaluationUtils(synapse, 2)).selectSubmissions("101", state).size());
+		}
+		
+		int pageFetchThreads = 0;
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (thread.getName().startsWith("submission-page-fetch-")) pageFetchThreads++;
+		}
+		assertTrue(pageFetchThreads<=Constants.DEFAULT_SUBMISSION_PAGE_FETCH_CONCURRENCY);
+	}
+	
+	@Test(expected=IllegalStateException.class)
+	public void testSelectSubmissionsRejectsDuplicates() throws Exception {
+		SynapseClient synapse = mock(SynapseClient.class);
+		SubmissionStatusEnum state = SubmissionStatusEnum.RECEIVED;
+		PaginatedResults<SubmissionBundle> page1 = createPage(0, 2, 4L, state);
+		when(synapse.getAllSubmissionBundlesByStatus("101", state, 0L, 2L)).thenReturn(page1);
+		PaginatedResults<SubmissionBundle> page2 = createPage(1, 2, 4L, state);
+		when(synapse.getAllSubmissionBundlesByStatus("101", state, 2L, 2L)).thenReturn(page2);
+		EvaluationUtils evaluationUtils = new EvaluationUtils(synapse, 2);
+		
+		// method under test
+		evaluationUtils.selectSubmissions("101", state);
+	}
+	
+	@Test
+	public void testAnnotationIndex() throws Exception {
+		SubmissionStatus status = new SubmissionStatus();
+		setAnnotation(status, "foo1", "bar", false);
+		setAnnotation(status, "foo2", 1L, true);
+		List<StringAnnotation> stringAnnos = status.getAnnotations().getStringAnnos();
+		
+		AnnotationIndex index = new AnnotationIndex(status);
+		assertEquals("bar", index.getString("foo1"));
+		assertEquals(new Long(1L), index.getLong("foo2"));
+		assertNull(index.getString("foo2"));
+		
+		// changing a value doesn't rebuild the list
+		index.setString("foo1", "baz", false);
+		index.writeTo(status);
+		assertSame(stringAnnos, status.getAnnotations().getStringAnnos());
+		assertEquals("baz", EvaluationUtils.getStringAnnotation(status, "foo1"));
+		
+		// adding and removing do
+		index.setDouble("foo3", 3.14D, false);
+		index.remove("foo2");
+		index.writeTo(status);
+		assertEquals(new Double(3.14D), status.getAnnotations().getDoubleAnnos().get(0).getValue());
+		assertEquals(0, status.getAnnotations().getLongAnnos().size());
+		assertNull(EvaluationUtils.getLongAnnotation(status, "foo2"));
+	}
+	
+	@Test
+	public void testIsNoOp() throws Exception {
+		SubmissionStatus status = new SubmissionStatus();
+		status.setStatus(SubmissionStatusEnum.EVALUATION_IN_PROGRESS);
+		setAnnotation(status, "foo1", "bar", false);
+		
+		SubmissionStatusModifications statusMods = new SubmissionStatusModifications();
+		statusMods.setStatus(SubmissionStatusEnum.EVALUATION_IN_PROGRESS);
+		setAnnotation(statusMods, "foo1", "bar", false);
+		removeAnnotation(statusMods, "foo2");
+		assertTrue(statusMods.isNoOp(status));
+		
+		setAnnotation(statusMods, "foo1", "bar", true);
+		assertFalse(statusMods.isNoOp(status));
+		
+		statusMods = new SubmissionStatusModifications();
+		removeAnnotation(statusMods, "foo1");
+		assertFalse(statusMods.isNoOp(status));
+		
+		statusMods = new SubmissionStatusModifications();
+		statusMods.setStatus(SubmissionStatusEnum.ACCEPTED);
+		assertFalse(statusMods.isNoOp(status));
+	}
+	
+	@Test
+	public void testThrottleRoutineUpdates() throws Exception {
+		long now = 1000000L;
+		SubmissionStatus status = new SubmissionStatus();
+		setAnnotation(status, JOB_LAST_UPDATED_TIME_STAMP, now-10000L, false);
+		setAnnotation(status, PROGRESS, 50.0D, false);
+		
+		// just a heartbeat and a small change in progress:  skip
+		SubmissionStatusModifications statusMods = new SubmissionStatusModifications();
+		setAnnotation(statusMods, JOB_LAST_UPDATED_TIME_STAMP, now, false);
+		setAnnotation(statusMods, PROGRESS, 50.5D, false);
+		assertFalse(throttleRoutineUpdates(status, statusMods, now, 60000L, 1.0D));
+		
+		// progress has moved enough:  write it with the time stamp
+		statusMods = new SubmissionStatusModifications();
+		setAnnotation(statusMods, JOB_LAST_UPDATED_TIME_STAMP, now, false);
+		setAnnotation(statusMods, PROGRESS, 52.0D, false);
+		assertTrue(throttleRoutineUpdates(status, statusMods, now, 60000L, 1.0D));
+		assertEquals(2, statusMods.getAnnotationsToAdd().size());
+		
+		// the heartbeat is due:  write, but not the small change in progress
+		statusMods = new SubmissionStatusModifications();
+		setAnnotation(statusMods, JOB_LAST_UPDATED_TIME_STAMP, now, false);
+		setAnnotation(statusMods, PROGRESS, 50.5D, false);
+		assertTrue(throttleRoutineUpdates(status, statusMods, now, 5000L, 1.0D));
+		assertEquals(1, statusMods.getAnnotationsToAdd().size());
+		assertNull(statusMods.getAnnotationToAdd(PROGRESS));
+	}
 }
@@ -0,0 +1,446 @@
+package org.sagebionetworks;
+
+import static org.sagebionetworks.Clock.getClock;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.dockerjava.api.async.ResultCallback;
+import com.github.dockerjava.api.command.InspectContainerResponse;
+import com.github.dockerjava.api.command.InspectContainerResponse.ContainerState;
+import com.github.dockerjava.api.model.Bind;
+import com.github.dockerjava.api.model.Container;
+import com.github.dockerjava.api.model.Device;
+import com.github.dockerjava.api.model.Event;
+import com.github.dockerjava.api.model.EventActor;
+import com.github.dockerjava.api.model.Frame;
+import com.github.dockerjava.api.model.Info;
+import com.github.dockerjava.api.model.StreamType;
+
+/*
+ * A simulated Docker engine, for running the agent without one.  No containers are
+ * actually run:  each 'workflow' simply runs for a random time between the given
+ * minimum and maximum, writing a line of output every 'log line interval',
+ * and then exits, with a non-zero exit code with the given probability.  As with
+ * the real engine, 'start', 'die' and 'destroy' events are sent to subscribers.
+ *
+ * Each operation takes the given latency, and pulling an image the given time.
+ * All times are kept by the agent's Clock, so the engine may be run in virtual time.
+ */
+public class FakeDockerUtils extends DockerUtils {
+	private static final long DEFAULT_LOG_LINE_INTERVAL_MILLIS = 100L;
+	private static final int FAILURE_EXIT_CODE = 1;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private long latencyMillis;
+	private long pullMillis;
+	private long minDurationMillis;
+	private long maxDurationMillis;
+	private double failureProbability;
+	private String volumeMountPoint;
+	private Random random = new Random(0L);
+	private ObjectMapper objectMapper = new ObjectMapper();
+	private long logLineIntervalMillis = DEFAULT_LOG_LINE_INTERVAL_MILLIS;
+	private ExecutorService executor;
+	// stops containers when their time is up
+	private final Object exitLock = new Object();
+	private Thread exitThread = null;
+
+	private ConcurrentMap<String,FakeContainer> containers = new ConcurrentHashMap<String,FakeContainer>(); // keyed by ID
+	private ConcurrentMap<String,Boolean> images = new ConcurrentHashMap<String,Boolean>();
+	private volatile ResultCallback<Event> eventSubscriber = null;
+
+	private AtomicInteger running = new AtomicInteger();
+	private AtomicInteger maxRunning = new AtomicInteger();
+	private AtomicLong containersStarted = new AtomicLong();
+	private AtomicLong imagePulls = new AtomicLong();
+
+	private static class FakeContainer {
+		String id;
+		volatile String name;
+		long startedAt = 0L;
+		long durationMillis;
+		volatile boolean running = false;
+		volatile Integer exitCode = null;
+		volatile long stoppedAt = 0L;
+		int exitCodeWhenDone;
+	}
+
+	public FakeDockerUtils(long latencyMillis, long pullMillis, long minDurationMillis, long maxDurationMillis,
+			double failureProbability, File volumeMountPoint) {
+		super(null, null);
+		if (minDurationMillis>maxDurationMillis) throw new IllegalArgumentException("Minimum duration exceeds the maximum.");
+		this.latencyMillis=latencyMillis;
+		this.pullMillis=pullMillis;
+		this.minDurationMillis=minDurationMillis;
+		this.maxDurationMillis=maxDurationMillis;
+		this.failureProbability=failureProbability;
+		this.volumeMountPoint=volumeMountPoint.getAbsolutePath();
+		this.executor = Executors.newCachedThreadPool(new ThreadFactory() {
+			private AtomicInteger threadCount = new AtomicInteger(0);
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "fake-docker-"+threadCount.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}});
+	}
+
+	/*
+	 * The most containers running at once
+	 */
+	public int getMaxRunning() {
+		return maxRunning.get();
+	}
+
+	public long getContainersStarted() {
+		return containersStarted.get();
+	}
+
+	public long getImagePulls() {
+		return imagePulls.get();
+	}
+
+	public void setLogLineIntervalMillis(long logLineIntervalMillis) {
+		this.logLineIntervalMillis = logLineIntervalMillis;
+	}
+
+	public void shutdown() {
+		executor.shutdownNow();
+		synchronized (exitLock) {
+			if (exitThread!=null) exitThread.interrupt();
+		}
+	}
+
+	private void pause(long millis) {
+		try {
+			getClock().sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+	}
+
+	private FakeContainer getContainer(String containerId) {
+		FakeContainer container = containers.get(containerId);
+		if (container==null) throw new IllegalArgumentException("No such container: "+containerId);
+		return container;
+	}
+
+	private void sendEvent(String action, FakeContainer container) {
+		ResultCallback<Event> subscriber = eventSubscriber;
+		if (subscriber==null) return;
+		Map<String,String> attributes = new HashMap<String,String>();
+		attributes.put("name", container.name);
+		if (container.exitCode!=null) attributes.put("exitCode", container.exitCode.toString());
+		Event event = new Event(action, container.id, null, getClock().currentTimeMillis()/1000L)
+				.withAction(action)
+				.withEventActor(new EventActor().withId(container.id).withAttributes(attributes));
+		subscriber.onNext(event);
+	}
+
+	/*
+	 * Stop the given container with the given exit code, unless it has already stopped
+	 */
+	private void exit(FakeContainer container, int exitCode) {
+		synchronized (container) {
+			if (!container.running) return;
+			container.running = false;
+			container.exitCode = exitCode;
+			container.stoppedAt = getClock().currentTimeMillis();
+		}
+		running.decrementAndGet();
+		sendEvent("die", container);
+	}
+
+	/*
+	 * Stop each running container when its time is up.  The thread is started by the first
+	 * container to run, so it belongs to the agent's thread group, as a simulation may require.
+	 */
+	private void runExits() {
+		Clock clock = getClock();
+		try {
+			while (true) {
+				List<FakeContainer> due = new ArrayList<FakeContainer>();
+				synchronized (exitLock) {
+					long now = clock.currentTimeMillis();
+					long next = Long.MAX_VALUE;
+					for (FakeContainer container : containers.values()) {
+						if (!container.running) continue;
+						long exitAt = container.startedAt+container.durationMillis;
+						if (exitAt<=now) {
+							due.add(container);
+						} else {
+							next = Math.min(next, exitAt);
+						}
+					}
+					if (due.isEmpty()) {
+						if (next==Long.MAX_VALUE) {
+							exitLock.wait();
+						} else {
+							clock.await(exitLock, next-now);
+						}
+						continue;
+					}
+				}
+				for (FakeContainer container : due) exit(container, container.exitCodeWhenDone);
+			}
+		} catch (InterruptedException e) {
+			// shut down
+		}
+	}
+
+	private void scheduleExit() {
+		synchronized (exitLock) {
+			if (exitThread==null) {
+				exitThread = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						runExits();
+					}}, "fake-docker-exits");
+				exitThread.setDaemon(true);
+				exitThread.start();
+			}
+			getClock().signal(exitLock);
+		}
+	}
+
+	@Override
+	public Info getInfo() {
+		pause(latencyMillis);
+		return new Info();
+	}
+
+	@Override
+	public String getVolumeMountPoint(String volumeName) {
+		return volumeMountPoint;
+	}
+
+	@Override
+	public boolean isImagePresent(String imageReference) {
+		pause(latencyMillis);
+		return images.containsKey(imageReference);
+	}
+
+	@Override
+	public void pullImageWithRetry(String imageReference) {
+		imagePulls.incrementAndGet();
+		pause(pullMillis);
+		images.put(imageReference, true);
+	}
+
+	@Override
+	public String createContainer(String imageReference, String containerName, List<Bind> binds,
+			List<Device> devices, List<String> cmd, List<String> env, String workingDir, boolean privileged) throws IOException {
+		getImageManager().ensureImage(imageReference);
+		pause(latencyMillis);
+		FakeContainer container = new FakeContainer();
+		container.id = UUID.randomUUID().toString().replaceAll("-", "");
+		container.name = containerName;
+		synchronized (random) {
+			container.durationMillis = minDurationMillis+(long)(random.nextDouble()*(maxDurationMillis-minDurationMillis));
+		}
+		containers.put(container.id, container);
+		return container.id;
+	}
+
+	@Override
+	public void startContainer(String id) {
+		pause(latencyMillis);
+		final FakeContainer container = getContainer(id);
+		final int exitCode;
+		synchronized (random) {
+			exitCode = random.nextDouble()<failureProbability ? FAILURE_EXIT_CODE : 0;
+		}
+		synchronized (container) {
+			if (container.running || container.exitCode!=null) throw new IllegalStateException("Container "+id+" was already started.");
+			container.running = true;
+			container.startedAt = getClock().currentTimeMillis();
+			container.exitCodeWhenDone = exitCode;
+		}
+		scheduleExit();
+		containersStarted.incrementAndGet();
+		int nowRunning = running.incrementAndGet();
+		while (true) {
+			int max = maxRunning.get();
+			if (nowRunning<=max || maxRunning.compareAndSet(max, nowRunning)) break;
+		}
+		sendEvent("start", container);
+	}
+
+	@Override
+	public void subscribeToContainerEvents(final ResultCallback<Event> callback, String since, String... eventNames) {
+		eventSubscriber = callback;
+		// as with the real engine, the subscription starts asynchronously
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				callback.onStart(new Closeable() {
+					@Override
+					public void close() {
+						if (eventSubscriber==callback) eventSubscriber = null;
+					}});
+			}});
+	}
+
+	/*
+	 * The Container class has no setters, so we build it as docker-java does, from JSON
+	 */
+	private Container toContainer(FakeContainer container) throws IOException {
+		JSONObject json = new JSONObject();
+		json.put("Id", container.id);
+		json.put("Names", new JSONArray(Collections.singletonList("/"+container.name)));
+		json.put("Status", container.running ? "Up 1 second" : "Exited ("+container.exitCode+") 1 second ago");
+		return objectMapper.readValue(json.toString(), Container.class);
+	}
+
+	@Override
+	public Map<String, Container> listContainers(Filter filter) {
+		pause(latencyMillis);
+		Map<String, Container> result = new HashMap<String, Container>();
+		for (FakeContainer container : containers.values()) {
+			// include just the containers which have been started
+			if (!container.running && container.exitCode==null) continue;
+			if (filter!=null && !filter.match(container.name)) continue;
+			try {
+				result.put(container.name, toContainer(container));
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public ContainerState getContainerState(String containerId) {
+		pause(latencyMillis);
+		FakeContainer container = getContainer(containerId);
+		JSONObject state = new JSONObject();
+		state.put("Running", container.running);
+		state.put("ExitCode", container.exitCode==null ? 0 : container.exitCode);
+		JSONObject json = new JSONObject();
+		json.put("State", state);
+		try {
+			return objectMapper.readValue(json.toString(), InspectContainerResponse.class).getState();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/*
+	 * The only command the agent runs is to read the workflow's progress
+	 */
+	@Override
+	public String exec(String containerId, String[] command) throws IOException {
+		pause(latencyMillis);
+		FakeContainer container = getContainer(containerId);
+		long elapsed = getClock().currentTimeMillis()-container.startedAt;
+		double percent = container.durationMillis==0 ? 100D : Math.min(100D, 100D*elapsed/container.durationMillis);
+		return String.format("%.1f", percent);
+	}
+
+	/*
+	 * Pass the container's output to the given callback, as the engine would:  one line
+	 * per log line interval that it has been running, each prefixed with its time stamp
+	 */
+	private void writeLogs(FakeContainer container, LoggingResultsCallback callback) {
+		long end = container.running ? getClock().currentTimeMillis() : container.stoppedAt;
+		for (long t=container.startedAt; t<=end; t+=logLineIntervalMillis) {
+			String line = Instant.ofEpochMilli(t).toString()+" Workflow "+container.name+" step "+(t-container.startedAt)/logLineIntervalMillis+"\n";
+			callback.onNext(new Frame(StreamType.STDOUT, line.getBytes(UTF8)));
+		}
+		callback.onComplete();
+	}
+
+	@Override
+	public String getLogs(String containerId, Path outPath, Integer maxTailLengthCharacters) throws IOException {
+		pause(latencyMillis);
+		FakeContainer container = getContainer(containerId);
+		try (OutputStream os = new FileOutputStream(outPath.toFile())) {
+			LoggingResultsCallback callback = new LoggingResultsCallback(os, maxTailLengthCharacters);
+			callback.setTimestamped(true);
+			writeLogs(container, callback);
+			callback.close();
+			return callback.getTail();
+		}
+	}
+
+	@Override
+	public String appendLogs(String containerId, Path outPath, String afterTimestamp) throws IOException {
+		pause(latencyMillis);
+		FakeContainer container = getContainer(containerId);
+		try (OutputStream os = new FileOutputStream(outPath.toFile(), true)) {
+			LoggingResultsCallback callback = new LoggingResultsCallback(os, null);
+			callback.setTimestamped(true);
+			callback.setSkipThrough(afterTimestamp);
+			writeLogs(container, callback);
+			callback.close();
+			String lastTimestamp = callback.getLastTimestamp();
+			return lastTimestamp==null ? afterTimestamp : lastTimestamp;
+		}
+	}
+
+	@Override
+	public String getLogsTail(String containerId, int numberOfLines) throws IOException {
+		pause(latencyMillis);
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		LoggingResultsCallback callback = new LoggingResultsCallback(os, null);
+		callback.setTimestamped(true);
+		writeLogs(getContainer(containerId), callback);
+		callback.close();
+		String[] lines = os.toString("UTF-8").split("\n");
+		StringBuilder sb = new StringBuilder();
+		for (int i=Math.max(0, lines.length-numberOfLines); i<lines.length; i++) sb.append(lines[i]).append("\n");
+		return sb.toString();
+	}
+
+	@Override
+	public void stopContainerWithRetry(String containerId) {
+		pause(latencyMillis);
+		exit(getContainer(containerId), PROCESS_TERMINATED_ERROR_CODE);
+	}
+
+	@Override
+	public void removeContainer(String containerId, boolean force) {
+		pause(latencyMillis);
+		FakeContainer container = containers.get(containerId);
+		if (container==null) return;
+		if (container.running) {
+			if (!force) throw new IllegalStateException("Container "+containerId+" is running.");
+			exit(container, PROCESS_TERMINATED_ERROR_CODE);
+		}
+		containers.remove(containerId);
+		sendEvent("destroy", container);
+	}
+
+	@Override
+	public void renameContainer(String containerId, String newName) {
+		pause(latencyMillis);
+		getContainer(containerId).name = newName;
+	}
+}
@@ -0,0 +1,473 @@
+package org.sagebionetworks;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.sagebionetworks.Clock.getClock;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.sagebionetworks.client.SynapseClient;
+import org.sagebionetworks.client.exceptions.SynapseBadRequestException;
+import org.sagebionetworks.client.exceptions.SynapseConflictingUpdateException;
+import org.sagebionetworks.client.exceptions.SynapseException;
+import org.sagebionetworks.client.exceptions.SynapseNotFoundException;
+import org.sagebionetworks.evaluation.model.BatchUploadResponse;
+import org.sagebionetworks.evaluation.model.Submission;
+import org.sagebionetworks.evaluation.model.SubmissionBundle;
+import org.sagebionetworks.evaluation.model.SubmissionStatus;
+import org.sagebionetworks.evaluation.model.SubmissionStatusBatch;
+import org.sagebionetworks.evaluation.model.SubmissionStatusEnum;
+import org.sagebionetworks.reflection.model.PaginatedResults;
+import org.sagebionetworks.repo.model.AccessControlList;
+import org.sagebionetworks.repo.model.Annotations;
+import org.sagebionetworks.repo.model.Entity;
+import org.sagebionetworks.repo.model.LoginResponse;
+import org.sagebionetworks.repo.model.Team;
+import org.sagebionetworks.repo.model.UserProfile;
+import org.sagebionetworks.repo.model.annotation.DoubleAnnotation;
+import org.sagebionetworks.repo.model.annotation.LongAnnotation;
+import org.sagebionetworks.repo.model.annotation.StringAnnotation;
+import org.sagebionetworks.repo.model.auth.LoginRequest;
+import org.sagebionetworks.repo.model.file.ExternalFileHandle;
+import org.sagebionetworks.repo.model.file.FileHandle;
+import org.sagebionetworks.repo.model.file.FileHandleResults;
+import org.sagebionetworks.repo.model.file.S3FileHandle;
+import org.sagebionetworks.repo.model.message.MessageToUser;
+
+/*
+ * An in-memory stand-in for Synapse, for running the agent without a Synapse server.
+ * createClient() returns a SynapseClient whose calls are served by the public methods
+ * of this class having the same signature, after the given latency.  Calling any
+ * other method of the client fails.
+ *
+ * As in Synapse, each submission status has an etag which changes with each update.
+ * An update carrying a stale etag fails with a 409 (SynapseConflictingUpdateException).
+ * With the given probability, a status is changed 'by someone else' just before an
+ * update, so that the agent's handling of conflicts is exercised.
+ *
+ * Folders and files, ACLs, uploads and messages are kept just well enough for the
+ * agent's use of them.
+ */
+public class FakeSynapse {
+	public static final String MY_PRINCIPAL_ID = "3000000";
+	private static final String CONFLICTING_ANNOTATION = "org.sagebionetworks.FakeSynapse.changedBySomeoneElse";
+
+	private long latencyMillis;
+	private double conflictProbability;
+	private Random random = new Random(0L);
+	private AtomicLong idSequence = new AtomicLong(9600000L);
+
+	// submissions and their statuses, by evaluation, in order of ID
+	private Map<String,TreeMap<Long,Submission>> submissions = new HashMap<String,TreeMap<Long,Submission>>();
+	private Map<String,SubmissionStatus> statuses = new HashMap<String,SubmissionStatus>();
+	private Map<String,String> batchTokens = new HashMap<String,String>(); // by evaluation
+
+	private ConcurrentMap<String,Entity> entities = new ConcurrentHashMap<String,Entity>();
+	private ConcurrentMap<String,String> childIds = new ConcurrentHashMap<String,String>(); // keyed by parent ID and name
+	private ConcurrentMap<String,AccessControlList> acls = new ConcurrentHashMap<String,AccessControlList>();
+	private Map<String,URL> templateUrls = new ConcurrentHashMap<String,URL>();
+	private Map<String,String> templateEntryPoints = new ConcurrentHashMap<String,String>();
+
+	private ConcurrentMap<String,AtomicLong> callCounts = new ConcurrentHashMap<String,AtomicLong>();
+	private AtomicLong conflicts = new AtomicLong();
+	private AtomicLong messagesSent = new AtomicLong();
+	private AtomicLong bytesUploaded = new AtomicLong();
+
+	public FakeSynapse(long latencyMillis, double conflictProbability) {
+		this.latencyMillis=latencyMillis;
+		this.conflictProbability=conflictProbability;
+	}
+
+	/*
+	 * A client whose calls are served by this object
+	 */
+	public SynapseClient createClient() {
+		final ConcurrentMap<Method,Method> implementations = new ConcurrentHashMap<Method,Method>();
+		InvocationHandler handler = new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if (method.getDeclaringClass()==Object.class) return method.invoke(FakeSynapse.this, args);
+				Method implementation = implementations.get(method);
+				if (implementation==null) {
+					try {
+						implementation = FakeSynapse.class.getMethod(method.getName(), method.getParameterTypes());
+					} catch (NoSuchMethodException e) {
+						throw new UnsupportedOperationException(method.getName()+" is not supported by "+FakeSynapse.class.getSimpleName());
+					}
+					implementations.put(method, implementation);
+				}
+				AtomicLong count = callCounts.get(method.getName());
+				if (count==null) {
+					callCounts.putIfAbsent(method.getName(), new AtomicLong());
+					count = callCounts.get(method.getName());
+				}
+				count.incrementAndGet();
+				getClock().sleep(latencyMillis);
+				try {
+					return implementation.invoke(FakeSynapse.this, args);
+				} catch (InvocationTargetException e) {
+					throw e.getCause();
+				}
+			}};
+		return (SynapseClient)Proxy.newProxyInstance(FakeSynapse.class.getClassLoader(),
+				new Class[] {SynapseClient.class}, handler);
+	}
+
+	/*
+	 * The number of calls made to each method of the client, by method name
+	 */
+	public Map<String,Long> getCallCounts() {
+		Map<String,Long> result = new TreeMap<String,Long>();
+		for (String method : callCounts.keySet()) result.put(method, callCounts.get(method).get());
+		return result;
+	}
+
+	public long getConflicts() {
+		return conflicts.get();
+	}
+
+	public long getMessagesSent() {
+		return messagesSent.get();
+	}
+
+	public long getBytesUploaded() {
+		return bytesUploaded.get();
+	}
+
+	private String newId() {
+		return Long.toString(idSequence.incrementAndGet());
+	}
+
+	/*
+	 * Make the given entity a workflow template, whose archive is at the given URL
+	 */
+	public void addWorkflowTemplate(String entityId, URL url, String entryPoint) {
+		templateUrls.put(entityId, url);
+		templateEntryPoints.put(entityId, entryPoint);
+	}
+
+	/*
+	 * Submit to the given evaluation queue, as the given user.  The submission
+	 * starts in the given state.
+	 * @return the ID of the submission
+	 */
+	public synchronized String addSubmission(String evaluationId, String userId, SubmissionStatusEnum state) {
+		String id = newId();
+		Submission submission = new Submission();
+		submission.setId(id);
+		submission.setEvaluationId(evaluationId);
+		submission.setUserId(userId);
+		submission.setEntityId("syn"+newId());
+		submission.setVersionNumber(1L);
+		TreeMap<Long,Submission> evaluationSubmissions = submissions.get(evaluationId);
+		if (evaluationSubmissions==null) {
+			evaluationSubmissions = new TreeMap<Long,Submission>();
+			submissions.put(evaluationId, evaluationSubmissions);
+		}
+		evaluationSubmissions.put(Long.parseLong(id), submission);
+		SubmissionStatus status = new SubmissionStatus();
+		status.setId(id);
+		status.setEntityId(submission.getEntityId());
+		status.setVersionNumber(1L);
+		status.setStatusVersion(0L);
+		status.setStatus(state);
+		status.setEtag(UUID.randomUUID().toString());
+		status.setModifiedOn(new Date());
+		statuses.put(id, status);
+		return id;
+	}
+
+	/*
+	 * The number of submissions in each state
+	 */
+	public synchronized Map<SubmissionStatusEnum,Integer> getStatusCounts() {
+		Map<SubmissionStatusEnum,Integer> result = new TreeMap<SubmissionStatusEnum,Integer>();
+		for (SubmissionStatus status : statuses.values()) {
+			Integer count = result.get(status.getStatus());
+			result.put(status.getStatus(), count==null ? 1 : count+1);
+		}
+		return result;
+	}
+
+	/*
+	 * As Synapse would, return a copy of the stored status, so that changes made by
+	 * the caller aren't seen until they're written back
+	 */
+	private static SubmissionStatus copy(SubmissionStatus status) {
+		SubmissionStatus result = new SubmissionStatus();
+		result.setId(status.getId());
+		result.setEtag(status.getEtag());
+		result.setEntityId(status.getEntityId());
+		result.setVersionNumber(status.getVersionNumber());
+		result.setStatusVersion(status.getStatusVersion());
+		result.setStatus(status.getStatus());
+		result.setCanCancel(status.getCanCancel());
+		result.setCancelRequested(status.getCancelRequested());
+		result.setModifiedOn(status.getModifiedOn());
+		org.sagebionetworks.repo.model.annotation.Annotations annotations = status.getAnnotations();
+		if (annotations!=null) {
+			org.sagebionetworks.repo.model.annotation.Annotations annotationsCopy =
+					new org.sagebionetworks.repo.model.annotation.Annotations();
+			if (annotations.getStringAnnos()!=null) {
+				List<StringAnnotation> list = new ArrayList<StringAnnotation>();
+				for (StringAnnotation a : annotations.getStringAnnos()) {
+					StringAnnotation c = new StringAnnotation();
+					c.setKey(a.getKey());
+					c.setValue(a.getValue());
+					c.setIsPrivate(a.getIsPrivate());
+					list.add(c);
+				}
+				annotationsCopy.setStringAnnos(list);
+			}
+			if (annotations.getLongAnnos()!=null) {
+				List<LongAnnotation> list = new ArrayList<LongAnnotation>();
+				for (LongAnnotation a : annotations.getLongAnnos()) {
+					LongAnnotation c = new LongAnnotation();
+					c.setKey(a.getKey());
+					c.setValue(a.getValue());
+					c.setIsPrivate(a.getIsPrivate());
+					list.add(c);
+				}
+				annotationsCopy.setLongAnnos(list);
+			}
+			if (annotations.getDoubleAnnos()!=null) {
+				List<DoubleAnnotation> list = new ArrayList<DoubleAnnotation>();
+				for (DoubleAnnotation a : annotations.getDoubleAnnos()) {
+					DoubleAnnotation c = new DoubleAnnotation();
+					c.setKey(a.getKey());
+					c.setValue(a.getValue());
+					c.setIsPrivate(a.getIsPrivate());
+					list.add(c);
+				}
+				annotationsCopy.setDoubleAnnos(list);
+			}
+			result.setAnnotations(annotationsCopy);
+		}
+		return result;
+	}
+
+	/*
+	 * Store a new version of the given status
+	 */
+	private void store(SubmissionStatus status) {
+		SubmissionStatus stored = copy(status);
+		stored.setEtag(UUID.randomUUID().toString());
+		stored.setStatusVersion(status.getStatusVersion()==null ? 1L : status.getStatusVersion()+1L);
+		stored.setModifiedOn(new Date());
+		statuses.put(stored.getId(), stored);
+	}
+
+	/*
+	 * Check that the given status can be written, having first (maybe) let someone
+	 * else change it
+	 */
+	private void checkEtag(SubmissionStatus status) throws SynapseException {
+		SubmissionStatus stored = statuses.get(status.getId());
+		if (stored==null) throw new SynapseNotFoundException("Submission "+status.getId()+" does not exist.");
+		if (conflictProbability>0 && random.nextDouble()<conflictProbability) {
+			SubmissionStatus changed = copy(stored);
+			EvaluationUtils.setAnnotation(changed, CONFLICTING_ANNOTATION, getClock().currentTimeMillis(), false);
+			store(changed);
+			stored = statuses.get(status.getId());
+		}
+		if (!stored.getEtag().equals(status.getEtag())) {
+			conflicts.incrementAndGet();
+			throw new SynapseConflictingUpdateException("The etag of submission status "+status.getId()+" has changed.");
+		}
+	}
+
+	public LoginResponse login(LoginRequest request) {
+		return new LoginResponse();
+	}
+
+	public UserProfile getMyProfile() {
+		return getUserProfile(MY_PRINCIPAL_ID);
+	}
+
+	public UserProfile getUserProfile(String ownerId) {
+		UserProfile profile = new UserProfile();
+		profile.setOwnerId(ownerId);
+		profile.setUserName("user"+ownerId);
+		profile.setFirstName("First");
+		profile.setLastName("Last");
+		return profile;
+	}
+
+	public Team getTeam(String id) {
+		Team team = new Team();
+		team.setId(id);
+		team.setName("team"+id);
+		return team;
+	}
+
+	public FileHandleResults getEntityFileHandlesForCurrentVersion(String entityId) throws SynapseException {
+		URL url = templateUrls.get(entityId);
+		if (url==null) throw new SynapseNotFoundException(entityId+" is not a workflow template.");
+		ExternalFileHandle fileHandle = new ExternalFileHandle();
+		fileHandle.setId(newId());
+		fileHandle.setExternalURL(url.toString());
+		FileHandleResults results = mock(FileHandleResults.class);
+		when(results.getList()).thenReturn(Collections.<FileHandle>singletonList(fileHandle));
+		return results;
+	}
+
+	public Annotations getAnnotations(String entityId) throws SynapseException {
+		String entryPoint = templateEntryPoints.get(entityId);
+		if (entryPoint==null) throw new SynapseNotFoundException(entityId+" is not a workflow template.");
+		Annotations annotations = new Annotations();
+		Map<String,List<String>> stringAnnotations = new HashMap<String,List<String>>();
+		stringAnnotations.put(Constants.ROOT_TEMPLATE_ANNOTATION_NAME, Collections.singletonList(entryPoint));
+		annotations.setStringAnnotations(stringAnnotations);
+		return annotations;
+	}
+
+	public PaginatedResults<SubmissionBundle> getAllSubmissionBundlesByStatus(String evaluationId,
+			SubmissionStatusEnum state, long offset, long limit) {
+		List<SubmissionBundle> page = new ArrayList<SubmissionBundle>();
+		long total = 0L;
+		synchronized (this) {
+			TreeMap<Long,Submission> evaluationSubmissions = submissions.get(evaluationId);
+			if (evaluationSubmissions!=null) {
+				for (Submission submission : evaluationSubmissions.values()) {
+					SubmissionStatus status = statuses.get(submission.getId());
+					if (status.getStatus()!=state) continue;
+					if (total>=offset && total<offset+limit) {
+						SubmissionBundle bundle = new SubmissionBundle();
+						bundle.setSubmission(submission);
+						bundle.setSubmissionStatus(copy(status));
+						page.add(bundle);
+					}
+					total++;
+				}
+			}
+		}
+		PaginatedResults<SubmissionBundle> results = mock(PaginatedResults.class);
+		when(results.getResults()).thenReturn(page);
+		when(results.getTotalNumberOfResults()).thenReturn(total);
+		return results;
+	}
+
+	public synchronized SubmissionStatus getSubmissionStatus(String submissionId) throws SynapseException {
+		SubmissionStatus status = statuses.get(submissionId);
+		if (status==null) throw new SynapseNotFoundException("Submission "+submissionId+" does not exist.");
+		return copy(status);
+	}
+
+	public synchronized SubmissionStatus updateSubmissionStatus(SubmissionStatus status) throws SynapseException {
+		checkEtag(status);
+		store(status);
+		return copy(statuses.get(status.getId()));
+	}
+
+	/*
+	 * Each batch is written entirely or, if any status in it is stale, not at all
+	 */
+	public synchronized BatchUploadResponse updateSubmissionStatusBatch(String evaluationId, SubmissionStatusBatch batch) throws SynapseException {
+		boolean isFirstBatch = Boolean.TRUE.equals(batch.getIsFirstBatch());
+		if (!isFirstBatch && (batch.getBatchToken()==null || !batch.getBatchToken().equals(batchTokens.get(evaluationId)))) {
+			throw new SynapseBadRequestException("Invalid batch token "+batch.getBatchToken());
+		}
+		for (SubmissionStatus status : batch.getStatuses()) checkEtag(status);
+		for (SubmissionStatus status : batch.getStatuses()) store(status);
+		BatchUploadResponse response = new BatchUploadResponse();
+		if (Boolean.TRUE.equals(batch.getIsLastBatch())) {
+			batchTokens.remove(evaluationId);
+		} else {
+			String token = UUID.randomUUID().toString();
+			batchTokens.put(evaluationId, token);
+			response.setNextUploadToken(token);
+		}
+		return response;
+	}
+
+	public MessageToUser sendStringMessage(MessageToUser message, String body) {
+		messagesSent.incrementAndGet();
+		return message;
+	}
+
+	public AccessControlList getACL(String entityId) throws SynapseException {
+		AccessControlList acl = acls.get(entityId);
+		if (acl==null) throw new SynapseNotFoundException("Entity "+entityId+" inherits its ACL.");
+		return acl;
+	}
+
+	public AccessControlList createACL(AccessControlList acl) throws SynapseException {
+		if (acls.putIfAbsent(acl.getId(), acl)!=null) throw new SynapseConflictingUpdateException("Entity "+acl.getId()+" already has an ACL.");
+		return acl;
+	}
+
+	public S3FileHandle multipartUpload(File file, Long storageLocationId, Boolean generatePreview, Boolean forceRestart) throws IOException {
+		MessageDigest md5;
+		try {
+			md5 = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+		try (InputStream is = new FileInputStream(file)) {
+			byte[] buffer = new byte[64*1024];
+			int n;
+			while ((n=is.read(buffer))>0) md5.update(buffer, 0, n);
+		}
+		StringBuilder sb = new StringBuilder();
+		for (byte b : md5.digest()) sb.append(String.format("%02x", b));
+		bytesUploaded.addAndGet(file.length());
+		S3FileHandle fileHandle = new S3FileHandle();
+		fileHandle.setId(newId());
+		fileHandle.setContentMd5(sb.toString());
+		return fileHandle;
+	}
+
+	/*
+	 * As in Synapse, a name may be used just once among an entity's children
+	 */
+	public Entity createEntity(Entity entity) throws SynapseException {
+		String id = "syn"+newId();
+		if (childIds.putIfAbsent(Arrays.asList(entity.getParentId(), entity.getName()).toString(), id)!=null) {
+			throw new SynapseConflictingUpdateException("An entity named "+entity.getName()+" already exists in "+entity.getParentId());
+		}
+		entity.setId(id);
+		entities.put(id, entity);
+		return entity;
+	}
+
+	public Entity putEntity(Entity entity) throws SynapseException {
+		if (!entities.containsKey(entity.getId())) throw new SynapseNotFoundException("Entity "+entity.getId()+" does not exist.");
+		entities.put(entity.getId(), entity);
+		return entity;
+	}
+
+	public Entity getEntity(String entityId, Class<?> clazz) throws SynapseException {
+		Entity entity = entities.get(entityId);
+		if (entity==null) throw new SynapseNotFoundException("Entity "+entityId+" does not exist.");
+		return entity;
+	}
+
+	public String lookupChild(String parentId, String name) throws SynapseException {
+		String id = childIds.get(Arrays.asList(parentId, name).toString());
+		if (id==null) throw new SynapseNotFoundException("No entity named "+name+" in "+parentId);
+		return id;
+	}
+}
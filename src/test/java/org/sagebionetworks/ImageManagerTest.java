@@ -0,0 +1,100 @@
+package org.sagebionetworks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ImageManagerTest {
+	
+	@Mock
+	private DockerUtils mockDockerUtils;
+	
+	private CountDownLatch pullStarted;
+	private CountDownLatch releasePull;
+	private List<String> pulled;
+	
+	private static final String TAGGED_IMAGE = "sagebionetworks/synapseworkflowhook-toil:latest";
+	private static final String DIGEST_IMAGE = "sagebionetworks/synapseworkflowhook-toil@sha256:abcdef";
+	
+	@Before
+	public void setUp() throws Exception {
+		pullStarted = new CountDownLatch(1);
+		releasePull = new CountDownLatch(1);
+		pulled = Collections.synchronizedList(new ArrayList<String>());
+		doAnswer(new Answer<Void>() {
+			@Override
+			public Void answer(InvocationOnMock invocation) throws Throwable {
+				pullStarted.countDown();
+				releasePull.await(10, TimeUnit.SECONDS);
+				pulled.add((String)invocation.getArguments()[0]);
+				return null;
+			}}).when(mockDockerUtils).pullImageWithRetry(org.mockito.Matchers.anyString());
+	}
+
+	@Test
+	public void testConcurrentRequestsShareOnePull() throws Exception {
+		ImageManager imageManager = new ImageManager(mockDockerUtils, 2, 60000L);
+		CompletableFuture<Void> first = imageManager.pullAsync(TAGGED_IMAGE, ImageManager.Priority.LOW);
+		pullStarted.await(10, TimeUnit.SECONDS);
+		CompletableFuture<Void> second = imageManager.pullAsync(TAGGED_IMAGE, ImageManager.Priority.HIGH);
+		assertSame(first, second);
+		releasePull.countDown();
+		second.get(10, TimeUnit.SECONDS);
+		verify(mockDockerUtils, times(1)).pullImageWithRetry(TAGGED_IMAGE);
+		
+		// recently pulled, so no need to pull again
+		when(mockDockerUtils.isImagePresent(TAGGED_IMAGE)).thenReturn(true);
+		imageManager.ensureImage(TAGGED_IMAGE);
+		verify(mockDockerUtils, times(1)).pullImageWithRetry(TAGGED_IMAGE);
+	}
+
+	@Test
+	public void testSkipPullWhenDigestIsPresent() throws Exception {
+		when(mockDockerUtils.isImagePresent(DIGEST_IMAGE)).thenReturn(true);
+		ImageManager imageManager = new ImageManager(mockDockerUtils, 2, 60000L);
+		imageManager.ensureImage(DIGEST_IMAGE);
+		verify(mockDockerUtils, never()).pullImageWithRetry(DIGEST_IMAGE);
+	}
+
+	@Test
+	public void testHighPriorityPullsGoFirst() throws Exception {
+		ImageManager imageManager = new ImageManager(mockDockerUtils, 1, 60000L);
+		// occupy the only pull thread
+		CompletableFuture<Void> blocker = imageManager.pullAsync("blocker", ImageManager.Priority.LOW);
+		pullStarted.await(10, TimeUnit.SECONDS);
+		CompletableFuture<Void> low = imageManager.pullAsync("low", ImageManager.Priority.LOW);
+		CompletableFuture<Void> high = imageManager.pullAsync("high", ImageManager.Priority.HIGH);
+		CompletableFuture<Void> raised = imageManager.pullAsync("raised", ImageManager.Priority.LOW);
+		imageManager.pullAsync("raised", ImageManager.Priority.HIGH);
+		assertEquals(3, imageManager.getQueueDepth());
+		releasePull.countDown();
+		CompletableFuture.allOf(blocker, low, high, raised).get(10, TimeUnit.SECONDS);
+		assertEquals("blocker", pulled.get(0));
+		assertEquals("high", pulled.get(1));
+		assertEquals("raised", pulled.get(2));
+		assertEquals("low", pulled.get(3));
+		assertTrue(imageManager.getQueueDepth()==0);
+	}
+
+}
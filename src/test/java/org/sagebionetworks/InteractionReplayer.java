@@ -0,0 +1,483 @@
+package org.sagebionetworks;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.lang.reflect.Type;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.mockito.Mockito;
+import org.sagebionetworks.client.SynapseClient;
+import org.sagebionetworks.reflection.model.PaginatedResults;
+import org.sagebionetworks.schema.adapter.JSONEntity;
+import org.sagebionetworks.schema.adapter.org.json.EntityFactory;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.dockerjava.api.async.ResultCallback;
+import com.github.dockerjava.api.command.InspectContainerResponse;
+import com.github.dockerjava.api.command.InspectContainerResponse.ContainerState;
+import com.github.dockerjava.api.model.Bind;
+import com.github.dockerjava.api.model.Container;
+import com.github.dockerjava.api.model.Device;
+import com.github.dockerjava.api.model.Event;
+import com.github.dockerjava.api.model.Info;
+
+/*
+ * Plays back a recording made by InteractionRecorder:  the SynapseClient and
+ * DockerUtils it provides answer each call with the recorded result (or exception),
+ * after the recorded duration divided by the given speed, and Docker events are
+ * sent to subscribers at their recorded times, likewise scaled.  Both are timed by
+ * the agent's Clock, so on a VirtualClock they take no real time at all.
+ *
+ * Calls are matched by their key (see InteractionRecorder.key()) and, among those
+ * with the same key, in the order recorded.  Once a key's calls are used up the
+ * last is repeated; a call whose key was never recorded gets the last recorded
+ * result of the same method.  Both count as unmatched, a measure of how far the
+ * replayed agent has strayed from the recorded one.  A method never recorded at
+ * all is an error.
+ *
+ * Logs are replayed as filler text of the recorded size, and every image is taken
+ * to be present.
+ */
+public class InteractionReplayer {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final byte[] LOG_FILLER = "replayed log line\n".getBytes(UTF8);
+
+	private double speed;
+	private JSONObject settings;
+	private long durationMillis = 0L;
+	private Map<String,Deque<JSONObject>> calls = new HashMap<String,Deque<JSONObject>>(); // keyed by source and key
+	private Map<String,JSONObject> lastCallOfMethod = new HashMap<String,JSONObject>(); // keyed by source and method
+	private List<JSONObject> events = new ArrayList<JSONObject>();
+	private Map<String,AtomicLong> callCounts = new TreeMap<String,AtomicLong>();
+	private AtomicLong unmatchedCalls = new AtomicLong();
+	private String externalURL = null;
+	private ObjectMapper objectMapper = InteractionRecorder.getObjectMapper();
+	private long startMillis;
+	private AtomicInteger threadCount = new AtomicInteger(0);
+	private List<Thread> eventThreads = new ArrayList<Thread>();
+
+	public InteractionReplayer(File recording, double speed) throws IOException {
+		if (speed<=0D) throw new IllegalArgumentException("Speed must be positive.");
+		this.speed=speed;
+		InputStream is = new FileInputStream(recording);
+		if (recording.getName().endsWith(".gz")) is = new GZIPInputStream(is);
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(is, UTF8))) {
+			String line = reader.readLine();
+			if (line==null) throw new IOException(recording.getAbsolutePath()+" is empty.");
+			JSONObject header = new JSONObject(line);
+			if (header.getInt("version")!=InteractionRecorder.VERSION)
+				throw new IOException("Unsupported recording version "+header.getInt("version"));
+			settings = header.getJSONObject("settings");
+			while ((line=reader.readLine())!=null) {
+				if (line.isEmpty()) continue;
+				JSONObject record = new JSONObject(line);
+				durationMillis = Math.max(durationMillis, record.getLong("t")+record.optLong("d", 0L));
+				String source = record.getString("s");
+				if (source.equals(InteractionRecorder.EVENT)) {
+					events.add(record);
+					continue;
+				}
+				String key = record.getString("k");
+				Deque<JSONObject> queue = calls.get(source+" "+key);
+				if (queue==null) {
+					queue = new ArrayDeque<JSONObject>();
+					calls.put(source+" "+key, queue);
+				}
+				queue.add(record);
+				lastCallOfMethod.put(source+" "+methodOf(key), record);
+			}
+		}
+		startMillis = Clock.getClock().currentTimeMillis();
+	}
+
+	private static String methodOf(String key) {
+		int i = key.indexOf(' ');
+		return i<0 ? key : key.substring(0, i);
+	}
+
+	/*
+	 * The settings the recorded agent had
+	 */
+	public JSONObject getSettings() {
+		return settings;
+	}
+
+	/*
+	 * From the start of the recording to the end of the last call or event
+	 */
+	public long getDurationMillis() {
+		return durationMillis;
+	}
+
+	/*
+	 * The number of calls replayed, by source and method
+	 */
+	public Map<String,Long> getCallCounts() {
+		Map<String,Long> result = new TreeMap<String,Long>();
+		synchronized (callCounts) {
+			for (String method : callCounts.keySet()) result.put(method, callCounts.get(method).get());
+		}
+		return result;
+	}
+
+	public long getUnmatchedCalls() {
+		return unmatchedCalls.get();
+	}
+
+	/*
+	 * The recorded results of the given method, in the order recorded
+	 */
+	public synchronized List<Object> getRecordedResults(String source, String method) {
+		List<Object> result = new ArrayList<Object>();
+		for (Deque<JSONObject> queue : calls.values()) {
+			for (JSONObject record : queue) {
+				if (record.getString("s").equals(source) && methodOf(record.getString("k")).equals(method) && record.has("r")) {
+					result.add(record.get("r"));
+				}
+			}
+		}
+		return result;
+	}
+
+	/*
+	 * Replace the URLs of external file handles, e.g. of workflow templates, with the
+	 * given one, so the replay needn't download them
+	 */
+	public void setExternalURL(String externalURL) {
+		this.externalURL = externalURL;
+	}
+
+	public void shutdown() {
+		synchronized (eventThreads) {
+			for (Thread thread : eventThreads) thread.interrupt();
+		}
+	}
+
+	private synchronized JSONObject next(String source, String key) {
+		String method = methodOf(key);
+		synchronized (callCounts) {
+			AtomicLong count = callCounts.get(source+" "+method);
+			if (count==null) {
+				count = new AtomicLong();
+				callCounts.put(source+" "+method, count);
+			}
+			count.incrementAndGet();
+		}
+		Deque<JSONObject> queue = calls.get(source+" "+key);
+		if (queue==null) {
+			JSONObject record = lastCallOfMethod.get(source+" "+method);
+			if (record==null) throw new IllegalStateException("No call to "+source+" "+method+" was recorded.");
+			unmatchedCalls.incrementAndGet();
+			return record;
+		}
+		if (queue.size()>1) {
+			JSONObject record = queue.poll();
+			return record;
+		}
+		JSONObject record = queue.peek();
+		if (record.optBoolean("replayed")) {
+			unmatchedCalls.incrementAndGet();
+		} else {
+			record.put("replayed", true);
+		}
+		return record;
+	}
+
+	private void pause(JSONObject record) {
+		long millis = (long)(record.optLong("d", 0L)/speed);
+		if (millis<=0) return;
+		try {
+			Clock.getClock().sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+	}
+
+	/*
+	 * Throw the recorded exception, if there is one
+	 */
+	private static void throwIfFailed(JSONObject record) throws Throwable {
+		if (!record.has("x")) return;
+		Class<?> exceptionClass = Class.forName(record.getString("x"));
+		String message = record.optString("m", null);
+		Throwable t;
+		try {
+			Constructor<?> constructor = exceptionClass.getConstructor(String.class);
+			t = (Throwable)constructor.newInstance(message);
+		} catch (NoSuchMethodException e) {
+			t = (Throwable)exceptionClass.newInstance();
+		}
+		throw t;
+	}
+
+	private Object replaceExternalURLs(Object value) {
+		if (externalURL==null) return value;
+		if (value instanceof JSONObject) {
+			JSONObject json = new JSONObject(value.toString());
+			if (json.has("externalURL")) json.put("externalURL", externalURL);
+			for (String key : json.keySet()) json.put(key, replaceExternalURLs(json.get(key)));
+			return json;
+		}
+		if (value instanceof JSONArray) {
+			JSONArray json = new JSONArray(value.toString());
+			for (int i=0; i<json.length(); i++) json.put(i, replaceExternalURLs(json.get(i)));
+			return json;
+		}
+		return value;
+	}
+
+	private Object toSynapseResult(Object value, String className, Class<?> returnType) throws Exception {
+		if (className!=null) {
+			if (className.equals(InteractionRecorder.PAGINATED_RESULTS)) {
+				JSONObject json = (JSONObject)value;
+				JSONArray results = json.getJSONArray("results");
+				List<Object> list = new ArrayList<Object>();
+				for (int i=0; i<results.length(); i++) {
+					JSONObject entry = results.getJSONObject(i);
+					list.add(toSynapseResult(entry.get("r"), entry.getString("c"), null));
+				}
+				PaginatedResults<?> paginatedResults = Mockito.mock(PaginatedResults.class);
+				Mockito.when(paginatedResults.getTotalNumberOfResults()).thenReturn(json.getLong("total"));
+				Mockito.doReturn(list).when(paginatedResults).getResults();
+				return paginatedResults;
+			}
+			@SuppressWarnings("unchecked")
+			Class<? extends JSONEntity> entityClass = (Class<? extends JSONEntity>)Class.forName(className);
+			return EntityFactory.createEntityFromJSONString(replaceExternalURLs(value).toString(), entityClass);
+		}
+		if (value==null || value==JSONObject.NULL) {
+			if (returnType==boolean.class) return false;
+			if (returnType==long.class) return 0L;
+			if (returnType==int.class) return 0;
+			return null;
+		}
+		if (returnType==long.class || returnType==Long.class) return ((Number)value).longValue();
+		if (returnType==int.class || returnType==Integer.class) return ((Number)value).intValue();
+		if (returnType==String.class) return value.toString();
+		if (returnType!=null && returnType.isEnum()) {
+			for (Object constant : returnType.getEnumConstants()) {
+				if (((Enum<?>)constant).name().equals(value.toString())) return constant;
+			}
+		}
+		return value;
+	}
+
+	/*
+	 * A Synapse client which replays the recorded calls
+	 */
+	public SynapseClient createSynapseClient() {
+		InvocationHandler handler = new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if (method.getDeclaringClass()==Object.class) return method.invoke(this, args);
+				JSONObject record = next(InteractionRecorder.SYNAPSE, InteractionRecorder.key(method.getName(), args));
+				pause(record);
+				throwIfFailed(record);
+				return toSynapseResult(record.opt("r"), record.optString("c", null), method.getReturnType());
+			}};
+		return (SynapseClient)Proxy.newProxyInstance(InteractionReplayer.class.getClassLoader(),
+				new Class[] {SynapseClient.class}, handler);
+	}
+
+	/*
+	 * A Docker engine which replays the recorded calls, sharing the given folder with the agent
+	 */
+	public DockerUtils createDockerUtils(File volumeMountPoint) {
+		return new ReplayingDockerUtils(volumeMountPoint);
+	}
+
+	private class ReplayingDockerUtils extends DockerUtils {
+		private String volumeMountPoint;
+
+		ReplayingDockerUtils(File volumeMountPoint) {
+			super(null, null);
+			this.volumeMountPoint = volumeMountPoint.getAbsolutePath();
+		}
+
+		private JSONObject replay(String method, Object... args) throws IOException {
+			JSONObject record = next(InteractionRecorder.DOCKER, InteractionRecorder.key(method, args));
+			pause(record);
+			try {
+				throwIfFailed(record);
+			} catch (IOException | RuntimeException | Error e) {
+				throw e;
+			} catch (Throwable t) {
+				throw new RuntimeException(t);
+			}
+			return record;
+		}
+
+		private JSONObject replayUnchecked(String method, Object... args) {
+			try {
+				return replay(method, args);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		private <T> T read(JSONObject record, Type type) {
+			Object value = record.opt("r");
+			if (value==null || value==JSONObject.NULL) return null;
+			try {
+				return objectMapper.readValue(JSONObject.valueToString(value), objectMapper.getTypeFactory().constructType(type));
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		private void writeLogs(JSONObject record, Path outPath, boolean append) throws IOException {
+			long remaining = record.optLong("n", 0L);
+			try (OutputStream os = new FileOutputStream(outPath.toFile(), append)) {
+				while (remaining>0) {
+					int n = (int)Math.min(remaining, LOG_FILLER.length);
+					os.write(LOG_FILLER, 0, n);
+					remaining -= n;
+				}
+			}
+		}
+
+		@Override
+		public Info getInfo() {
+			return new Info();
+		}
+
+		@Override
+		public String getVolumeMountPoint(String volumeName) {
+			return volumeMountPoint;
+		}
+
+		@Override
+		public boolean isImagePresent(String imageReference) {
+			return true;
+		}
+
+		@Override
+		public void pullImageWithRetry(String imageReference) {
+		}
+
+		@Override
+		public String createContainer(String imageReference, String containerName, List<Bind> binds,
+				List<Device> devices, List<String> cmd, List<String> env, String workingDir, boolean privileged) throws IOException {
+			return read(replay("createContainer", imageReference), String.class);
+		}
+
+		@Override
+		public void startContainer(String id) {
+			replayUnchecked("startContainer", id);
+		}
+
+		@Override
+		public void subscribeToContainerEvents(final ResultCallback<Event> callback, String since, String... eventNames) {
+			// as with the real engine, the subscription starts asynchronously.  The thread joins
+			// the caller's thread group, so a VirtualClock counts it as part of the agent.
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					callback.onStart(new Closeable() {
+						@Override
+						public void close() {
+						}});
+					Clock clock = Clock.getClock();
+					try {
+						for (JSONObject record : events) {
+							clock.sleep(startMillis+(long)(record.getLong("t")/speed)-clock.currentTimeMillis());
+							callback.onNext(objectMapper.readValue(record.getJSONObject("r").toString(), Event.class));
+						}
+					} catch (IOException e) {
+						callback.onError(e);
+					} catch (InterruptedException e) {
+						// the replay is over
+					}
+				}}, "replayer-"+threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			synchronized (eventThreads) {
+				eventThreads.add(thread);
+			}
+			thread.start();
+		}
+
+		@Override
+		public Map<String, Container> listContainers(Filter filter) {
+			return read(replayUnchecked("listContainers"), new TypeReference<Map<String, Container>>() {}.getType());
+		}
+
+		@Override
+		public ContainerState getContainerState(String containerId) {
+			JSONObject record = replayUnchecked("getContainerState", containerId);
+			if (!record.has("r")) return null;
+			// ContainerState is an inner class, so it's read as part of its enclosing one
+			JSONObject response = new JSONObject();
+			response.put("State", record.get("r"));
+			try {
+				return objectMapper.readValue(response.toString(), InspectContainerResponse.class).getState();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		@Override
+		public String exec(String containerId, String[] command) throws IOException {
+			return read(replay("exec", containerId), String.class);
+		}
+
+		@Override
+		public String getLogs(String containerId, Path outPath, Integer maxTailLengthCharacters) throws IOException {
+			JSONObject record = replay("getLogs", containerId);
+			writeLogs(record, outPath, false);
+			return read(record, String.class);
+		}
+
+		@Override
+		public String appendLogs(String containerId, Path outPath, String afterTimestamp) throws IOException {
+			JSONObject record = replay("appendLogs", containerId);
+			writeLogs(record, outPath, true);
+			return read(record, String.class);
+		}
+
+		@Override
+		public String getLogsTail(String containerId, int numberOfLines) throws IOException {
+			return read(replay("getLogsTail", containerId), String.class);
+		}
+
+		@Override
+		public void stopContainerWithRetry(String containerId) {
+			replayUnchecked("stopContainerWithRetry", containerId);
+		}
+
+		@Override
+		public void removeContainer(String containerId, boolean force) {
+			replayUnchecked("removeContainer", containerId);
+		}
+
+		@Override
+		public void renameContainer(String containerId, String newName) {
+			replayUnchecked("renameContainer", containerId);
+		}
+	}
+}
@@ -0,0 +1,172 @@
+package org.sagebionetworks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.Closeable;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sagebionetworks.client.SynapseClient;
+import org.sagebionetworks.client.exceptions.SynapseNotFoundException;
+import org.sagebionetworks.repo.model.Folder;
+
+import com.github.dockerjava.api.async.ResultCallback;
+import com.github.dockerjava.api.command.InspectContainerResponse.ContainerState;
+import com.github.dockerjava.api.model.Bind;
+import com.github.dockerjava.api.model.Container;
+import com.github.dockerjava.api.model.Device;
+import com.github.dockerjava.api.model.Event;
+
+public class InteractionReplayerTest {
+	private static final long SYNAPSE_LATENCY_MILLIS = 400L;
+	private static final long WORKFLOW_MILLIS = 300L;
+	private static final String PARENT_ID = "syn101";
+	private static final String CONTAINER_NAME = "workflow_job.9601";
+
+	private File dir;
+	private File recording;
+
+	@Before
+	public void before() throws Exception {
+		dir = Files.createTempDirectory("replayer-test").toFile();
+		recording = new File(dir, "recording.json.gz");
+	}
+
+	@After
+	public void after() throws Exception {
+		FileUtils.deleteQuietly(dir);
+	}
+
+	private static class EventCollector implements ResultCallback<Event> {
+		List<Event> events = Collections.synchronizedList(new ArrayList<Event>());
+
+		@Override
+		public void close() {}
+
+		@Override
+		public void onStart(Closeable closeable) {}
+
+		@Override
+		public void onNext(Event event) {
+			events.add(event);
+		}
+
+		@Override
+		public void onError(Throwable throwable) {}
+
+		@Override
+		public void onComplete() {}
+
+		void awaitEvents(int n) throws InterruptedException {
+			for (int i=0; i<100 && events.size()<n; i++) Thread.sleep(50L);
+			assertEquals(n, events.size());
+		}
+	}
+
+	private static long timeLookup(SynapseClient synapse, String name) throws Exception {
+		long start = System.currentTimeMillis();
+		synapse.lookupChild(PARENT_ID, name);
+		return System.currentTimeMillis()-start;
+	}
+
+	@Test
+	public void testRecordAndReplay() throws Exception {
+		// record
+		FakeSynapse fakeSynapse = new FakeSynapse(SYNAPSE_LATENCY_MILLIS, 0D);
+		FakeDockerUtils fakeDocker = new FakeDockerUtils(0L, 0L, WORKFLOW_MILLIS, WORKFLOW_MILLIS, 0D, dir);
+		String containerId;
+		ContainerState recordedState;
+		Path logFile = new File(dir, "recorded.log").toPath();
+		String recordedTail;
+		EventCollector recordedEvents = new EventCollector();
+		try (InteractionRecorder recorder = new InteractionRecorder(recording)) {
+			SynapseClient synapse = recorder.recordSynapse(fakeSynapse.createClient());
+			Folder folder = new Folder();
+			folder.setParentId(PARENT_ID);
+			folder.setName("output");
+			synapse.createEntity(folder);
+			assertTrue(timeLookup(synapse, "output")>=SYNAPSE_LATENCY_MILLIS);
+			try {
+				synapse.lookupChild(PARENT_ID, "missing");
+				fail("exception expected");
+			} catch (SynapseNotFoundException e) {
+				// as expected
+			}
+
+			DockerUtils docker = new RecordingDockerUtils(fakeDocker, recorder);
+			docker.subscribeToContainerEvents(recordedEvents, null, "start", "die", "destroy");
+			containerId = docker.createContainer("repo/image:tag", CONTAINER_NAME, Collections.<Bind>emptyList(),
+					Collections.<Device>emptyList(), Collections.<String>emptyList(), Collections.<String>emptyList(), null, false);
+			docker.startContainer(containerId);
+			recordedState = docker.getContainerState(containerId);
+			recordedEvents.awaitEvents(2);
+			recordedTail = docker.getLogs(containerId, logFile, 100);
+			assertEquals(1, docker.listContainers(null).size());
+			docker.removeContainer(containerId, true);
+			recordedEvents.awaitEvents(3);
+		} finally {
+			fakeDocker.shutdown();
+		}
+		assertTrue(recordedState.getRunning());
+
+		// replay, ten times faster
+		InteractionReplayer replayer = new InteractionReplayer(recording, 10D);
+		try {
+			SynapseClient synapse = replayer.createSynapseClient();
+			// calls with the same key are replayed in order
+			long elapsed = timeLookup(synapse, "output");
+			assertTrue(""+elapsed, elapsed<SYNAPSE_LATENCY_MILLIS);
+			try {
+				synapse.lookupChild(PARENT_ID, "missing");
+				fail("exception expected");
+			} catch (SynapseNotFoundException e) {
+				assertEquals("No entity named missing in "+PARENT_ID, e.getMessage());
+			}
+			assertEquals(0L, replayer.getUnmatchedCalls());
+
+			DockerUtils docker = replayer.createDockerUtils(dir);
+			EventCollector replayedEvents = new EventCollector();
+			docker.subscribeToContainerEvents(replayedEvents, null, "start", "die", "destroy");
+			assertEquals(containerId, docker.createContainer("repo/image:tag", CONTAINER_NAME, null, null, null, null, null, false));
+			docker.startContainer(containerId);
+			ContainerState state = docker.getContainerState(containerId);
+			assertEquals(recordedState.getRunning(), state.getRunning());
+			assertEquals(recordedState.getExitCode(), state.getExitCode());
+			Path replayedLogFile = new File(dir, "replayed.log").toPath();
+			assertEquals(recordedTail, docker.getLogs(containerId, replayedLogFile, 100));
+			assertEquals(logFile.toFile().length(), replayedLogFile.toFile().length());
+			Map<String, Container> containers = docker.listContainers(null);
+			assertNotNull(containers.get(CONTAINER_NAME));
+			assertEquals(containerId, containers.get(CONTAINER_NAME).getId());
+			docker.removeContainer(containerId, true);
+			replayedEvents.awaitEvents(3);
+			for (int i=0; i<3; i++) {
+				assertEquals(recordedEvents.events.get(i).getAction(), replayedEvents.events.get(i).getAction());
+				assertEquals(containerId, replayedEvents.events.get(i).getActor().getId());
+			}
+			assertEquals(0L, replayer.getUnmatchedCalls());
+
+			// once a key's calls are used up the last is repeated
+			docker.getContainerState(containerId);
+			assertEquals(1L, replayer.getUnmatchedCalls());
+			assertEquals(new Long(2L), replayer.getCallCounts().get("docker getContainerState"));
+			assertEquals(new Long(2L), replayer.getCallCounts().get("synapse lookupChild"));
+			assertFalse(replayer.getSettings().has(Constants.SYNAPSE_PASSWORD_PROPERTY));
+		} finally {
+			replayer.shutdown();
+		}
+	}
+}
@@ -0,0 +1,265 @@
+package org.sagebionetworks;
+
+import static org.sagebionetworks.Constants.AGENT_SHARED_DIR_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.COMPOSE_PROJECT_NAME_ENV_VAR;
+import static org.sagebionetworks.Constants.DOCKER_ENGINE_URL_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.EVALUATION_TEMPLATES_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.MAX_CONCURRENT_WORKFLOWS_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.SYNAPSE_PASSWORD_PROPERTY;
+import static org.sagebionetworks.Constants.SYNAPSE_USERNAME_PROPERTY;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.json.JSONObject;
+import org.sagebionetworks.client.SynapseClient;
+import org.sagebionetworks.evaluation.model.SubmissionStatusEnum;
+
+/*
+ * Drives synthetic submissions through WorkflowHook.execute(), with FakeSynapse and
+ * FakeDockerUtils standing in for Synapse and the Docker engine, and reports the
+ * throughput, the time spent in each phase of the main loop, the calls made to
+ * Synapse and the heap used.
+ *
+ * The agent is configured, as usual, by system properties, which are restored when
+ * the run is over.
+ *
+ * Usage: LoadHarness [submissions, default 2000] [max concurrent workflows, default 100]
+ *   [min workflow seconds, default 5] [max workflow seconds, default 30]
+ *   [Synapse latency millis, default 20] [Docker latency millis, default 5]
+ *   [evaluation queues, default 2]
+ */
+public class LoadHarness {
+	static final String TEMPLATE_ENTRY_POINT = "workflow.cwl";
+	private static final String TEMPLATE_ENTITY_ID_PREFIX = "syn100";
+	private static final String OUTPUT_ROOT_ENTITY_ID = "syn200";
+	private static final String OUTPUT_ROOT_PROPERTY_NAME = "WORKFLOW_OUTPUT_ROOT_ENTITY_ID";
+	private static final long EVALUATION_ID_BASE = 9614000L;
+	private static final long USER_ID_BASE = 3300000L;
+	private static final int NUMBER_OF_USERS = 50;
+	private static final long SLEEP_TIME_MILLIS = 1000L;
+
+	private int submissions = 2000;
+	private int maxConcurrentWorkflows = 100;
+	private int evaluations = 2;
+	private long minWorkflowMillis = 5000L;
+	private long maxWorkflowMillis = 30000L;
+	private long synapseLatencyMillis = 20L;
+	private long dockerLatencyMillis = 5L;
+	private long imagePullMillis = 1000L;
+	private double conflictProbability = 0.01D;
+	private double workflowFailureProbability = 0.05D;
+	private long timeLimitMillis = 60*60*1000L;
+
+	public void setSubmissions(int submissions) {
+		this.submissions = submissions;
+	}
+
+	public void setMaxConcurrentWorkflows(int maxConcurrentWorkflows) {
+		this.maxConcurrentWorkflows = maxConcurrentWorkflows;
+	}
+
+	public void setEvaluations(int evaluations) {
+		this.evaluations = evaluations;
+	}
+
+	public void setWorkflowMillis(long minWorkflowMillis, long maxWorkflowMillis) {
+		this.minWorkflowMillis = minWorkflowMillis;
+		this.maxWorkflowMillis = maxWorkflowMillis;
+	}
+
+	public void setSynapseLatencyMillis(long synapseLatencyMillis) {
+		this.synapseLatencyMillis = synapseLatencyMillis;
+	}
+
+	public void setDockerLatencyMillis(long dockerLatencyMillis) {
+		this.dockerLatencyMillis = dockerLatencyMillis;
+	}
+
+	public void setImagePullMillis(long imagePullMillis) {
+		this.imagePullMillis = imagePullMillis;
+	}
+
+	public void setConflictProbability(double conflictProbability) {
+		this.conflictProbability = conflictProbability;
+	}
+
+	public void setWorkflowFailureProbability(double workflowFailureProbability) {
+		this.workflowFailureProbability = workflowFailureProbability;
+	}
+
+	public void setTimeLimitMillis(long timeLimitMillis) {
+		this.timeLimitMillis = timeLimitMillis;
+	}
+
+	/*
+	 * What was measured in a run
+	 */
+	public static class Report {
+		private int submissions;
+		private int unfinishedSubmissions;
+		private AgentRunner.Measurements measurements;
+		private Map<SubmissionStatusEnum,Integer> statusCounts;
+		private Map<String,Long> synapseCalls;
+		private long conflicts;
+		private long messagesSent;
+		private long bytesUploaded;
+		private long containersStarted;
+		private int maxContainersRunning;
+		private long imagePulls;
+
+		public int getUnfinishedSubmissions() {
+			return unfinishedSubmissions;
+		}
+
+		public Map<SubmissionStatusEnum,Integer> getStatusCounts() {
+			return statusCounts;
+		}
+
+		public Map<String,Long> getSynapseCalls() {
+			return synapseCalls;
+		}
+
+		public long getConflicts() {
+			return conflicts;
+		}
+
+		public long getContainersStarted() {
+			return containersStarted;
+		}
+
+		public int getMaxContainersRunning() {
+			return maxContainersRunning;
+		}
+
+		public long getMaxHeapUsedBytes() {
+			return measurements.getMaxHeapUsedBytes();
+		}
+
+		public double getSubmissionsPerMinute() {
+			long elapsedMillis = measurements.getElapsedMillis();
+			return elapsedMillis==0 ? 0D : 60000D*(submissions-unfinishedSubmissions)/elapsedMillis;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append(String.format("%d of %d submissions finished in %.1f sec:  %.1f per minute%n",
+					submissions-unfinishedSubmissions, submissions, measurements.getElapsedMillis()/1000D, getSubmissionsPerMinute()));
+			sb.append("Final states: "+statusCounts+"\n");
+			sb.append(measurements.loopPhasesToString());
+			sb.append("Synapse calls:\n");
+			long totalCalls = 0L;
+			for (String method : synapseCalls.keySet()) {
+				sb.append(String.format("  %-40s %8d%n", method, synapseCalls.get(method)));
+				totalCalls += synapseCalls.get(method);
+			}
+			sb.append(String.format("  %-40s %8d%n", "total", totalCalls));
+			sb.append(String.format("Conflicts (409): %d, messages sent: %d, bytes uploaded: %d%n",
+					conflicts, messagesSent, bytesUploaded));
+			sb.append(String.format("Containers started: %d, most running at once: %d, image pulls: %d%n",
+					containersStarted, maxContainersRunning, imagePulls));
+			sb.append(measurements.heapToString());
+			return sb.toString();
+		}
+	}
+
+	/*
+	 * A workflow template archive having just the entry point
+	 */
+	static File createTemplateArchive(File dir) throws IOException {
+		File zip = new File(dir, "template.zip");
+		try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(zip))) {
+			zos.putNextEntry(new ZipEntry(TEMPLATE_ENTRY_POINT));
+			zos.write("cwlVersion: v1.0\nclass: Workflow\n".getBytes(Charset.forName("UTF-8")));
+			zos.closeEntry();
+		}
+		return zip;
+	}
+
+	static int countUnfinished(FakeSynapse synapse) {
+		Map<SubmissionStatusEnum,Integer> counts = synapse.getStatusCounts();
+		int result = 0;
+		for (SubmissionStatusEnum state : Arrays.asList(EvaluationUtils.getInitialSubmissionState(),
+				EvaluationUtils.getInProgressSubmissionState())) {
+			Integer count = counts.get(state);
+			if (count!=null) result += count;
+		}
+		return result;
+	}
+
+	public Report run() throws Throwable {
+		File sharedDir = Files.createTempDirectory("load-harness").toFile();
+		AgentRunner runner = new AgentRunner();
+		runner.setProperty(AGENT_SHARED_DIR_PROPERTY_NAME, sharedDir.getAbsolutePath());
+		runner.setProperty(COMPOSE_PROJECT_NAME_ENV_VAR, "loadharness");
+		runner.setProperty(MAX_CONCURRENT_WORKFLOWS_PROPERTY_NAME, Integer.toString(maxConcurrentWorkflows));
+		runner.setProperty(SYNAPSE_USERNAME_PROPERTY, "load-harness");
+		runner.setProperty(SYNAPSE_PASSWORD_PROPERTY, "not-a-password");
+		runner.setProperty(OUTPUT_ROOT_PROPERTY_NAME, OUTPUT_ROOT_ENTITY_ID);
+		// not used to connect, since the engine is simulated
+		runner.setProperty(DOCKER_ENGINE_URL_PROPERTY_NAME, "unix:///var/run/docker.sock");
+
+		final FakeSynapse fakeSynapse = new FakeSynapse(synapseLatencyMillis, conflictProbability);
+		File templateArchive = createTemplateArchive(sharedDir);
+		JSONObject evaluationTemplates = new JSONObject();
+		for (int i=0; i<evaluations; i++) {
+			String templateId = TEMPLATE_ENTITY_ID_PREFIX+i;
+			evaluationTemplates.put(Long.toString(EVALUATION_ID_BASE+i), templateId);
+			fakeSynapse.addWorkflowTemplate(templateId, templateArchive.toURI().toURL(), TEMPLATE_ENTRY_POINT);
+		}
+		runner.setProperty(EVALUATION_TEMPLATES_PROPERTY_NAME, evaluationTemplates.toString());
+
+		FakeDockerUtils fakeDocker = new FakeDockerUtils(dockerLatencyMillis, imagePullMillis,
+				minWorkflowMillis, maxWorkflowMillis, workflowFailureProbability, sharedDir);
+		try {
+			for (int i=0; i<submissions; i++) {
+				fakeSynapse.addSubmission(Long.toString(EVALUATION_ID_BASE+(i%evaluations)),
+						Long.toString(USER_ID_BASE+(i%NUMBER_OF_USERS)), EvaluationUtils.getInitialSubmissionState());
+			}
+			SynapseClient synapse = SynapseClientFactory.createRetryingProxy(fakeSynapse.createClient(), SynapseClient.class);
+			Report report = new Report();
+			report.submissions = submissions;
+			report.measurements = runner.run(synapse, fakeDocker, SLEEP_TIME_MILLIS, timeLimitMillis,
+					new AgentRunner.StopCondition() {
+						@Override
+						public boolean shouldStop() {
+							return countUnfinished(fakeSynapse)==0;
+						}});
+			report.unfinishedSubmissions = countUnfinished(fakeSynapse);
+			report.statusCounts = fakeSynapse.getStatusCounts();
+			report.synapseCalls = fakeSynapse.getCallCounts();
+			report.conflicts = fakeSynapse.getConflicts();
+			report.messagesSent = fakeSynapse.getMessagesSent();
+			report.bytesUploaded = fakeSynapse.getBytesUploaded();
+			report.containersStarted = fakeDocker.getContainersStarted();
+			report.maxContainersRunning = fakeDocker.getMaxRunning();
+			report.imagePulls = fakeDocker.getImagePulls();
+			return report;
+		} finally {
+			fakeDocker.shutdown();
+			FileUtils.deleteQuietly(sharedDir);
+		}
+	}
+
+	public static void main(String[] args) throws Throwable {
+		LoadHarness harness = new LoadHarness();
+		if (args.length>0) harness.setSubmissions(Integer.parseInt(args[0]));
+		if (args.length>1) harness.setMaxConcurrentWorkflows(Integer.parseInt(args[1]));
+		if (args.length>3) harness.setWorkflowMillis(1000L*Long.parseLong(args[2]), 1000L*Long.parseLong(args[3]));
+		if (args.length>4) harness.setSynapseLatencyMillis(Long.parseLong(args[4]));
+		if (args.length>5) harness.setDockerLatencyMillis(Long.parseLong(args[5]));
+		if (args.length>6) harness.setEvaluations(Integer.parseInt(args[6]));
+		System.out.println(harness.run());
+		// the agent's thread pools are not all daemons
+		System.exit(0);
+	}
+}
@@ -0,0 +1,31 @@
+package org.sagebionetworks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LoadHarnessTest {
+
+	@Test
+	public void testRun() throws Throwable {
+		LoadHarness harness = new LoadHarness();
+		harness.setSubmissions(20);
+		harness.setMaxConcurrentWorkflows(5);
+		harness.setEvaluations(2);
+		harness.setWorkflowMillis(200L, 1000L);
+		harness.setSynapseLatencyMillis(0L);
+		harness.setDockerLatencyMillis(0L);
+		harness.setImagePullMillis(0L);
+		harness.setTimeLimitMillis(120000L);
+
+		// method under test
+		LoadHarness.Report report = harness.run();
+
+		assertEquals(report.toString(), 0, report.getUnfinishedSubmissions());
+		assertEquals(20L, report.getContainersStarted());
+		assertTrue(report.getMaxContainersRunning()<=5);
+		assertTrue(report.getSynapseCalls().get("getAllSubmissionBundlesByStatus")>0);
+		assertTrue(report.getMaxHeapUsedBytes()>0);
+	}
+}
@@ -0,0 +1,154 @@
+package org.sagebionetworks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.Test;
+
+import com.github.dockerjava.api.model.Frame;
+import com.github.dockerjava.api.model.StreamType;
+
+public class LoggingResultsCallbackTest {
+	
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	private static Frame[] createFrames() {
+		return new Frame[] {
+			new Frame(StreamType.STDOUT, "  first line\n".getBytes(UTF8)),
+			new Frame(StreamType.STDERR, "second line, with a ü and a €\n".getBytes(UTF8)),
+			new Frame(StreamType.STDOUT, "\n".getBytes(UTF8)),
+			new Frame(StreamType.STDOUT, "last line\r\n".getBytes(UTF8))
+		};
+	}
+	
+	private static String expectedOutput(Frame[] frames) {
+		StringBuilder sb = new StringBuilder();
+		// as Frame.toString() would give, if the platform's default encoding is UTF-8
+		for (Frame frame : frames) sb.append(frame.getStreamType()+": "+new String(frame.getPayload(), UTF8).trim()+"\r\n");
+		return sb.toString();
+	}
+
+	@Test
+	public void testOutputMatchesFrameToString() throws Exception {
+		Frame[] frames = createFrames();
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		LoggingResultsCallback callback = new LoggingResultsCallback(os, null);
+		for (Frame frame : frames) callback.onNext(frame);
+		callback.onComplete();
+		assertTrue(callback.isComplete());
+		assertEquals(expectedOutput(frames), new String(os.toByteArray(), UTF8));
+		assertNull(callback.getTail());
+	}
+
+	@Test
+	public void testTail() throws Exception {
+		Frame[] frames = createFrames();
+		String expected = expectedOutput(frames);
+		for (int maxTail : new int[] {1, 5, 20, 40, 1000}) {
+			LoggingResultsCallback callback = new LoggingResultsCallback(new ByteArrayOutputStream(), maxTail);
+			assertNull(callback.getTail());
+			for (Frame frame : frames) callback.onNext(frame);
+			String expectedTail = expected.length()<=maxTail ? expected : expected.substring(expected.length()-maxTail);
+			assertEquals(expectedTail, callback.getTail());
+		}
+	}
+
+	@Test
+	public void testCompletion() throws Exception {
+		LoggingResultsCallback callback = new LoggingResultsCallback(new ByteArrayOutputStream(), null);
+		assertFalse(callback.getCompletion().isDone());
+		callback.onComplete();
+		assertTrue(callback.getCompletion().isDone());
+		callback.getCompletion().get();
+	}
+
+	@Test
+	public void testError() throws Exception {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		LoggingResultsCallback callback = new LoggingResultsCallback(os, null);
+		callback.onError(new IOException("broken pipe"));
+		try {
+			callback.getCompletion().get();
+			fail("exception expected");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IOException);
+		}
+		assertTrue(os.toString().contains("broken pipe"));
+	}
+
+	@Test
+	public void testCancelClosesStream() throws Exception {
+		Closeable stream = mock(Closeable.class);
+		LoggingResultsCallback callback = new LoggingResultsCallback(new ByteArrayOutputStream(), null);
+		callback.onStart(stream);
+		callback.cancel();
+		assertTrue(callback.getCompletion().isCancelled());
+		verify(stream).close();
+	}
+
+	@Test
+	public void testTimeout() throws Exception {
+		Closeable stream = mock(Closeable.class);
+		LoggingResultsCallback callback = new LoggingResultsCallback(new ByteArrayOutputStream(), null);
+		callback.onStart(stream);
+		try {
+			DockerUtils.await(callback.getCompletion(), 0, "test");
+			fail("exception expected");
+		} catch (IOException e) {
+			// as expected
+		}
+		assertTrue(callback.getCompletion().isCancelled());
+	}
+
+	@Test
+	public void testTimestampsRemoved() throws Exception {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		LoggingResultsCallback callback = new LoggingResultsCallback(os, 40);
+		callback.setTimestamped(true);
+		callback.onNext(new Frame(StreamType.STDOUT, "2018-05-01T12:00:00.000000001Z first line\n".getBytes(UTF8)));
+		callback.onNext(new Frame(StreamType.STDERR, "2018-05-01T12:00:01.000000001Z   indented line\n".getBytes(UTF8)));
+		callback.onComplete();
+		String expected = "STDOUT: first line\r\nSTDERR:   indented line\r\n";
+		assertEquals(expected, new String(os.toByteArray(), UTF8));
+		assertEquals(expected.substring(expected.length()-40), callback.getTail());
+		assertEquals("2018-05-01T12:00:01.000000001Z", callback.getLastTimestamp());
+	}
+
+	@Test
+	public void testSkipThroughEachLineOfFrame() throws Exception {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		LoggingResultsCallback callback = new LoggingResultsCallback(os, null);
+		callback.setTimestamped(true);
+		callback.setSkipThrough("2018-05-01T12:00:01Z");
+		// as from a container with a TTY, several lines in one frame
+		callback.onNext(new Frame(StreamType.RAW, ("2018-05-01T12:00:00Z one\r\n"+
+				"2018-05-01T12:00:01Z two\r\n"+
+				"2018-05-01T12:00:02Z three\r\n").getBytes(UTF8)));
+		callback.onNext(new Frame(StreamType.RAW, "2018-05-01T12:00:03Z four\r\n".getBytes(UTF8)));
+		callback.onComplete();
+		assertEquals("RAW: three\r\nRAW: four\r\n", new String(os.toByteArray(), UTF8));
+		assertEquals("2018-05-01T12:00:03Z", callback.getLastTimestamp());
+	}
+
+	@Test
+	public void testUntimestampedOutputKept() throws Exception {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		LoggingResultsCallback callback = new LoggingResultsCallback(os, null);
+		callback.onNext(new Frame(StreamType.STDOUT, "2018-05-01T12:00:00Z is a date\n".getBytes(UTF8)));
+		callback.onComplete();
+		assertEquals("STDOUT: 2018-05-01T12:00:00Z is a date\r\n", new String(os.toByteArray(), UTF8));
+		assertNull(callback.getLastTimestamp());
+	}
+
+}
@@ -0,0 +1,64 @@
+package org.sagebionetworks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.sagebionetworks.Constants.MESSAGE_TEMPLATE_DIR_PROPERTY_NAME;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Test;
+
+public class MessageUtilsTest {
+
+	@After
+	public void after() {
+		System.clearProperty(MESSAGE_TEMPLATE_DIR_PROPERTY_NAME);
+		Configuration.reload();
+	}
+
+	@Test
+	public void testRenderTemplate() throws Exception {
+		MessageTemplate template = new MessageTemplate("Dear ##team##, ## not a placeholder ##team## ##unknown## ####");
+		Map<String,String> values = new HashMap<String,String>();
+		values.put("team", "$1 \\team");
+
+		assertEquals("Dear $1 \\team, ## not a placeholder $1 \\team ##unknown## ####", template.render(values));
+	}
+
+	@Test
+	public void testCreateWorkflowCompleteMessage() throws Exception {
+		String message = MessageUtils.createWorkflowCompleteMessage("my team", "101", "syn202");
+		assertTrue(message.startsWith("Dear my team"));
+		assertTrue(message.contains("(submission ID 101)"));
+		assertTrue(message.contains("https://www.synapse.org/#!Synapse:syn202."));
+		assertTrue(!message.contains("##"));
+	}
+
+	@Test
+	public void testTemplateOverride() throws Exception {
+		File dir = Files.createTempDirectory("templates").toFile();
+		try {
+			File override = new File(dir, "WorkflowCompleteTemplate.txt");
+			FileUtils.write(override, "Well done ##team##", "UTF-8");
+			System.setProperty(MESSAGE_TEMPLATE_DIR_PROPERTY_NAME, dir.getAbsolutePath());
+			Configuration.reload();
+			assertEquals("Well done my team", MessageUtils.createWorkflowCompleteMessage("my team", "101", "syn202"));
+
+			// the change is picked up
+			FileUtils.write(override, "Congratulations ##team##", "UTF-8");
+			override.setLastModified(override.lastModified()+2000L);
+			assertEquals("Congratulations my team", MessageUtils.createWorkflowCompleteMessage("my team", "101", "syn202"));
+
+			// and when the override is removed, the built in template is used again
+			override.delete();
+			assertTrue(MessageUtils.createWorkflowCompleteMessage("my team", "101", "syn202").startsWith("Dear my team"));
+		} finally {
+			FileUtils.deleteDirectory(dir);
+		}
+	}
+}
@@ -0,0 +1,58 @@
+package org.sagebionetworks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+public class MetricsTest {
+
+	@Test
+	public void testWrite() throws Exception {
+		Metrics.Counter counter = Metrics.counter("test_total", "A test counter", "method");
+		counter.inc("get\"it\"");
+		counter.add(2L, "get\"it\"");
+		Metrics.Summary summary = Metrics.summary("test_seconds", "A test summary");
+		summary.observe(0.5D);
+		summary.observe(1.5D);
+
+		StringWriter writer = new StringWriter();
+		// method under test
+		Metrics.write(writer);
+
+		String text = writer.toString();
+		assertTrue(text.contains("# TYPE workflow_hook_test_total counter\n"));
+		assertTrue(text.contains("workflow_hook_test_total{method=\"get\\\"it\\\"\"} 3\n"));
+		assertTrue(text.contains("# HELP workflow_hook_test_seconds A test summary\n"));
+		assertTrue(text.contains("workflow_hook_test_seconds_count 2\n"));
+		assertTrue(text.contains("workflow_hook_test_seconds_sum 2.0\n"));
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testWrongLabels() throws Exception {
+		Metrics.JOBS.set(1L, "101");
+	}
+
+	@Test
+	public void testServer() throws Exception {
+		Metrics.JOBS.set(3L, "101", "running");
+		MetricsServer server = new MetricsServer(0);
+		server.start();
+		try {
+			HttpURLConnection connection = (HttpURLConnection)new URL("http://localhost:"+server.getPort()+MetricsServer.METRICS_PATH).openConnection();
+			assertEquals(200, connection.getResponseCode());
+			assertTrue(connection.getContentType().startsWith("text/plain"));
+			try (InputStream is = connection.getInputStream()) {
+				assertTrue(IOUtils.toString(is, "UTF-8").contains("workflow_hook_jobs{evaluation=\"101\",state=\"running\"} 3\n"));
+			}
+		} finally {
+			server.stop();
+		}
+	}
+}
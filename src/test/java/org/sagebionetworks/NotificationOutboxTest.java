@@ -0,0 +1,136 @@
+package org.sagebionetworks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sagebionetworks.client.exceptions.SynapseNotFoundException;
+import org.sagebionetworks.client.exceptions.SynapseServiceUnavailable;
+import org.sagebionetworks.client.exceptions.UnknownSynapseServerException;
+
+public class NotificationOutboxTest {
+	private File dir;
+	private List<String> sent;
+
+	@Before
+	public void before() throws Exception {
+		dir = Files.createTempDirectory("outbox").toFile();
+		sent = Collections.synchronizedList(new ArrayList<String>());
+	}
+
+	@After
+	public void after() throws Exception {
+		FileUtils.deleteDirectory(dir);
+	}
+
+	private NotificationOutbox.MessageSender createSender(final int failuresBeforeSuccess) {
+		return new NotificationOutbox.MessageSender() {
+			int failures = 0;
+			@Override
+			public void send(String recipientId, String subject, String body) throws Exception {
+				if (failures++<failuresBeforeSuccess) throw new RuntimeException("unavailable");
+				sent.add(recipientId+":"+subject+":"+body);
+			}};
+	}
+
+	private static void awaitDelivery(NotificationOutbox outbox) throws Exception {
+		for (int i=0; i<200 && outbox.getPendingCount()>0; i++) Thread.sleep(50L);
+	}
+
+	@Test
+	public void testUndeliveredMessagesSurviveRestart() throws Exception {
+		NotificationOutbox outbox = new NotificationOutbox(dir, createSender(0), 60000);
+		outbox.enqueue("111", "subject", "body\twith\nspecial characters");
+		outbox.enqueue("222", "subject", "body");
+		assertEquals(2, outbox.getPendingCount());
+		// never started, so nothing is sent
+		outbox.close();
+		assertTrue(sent.isEmpty());
+
+		// method under test
+		outbox = new NotificationOutbox(dir, createSender(0), 60000);
+		assertEquals(2, outbox.getPendingCount());
+		outbox.start();
+		awaitDelivery(outbox);
+		outbox.close();
+
+		assertEquals(2, sent.size());
+		assertEquals("111:subject:body\twith\nspecial characters", sent.get(0));
+		assertEquals("222:subject:body", sent.get(1));
+
+		// delivered messages are not sent again
+		outbox = new NotificationOutbox(dir, createSender(0), 60000);
+		assertEquals(0, outbox.getPendingCount());
+		outbox.close();
+	}
+
+	@Test
+	public void testRetryAfterFailure() throws Exception {
+		NotificationOutbox outbox = new NotificationOutbox(dir, createSender(1), 60000);
+		outbox.start();
+
+		// method under test
+		outbox.enqueue("111", "subject", "body");
+
+		awaitDelivery(outbox);
+		outbox.close();
+		assertEquals(Collections.singletonList("111:subject:body"), sent);
+	}
+
+	@Test
+	public void testFailingMessageDoesNotHoldUpOthers() throws Exception {
+		final List<String> attempts = Collections.synchronizedList(new ArrayList<String>());
+		NotificationOutbox outbox = new NotificationOutbox(dir, new NotificationOutbox.MessageSender() {
+			@Override
+			public void send(String recipientId, String subject, String body) throws Exception {
+				attempts.add(recipientId);
+				if (recipientId.equals("111")) throw new RuntimeException("unavailable");
+				sent.add(recipientId+":"+subject+":"+body);
+			}}, 60000);
+		outbox.enqueue("111", "subject", "body");
+		outbox.enqueue("222", "subject", "body");
+
+		// method under test
+		outbox.start();
+
+		for (int i=0; i<200 && outbox.getPendingCount()>1; i++) Thread.sleep(50L);
+		outbox.close();
+		assertEquals(Collections.singletonList("222:subject:body"), sent);
+		// the second was sent before the first was retried
+		assertEquals("111", attempts.get(0));
+		assertEquals("222", attempts.get(1));
+		assertEquals(1, outbox.getPendingCount());
+	}
+
+	@Test
+	public void testPermanentFailureNotRetried() throws Exception {
+		final int[] attempts = new int[] {0};
+		NotificationOutbox outbox = new NotificationOutbox(dir, new NotificationOutbox.MessageSender() {
+			@Override
+			public void send(String recipientId, String subject, String body) throws Exception {
+				attempts[0]++;
+				throw new SynapseNotFoundException("no such user");
+			}}, 60000);
+		outbox.start();
+
+		// method under test
+		outbox.enqueue("111", "subject", "body");
+
+		awaitDelivery(outbox);
+		outbox.close();
+		assertEquals(0, outbox.getPendingCount());
+		assertEquals(1, attempts[0]);
+		assertTrue(NotificationOutbox.isPermanentFailure(new UnknownSynapseServerException(409, "conflict")));
+		assertFalse(NotificationOutbox.isPermanentFailure(new SynapseServiceUnavailable()));
+	}
+}
@@ -0,0 +1,97 @@
+package org.sagebionetworks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PipelineStageTest {
+	
+	private PipelineStage stage;
+	
+	@Before
+	public void setUp() throws Exception {
+		stage = new PipelineStage("test", 2, 1);
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		stage.shutdown();
+	}
+
+	@Test
+	public void testAwaitAllHappyCase() throws Throwable {
+		List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+		for (int i=0; i<3; i++) {
+			final int x = i;
+			futures.add(stage.submit(new PipelineTask<Integer>() {
+				@Override
+				public Integer run() throws Throwable {
+					return x*x;
+				}}));
+		}
+		assertEquals(Arrays.asList(0, 1, 4), PipelineStage.awaitAll(futures));
+	}
+
+	@Test
+	public void testAwaitAllWaitsForEveryTaskThenThrowsFirstFailure() throws Throwable {
+		final AtomicInteger completed = new AtomicInteger(0);
+		final IllegalStateException expected = new IllegalStateException();
+		List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		futures.add(stage.submit(new PipelineTask<Void>() {
+			@Override
+			public Void run() throws Throwable {
+				throw expected;
+			}}));
+		futures.add(stage.submit(new PipelineTask<Void>() {
+			@Override
+			public Void run() throws Throwable {
+				Thread.sleep(100L);
+				completed.incrementAndGet();
+				return null;
+			}}));
+		try {
+			PipelineStage.awaitAll(futures);
+			fail("Expected exception");
+		} catch (IllegalStateException e) {
+			assertTrue(e==expected);
+		}
+		assertEquals(1, completed.get());
+	}
+
+	@Test
+	public void testFullQueueRunsTaskInCaller() throws Throwable {
+		final CountDownLatch release = new CountDownLatch(1);
+		PipelineTask<String> blockingTask = new PipelineTask<String>() {
+			@Override
+			public String run() throws Throwable {
+				release.await();
+				return Thread.currentThread().getName();
+			}};
+		List<Future<String>> futures = new ArrayList<Future<String>>();
+		// occupy both threads and the single queue slot
+		for (int i=0; i<3; i++) futures.add(stage.submit(blockingTask));
+		// the next task has nowhere to go so it runs in this thread
+		Future<String> overflow = stage.submit(new PipelineTask<String>() {
+			@Override
+			public String run() throws Throwable {
+				return Thread.currentThread().getName();
+			}});
+		assertEquals(Thread.currentThread().getName(), PipelineStage.await(overflow));
+		release.countDown();
+		for (String threadName : PipelineStage.awaitAll(futures)) {
+			assertTrue(threadName.startsWith("test-"));
+		}
+	}
+
+}
@@ -0,0 +1,179 @@
+package org.sagebionetworks;
+
+import static org.sagebionetworks.Constants.AGENT_SHARED_DIR_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.COMPOSE_PROJECT_NAME_ENV_VAR;
+import static org.sagebionetworks.Constants.DOCKER_ENGINE_URL_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.ROOT_TEMPLATE_ANNOTATION_NAME;
+import static org.sagebionetworks.Constants.SYNAPSE_PASSWORD_PROPERTY;
+import static org.sagebionetworks.Constants.SYNAPSE_USERNAME_PROPERTY;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.sagebionetworks.client.SynapseClient;
+
+/*
+ * Replays a recording made by setting RECORDING_FILE (see InteractionRecorder) through
+ * WorkflowHook.execute(), without Synapse or a Docker engine, and reports the time spent
+ * in each phase of the main loop and the calls made.  Running it on the same recording
+ * before and after a change shows the change's effect on loop latency and call counts.
+ *
+ * The replay runs in virtual time (see VirtualClock), as SimulationHarness does, so the
+ * recorded latencies and events and the agent's own timers, e.g. the interval between
+ * passes and the period between log uploads, keep their recorded proportions while the
+ * replay takes only as long as the agent's work.
+ *
+ * Workflow templates are replaced by a local archive having each recorded entry point.
+ *
+ * Usage: ReplayHarness <recording file>
+ */
+public class ReplayHarness {
+	private static final long SLEEP_TIME_MILLIS = 10*1000L;
+	private static final long REAL_TIME_LIMIT_MILLIS = 60*60*1000L;
+
+	private File recording;
+
+	public ReplayHarness(File recording) {
+		this.recording = recording;
+	}
+
+	/*
+	 * What was measured in a replay
+	 */
+	public static class Report {
+		private long recordedMillis;
+		private AgentRunner.Measurements measurements;
+		private Map<String,Long> calls;
+		private long unmatchedCalls;
+
+		public AgentRunner.Measurements getMeasurements() {
+			return measurements;
+		}
+
+		public Map<String,Long> getCalls() {
+			return calls;
+		}
+
+		public long getUnmatchedCalls() {
+			return unmatchedCalls;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append(String.format("Replayed %.1f sec of recording in %.1f sec%n",
+					recordedMillis/1000D, measurements.getElapsedMillis()/1000D));
+			sb.append(measurements.loopPhasesToString());
+			sb.append("Calls:\n");
+			long totalCalls = 0L;
+			for (String method : calls.keySet()) {
+				sb.append(String.format("  %-48s %8d%n", method, calls.get(method)));
+				totalCalls += calls.get(method);
+			}
+			sb.append(String.format("  %-48s %8d%n", "total", totalCalls));
+			sb.append(String.format("Calls not matching the recording: %d%n", unmatchedCalls));
+			sb.append(measurements.heapToString());
+			return sb.toString();
+		}
+	}
+
+	/*
+	 * A workflow template archive having each of the entry points named in the recorded annotations
+	 */
+	private static File createTemplateArchive(InteractionReplayer replayer, File dir) throws IOException {
+		Set<String> entryPoints = new TreeSet<String>();
+		for (Object annotations : replayer.getRecordedResults(InteractionRecorder.SYNAPSE, "getAnnotations")) {
+			JSONObject stringAnnotations = ((JSONObject)annotations).optJSONObject("stringAnnotations");
+			if (stringAnnotations==null) continue;
+			JSONArray values = stringAnnotations.optJSONArray(ROOT_TEMPLATE_ANNOTATION_NAME);
+			if (values!=null && values.length()>0) entryPoints.add(values.getString(0));
+		}
+		File zip = new File(dir, "template.zip");
+		try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(zip))) {
+			for (String entryPoint : entryPoints) {
+				zos.putNextEntry(new ZipEntry(entryPoint));
+				zos.write("cwlVersion: v1.0\nclass: Workflow\n".getBytes(Charset.forName("UTF-8")));
+				zos.closeEntry();
+			}
+		}
+		return zip;
+	}
+
+	public Report run() throws Throwable {
+		// the agent and the replayed Docker events run in the simulated thread group
+		ThreadGroup threadGroup = new ThreadGroup("replay");
+		final long start = System.currentTimeMillis();
+		final VirtualClock clock = new VirtualClock(start, threadGroup);
+		Clock.setClock(clock);
+		File sharedDir = Files.createTempDirectory("replay-harness").toFile();
+		InteractionReplayer replayer = null;
+		try {
+			// the replayer times the recording from the virtual start
+			replayer = new InteractionReplayer(recording, 1D);
+			final AgentRunner runner = new AgentRunner();
+			JSONObject settings = replayer.getSettings();
+			for (String name : settings.keySet()) runner.setProperty(name, settings.getString(name));
+			runner.setProperty(AGENT_SHARED_DIR_PROPERTY_NAME, sharedDir.getAbsolutePath());
+			runner.setProperty(COMPOSE_PROJECT_NAME_ENV_VAR, "replayharness");
+			runner.setProperty(SYNAPSE_USERNAME_PROPERTY, "replay-harness");
+			runner.setProperty(SYNAPSE_PASSWORD_PROPERTY, "not-a-password");
+			// not used to connect, since the engine is replayed
+			runner.setProperty(DOCKER_ENGINE_URL_PROPERTY_NAME, "unix:///var/run/docker.sock");
+			replayer.setExternalURL(createTemplateArchive(replayer, sharedDir).toURI().toURL().toString());
+
+			final long recordedMillis = replayer.getDurationMillis();
+			final SynapseClient synapse = replayer.createSynapseClient();
+			final DockerUtils dockerUtils = replayer.createDockerUtils(sharedDir);
+			final Report report = new Report();
+			report.recordedMillis = recordedMillis;
+			final Throwable[] failure = new Throwable[1];
+			Thread replayThread = new Thread(threadGroup, new Runnable() {
+				@Override
+				public void run() {
+					try {
+						report.measurements = runner.run(synapse, dockerUtils, SLEEP_TIME_MILLIS, REAL_TIME_LIMIT_MILLIS,
+								new AgentRunner.StopCondition() {
+									@Override
+									public boolean shouldStop() {
+										return clock.currentTimeMillis()-start>=recordedMillis;
+									}});
+					} catch (Throwable t) {
+						failure[0] = t;
+					}
+				}}, "replay");
+			clock.start();
+			replayThread.start();
+			replayThread.join();
+			if (failure[0]!=null) throw failure[0];
+			report.calls = replayer.getCallCounts();
+			report.unmatchedCalls = replayer.getUnmatchedCalls();
+			return report;
+		} finally {
+			if (replayer!=null) replayer.shutdown();
+			clock.stop();
+			Clock.setClock(new Clock());
+			FileUtils.deleteQuietly(sharedDir);
+		}
+	}
+
+	public static void main(String[] args) throws Throwable {
+		if (args.length<1) {
+			System.err.println("Usage: ReplayHarness <recording file>");
+			System.exit(1);
+		}
+		System.out.println(new ReplayHarness(new File(args[0])).run());
+		// the agent's thread pools are not all daemons
+		System.exit(0);
+	}
+}
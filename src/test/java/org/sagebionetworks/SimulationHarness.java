@@ -0,0 +1,320 @@
+package org.sagebionetworks;
+
+import static org.sagebionetworks.Constants.AGENT_SHARED_DIR_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.COMPOSE_PROJECT_NAME_ENV_VAR;
+import static org.sagebionetworks.Constants.DOCKER_ENGINE_URL_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.EVALUATION_TEMPLATES_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.MAX_CONCURRENT_WORKFLOWS_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.SYNAPSE_PASSWORD_PROPERTY;
+import static org.sagebionetworks.Constants.SYNAPSE_USERNAME_PROPERTY;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.json.JSONObject;
+import org.sagebionetworks.client.SynapseClient;
+import org.sagebionetworks.evaluation.model.SubmissionStatusEnum;
+
+/*
+ * Plays a challenge round through WorkflowHook.execute() in virtual time (see
+ * VirtualClock), with FakeSynapse and FakeDockerUtils standing in for Synapse and
+ * the Docker engine, so that a round lasting days, with thousands of submissions,
+ * runs in seconds.  Submissions arrive at random times during the round and each
+ * workflow runs for a random time between the given minimum and maximum.  The
+ * harness reports how the agent kept up:  the submissions finished, the number
+ * waiting to start (sampled each virtual minute), the passes of the main loop and
+ * the calls made to Synapse.
+ *
+ * All the agent's scheduling, throttling and time outs, e.g. the interval between
+ * passes, the period between log uploads, status heartbeats and retry back off,
+ * follow the virtual clock, so a change to any of them can be benchmarked at the
+ * scale of a real round.  Latencies given for Synapse are in virtual time too.
+ *
+ * Usage: SimulationHarness [round hours, default 72] [submissions, default 3000]
+ *   [max concurrent workflows, default 50] [min workflow minutes, default 10]
+ *   [max workflow minutes, default 120] [evaluation queues, default 2]
+ */
+public class SimulationHarness {
+	private static final String TEMPLATE_ENTITY_ID_PREFIX = "syn100";
+	private static final String OUTPUT_ROOT_ENTITY_ID = "syn200";
+	private static final String OUTPUT_ROOT_PROPERTY_NAME = "WORKFLOW_OUTPUT_ROOT_ENTITY_ID";
+	private static final long EVALUATION_ID_BASE = 9614000L;
+	private static final long USER_ID_BASE = 3300000L;
+	private static final int NUMBER_OF_USERS = 200;
+	private static final long SLEEP_TIME_MILLIS = 10*1000L;
+	private static final long SAMPLE_PERIOD_MILLIS = 60*1000L;
+	private static final long LOG_LINE_INTERVAL_MILLIS = 60*1000L;
+	// how long after the round the agent may take to finish the last submissions
+	private static final long DRAIN_MILLIS = 24*3600*1000L;
+	private static final long REAL_TIME_LIMIT_MILLIS = 60*60*1000L;
+
+	private long roundMillis = 72*3600*1000L;
+	private int submissions = 3000;
+	private int maxConcurrentWorkflows = 50;
+	private int evaluations = 2;
+	private long minWorkflowMillis = 10*60*1000L;
+	private long maxWorkflowMillis = 120*60*1000L;
+	private long synapseLatencyMillis = 0L;
+	private double conflictProbability = 0.01D;
+	private double workflowFailureProbability = 0.05D;
+	private long seed = 0L;
+
+	public void setRoundMillis(long roundMillis) {
+		this.roundMillis = roundMillis;
+	}
+
+	public void setSubmissions(int submissions) {
+		this.submissions = submissions;
+	}
+
+	public void setMaxConcurrentWorkflows(int maxConcurrentWorkflows) {
+		this.maxConcurrentWorkflows = maxConcurrentWorkflows;
+	}
+
+	public void setEvaluations(int evaluations) {
+		this.evaluations = evaluations;
+	}
+
+	public void setWorkflowMillis(long minWorkflowMillis, long maxWorkflowMillis) {
+		this.minWorkflowMillis = minWorkflowMillis;
+		this.maxWorkflowMillis = maxWorkflowMillis;
+	}
+
+	public void setSynapseLatencyMillis(long synapseLatencyMillis) {
+		this.synapseLatencyMillis = synapseLatencyMillis;
+	}
+
+	public void setConflictProbability(double conflictProbability) {
+		this.conflictProbability = conflictProbability;
+	}
+
+	public void setWorkflowFailureProbability(double workflowFailureProbability) {
+		this.workflowFailureProbability = workflowFailureProbability;
+	}
+
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	/*
+	 * What was measured in a simulation
+	 */
+	public static class Report {
+		private int submissions;
+		private int unfinishedSubmissions;
+		private long virtualMillis;
+		private long lastFinishedMillis;
+		private AgentRunner.Measurements measurements;
+		private Map<SubmissionStatusEnum,Integer> statusCounts;
+		private Map<String,Long> synapseCalls;
+		private long containersStarted;
+		private int maxContainersRunning;
+		private double meanWaiting;
+		private int maxWaiting;
+		private long clockAdvances;
+
+		public int getUnfinishedSubmissions() {
+			return unfinishedSubmissions;
+		}
+
+		public long getVirtualMillis() {
+			return virtualMillis;
+		}
+
+		public AgentRunner.Measurements getMeasurements() {
+			return measurements;
+		}
+
+		public Map<String,Long> getSynapseCalls() {
+			return synapseCalls;
+		}
+
+		public long getContainersStarted() {
+			return containersStarted;
+		}
+
+		public int getMaxContainersRunning() {
+			return maxContainersRunning;
+		}
+
+		public int getMaxWaiting() {
+			return maxWaiting;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append(String.format("Simulated %.1f hours in %.1f sec%n", virtualMillis/3600000D, measurements.getElapsedMillis()/1000D));
+			sb.append(String.format("%d of %d submissions finished, the last %.1f hours into the round%n",
+					submissions-unfinishedSubmissions, submissions, lastFinishedMillis/3600000D));
+			sb.append("Final states: "+statusCounts+"\n");
+			sb.append(String.format("Submissions waiting to start: %.1f on average, %d at most%n", meanWaiting, maxWaiting));
+			sb.append(String.format("Containers started: %d, most running at once: %d%n", containersStarted, maxContainersRunning));
+			sb.append(measurements.loopPhasesToString());
+			sb.append("Synapse calls:\n");
+			long totalCalls = 0L;
+			for (String method : synapseCalls.keySet()) {
+				sb.append(String.format("  %-40s %8d%n", method, synapseCalls.get(method)));
+				totalCalls += synapseCalls.get(method);
+			}
+			sb.append(String.format("  %-40s %8d%n", "total", totalCalls));
+			sb.append(String.format("Clock advances: %d%n", clockAdvances));
+			sb.append(measurements.heapToString());
+			return sb.toString();
+		}
+	}
+
+	/*
+	 * The submissions received but not yet started
+	 */
+	private static int countWaiting(FakeSynapse synapse) {
+		Integer count = synapse.getStatusCounts().get(EvaluationUtils.getInitialSubmissionState());
+		return count==null ? 0 : count;
+	}
+
+	public Report run() throws Throwable {
+		File sharedDir = Files.createTempDirectory("simulation-harness").toFile();
+		final AgentRunner runner = new AgentRunner();
+		runner.setProperty(AGENT_SHARED_DIR_PROPERTY_NAME, sharedDir.getAbsolutePath());
+		runner.setProperty(COMPOSE_PROJECT_NAME_ENV_VAR, "simulationharness");
+		runner.setProperty(MAX_CONCURRENT_WORKFLOWS_PROPERTY_NAME, Integer.toString(maxConcurrentWorkflows));
+		runner.setProperty(SYNAPSE_USERNAME_PROPERTY, "simulation-harness");
+		runner.setProperty(SYNAPSE_PASSWORD_PROPERTY, "not-a-password");
+		runner.setProperty(OUTPUT_ROOT_PROPERTY_NAME, OUTPUT_ROOT_ENTITY_ID);
+		// not used to connect, since the engine is simulated
+		runner.setProperty(DOCKER_ENGINE_URL_PROPERTY_NAME, "unix:///var/run/docker.sock");
+
+		final FakeSynapse fakeSynapse = new FakeSynapse(synapseLatencyMillis, conflictProbability);
+		File templateArchive = LoadHarness.createTemplateArchive(sharedDir);
+		JSONObject evaluationTemplates = new JSONObject();
+		for (int i=0; i<evaluations; i++) {
+			String templateId = TEMPLATE_ENTITY_ID_PREFIX+i;
+			evaluationTemplates.put(Long.toString(EVALUATION_ID_BASE+i), templateId);
+			fakeSynapse.addWorkflowTemplate(templateId, templateArchive.toURI().toURL(), LoadHarness.TEMPLATE_ENTRY_POINT);
+		}
+		runner.setProperty(EVALUATION_TEMPLATES_PROPERTY_NAME, evaluationTemplates.toString());
+
+		// the submissions arrive at random times during the round
+		Random random = new Random(seed);
+		final long[] arrivals = new long[submissions];
+		for (int i=0; i<submissions; i++) arrivals[i] = (long)(random.nextDouble()*roundMillis);
+		Arrays.sort(arrivals);
+
+		// the agent, the arrival of submissions and the sampling all run in the simulated thread group
+		ThreadGroup threadGroup = new ThreadGroup("simulation");
+		final long start = System.currentTimeMillis();
+		final VirtualClock clock = new VirtualClock(start, threadGroup);
+		final FakeDockerUtils fakeDocker = new FakeDockerUtils(0L, 0L,
+				minWorkflowMillis, maxWorkflowMillis, workflowFailureProbability, sharedDir);
+		fakeDocker.setLogLineIntervalMillis(LOG_LINE_INTERVAL_MILLIS);
+		final Report report = new Report();
+		report.submissions = submissions;
+		final long[] waitingSamples = new long[2]; // the number of samples and their total
+		final int[] arrived = new int[1];
+
+		Thread arrivalThread = new Thread(threadGroup, new Runnable() {
+			@Override
+			public void run() {
+				try {
+					for (int i=0; i<arrivals.length; i++) {
+						clock.sleep(start+arrivals[i]-clock.currentTimeMillis());
+						fakeSynapse.addSubmission(Long.toString(EVALUATION_ID_BASE+(i%evaluations)),
+								Long.toString(USER_ID_BASE+(i%NUMBER_OF_USERS)), EvaluationUtils.getInitialSubmissionState());
+						synchronized (arrived) {
+							arrived[0]++;
+						}
+					}
+				} catch (InterruptedException e) {
+					// the simulation is over
+				}
+			}}, "simulation-arrivals");
+		arrivalThread.setDaemon(true);
+
+		Thread samplingThread = new Thread(threadGroup, new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						clock.sleep(SAMPLE_PERIOD_MILLIS);
+						int waiting = countWaiting(fakeSynapse);
+						synchronized (waitingSamples) {
+							waitingSamples[0]++;
+							waitingSamples[1] += waiting;
+							report.maxWaiting = Math.max(report.maxWaiting, waiting);
+						}
+						if (LoadHarness.countUnfinished(fakeSynapse)>0) {
+							report.lastFinishedMillis = clock.currentTimeMillis()-start;
+						}
+					}
+				} catch (InterruptedException e) {
+					// the simulation is over
+				}
+			}}, "simulation-sampling");
+		samplingThread.setDaemon(true);
+
+		final Throwable[] failure = new Throwable[1];
+		Thread simulationThread = new Thread(threadGroup, new Runnable() {
+			@Override
+			public void run() {
+				SynapseClient synapse = SynapseClientFactory.createRetryingProxy(fakeSynapse.createClient(), SynapseClient.class);
+				try {
+					report.measurements = runner.run(synapse, fakeDocker, SLEEP_TIME_MILLIS, REAL_TIME_LIMIT_MILLIS,
+							new AgentRunner.StopCondition() {
+								@Override
+								public boolean shouldStop() {
+									long elapsed = clock.currentTimeMillis()-start;
+									synchronized (arrived) {
+										if (arrived[0]==arrivals.length && LoadHarness.countUnfinished(fakeSynapse)==0) return true;
+									}
+									return elapsed>roundMillis+DRAIN_MILLIS;
+								}});
+				} catch (Throwable t) {
+					failure[0] = t;
+				}
+			}}, "simulation");
+
+		Clock.setClock(clock);
+		try {
+			clock.start();
+			arrivalThread.start();
+			samplingThread.start();
+			simulationThread.start();
+			simulationThread.join();
+			report.virtualMillis = clock.currentTimeMillis()-start;
+		} finally {
+			arrivalThread.interrupt();
+			samplingThread.interrupt();
+			fakeDocker.shutdown();
+			clock.stop();
+			Clock.setClock(new Clock());
+			FileUtils.deleteQuietly(sharedDir);
+		}
+		if (failure[0]!=null) throw failure[0];
+
+		// those yet to arrive are unfinished too
+		report.unfinishedSubmissions = submissions-arrived[0]+LoadHarness.countUnfinished(fakeSynapse);
+		report.statusCounts = fakeSynapse.getStatusCounts();
+		report.synapseCalls = fakeSynapse.getCallCounts();
+		report.containersStarted = fakeDocker.getContainersStarted();
+		report.maxContainersRunning = fakeDocker.getMaxRunning();
+		report.meanWaiting = waitingSamples[0]==0 ? 0D : (double)waitingSamples[1]/waitingSamples[0];
+		report.clockAdvances = clock.getAdvances();
+		return report;
+	}
+
+	public static void main(String[] args) throws Throwable {
+		SimulationHarness harness = new SimulationHarness();
+		if (args.length>0) harness.setRoundMillis((long)(3600000D*Double.parseDouble(args[0])));
+		if (args.length>1) harness.setSubmissions(Integer.parseInt(args[1]));
+		if (args.length>2) harness.setMaxConcurrentWorkflows(Integer.parseInt(args[2]));
+		if (args.length>4) harness.setWorkflowMillis(60000L*Long.parseLong(args[3]), 60000L*Long.parseLong(args[4]));
+		if (args.length>5) harness.setEvaluations(Integer.parseInt(args[5]));
+		System.out.println(harness.run());
+		// the agent's thread pools are not all daemons
+		System.exit(0);
+	}
+}
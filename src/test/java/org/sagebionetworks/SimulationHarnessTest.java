@@ -0,0 +1,29 @@
+package org.sagebionetworks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class SimulationHarnessTest {
+
+	@Test
+	public void testRun() throws Throwable {
+		SimulationHarness harness = new SimulationHarness();
+		harness.setRoundMillis(2*3600*1000L);
+		harness.setSubmissions(30);
+		harness.setMaxConcurrentWorkflows(5);
+		harness.setEvaluations(2);
+		harness.setWorkflowMillis(5*60*1000L, 20*60*1000L);
+
+		// method under test
+		SimulationHarness.Report report = harness.run();
+
+		assertEquals(report.toString(), 0, report.getUnfinishedSubmissions());
+		assertEquals(30L, report.getContainersStarted());
+		assertTrue(report.getMaxContainersRunning()<=5);
+		// the round took at least two hours of virtual time, but far less real time
+		assertTrue(report.getVirtualMillis()>=2*3600*1000L);
+		assertTrue(report.toString(), report.getMeasurements().getElapsedMillis()<report.getVirtualMillis()/100L);
+	}
+}
@@ -0,0 +1,186 @@
+package org.sagebionetworks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.sagebionetworks.client.SynapseClient;
+import org.sagebionetworks.client.exceptions.SynapseConflictingUpdateException;
+import org.sagebionetworks.client.exceptions.UnknownSynapseServerException;
+import org.sagebionetworks.evaluation.model.BatchUploadResponse;
+import org.sagebionetworks.evaluation.model.SubmissionStatus;
+import org.sagebionetworks.evaluation.model.SubmissionStatusBatch;
+
+public class SubmissionStatusBatcherTest {
+	private static final String EVALUATION_ID = "101";
+
+	private SynapseClient synapse;
+	private List<SubmissionStatusBatch> batches;
+
+	@Before
+	public void before() throws Exception {
+		synapse = mock(SynapseClient.class);
+		batches = new ArrayList<SubmissionStatusBatch>();
+	}
+
+	private static SubmissionStatus createStatus(String id, String etag) {
+		SubmissionStatus status = new SubmissionStatus();
+		status.setId(id);
+		status.setEtag(etag);
+		return status;
+	}
+
+	private static SubmissionStatusModifications createMods(String value) {
+		SubmissionStatusModifications statusMods = new SubmissionStatusModifications();
+		EvaluationUtils.setAnnotation(statusMods, "foo", value, false);
+		return statusMods;
+	}
+
+	// record a copy of each batch, since the batcher reuses its lists
+	private void recordBatches(final int conflictOnCall) throws Exception {
+		when(synapse.updateSubmissionStatusBatch(eq(EVALUATION_ID), any(SubmissionStatusBatch.class))).thenAnswer(new Answer<BatchUploadResponse>() {
+			@Override
+			public BatchUploadResponse answer(InvocationOnMock invocation) throws Throwable {
+				SubmissionStatusBatch batch = (SubmissionStatusBatch)invocation.getArguments()[1];
+				SubmissionStatusBatch copy = new SubmissionStatusBatch();
+				copy.setStatuses(new ArrayList<SubmissionStatus>(batch.getStatuses()));
+				copy.setIsFirstBatch(batch.getIsFirstBatch());
+				copy.setIsLastBatch(batch.getIsLastBatch());
+				copy.setBatchToken(batch.getBatchToken());
+				batches.add(copy);
+				if (batches.size()==conflictOnCall) throw new SynapseConflictingUpdateException();
+				BatchUploadResponse response = new BatchUploadResponse();
+				response.setNextUploadToken("token"+batches.size());
+				return response;
+			}});
+	}
+
+	@Test
+	public void testFlushInBatches() throws Exception {
+		recordBatches(-1);
+		SubmissionStatusBatcher batcher = new SubmissionStatusBatcher(synapse, 2);
+		for (int i=0; i<3; i++) batcher.add(EVALUATION_ID, createStatus(""+i, "etag"+i), createMods("bar"+i));
+		assertEquals(3, batcher.size());
+
+		// method under test
+		batcher.flush();
+
+		assertEquals(0, batcher.size());
+		assertEquals(2, batches.size());
+		assertEquals(2, batches.get(0).getStatuses().size());
+		assertTrue(batches.get(0).getIsFirstBatch());
+		assertFalse(batches.get(0).getIsLastBatch());
+		assertNull(batches.get(0).getBatchToken());
+		assertEquals(1, batches.get(1).getStatuses().size());
+		assertFalse(batches.get(1).getIsFirstBatch());
+		assertTrue(batches.get(1).getIsLastBatch());
+		assertEquals("token1", batches.get(1).getBatchToken());
+		assertEquals("bar2", EvaluationUtils.getStringAnnotation(batches.get(1).getStatuses().get(0), "foo"));
+	}
+
+	@Test
+	public void testConflictRetriesChangedStatusOnly() throws Exception {
+		recordBatches(1);
+		SubmissionStatus unchanged = createStatus("1", "etag1");
+		SubmissionStatus changed = createStatus("2", "etag2");
+		SubmissionStatus refreshed = createStatus("2", "etag2-new");
+		when(synapse.getSubmissionStatus("1")).thenReturn(createStatus("1", "etag1"));
+		when(synapse.getSubmissionStatus("2")).thenReturn(refreshed);
+		SubmissionStatusBatcher batcher = new SubmissionStatusBatcher(synapse);
+		batcher.add(EVALUATION_ID, unchanged, createMods("bar1"));
+		batcher.add(EVALUATION_ID, changed, createMods("bar2"));
+
+		// method under test
+		batcher.flush();
+
+		assertEquals(2, batches.size());
+		SubmissionStatusBatch retry = batches.get(1);
+		assertTrue(retry.getIsFirstBatch());
+		assertTrue(retry.getIsLastBatch());
+		// the unchanged status is resent as is, the changed one is re-read and modified again
+		assertEquals(unchanged, retry.getStatuses().get(0));
+		assertEquals(refreshed, retry.getStatuses().get(1));
+		assertEquals("bar2", EvaluationUtils.getStringAnnotation(refreshed, "foo"));
+		verify(synapse, times(2)).updateSubmissionStatusBatch(eq(EVALUATION_ID), any(SubmissionStatusBatch.class));
+	}
+
+	@Test
+	public void testRestartSequenceWhenBatchTokenRejected() throws Exception {
+		when(synapse.updateSubmissionStatusBatch(eq(EVALUATION_ID), any(SubmissionStatusBatch.class))).thenAnswer(new Answer<BatchUploadResponse>() {
+			@Override
+			public BatchUploadResponse answer(InvocationOnMock invocation) throws Throwable {
+				SubmissionStatusBatch batch = (SubmissionStatusBatch)invocation.getArguments()[1];
+				batches.add(batch);
+				// reject the token of the first sequence
+				if (batches.size()==2) throw new UnknownSynapseServerException(412, "Precondition failed");
+				BatchUploadResponse response = new BatchUploadResponse();
+				response.setNextUploadToken("token"+batches.size());
+				return response;
+			}});
+		SubmissionStatus written = createStatus("written", "etag-new");
+		when(synapse.getSubmissionStatus("0")).thenReturn(written);
+		SubmissionStatusBatcher batcher = new SubmissionStatusBatcher(synapse, 1);
+		for (int i=0; i<2; i++) batcher.add(EVALUATION_ID, createStatus(""+i, "etag"+i), createMods("bar"+i));
+
+		// method under test
+		batcher.flush();
+
+		assertEquals(4, batches.size());
+		// the sequence restarts from its first batch, with the status already written re-read
+		assertTrue(batches.get(2).getIsFirstBatch());
+		assertNull(batches.get(2).getBatchToken());
+		assertEquals(written, batches.get(2).getStatuses().get(0));
+		assertEquals("bar0", EvaluationUtils.getStringAnnotation(written, "foo"));
+		assertTrue(batches.get(3).getIsLastBatch());
+		assertEquals("token3", batches.get(3).getBatchToken());
+	}
+
+	@Test
+	public void testFailureInOneEvaluationDoesNotStopOthers() throws Exception {
+		String otherEvaluationId = "102";
+		SynapseConflictingUpdateException conflict = new SynapseConflictingUpdateException();
+		when(synapse.updateSubmissionStatusBatch(eq(EVALUATION_ID), any(SubmissionStatusBatch.class))).thenThrow(conflict);
+		when(synapse.getSubmissionStatus("1")).thenReturn(createStatus("1", "etag-new"));
+		when(synapse.updateSubmissionStatusBatch(eq(otherEvaluationId), any(SubmissionStatusBatch.class))).thenReturn(new BatchUploadResponse());
+		SubmissionStatusBatcher batcher = new SubmissionStatusBatcher(synapse);
+		batcher.add(EVALUATION_ID, createStatus("1", "etag1"), createMods("bar1"));
+		batcher.add(otherEvaluationId, createStatus("2", "etag2"), createMods("bar2"));
+
+		// method under test
+		try {
+			batcher.flush();
+			fail("Expected exception");
+		} catch (SynapseConflictingUpdateException e) {
+			assertEquals(conflict, e);
+		}
+
+		verify(synapse).updateSubmissionStatusBatch(eq(otherEvaluationId), any(SubmissionStatusBatch.class));
+		assertEquals(0, batcher.size());
+	}
+
+	@Test
+	public void testNothingToFlush() throws Exception {
+		SubmissionStatusBatcher batcher = new SubmissionStatusBatcher(synapse);
+
+		// method under test
+		batcher.flush();
+
+		verify(synapse, never()).updateSubmissionStatusBatch(any(String.class), any(SubmissionStatusBatch.class));
+	}
+}
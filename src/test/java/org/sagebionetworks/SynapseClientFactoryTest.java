@@ -3,6 +3,7 @@ package org.sagebionetworks;
 import static org.junit.Assert.assertEquals;
 
 import org.junit.Test;
+import org.sagebionetworks.client.exceptions.SynapseServiceUnavailable;
 
 public class SynapseClientFactoryTest {
 
@@ -11,4 +12,48 @@ public class SynapseClientFactoryTest {
 		assertEquals(2, SynapseClientFactory.createRetryingProxy(new IncrementerImpl(), Incrementer.class).increment(1));
 	}
 
+	public interface FlakyService {
+		public int call() throws Exception;
+	}
+
+	@Test
+	public void testRetryingProxyRecordsMetrics() throws Exception {
+		long calls = Metrics.SYNAPSE_CALLS.get("call");
+		long retries = Metrics.SYNAPSE_RETRIES.get("call");
+		long timings = Metrics.SYNAPSE_CALL_SECONDS.getCount("call");
+		FlakyService proxy = SynapseClientFactory.createRetryingProxy(new FlakyService() {
+			int attempts = 0;
+			@Override
+			public int call() throws Exception {
+				if (attempts++==0) throw new SynapseServiceUnavailable();
+				return attempts;
+			}}, FlakyService.class);
+
+		// method under test
+		assertEquals(2, proxy.call());
+
+		assertEquals(calls+2, Metrics.SYNAPSE_CALLS.get("call"));
+		assertEquals(retries+1, Metrics.SYNAPSE_RETRIES.get("call"));
+		assertEquals(timings+2, Metrics.SYNAPSE_CALL_SECONDS.getCount("call"));
+	}
+
+	@Test
+	public void testRetryingProxyAdaptsConcurrencyLimit() throws Exception {
+		SynapseRequestLimiter limiter = new SynapseRequestLimiter(8);
+		FlakyService proxy = SynapseClientFactory.createRetryingProxy(new FlakyService() {
+			int attempts = 0;
+			@Override
+			public int call() throws Exception {
+				if (attempts++==0) throw new SynapseServiceUnavailable();
+				return attempts;
+			}}, FlakyService.class, limiter);
+
+		// method under test
+		assertEquals(2, proxy.call());
+
+		// halved by the 503; the retry, alone in flight, doesn't raise it
+		assertEquals(4D, limiter.getLimit(), 1e-9);
+		assertEquals(0, limiter.getInFlight());
+	}
+
 }
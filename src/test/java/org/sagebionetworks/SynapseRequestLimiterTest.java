@@ -0,0 +1,131 @@
+package org.sagebionetworks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.sagebionetworks.client.exceptions.SynapseNotFoundException;
+import org.sagebionetworks.client.exceptions.SynapseServiceUnavailable;
+import org.sagebionetworks.client.exceptions.SynapseTooManyRequestsException;
+
+public class SynapseRequestLimiterTest {
+	private static final String METHOD = "getSubmission";
+
+	@Test
+	public void testDecreaseWhenThrottled() throws Exception {
+		SynapseRequestLimiter limiter = new SynapseRequestLimiter(8);
+		long throttled = Metrics.SYNAPSE_LIMIT_DECREASES.get("throttled");
+		long first = limiter.acquire();
+		long second = limiter.acquire();
+		assertEquals(2, limiter.getInFlight());
+
+		// method under test
+		limiter.release(METHOD, first, new SynapseTooManyRequestsException());
+		assertEquals(4D, limiter.getLimit(), 0D);
+
+		// the second was sent under the old limit, so doesn't cut it again
+		limiter.release(METHOD, second, new SynapseServiceUnavailable());
+		assertEquals(4D, limiter.getLimit(), 0D);
+		assertEquals(0, limiter.getInFlight());
+		assertEquals(throttled+1, Metrics.SYNAPSE_LIMIT_DECREASES.get("throttled"));
+
+		// but one sent since does
+		limiter.release(METHOD, limiter.acquire(), new SynapseServiceUnavailable());
+		assertEquals(2D, limiter.getLimit(), 0D);
+	}
+
+	@Test
+	public void testOtherFailuresLeaveLimit() throws Exception {
+		SynapseRequestLimiter limiter = new SynapseRequestLimiter(8);
+		limiter.release(METHOD, limiter.acquire(), new SynapseNotFoundException());
+		assertEquals(8D, limiter.getLimit(), 0D);
+	}
+
+	@Test
+	public void testAdditiveIncrease() throws Exception {
+		SynapseRequestLimiter limiter = new SynapseRequestLimiter(8);
+		for (int i=0; i<3; i++) limiter.release(METHOD, limiter.acquire(), new SynapseServiceUnavailable());
+		assertEquals(1D, limiter.getLimit(), 0D);
+
+		// method under test
+		limiter.release(METHOD, limiter.acquire(), null);
+		assertEquals(2D, limiter.getLimit(), 0D);
+		// each success raises the limit by 1/limit
+		long first = limiter.acquire();
+		long second = limiter.acquire();
+		limiter.release(METHOD, first, null);
+		assertEquals(2.5D, limiter.getLimit(), 1e-9);
+		// but not while it's mostly unused
+		limiter.release(METHOD, second, null);
+		assertEquals(2.5D, limiter.getLimit(), 1e-9);
+
+		// never beyond the maximum
+		for (int i=0; i<100; i++) limiter.release(METHOD, limiter.acquire(), null);
+		assertTrue(limiter.getLimit()<=8D);
+	}
+
+	@Test
+	public void testDecreaseOnLatencySpike() throws Exception {
+		SynapseRequestLimiter limiter = new SynapseRequestLimiter(8);
+		long latency = Metrics.SYNAPSE_LIMIT_DECREASES.get("latency");
+		for (int i=0; i<SynapseRequestLimiter.LATENCY_WARM_UP_CALLS; i++) {
+			limiter.release(METHOD, limiter.acquire(), null);
+		}
+		// a slow call to another method isn't judged against this one's latency
+		limiter.acquire();
+		limiter.release("getEntity", System.nanoTime()-50000000L, null);
+		assertEquals(8D, limiter.getLimit(), 0D);
+		Thread.sleep(100L);
+		limiter.acquire();
+
+		// method under test:  a call taking 50ms, rather than microseconds
+		limiter.release(METHOD, System.nanoTime()-50000000L, null);
+
+		assertEquals(4D, limiter.getLimit(), 0D);
+		assertEquals(latency+1, Metrics.SYNAPSE_LIMIT_DECREASES.get("latency"));
+	}
+
+	@Test
+	public void testNoLatencySpikeForTransfers() throws Exception {
+		SynapseRequestLimiter limiter = new SynapseRequestLimiter(8);
+		for (int i=0; i<SynapseRequestLimiter.LATENCY_WARM_UP_CALLS; i++) {
+			limiter.release("multipartUpload", limiter.acquire(), null);
+		}
+		Thread.sleep(100L);
+		limiter.acquire();
+
+		// method under test:  a large upload, taking 50ms rather than microseconds
+		limiter.release("multipartUpload", System.nanoTime()-50000000L, null);
+
+		assertEquals(8D, limiter.getLimit(), 0D);
+		assertTrue(SynapseRequestLimiter.isTransfer("downloadFromFileEntityCurrentVersion"));
+		assertFalse(SynapseRequestLimiter.isTransfer(METHOD));
+	}
+
+	@Test
+	public void testWaitAtLimit() throws Exception {
+		final SynapseRequestLimiter limiter = new SynapseRequestLimiter(1);
+		long first = limiter.acquire();
+		final boolean[] acquired = new boolean[] {false};
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					limiter.release(METHOD, limiter.acquire(), null);
+					acquired[0] = true;
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+			}});
+		thread.start();
+		thread.join(200L);
+		assertFalse(acquired[0]);
+
+		// method under test
+		limiter.release(METHOD, first, null);
+
+		thread.join(10000L);
+		assertTrue(acquired[0]);
+	}
+}
@@ -25,6 +25,7 @@ public class UtilsTest {
 	@After
 	public void tearDown() throws Exception {
 		System.clearProperty(SUBMITTER_NOTIFICATION_MASK_PARAM_NAME);
+		Configuration.reload();
 	}
 	
 	@Test
@@ -47,6 +48,7 @@ public class UtilsTest {
 	@Test
 	public void testNotificationEnabled() {
 		System.setProperty(SUBMITTER_NOTIFICATION_MASK_PARAM_NAME, "28");
+		Configuration.reload();
 		assertFalse(Utils.notificationEnabled(SUBMISSION_STARTED));
 		assertFalse(Utils.notificationEnabled(SUBMISSION_STARTED));
 		assertTrue(Utils.notificationEnabled(SUBMISSION_FAILED));
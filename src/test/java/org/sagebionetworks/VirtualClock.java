@@ -0,0 +1,195 @@
+package org.sagebionetworks;
+
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * A clock whose time stands still while the simulated system is busy and jumps to
+ * the next deadline as soon as it's idle, so that hours of waiting pass in moments.
+ *
+ * The simulated system is the threads of the given thread group (and of the groups
+ * within it); threads created by those threads join the group, so running the agent
+ * in a thread of the group brings in its thread pools too.  The system is idle when
+ * none of its threads is runnable (or blocked entering a monitor) and every thread
+ * woken by the clock has resumed.  Then the clock advances to the earliest deadline
+ * of a thread sleeping or waiting on it, and wakes the threads whose deadlines
+ * have come.  Threads woken by signal() count as woken by the clock, so no time
+ * passes until they resume.
+ *
+ * Threads waiting in real time, e.g. on Thread.sleep() or a timed Future.get(),
+ * count as idle, so their waits take no virtual time.
+ */
+public class VirtualClock extends Clock {
+	// the system must be seen idle this many times in a row, this far apart, to be taken as idle,
+	// since a thread just handed work may not yet show as runnable
+	private static final int IDLE_CONFIRMATIONS = 3;
+	private static final long IDLE_CHECK_INTERVAL_NANOS = 20000L;
+	private static final long BUSY_POLL_NANOS = 100000L;
+
+	private static class Timer implements Comparable<Timer> {
+		long deadline;
+		long sequence;
+		Object monitor;
+		boolean fired = false;
+
+		@Override
+		public int compareTo(Timer that) {
+			if (this.deadline!=that.deadline) return this.deadline<that.deadline ? -1 : 1;
+			return Long.compare(this.sequence, that.sequence);
+		}
+	}
+
+	private final ThreadGroup threadGroup;
+	private final Object lock = new Object();
+	private long now;
+	private long sequence = 0L;
+	private PriorityQueue<Timer> timers = new PriorityQueue<Timer>();
+	private int firedNotResumed = 0;
+	private long advances = 0L;
+	private volatile boolean running = false;
+	private Thread driver = null;
+
+	public VirtualClock(long startMillis, ThreadGroup threadGroup) {
+		this.now = startMillis;
+		this.threadGroup = threadGroup;
+	}
+
+	@Override
+	public long currentTimeMillis() {
+		synchronized (lock) {
+			return now;
+		}
+	}
+
+	/*
+	 * The number of times the clock has moved forward
+	 */
+	public long getAdvances() {
+		synchronized (lock) {
+			return advances;
+		}
+	}
+
+	@Override
+	public void sleep(long millis) throws InterruptedException {
+		Object monitor = new Object();
+		synchronized (monitor) {
+			long deadline = currentTimeMillis()+millis;
+			for (long remaining=millis; remaining>0; remaining=deadline-currentTimeMillis()) {
+				await(monitor, remaining);
+			}
+		}
+	}
+
+	@Override
+	public void await(Object monitor, long millis) throws InterruptedException {
+		if (millis<=0) return;
+		Timer timer = new Timer();
+		timer.monitor = monitor;
+		synchronized (lock) {
+			timer.deadline = now+millis;
+			timer.sequence = sequence++;
+			timers.add(timer);
+		}
+		try {
+			// the timer can't fire before we wait, since firing it notifies the monitor, which we hold
+			monitor.wait();
+		} finally {
+			synchronized (lock) {
+				if (timer.fired) {
+					firedNotResumed--;
+				} else {
+					timers.remove(timer);
+				}
+			}
+		}
+	}
+
+	@Override
+	public void signal(Object monitor) {
+		synchronized (lock) {
+			for (Iterator<Timer> iterator = timers.iterator(); iterator.hasNext();) {
+				Timer timer = iterator.next();
+				if (timer.monitor!=monitor) continue;
+				iterator.remove();
+				timer.fired = true;
+				firedNotResumed++;
+			}
+		}
+		monitor.notifyAll();
+	}
+
+	private boolean isSystemBusy() {
+		Thread[] threads = new Thread[threadGroup.activeCount()+16];
+		int n = threadGroup.enumerate(threads, true);
+		for (int i=0; i<n; i++) {
+			if (threads[i]==Thread.currentThread()) continue;
+			Thread.State state = threads[i].getState();
+			if (state==Thread.State.RUNNABLE || state==Thread.State.BLOCKED) return true;
+		}
+		return false;
+	}
+
+	private boolean isIdle() {
+		for (int i=0; i<IDLE_CONFIRMATIONS; i++) {
+			synchronized (lock) {
+				if (firedNotResumed>0 || timers.isEmpty()) return false;
+			}
+			if (isSystemBusy()) return false;
+			LockSupport.parkNanos(IDLE_CHECK_INTERVAL_NANOS);
+		}
+		return true;
+	}
+
+	/*
+	 * Move to the earliest deadline and wake the threads waiting for it
+	 */
+	private void advance() {
+		PriorityQueue<Timer> due = new PriorityQueue<Timer>();
+		synchronized (lock) {
+			Timer first = timers.peek();
+			if (first==null) return;
+			now = Math.max(now, first.deadline);
+			advances++;
+			while (!timers.isEmpty() && timers.peek().deadline<=now) {
+				Timer timer = timers.poll();
+				timer.fired = true;
+				firedNotResumed++;
+				due.add(timer);
+			}
+		}
+		for (Timer timer : due) {
+			synchronized (timer.monitor) {
+				timer.monitor.notifyAll();
+			}
+		}
+	}
+
+	/*
+	 * Start moving time forward whenever the simulated system is idle
+	 */
+	public synchronized void start() {
+		if (running) return;
+		running = true;
+		driver = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (running) {
+					if (isIdle()) {
+						advance();
+					} else {
+						LockSupport.parkNanos(BUSY_POLL_NANOS);
+					}
+				}
+			}}, "virtual-clock");
+		driver.setDaemon(true);
+		driver.start();
+	}
+
+	public synchronized void stop() throws InterruptedException {
+		running = false;
+		if (driver!=null) driver.join();
+		driver = null;
+	}
+}
@@ -0,0 +1,111 @@
+package org.sagebionetworks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class VirtualClockTest {
+	private static final long START = 1500000000000L;
+	private static final long HOUR = 3600*1000L;
+
+	private ThreadGroup threadGroup;
+	private VirtualClock clock;
+
+	@Before
+	public void before() {
+		threadGroup = new ThreadGroup("simulation");
+		clock = new VirtualClock(START, threadGroup);
+		Clock.setClock(clock);
+		clock.start();
+	}
+
+	@After
+	public void after() throws Exception {
+		clock.stop();
+		Clock.setClock(new Clock());
+	}
+
+	/*
+	 * Start the threads together from within the simulated system, since
+	 * the clock may move on as soon as it sees the first of them waiting
+	 */
+	private void startThreads(final Thread... threads) throws InterruptedException {
+		Thread starter = new Thread(threadGroup, new Runnable() {
+			@Override
+			public void run() {
+				for (Thread thread : threads) thread.start();
+			}});
+		starter.start();
+		starter.join();
+	}
+
+	@Test
+	public void testSleep() throws Exception {
+		final long[] wokeAt = new long[2];
+		long start = System.currentTimeMillis();
+		Thread first = new Thread(threadGroup, new Runnable() {
+			@Override
+			public void run() {
+				try {
+					clock.sleep(2*HOUR);
+					wokeAt[0] = clock.currentTimeMillis();
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+			}});
+		Thread second = new Thread(threadGroup, new Runnable() {
+			@Override
+			public void run() {
+				try {
+					clock.sleep(HOUR);
+					wokeAt[1] = clock.currentTimeMillis();
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+			}});
+		startThreads(first, second);
+
+		first.join(10000L);
+		second.join(10000L);
+
+		assertEquals(START+2*HOUR, wokeAt[0]);
+		assertEquals(START+HOUR, wokeAt[1]);
+		assertTrue(System.currentTimeMillis()-start<10000L);
+	}
+
+	@Test
+	public void testSchedulerWakeUp() throws Exception {
+		final AdaptiveScheduler scheduler = new AdaptiveScheduler(1000L, 10000L, HOUR);
+		final long[] wokeAt = new long[1];
+		Thread waiter = new Thread(threadGroup, new Runnable() {
+			@Override
+			public void run() {
+				try {
+					scheduler.await(HOUR);
+					wokeAt[0] = clock.currentTimeMillis();
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+			}});
+		Thread waker = new Thread(threadGroup, new Runnable() {
+			@Override
+			public void run() {
+				try {
+					clock.sleep(60000L);
+					scheduler.wakeUp();
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+			}});
+		startThreads(waiter, waker);
+
+		waiter.join(10000L);
+		waker.join(10000L);
+
+		// the wait ended when woken, not when its time was up
+		assertEquals(START+60000L, wokeAt[0]);
+	}
+}
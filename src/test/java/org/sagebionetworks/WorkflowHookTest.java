@@ -3,12 +3,15 @@ package org.sagebionetworks;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.sagebionetworks.Constants.AGENT_SHARED_DIR_DEFAULT;
 import static org.sagebionetworks.Constants.AGENT_SHARED_DIR_PROPERTY_NAME;
 import static org.sagebionetworks.Constants.COMPOSE_PROJECT_NAME_ENV_VAR;
 import static org.sagebionetworks.Constants.DOCKER_ENGINE_URL_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.EVALUATION_TEMPLATES_PROPERTY_NAME;
+import static org.sagebionetworks.Constants.ROOT_TEMPLATE_ANNOTATION_NAME;
 import static org.sagebionetworks.Constants.SHARED_VOLUME_NAME;
 import static org.sagebionetworks.Constants.SYNAPSE_PASSWORD_PROPERTY;
 import static org.sagebionetworks.Constants.SYNAPSE_USERNAME_PROPERTY;
@@ -32,9 +35,13 @@ import org.sagebionetworks.evaluation.model.Submission;
 import org.sagebionetworks.evaluation.model.SubmissionBundle;
 import org.sagebionetworks.evaluation.model.SubmissionStatus;
 import org.sagebionetworks.evaluation.model.SubmissionStatusEnum;
+import org.sagebionetworks.repo.model.Annotations;
 import org.sagebionetworks.repo.model.Folder;
 import org.sagebionetworks.repo.model.Project;
 import org.sagebionetworks.repo.model.UserProfile;
+import org.sagebionetworks.repo.model.file.ExternalFileHandle;
+import org.sagebionetworks.repo.model.file.FileHandle;
+import org.sagebionetworks.repo.model.file.FileHandleResults;
 
 @RunWith(MockitoJUnitRunner.class)
 public class WorkflowHookTest {
@@ -101,6 +108,7 @@ public class WorkflowHookTest {
 		System.clearProperty("SYNAPSE_PASSWORD");
 		System.clearProperty(DOCKER_ENGINE_URL_PROPERTY_NAME);
 		System.clearProperty("EVALUATION_TEMPLATES");
+		Configuration.reload();
 		System.setProperty(AGENT_SHARED_DIR_PROPERTY_NAME, AGENT_SHARED_DIR_DEFAULT);
 	}
 
@@ -132,6 +140,42 @@ public class WorkflowHookTest {
 		workflowHook.updateWorkflowJobs(Collections.singletonList(EVALUATION_ID));
 	}
 	
+	private void mockTemplateEntity(String entityId, String url) throws Exception {
+		ExternalFileHandle fileHandle = new ExternalFileHandle();
+		fileHandle.setExternalURL(url);
+		FileHandleResults fileHandleResults = new FileHandleResults();
+		fileHandleResults.setList(Collections.<FileHandle>singletonList(fileHandle));
+		when(synapse.getEntityFileHandlesForCurrentVersion(entityId)).thenReturn(fileHandleResults);
+		Annotations annotations = new Annotations();
+		annotations.setStringAnnotations(Collections.singletonMap(ROOT_TEMPLATE_ANNOTATION_NAME, Collections.singletonList(WORKFLOW_ENTRYPOINT)));
+		when(synapse.getAnnotations(entityId)).thenReturn(annotations);
+	}
+
+	@Test
+	public void testEvaluationWorkflowsFollowReloadedTemplates() throws Throwable {
+		String otherEvaluationId = "444";
+		String otherWorkflowSynId = "syn5555";
+		mockTemplateEntity("syn"+WORKFLOW_SYN_ID, WORKFLOW_URL.toString());
+		mockTemplateEntity(otherWorkflowSynId, WORKFLOW_URL.toString());
+		System.setProperty(EVALUATION_TEMPLATES_PROPERTY_NAME, "{\""+EVALUATION_ID+"\":\"syn"+WORKFLOW_SYN_ID+"\"}");
+		Configuration.reload();
+		assertEquals(Collections.singleton(EVALUATION_ID), workflowHook.getEvaluationWorkflows().keySet());
+		
+		// an evaluation is added, e.g., by a change to CONFIGURATION_FILE
+		System.setProperty(EVALUATION_TEMPLATES_PROPERTY_NAME, "{\""+EVALUATION_ID+"\":\"syn"+WORKFLOW_SYN_ID+"\","+
+				"\""+otherEvaluationId+"\":\""+otherWorkflowSynId+"\"}");
+		Configuration.reload();
+		
+		// method under test
+		Map<String,WorkflowURLEntrypointAndSynapseRef> workflows = workflowHook.getEvaluationWorkflows();
+		
+		assertEquals(otherWorkflowSynId, workflows.get(otherEvaluationId).getSynapseId());
+		assertEquals(WORKFLOW_ENTRYPOINT, workflows.get(otherEvaluationId).getEntryPoint());
+		// the workflows are looked up only when the setting changes
+		workflowHook.getEvaluationWorkflows();
+		verify(synapse, times(1)).getEntityFileHandlesForCurrentVersion(otherWorkflowSynId);
+	}
+
 	private static String ZIP_FILE_URL = "https://github.com/Sage-Bionetworks/SynapseWorkflowExample/archive/master.zip";
 	private static String ROOT_TEMPLATE = "SynapseWorkflowExample-master/workflow-entrypoint.cwl";
 	
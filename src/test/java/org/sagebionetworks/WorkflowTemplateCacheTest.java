@@ -0,0 +1,148 @@
+package org.sagebionetworks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.Charset;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.io.Files;
+
+public class WorkflowTemplateCacheTest {
+	
+	private File cacheRoot;
+	private File workDir;
+	private WorkflowTemplateCache cache;
+	
+	@Before
+	public void setUp() throws Exception {
+		cacheRoot = Files.createTempDir();
+		workDir = Files.createTempDir();
+		cache = new WorkflowTemplateCache(cacheRoot, 2);
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		FileUtils.deleteDirectory(cacheRoot);
+		FileUtils.deleteDirectory(workDir);
+	}
+	
+	private File createZip(String entryContent) throws Exception {
+		return createZip("template.zip", entryContent);
+	}
+	
+	private File createZip(String name, String entryContent) throws Exception {
+		File zip = new File(workDir, name);
+		try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(zip))) {
+			zos.putNextEntry(new ZipEntry("workflow/main.cwl"));
+			zos.write(entryContent.getBytes(Charset.forName("UTF-8")));
+			zos.closeEntry();
+		}
+		return zip;
+	}
+
+	@Test
+	public void testUnzipOncePerVersion() throws Exception {
+		File zip = createZip("version 1");
+		
+		File target1 = new File(workDir, "target1");
+		target1.mkdir();
+		cache.unzipTo(zip.toURI().toURL(), target1);
+		File target2 = new File(workDir, "target2");
+		target2.mkdir();
+		cache.unzipTo(zip.toURI().toURL(), target2);
+		
+		assertEquals("version 1", FileUtils.readFileToString(new File(target1, "workflow/main.cwl"), "UTF-8"));
+		assertEquals("version 1", FileUtils.readFileToString(new File(target2, "workflow/main.cwl"), "UTF-8"));
+		assertEquals(1, new File(cacheRoot, "extracted").list().length);
+		
+		// a new version of the template is unpacked alongside the old
+		String hash1 = cache.fetch(zip.toURI().toURL()).getContentHash();
+		createZip("version 2");
+		String hash2 = cache.fetch(zip.toURI().toURL()).getContentHash();
+		assertNotEquals(hash1, hash2);
+		File target3 = new File(workDir, "target3");
+		target3.mkdir();
+		cache.unzipTo(zip.toURI().toURL(), target3);
+		assertEquals("version 2", FileUtils.readFileToString(new File(target3, "workflow/main.cwl"), "UTF-8"));
+		assertEquals(2, new File(cacheRoot, "extracted").list().length);
+	}
+
+	@Test
+	public void testWorkflowFolderIsIndependentOfCache() throws Exception {
+		File zip = createZip("pristine");
+		File target1 = new File(workDir, "target1");
+		target1.mkdir();
+		cache.unzipTo(zip.toURI().toURL(), target1);
+		
+		// the workflow writes to its copy of a template file
+		File file = new File(target1, "workflow/main.cwl");
+		try (FileOutputStream os = new FileOutputStream(file, true)) {
+			os.write(" modified".getBytes(Charset.forName("UTF-8")));
+		}
+		
+		File extracted = new File(cacheRoot, "extracted").listFiles()[0];
+		assertEquals("pristine", FileUtils.readFileToString(new File(extracted, "workflow/main.cwl"), "UTF-8"));
+		File target2 = new File(workDir, "target2");
+		target2.mkdir();
+		cache.unzipTo(zip.toURI().toURL(), target2);
+		assertEquals("pristine", FileUtils.readFileToString(new File(target2, "workflow/main.cwl"), "UTF-8"));
+	}
+
+	private void unzipTo(File zip, String targetName) throws Exception {
+		File target = new File(workDir, targetName);
+		target.mkdir();
+		cache.unzipTo(zip.toURI().toURL(), target);
+	}
+
+	@Test
+	public void testLeastRecentlyUsedExtractionsAreDeleted() throws Exception {
+		File zip1 = createZip("template1.zip", "version 1");
+		File zip2 = createZip("template2.zip", "version 2");
+		File zip3 = createZip("template3.zip", "version 3");
+		String hash1 = cache.fetch(zip1.toURI().toURL()).getContentHash();
+		String hash2 = cache.fetch(zip2.toURI().toURL()).getContentHash();
+		String hash3 = cache.fetch(zip3.toURI().toURL()).getContentHash();
+		File extractedDir = new File(cacheRoot, "extracted");
+		
+		unzipTo(zip1, "target1");
+		unzipTo(zip2, "target2");
+		// template 1 is used again, so template 2 is now the least recently used
+		unzipTo(zip1, "target3");
+		unzipTo(zip3, "target4");
+		
+		assertEquals(2, extractedDir.list().length);
+		assertTrue(new File(extractedDir, hash1).isDirectory());
+		assertFalse(new File(extractedDir, hash2).exists());
+		assertTrue(new File(extractedDir, hash3).isDirectory());
+		
+		// the order of use is remembered across a restart
+		new File(extractedDir, hash1).setLastModified(1000L);
+		new File(extractedDir, hash3).setLastModified(2000L);
+		cache = new WorkflowTemplateCache(cacheRoot, 2);
+		unzipTo(zip2, "target5");
+		assertFalse(new File(extractedDir, hash1).exists());
+		assertTrue(new File(extractedDir, hash2).isDirectory());
+		assertTrue(new File(extractedDir, hash3).isDirectory());
+		assertEquals("version 2", FileUtils.readFileToString(new File(workDir, "target5/workflow/main.cwl"), "UTF-8"));
+	}
+
+	@Test
+	public void testFetchAsString() throws Exception {
+		File doc = new File(workDir, "doc.json");
+		FileUtils.write(doc, "{\"foo\":\"bar\"}", "UTF-8");
+		assertEquals("{\"foo\":\"bar\"}", cache.fetchAsString(doc.toURI().toURL()));
+		assertTrue(new File(cacheRoot, "documents").list().length==1);
+	}
+
+}